@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.benchmark;
+
+import dev.tobiasbriones.ep.sdbackup.FileUtils;
+import dev.tobiasbriones.ep.sdbackup.io.CopyStrategies;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the garbage made by copying a whole source tree into one or two
+ * empty destinations on four workers. Run it with the GC profiler to see the allocation
+ * rate, the bytes allocated per copy and the number of collections, like
+ * {@code -Pjmh="AllocationBenchmark -prof gc"}. The copy threads end with
+ * each copy, before the profiler reads what they allocated, so the number
+ * of collections is the figure to compare.
+ *
+ * @author Tobias Briones
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = { "-Xms256m", "-Xmx256m" })
+public class AllocationBenchmark {
+    private static final int THREADS = 4;
+    @Param({ "TINY_FILES", "MIXED" })
+    public TreeShape shape;
+
+    @Param({ "1", "2" })
+    public int destinations;
+
+    @Param({ "auto", "buffered" })
+    public String strategy;
+    private Path root;
+    private Path src;
+    private List<Path> dsts;
+
+    @Setup(Level.Trial)
+    public void create() throws IOException {
+        root = Files.createTempDirectory("sdbackup-bench");
+        src = root.resolve("src");
+        shape.create(src);
+        dsts = new ArrayList<>(destinations);
+        for (int i = 0; i < destinations; i++) {
+            dsts.add(root.resolve("dst" + i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        TreeShape.delete(root);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clean() throws IOException {
+        for (Path dst : dsts) {
+            TreeShape.delete(dst);
+        }
+    }
+
+    @Benchmark
+    public void copy() throws IOException {
+        FileUtils.newCopyEngine(THREADS, CopyStrategies.valueOf(strategy)).copy(src, dsts);
+    }
+}
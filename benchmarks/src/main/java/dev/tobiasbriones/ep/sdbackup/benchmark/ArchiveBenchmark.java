@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.benchmark;
+
+import dev.tobiasbriones.ep.sdbackup.archive.Archive;
+import dev.tobiasbriones.ep.sdbackup.archive.ArchiveKey;
+import dev.tobiasbriones.ep.sdbackup.io.CopyProgress;
+import dev.tobiasbriones.ep.sdbackup.io.Throttle;
+import dev.tobiasbriones.ep.sdbackup.io.TreeFilter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures writing an archive of a tree of 4,000 files from 1 KiB to 64 KiB
+ * and eight of 16 MiB, either made of text that compresses well or of random
+ * bytes that are stored as they are, and extracting a single file from it,
+ * either plain or encrypted.
+ *
+ * @author Tobias Briones
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ArchiveBenchmark {
+    private static final String TASK = "bench";
+    private static final long SEED = 2018L;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    @Param({ "1", "4", "16" })
+    public int threads;
+    @Param({ "true", "false" })
+    public boolean compressible;
+    @Param({ "false", "true" })
+    public boolean encrypted;
+    private Path root;
+    private Path src;
+    private Path dir;
+    private Path archive;
+    private ArchiveKey key;
+    private int snapshot;
+
+    @Setup(Level.Trial)
+    public void create() throws IOException {
+        final Random random = new Random(SEED);
+
+        root = Files.createTempDirectory("sdbackup-bench");
+        src = root.resolve("src");
+        dir = root.resolve("archives");
+        for (int d = 0; d < 40; d++) {
+            final Path folder = Files.createDirectories(src.resolve("dir" + d));
+
+            for (int f = 0; f < 100; f++) {
+                writeFile(folder.resolve("file" + f + ".txt"), 1024 + random.nextInt(63 * 1024), random);
+            }
+        }
+        for (int f = 0; f < 8; f++) {
+            writeFile(src.resolve("large" + f + ".log"), 16 * 1024 * 1024, random);
+        }
+        Archive.create(dir);
+        key = encrypted ? ArchiveKey.openOrCreate(dir, "bench".getBytes(StandardCharsets.UTF_8)) : null;
+        archive = backup();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        TreeShape.delete(root);
+    }
+
+    @Setup(Level.Iteration)
+    public void clean() throws IOException {
+        TreeShape.delete(root.resolve("extracted"));
+    }
+
+    @Benchmark
+    public Path backup() throws IOException {
+        return Archive.backup(
+            dir,
+            TASK,
+            String.valueOf(snapshot++),
+            src,
+            threads,
+            new CopyProgress(),
+            TreeFilter.ALL,
+            Throttle.NONE,
+            key
+        );
+    }
+
+    @Benchmark
+    public long extractFile() throws IOException {
+        final Path target = root.resolve("extracted");
+
+        try (Archive opened = Archive.open(archive, key)) {
+            return opened.extract("dir20/file50.txt", target, threads, new CopyProgress().addDestination(target));
+        }
+    }
+
+    private void writeFile(Path file, int size, Random random) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int remaining = size;
+
+        try (OutputStream out = Files.newOutputStream(file)) {
+            while (remaining > 0) {
+                final int length = Math.min(buffer.length, remaining);
+
+                if (compressible) {
+                    fillText(buffer, length, random);
+                }
+                else {
+                    random.nextBytes(buffer);
+                }
+                out.write(buffer, 0, length);
+                remaining -= length;
+            }
+        }
+    }
+
+    private static void fillText(byte[] buffer, int length, Random random) {
+        int filled = 0;
+
+        while (filled < length) {
+            final byte[] line = ("2018-06-30 14:05:" + random.nextInt(60) + " INFO request " + random.nextInt(1000)
+                                 + " served in " + random.nextInt(500) + " ms\n").getBytes(StandardCharsets.US_ASCII);
+            final int n = Math.min(line.length, length - filled);
+
+            System.arraycopy(line, 0, buffer, filled, n);
+            filled += n;
+        }
+    }
+}
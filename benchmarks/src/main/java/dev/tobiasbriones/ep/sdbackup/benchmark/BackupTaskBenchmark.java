@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.benchmark;
+
+import dev.tobiasbriones.ep.sdbackup.model.BackupTask;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures resolving the SD Backup path of a task target.
+ *
+ * @author Tobias Briones
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BackupTaskBenchmark {
+    private final BackupTask task = new BackupTask();
+    private final File sdTarget = new File(
+        String.join(
+            File.separator,
+            "",
+            "data",
+            "Software Development",
+            "tobiasbriones",
+            "Java",
+            "ep-sd-backup"
+        )
+    );
+    private final File plainTarget = new File(
+        String.join(File.separator, "", "data", "photos", "2021", "trip")
+    );
+
+    @Benchmark
+    public String sdTarget() {
+        task.setTarget(sdTarget);
+        return task.getSdPath();
+    }
+
+    @Benchmark
+    public String plainTarget() {
+        task.setTarget(plainTarget);
+        return task.getSdPath();
+    }
+}
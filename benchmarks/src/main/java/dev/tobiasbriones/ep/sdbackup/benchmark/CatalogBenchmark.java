@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.benchmark;
+
+import dev.tobiasbriones.ep.sdbackup.snapshot.Catalog;
+import dev.tobiasbriones.ep.sdbackup.snapshot.Manifest;
+import dev.tobiasbriones.ep.sdbackup.snapshot.ManifestEntry;
+import dev.tobiasbriones.ep.sdbackup.snapshot.ManifestWriter;
+import dev.tobiasbriones.ep.sdbackup.snapshot.Snapshots;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures looking a file and a folder up in the catalog of a task with many
+ * snapshots, where a few files change between snapshots, and looking the
+ * file up by reading every manifest instead.
+ *
+ * @author Tobias Briones
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CatalogBenchmark {
+    private static final String TASK = "benchmark";
+    private static final int FOLDERS = 100;
+    private static final int CHANGES_PER_SNAPSHOT = 100;
+    private static final String FILE = "d7/f1007";
+    @Param({ "1000" })
+    public int snapshots;
+    @Param({ "10000" })
+    public int files;
+    private Path root;
+    private List<Path> manifests;
+    private Catalog catalog;
+
+    @Setup(Level.Trial)
+    public void create() throws IOException {
+        final long[] modifiedTimes = new long[files];
+
+        root = Files.createTempDirectory("sdbackup-bench");
+        manifests = new ArrayList<>(snapshots);
+        Files.createDirectories(Snapshots.metadataDir(root));
+        for (int i = 0; i < snapshots; i++) {
+            final String snapshot = String.format("s%05d", i);
+            final Path manifest = Snapshots.manifestOf(root.resolve(snapshot));
+
+            for (int j = 0; j < CHANGES_PER_SNAPSHOT; j++) {
+                modifiedTimes[(int) ((i * 7919L + j * 104729L) % files)] = i;
+            }
+            try (ManifestWriter writer = new ManifestWriter(
+                manifest,
+                TASK,
+                snapshot,
+                i,
+                Collections.singletonList(snapshot)
+            )) {
+                for (int j = 0; j < files; j++) {
+                    writer.write(new ManifestEntry(pathOf(j), j, modifiedTimes[j], 0644, snapshot));
+                }
+            }
+            manifests.add(manifest);
+        }
+        Catalog.rebuild(root, TASK);
+        catalog = Catalog.open(root, TASK);
+    }
+
+    @TearDown(Level.Trial)
+    public void clean() throws IOException {
+        TreeShape.delete(root);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<Catalog.Version> findFile() {
+        return catalog.find(FILE);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public SortedMap<String, List<Catalog.Version>> findFolder() {
+        return catalog.findUnder("d7/", files);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<ManifestEntry> scanManifests() throws IOException {
+        final List<ManifestEntry> entries = new ArrayList<>();
+
+        for (Path manifest : manifests) {
+            final ManifestEntry entry = Manifest.read(manifest).getEntries().get(FILE);
+
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    private static String pathOf(int file) {
+        return "d" + file % FOLDERS + "/f" + file;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.benchmark;
+
+import dev.tobiasbriones.ep.sdbackup.FileUtils;
+import dev.tobiasbriones.ep.sdbackup.io.Checksums;
+import dev.tobiasbriones.ep.sdbackup.io.CopyEngine;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Measures the cost of hashing files while copying them, against a plain copy
+ * of the same tree into one or two destinations, and hashing the tree on its
+ * own as the snapshot verification does.
+ *
+ * @author Tobias Briones
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChecksumBenchmark {
+    @Param({ "false", "true" })
+    public boolean checksums;
+
+    @Param({ "1", "2" })
+    public int destinations;
+    private List<Path> dsts;
+    private List<Path> files;
+
+    @Setup(Level.Trial)
+    public void listFiles(SourceTree tree) throws IOException {
+        try (Stream<Path> stream = Files.walk(tree.src)) {
+            files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void prepare(SourceTree tree) {
+        dsts = new ArrayList<>(destinations);
+        for (int i = 0; i < destinations; i++) {
+            dsts.add(tree.root.resolve("dst" + i));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void clean() throws IOException {
+        for (Path dst : dsts) {
+            TreeShape.delete(dst);
+        }
+    }
+
+    @Benchmark
+    public void copy(SourceTree tree) throws IOException {
+        final CopyEngine engine = FileUtils.newCopyEngine(
+            FileUtils.DEFAULT_COPY_THREADS,
+            FileUtils.DEFAULT_COPY_STRATEGY
+        );
+
+        engine.setChecksums(checksums);
+        engine.copy(tree.src, dsts);
+    }
+
+    @Benchmark
+    public int hash() throws IOException {
+        int sum = 0;
+
+        for (Path file : files) {
+            sum += Checksums.hash(file)[0];
+        }
+        return sum;
+    }
+}
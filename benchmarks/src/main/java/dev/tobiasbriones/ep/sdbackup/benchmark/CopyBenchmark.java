@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.benchmark;
+
+import dev.tobiasbriones.ep.sdbackup.FileUtils;
+import dev.tobiasbriones.ep.sdbackup.io.CopyStrategies;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures copying a whole source tree into an empty destination with each
+ * worker count and copy strategy. A count of 0 tunes the workers while
+ * copying.
+ *
+ * @author Tobias Briones
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopyBenchmark {
+    @Param({ "0", "1", "2", "4", "8", "16" })
+    public int threads;
+
+    @Param({ "auto", "files", "transfer", "buffered" })
+    public String strategy;
+    private Path dst;
+
+    @Setup(Level.Iteration)
+    public void prepare(SourceTree tree) {
+        dst = tree.root.resolve("dst");
+    }
+
+    @TearDown(Level.Iteration)
+    public void clean() throws IOException {
+        TreeShape.delete(dst);
+    }
+
+    @Benchmark
+    public void copy(SourceTree tree) throws IOException {
+        FileUtils.copyDirectory(tree.src, dst, threads, CopyStrategies.valueOf(strategy));
+    }
+}
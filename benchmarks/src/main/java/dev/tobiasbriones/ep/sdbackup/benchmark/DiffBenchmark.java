@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.benchmark;
+
+import dev.tobiasbriones.ep.sdbackup.diff.SnapshotDiff;
+import dev.tobiasbriones.ep.sdbackup.restore.RestorePoint;
+import dev.tobiasbriones.ep.sdbackup.snapshot.ManifestEntry;
+import dev.tobiasbriones.ep.sdbackup.snapshot.ManifestWriter;
+import dev.tobiasbriones.ep.sdbackup.snapshot.Snapshots;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures comparing the manifests of two snapshots of a task, where one in
+ * a hundred files was modified, moved, added or removed in between. Entries
+ * are written one folder after the other, in a scrambled order within each
+ * folder, like a walk gives them.
+ *
+ * @author Tobias Briones
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DiffBenchmark {
+    private static final String TASK = "benchmark";
+    private static final String FROM = "2018.06.30 14_05";
+    private static final String TO = "2018.07.01 14_05";
+    private static final int FOLDERS = 1000;
+    private static final int CHANGE_EVERY = 100;
+    @Param({ "100000", "2000000" })
+    public int files;
+    private Path root;
+
+    @Setup(Level.Trial)
+    public void create() throws IOException {
+        root = Files.createTempDirectory("sdbackup-bench");
+        Files.createDirectories(Snapshots.metadataDir(root));
+        write(FROM, 0L, false);
+        write(TO, 1L, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void clean() throws IOException {
+        TreeShape.delete(root);
+    }
+
+    @Benchmark
+    public SnapshotDiff.Result diff() throws IOException {
+        return SnapshotDiff.diff(TASK, root, RestorePoint.parse(FROM), RestorePoint.parse(TO), "");
+    }
+
+    private void write(String snapshot, long createdAt, boolean changed) throws IOException {
+        Files.createDirectories(root.resolve(snapshot));
+        try (ManifestWriter writer = new ManifestWriter(
+            Snapshots.manifestOf(root.resolve(snapshot)),
+            TASK,
+            snapshot,
+            createdAt,
+            Collections.singletonList(snapshot)
+        )) {
+            final int perFolder = files / FOLDERS;
+
+            for (int i = 0; i < files; i++) {
+                // Visits the files of each folder in a scrambled order
+                final int file = i / perFolder + FOLDERS * (int) (i % perFolder * 7919L % perFolder);
+                String path = "d" + file % FOLDERS + "/f" + file;
+                long modifiedTime = file;
+
+                if (changed && file % CHANGE_EVERY == 0) {
+                    switch (file / CHANGE_EVERY % 4) {
+                        case 0:
+                            modifiedTime++;
+                            break;
+
+                        case 1:
+                            path = "moved/" + path;
+                            break;
+
+                        case 2:
+                            path = path + ".new";
+                            modifiedTime = -file;
+                            break;
+
+                        default:
+                            continue;
+                    }
+                }
+                writer.write(new ManifestEntry(path, file, modifiedTime, 0644, snapshot));
+            }
+        }
+    }
+}
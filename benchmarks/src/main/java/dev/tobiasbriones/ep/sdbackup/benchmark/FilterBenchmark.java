@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.benchmark;
+
+import dev.tobiasbriones.ep.sdbackup.filter.IgnoreRules;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures matching a typical list of exclusions against the entries of a
+ * source tree, with and without a negated pattern, which makes the rules be
+ * tried one by one in order.
+ *
+ * @author Tobias Briones
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+    private static final List<String> RULES = Arrays.asList(
+        "node_modules/",
+        "target/",
+        "build/",
+        ".gradle/",
+        ".git/objects/",
+        "*.class",
+        "*.log",
+        "*.tmp",
+        "*~",
+        ".DS_Store",
+        "Thumbs.db",
+        "/out/",
+        "**/cache/**",
+        "*.sw[op]"
+    );
+    private static final String[][] ENTRIES = {
+        { "src/main/java/App.java", "App.java" },
+        { "src/main/java/util/Strings.java", "Strings.java" },
+        { "web/node_modules", "node_modules" },
+        { "docs/guide.md", "guide.md" },
+        { "app/build", "build" },
+        { "logs/server.log", "server.log" },
+        { "res/images/logo.png", "logo.png" },
+        { "data/cache/a/b.bin", "b.bin" }
+    };
+    @Param({ "false", "true" })
+    public boolean negated;
+    private IgnoreRules rules;
+
+    @Setup
+    public void setup() {
+        final List<String> lines = new ArrayList<>(RULES);
+
+        if (negated) {
+            lines.add("!keep.log");
+        }
+        rules = IgnoreRules.parse(lines);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(8)
+    public int match() {
+        int excluded = 0;
+
+        for (String[] entry : ENTRIES) {
+            if (rules.match(entry[0], entry[1], entry[1].indexOf('.') == -1) == Boolean.TRUE) {
+                excluded++;
+            }
+        }
+        return excluded;
+    }
+}
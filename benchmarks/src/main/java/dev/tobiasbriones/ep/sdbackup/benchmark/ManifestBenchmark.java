@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.benchmark;
+
+import dev.tobiasbriones.ep.sdbackup.FileUtils;
+import dev.tobiasbriones.ep.sdbackup.snapshot.IncrementalBackup;
+import dev.tobiasbriones.ep.sdbackup.snapshot.Manifest;
+import dev.tobiasbriones.ep.sdbackup.snapshot.Snapshots;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures an incremental backup where nothing changed, that is, walking the
+ * source and comparing it with the previous manifest, and reading a manifest.
+ *
+ * @author Tobias Briones
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ManifestBenchmark {
+    private static final String TASK = "benchmark";
+    private Path snapshotRoot;
+    private Path baseManifest;
+    private int run;
+
+    @Setup(Level.Trial)
+    public void backupBase(SourceTree tree) throws IOException {
+        snapshotRoot = tree.root.resolve("snapshots");
+        run = 0;
+        backup(tree, snapshotRoot.resolve("base"));
+        baseManifest = Snapshots.manifestOf(snapshotRoot.resolve("base"));
+    }
+
+    @TearDown(Level.Trial)
+    public void clean() throws IOException {
+        TreeShape.delete(snapshotRoot);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public void unchangedBackup(SourceTree tree) throws IOException {
+        backup(tree, snapshotRoot.resolve("run" + run++));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public Manifest readManifest() throws IOException {
+        return Manifest.read(baseManifest);
+    }
+
+    private static void backup(SourceTree tree, Path snapshot) throws IOException {
+        final List<Path> snapshots = Collections.singletonList(snapshot);
+        final IncrementalBackup backup = IncrementalBackup.open(
+            TASK,
+            tree.src,
+            snapshots,
+            System.currentTimeMillis(),
+            false
+        );
+
+        FileUtils.copyDirectory(tree.src, snapshots, backup);
+        backup.commit();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.benchmark;
+
+import dev.tobiasbriones.ep.sdbackup.io.CopyProgress;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what progress reporting adds to each copied file, with every copy
+ * thread counting into the same destination, and what a sample costs.
+ *
+ * @author Tobias Briones
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgressBenchmark {
+    private static final long FILE_SIZE = 4096L;
+    private final CopyProgress progress = new CopyProgress();
+    private final CopyProgress.Destination destination = progress.addDestination(Paths.get("backup"));
+
+    @Benchmark
+    @Threads(4)
+    public void countFile() {
+        destination.fileFound(FILE_SIZE);
+        destination.bytesCopied(FILE_SIZE);
+        destination.fileCopied();
+    }
+
+    @Benchmark
+    public List<CopyProgress.Status> sample() {
+        return progress.sample();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.benchmark;
+
+import dev.tobiasbriones.ep.sdbackup.io.TreeDeleter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures deleting a snapshot, that is, a copy of the source tree whose
+ * files are hard links, as pruning does. A thread count of 0 deletes it with
+ * a single sorted walk instead.
+ *
+ * @author Tobias Briones
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PruneBenchmark {
+    @Param({ "0", "1", "4", "16" })
+    public int threads;
+    private Path snapshot;
+
+    @Setup(Level.Iteration)
+    public void link(SourceTree tree) throws IOException {
+        snapshot = tree.root.resolve("snapshot");
+        try (Stream<Path> walk = Files.walk(tree.src)) {
+            for (Path path : (Iterable<Path>) walk::iterator) {
+                final Path target = snapshot.resolve(tree.src.relativize(path).toString());
+
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(target);
+                }
+                else {
+                    Files.createLink(target, path);
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void clean() throws IOException {
+        TreeShape.delete(snapshot);
+    }
+
+    @Benchmark
+    public void delete() throws IOException {
+        if (threads == 0) {
+            TreeShape.delete(snapshot);
+            return;
+        }
+        final TreeDeleter deleter = new TreeDeleter(threads);
+
+        try {
+            deleter.delete(Collections.singletonList(snapshot));
+        }
+        finally {
+            deleter.shutdown();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.benchmark;
+
+import dev.tobiasbriones.ep.sdbackup.io.CopyEngine;
+import dev.tobiasbriones.ep.sdbackup.restore.RestorePoint;
+import dev.tobiasbriones.ep.sdbackup.restore.SnapshotRestorer;
+import dev.tobiasbriones.ep.sdbackup.snapshot.IncrementalBackup;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures restoring the latest snapshot of the source tree into an empty
+ * folder, and running the restore again over a complete one, which only
+ * compares the files already there.
+ *
+ * @author Tobias Briones
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RestoreBenchmark {
+    private static final String TASK = "bench";
+    @Param({ "1", "4", "16" })
+    public int threads;
+    @Param({ "false", "true" })
+    public boolean resumed;
+    private Path snapshotRoot;
+    private Path target;
+
+    @Setup(Level.Trial)
+    public void backup(SourceTree tree) throws IOException {
+        final Path snapshot = tree.root.resolve("snapshots").resolve("2018.06.30 14_05");
+        final IncrementalBackup backup = IncrementalBackup.open(
+            TASK,
+            tree.src,
+            Collections.singletonList(snapshot),
+            System.currentTimeMillis(),
+            true
+        );
+
+        snapshotRoot = snapshot.getParent();
+        target = tree.root.resolve("restored");
+        new CopyEngine(4).copy(tree.src, Collections.singletonList(snapshot), backup);
+        backup.commit();
+    }
+
+    @Setup(Level.Iteration)
+    public void prepare() throws IOException {
+        TreeShape.delete(target);
+        Files.createDirectories(target);
+        if (resumed) {
+            restore();
+        }
+    }
+
+    @Benchmark
+    public SnapshotRestorer.Result restore() throws IOException {
+        return new SnapshotRestorer(new CopyEngine(threads)).restore(
+            TASK,
+            snapshotRoot,
+            RestorePoint.latest(),
+            "",
+            target
+        );
+    }
+}
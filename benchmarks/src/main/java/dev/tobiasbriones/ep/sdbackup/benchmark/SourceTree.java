@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Provides a generated source tree of the given shape under a temporary
+ * folder for the whole trial.
+ *
+ * @author Tobias Briones
+ */
+@State(Scope.Benchmark)
+public class SourceTree {
+    @Param({ "TINY_FILES", "MIXED", "HUGE_FILES", "DEEP_NESTING" })
+    public TreeShape shape;
+    Path root;
+    Path src;
+
+    @Setup(Level.Trial)
+    public void create() throws IOException {
+        root = Files.createTempDirectory("sdbackup-bench");
+        src = root.resolve("src");
+        shape.create(src);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        TreeShape.delete(root);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.benchmark;
+
+import dev.tobiasbriones.ep.sdbackup.FileUtils;
+import dev.tobiasbriones.ep.sdbackup.snapshot.IncrementalBackup;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a first backup written straight into its snapshot folder against
+ * one staged with a checkpoint journal and published with a rename, which
+ * also forces every file to the disk.
+ *
+ * @author Tobias Briones
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StagingBenchmark {
+    private static final String TASK = "benchmark";
+    @Param({ "false", "true" })
+    public boolean staged;
+    private Path snapshotRoot;
+    private int run;
+
+    @Setup(Level.Trial)
+    public void prepare(SourceTree tree) {
+        snapshotRoot = tree.root.resolve("snapshots");
+        run = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void clean() throws IOException {
+        TreeShape.delete(snapshotRoot);
+    }
+
+    @Benchmark
+    public void backup(SourceTree tree) throws IOException {
+        final List<Path> snapshots = Collections.singletonList(snapshotRoot.resolve("run" + run++));
+        final IncrementalBackup backup = IncrementalBackup.open(
+            TASK,
+            tree.src,
+            snapshots,
+            System.currentTimeMillis(),
+            false
+        );
+
+        FileUtils.copyDirectory(tree.src, staged ? backup.enableStaging() : snapshots, backup);
+        backup.commit();
+    }
+}
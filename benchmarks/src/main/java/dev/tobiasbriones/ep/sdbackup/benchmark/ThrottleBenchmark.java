@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.benchmark;
+
+import dev.tobiasbriones.ep.sdbackup.io.TokenBucket;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what reserving a file on a token bucket shared by every copy
+ * thread costs, with limits too high to ever make a thread wait.
+ *
+ * @author Tobias Briones
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThrottleBenchmark {
+    private static final long FILE_SIZE = 4096L;
+    private final TokenBucket bucket = new TokenBucket(Long.MAX_VALUE / 2L, Long.MAX_VALUE / 2L);
+
+    @Benchmark
+    @Threads(4)
+    public long reserve() {
+        return bucket.reserve(FILE_SIZE, 1);
+    }
+}
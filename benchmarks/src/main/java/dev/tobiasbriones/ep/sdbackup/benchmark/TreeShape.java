@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Defines the synthetic source trees the benchmarks run on. Trees are
+ * generated from a fixed seed, so every run and commit benchmarks the same
+ * content.
+ *
+ * @author Tobias Briones
+ */
+public enum TreeShape {
+    /**
+     * 20,000 files of 0 to 4 KiB in 200 folders, like a source tree.
+     */
+    TINY_FILES {
+        @Override
+        void generate(Path root, Random random) throws IOException {
+            for (int d = 0; d < 200; d++) {
+                final Path dir = Files.createDirectories(root.resolve("pkg" + d));
+
+                for (int f = 0; f < 100; f++) {
+                    writeFile(dir.resolve("File" + f + ".java"), random.nextInt(4096), random);
+                }
+            }
+        }
+    },
+
+    /**
+     * 2,000 files from 1 KiB to 8 MiB, with a long tail of small files.
+     */
+    MIXED {
+        @Override
+        void generate(Path root, Random random) throws IOException {
+            for (int d = 0; d < 20; d++) {
+                final Path dir = Files.createDirectories(root.resolve("dir" + d));
+
+                for (int f = 0; f < 100; f++) {
+                    final int shift = 10 + (int) (13 * Math.pow(random.nextDouble(), 3));
+
+                    writeFile(dir.resolve("file" + f + ".bin"), random.nextInt(1 << shift) + 1024, random);
+                }
+            }
+        }
+    },
+
+    /**
+     * Four files of 256 MiB, like VM images or database dumps.
+     */
+    HUGE_FILES {
+        @Override
+        void generate(Path root, Random random) throws IOException {
+            for (int f = 0; f < 4; f++) {
+                writeFile(root.resolve("image" + f + ".img"), 256 * 1024 * 1024, random);
+            }
+        }
+    },
+
+    /**
+     * 4,000 small files spread over folders nested 40 levels deep.
+     */
+    DEEP_NESTING {
+        @Override
+        void generate(Path root, Random random) throws IOException {
+            for (int branch = 0; branch < 10; branch++) {
+                Path dir = root.resolve("branch" + branch);
+
+                for (int depth = 0; depth < 40; depth++) {
+                    dir = Files.createDirectories(dir.resolve("level" + depth));
+
+                    for (int f = 0; f < 10; f++) {
+                        writeFile(dir.resolve("node" + f + ".txt"), random.nextInt(16 * 1024), random);
+                    }
+                }
+            }
+        }
+    };
+
+    private static final long SEED = 2018L;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    abstract void generate(Path root, Random random) throws IOException;
+
+    /**
+     * Creates this tree in the given empty folder.
+     *
+     * @param root folder to create the tree in
+     * @throws IOException if the tree can't be written
+     */
+    public void create(Path root) throws IOException {
+        Files.createDirectories(root);
+        generate(root, new Random(SEED));
+    }
+
+    static void writeFile(Path file, long size, Random random) throws IOException {
+        final byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+        long remaining = size;
+
+        try (OutputStream out = Files.newOutputStream(file)) {
+            while (remaining > 0L) {
+                final int length = (int) Math.min(buffer.length, remaining);
+
+                random.nextBytes(buffer);
+                out.write(buffer, 0, length);
+                remaining -= length;
+            }
+        }
+    }
+
+    static void delete(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
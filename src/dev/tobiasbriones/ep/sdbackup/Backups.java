@@ -0,0 +1,666 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup;
+
+import dev.tobiasbriones.ep.sdbackup.archive.Archive;
+import dev.tobiasbriones.ep.sdbackup.archive.ArchiveKey;
+import dev.tobiasbriones.ep.sdbackup.diff.SnapshotDiff;
+import dev.tobiasbriones.ep.sdbackup.filter.ExclusionFilter;
+import dev.tobiasbriones.ep.sdbackup.filter.IgnoreRules;
+import dev.tobiasbriones.ep.sdbackup.io.CopyEngine;
+import dev.tobiasbriones.ep.sdbackup.io.CopyProgress;
+import dev.tobiasbriones.ep.sdbackup.io.IdleThrottle;
+import dev.tobiasbriones.ep.sdbackup.io.Throttle;
+import dev.tobiasbriones.ep.sdbackup.io.TokenBucket;
+import dev.tobiasbriones.ep.sdbackup.model.BackupTask;
+import dev.tobiasbriones.ep.sdbackup.model.TaskStore;
+import dev.tobiasbriones.ep.sdbackup.restore.RestorePoint;
+import dev.tobiasbriones.ep.sdbackup.restore.SnapshotRestorer;
+import dev.tobiasbriones.ep.sdbackup.retention.SnapshotPruner;
+import dev.tobiasbriones.ep.sdbackup.snapshot.Catalog;
+import dev.tobiasbriones.ep.sdbackup.snapshot.IncrementalBackup;
+import dev.tobiasbriones.ep.sdbackup.snapshot.Snapshots;
+import dev.tobiasbriones.ep.sdbackup.store.ChunkStore;
+import dev.tobiasbriones.ep.sdbackup.watch.ChangeJournal;
+import dev.tobiasbriones.ep.sdbackup.watch.TreeWatcher;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs backup tasks and loads the saved tasks, for both the window and the
+ * command line.
+ *
+ * @author Tobias Briones
+ */
+public final class Backups {
+    private static final String TASKS_FOLDER = "tasks";
+    private static final String TASK_STORE_FILE_NAME = "tasks.store";
+    private static final String EXCLUSIONS_FILE_NAME = "exclude";
+    private static final String JOURNALS_FOLDER = "journals";
+    private static final String JOURNAL_EXTENSION = ".journal";
+    private static final long JOURNAL_WAIT_MILLIS = 4L * TreeWatcher.SYNC_INTERVAL_MILLIS;
+    private static final String SNAPSHOT_NAME_PATTERN = "YYYY.MM.dd HH_mm";
+    private static final String PASSPHRASE_VARIABLE = "SDBACKUP_PASSPHRASE";
+
+    /**
+     * Opens the task store in the tasks folder, moving the tasks saved by
+     * older versions into it first if it doesn't exist yet.
+     */
+    public static TaskStore openTaskStore() throws IOException {
+        final File folder = getFolder(TASKS_FOLDER);
+        final Path storeFile = new File(folder, TASK_STORE_FILE_NAME).toPath();
+
+        if (!Files.exists(storeFile)) {
+            importSerializedTasks(folder, storeFile);
+        }
+        return TaskStore.open(storeFile);
+    }
+
+    /**
+     * Reads the stored tasks without opening the store for writing, so a
+     * store kept open by the app is never compacted under it. The tasks
+     * saved by older versions are moved into a new store first if there's
+     * none yet.
+     */
+    public static List<BackupTask> readTasks() throws IOException {
+        final Path storeFile = new File(getFolder(TASKS_FOLDER), TASK_STORE_FILE_NAME).toPath();
+
+        if (!Files.exists(storeFile)) {
+            try (TaskStore store = openTaskStore()) {
+                return store.getTasks();
+            }
+        }
+        return TaskStore.read(storeFile);
+    }
+
+    /**
+     * Returns the change journal file of the given task, kept by a {@link
+     * TreeWatcher} of its target.
+     */
+    public static Path journalOf(BackupTask backupTask) throws IOException {
+        final File folder = getFolder(TASKS_FOLDER + File.separator + JOURNALS_FOLDER);
+        final String name = Snapshots.fileNameOf(backupTask.getName());
+
+        return new File(folder, name + JOURNAL_EXTENSION).toPath();
+    }
+
+    /**
+     * Creates a new filter with the exclusions of every task, read from the
+     * exclude file in the tasks folder, followed by the exclusions of the
+     * given task. A filter keeps the state of a single walk, so each walk
+     * needs a new one.
+     */
+    public static ExclusionFilter filterOf(BackupTask backupTask) throws IOException {
+        final Path file = new File(getFolder(TASKS_FOLDER), EXCLUSIONS_FILE_NAME).toPath();
+        final IgnoreRules global = Files.isRegularFile(file) ? IgnoreRules.read(file) : IgnoreRules.NONE;
+
+        return new ExclusionFilter(
+            global.concat(IgnoreRules.parse(backupTask.getExclusions())),
+            backupTask.isHonorGitignore()
+        );
+    }
+
+    /**
+     * Creates a new throttle with the limits of the given task, or returns
+     * {@link Throttle#NONE} if it has none.
+     */
+    public static Throttle throttleOf(BackupTask backupTask) {
+        if (backupTask.isIdlePriority()) {
+            return Throttle.all(Arrays.asList(
+                new IdleThrottle(backupTask.getMaxBytesPerSecond()),
+                backupTask.getMaxFilesPerSecond() > 0L
+                ? new TokenBucket(TokenBucket.UNLIMITED, backupTask.getMaxFilesPerSecond())
+                : Throttle.NONE
+            ));
+        }
+        if (backupTask.getMaxBytesPerSecond() > 0L || backupTask.getMaxFilesPerSecond() > 0L) {
+            return new TokenBucket(backupTask.getMaxBytesPerSecond(), backupTask.getMaxFilesPerSecond());
+        }
+        return Throttle.NONE;
+    }
+
+    /**
+     * Returns the key of the encrypted archives of the given task in the
+     * given folder, or {@code null} if the folder has no key or no key file
+     * or passphrase is given. The passphrase is read from the {@value
+     * #PASSPHRASE_VARIABLE} environment variable.
+     *
+     * @throws IOException if the key file can't be read or the key is wrong
+     */
+    public static ArchiveKey archiveKeyOf(BackupTask backupTask, Path dir) throws IOException {
+        final byte[] secret = secretOf(backupTask);
+
+        if (secret == null || !ArchiveKey.exists(dir)) {
+            return null;
+        }
+        return ArchiveKey.open(dir, secret);
+    }
+
+    /**
+     * Backs up the target of the given task into a new snapshot in each of
+     * its destinations, and then deletes the old snapshots its retention
+     * policy doesn't keep.
+     *
+     * @param backupTask task to run
+     * @param progress   progress to count the copied files and bytes in
+     * @param threads    number of copy threads, or {@link
+     *                   FileUtils#ADAPTIVE_COPY_THREADS}
+     * @throws IOException if the target is not a directory, a snapshot
+     *                     already exists or the copy fails
+     */
+    public static void backup(BackupTask backupTask, CopyProgress progress, int threads) throws IOException {
+        backup(backupTask, progress, threads, Throttle.NONE);
+    }
+
+    /**
+     * Backs up the target of the given task like {@link #backup(BackupTask,
+     * CopyProgress, int)}, within the limits of the task and the given
+     * throttle, which may be shared with other tasks using the same devices.
+     *
+     * @param backupTask task to run
+     * @param progress   progress to count the copied files and bytes in
+     * @param threads    number of copy threads, or {@link
+     *                   FileUtils#ADAPTIVE_COPY_THREADS}
+     * @param shared     throttle of the devices of the task
+     * @throws IOException if the target is not a directory, a snapshot
+     *                     already exists or the copy fails
+     */
+    public static void backup(
+        BackupTask backupTask,
+        CopyProgress progress,
+        int threads,
+        Throttle shared
+    ) throws IOException {
+        final File originFolder = backupTask.getTarget();
+        final String date = LocalDateTime.now()
+                                         .format(DateTimeFormatter.ofPattern(SNAPSHOT_NAME_PATTERN))
+                                         .replace(':', '_')
+                                         .replace('/', '.');
+        final String sdPath = backupTask.isSdBackup() ? backupTask.getSdPath() : "";
+
+        if (!(originFolder.exists() && originFolder.isDirectory())) {
+            throw new IOException("Target doesn't exist or is not a directory");
+        }
+        final Throttle throttle = Throttle.all(Arrays.asList(throttleOf(backupTask), shared));
+        final List<Path> finalDestinations = new ArrayList<>(3);
+        final List<Path> repositories = new ArrayList<>(1);
+        final List<Path> archiveFolders = new ArrayList<>(1);
+
+        // Hashing and compressing are bound by the processors rather than the disk
+        final int cpuThreads = threads == FileUtils.ADAPTIVE_COPY_THREADS ? FileUtils.DEFAULT_COPY_THREADS : threads;
+
+        for (File destination : backupTask) {
+            if (ChunkStore.isRepository(destination.toPath())) {
+                repositories.add(destination.toPath());
+                continue;
+            }
+            if (Archive.isArchiveFolder(destination.toPath())) {
+                archiveFolders.add(destination.toPath());
+                continue;
+            }
+            final Path finalDestination = Paths.get(destination.getAbsolutePath(), sdPath, date);
+
+            requireNotExists(finalDestination);
+            finalDestinations.add(finalDestination);
+        }
+        final List<ArchiveKey> keys = new ArrayList<>(archiveFolders.size());
+
+        if (backupTask.isEncrypted()) {
+            keys.addAll(archiveKeysOf(backupTask, archiveFolders, repositories.size() + finalDestinations.size()));
+        }
+        if (!finalDestinations.isEmpty()) {
+            backupToFolders(backupTask, finalDestinations, progress, threads, throttle);
+        }
+        for (Path repository : repositories) {
+            try (ChunkStore store = ChunkStore.open(repository)) {
+                store.backup(
+                    backupTask.getName(),
+                    date,
+                    originFolder.toPath(),
+                    cpuThreads,
+                    progress,
+                    filterOf(backupTask),
+                    throttle
+                );
+            }
+        }
+        for (int i = 0; i < archiveFolders.size(); i++) {
+            Archive.backup(
+                archiveFolders.get(i),
+                backupTask.getName(),
+                date,
+                originFolder.toPath(),
+                cpuThreads,
+                progress,
+                filterOf(backupTask),
+                throttle,
+                keys.isEmpty() ? null : keys.get(i)
+            );
+        }
+        if (!backupTask.getRetention().isKeepAll()) {
+            prune(backupTask, threads, false);
+        }
+    }
+
+    /**
+     * Deletes the snapshots of the given task that its retention policy
+     * doesn't keep, from each of its destinations. Timestamped folders
+     * without a manifest are only pruned from folders of snapshots no other
+     * stored task backs up into.
+     *
+     * @param backupTask task to prune
+     * @param threads    number of threads deleting files, or {@link
+     *                   FileUtils#ADAPTIVE_COPY_THREADS}
+     * @param dryRun     whether to only tell what would be pruned
+     * @return the result of each destination
+     * @throws IOException if a destination can't be pruned
+     */
+    public static List<SnapshotPruner.Result> prune(
+        BackupTask backupTask,
+        int threads,
+        boolean dryRun
+    ) throws IOException {
+        final String sdPath = backupTask.isSdBackup() ? backupTask.getSdPath() : "";
+        final SnapshotPruner pruner = new SnapshotPruner(backupTask.getRetention());
+        final List<SnapshotPruner.Result> results = new ArrayList<>(3);
+        final List<BackupTask> others = otherTasksOf(backupTask);
+
+        // Deleting is bound by metadata operations, which SSDs run in parallel
+        pruner.setThreads(threads == FileUtils.ADAPTIVE_COPY_THREADS ? FileUtils.DEFAULT_COPY_THREADS : threads);
+        pruner.setDryRun(dryRun);
+        for (File destination : backupTask) {
+            if (ChunkStore.isRepository(destination.toPath())) {
+                results.add(pruner.pruneRepository(backupTask.getName(), destination.toPath()));
+            }
+            else if (Archive.isArchiveFolder(destination.toPath())) {
+                results.add(pruner.pruneArchives(backupTask.getName(), destination.toPath()));
+            }
+            else {
+                final Path snapshotRoot = Paths.get(destination.getAbsolutePath(), sdPath);
+
+                pruner.setOwnsSnapshotRoot(others != null && !isSnapshotRootOf(others, snapshotRoot));
+                results.add(pruner.prune(backupTask.getName(), snapshotRoot));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the stored tasks other than the given one, read without
+     * opening the store, or null if there's no store to prove that.
+     */
+    private static List<BackupTask> otherTasksOf(BackupTask backupTask) throws IOException {
+        final Path storeFile = new File(getFolder(TASKS_FOLDER), TASK_STORE_FILE_NAME).toPath();
+
+        if (!Files.exists(storeFile)) {
+            return null;
+        }
+        final List<BackupTask> tasks = TaskStore.read(storeFile);
+
+        tasks.removeIf(task -> task.getName().equals(backupTask.getName()));
+        return tasks;
+    }
+
+    /**
+     * Tells whether any of the given tasks backs up into the given folder of
+     * snapshots.
+     */
+    private static boolean isSnapshotRootOf(List<BackupTask> tasks, Path snapshotRoot) {
+        final Path root = snapshotRoot.toAbsolutePath().normalize();
+
+        for (BackupTask task : tasks) {
+            final String sdPath = task.isSdBackup() ? task.getSdPath() : "";
+
+            for (File destination : task) {
+                if (Paths.get(destination.getAbsolutePath(), sdPath).normalize().equals(root)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Opens the catalog of the given task in each of its folder destinations
+     * holding snapshots of it, building the catalog from their manifests
+     * first if it doesn't exist yet. Repositories and folders of archives
+     * have no catalog.
+     *
+     * @param backupTask task to look up
+     * @return the catalog of each destination that has one
+     * @throws IOException if a catalog can't be built or read
+     */
+    public static List<Catalog> catalogsOf(BackupTask backupTask) throws IOException {
+        final String sdPath = backupTask.isSdBackup() ? backupTask.getSdPath() : "";
+        final String name = backupTask.getName();
+        final List<Catalog> catalogs = new ArrayList<>(3);
+
+        for (File destination : backupTask) {
+            final Path snapshotRoot = Paths.get(destination.getAbsolutePath(), sdPath);
+
+            if (ChunkStore.isRepository(destination.toPath()) || Archive.isArchiveFolder(destination.toPath())) {
+                continue;
+            }
+            if (!Catalog.exists(snapshotRoot, name)) {
+                if (Snapshots.latestManifest(snapshotRoot, name) == null) {
+                    continue;
+                }
+                Catalog.rebuild(snapshotRoot, name);
+            }
+            catalogs.add(Catalog.open(snapshotRoot, name));
+        }
+        return catalogs;
+    }
+
+    /**
+     * Restores the given file or folder of a snapshot of the task into the
+     * target folder, from the first of its destinations that has the
+     * snapshot. If a destination fails, the restore goes on from the next
+     * one, skipping the files already restored.
+     *
+     * @param backupTask task to restore
+     * @param point      snapshot to restore
+     * @param path       path of a file or folder relative to the target of
+     *                   the task, separated by '/', or empty for all of it
+     * @param target     folder to restore into
+     * @param progress   progress to count the restored files and bytes in
+     * @param threads    number of copy threads, or {@link
+     *                   FileUtils#ADAPTIVE_COPY_THREADS}
+     * @return the result of the destination restored from
+     * @throws IOException if no destination has the snapshot and path, or
+     *                     the restore fails from all of them
+     * @see SnapshotRestorer
+     */
+    public static SnapshotRestorer.Result restore(
+        BackupTask backupTask,
+        RestorePoint point,
+        String path,
+        Path target,
+        CopyProgress progress,
+        int threads
+    ) throws IOException {
+        final String sdPath = backupTask.isSdBackup() ? backupTask.getSdPath() : "";
+        final CopyEngine engine = FileUtils.newCopyEngine(threads, FileUtils.DEFAULT_COPY_STRATEGY);
+
+        // Writing chunks and inflating blocks are bound by the processors rather than the disk
+        final CopyEngine chunkEngine = threads == FileUtils.ADAPTIVE_COPY_THREADS
+                                       ? new CopyEngine(FileUtils.DEFAULT_COPY_THREADS)
+                                       : engine;
+        IOException failure = null;
+
+        engine.setProgress(progress);
+        chunkEngine.setProgress(progress);
+        for (File destination : backupTask) {
+            try {
+                if (ChunkStore.isRepository(destination.toPath())) {
+                    return new SnapshotRestorer(chunkEngine).restoreRepository(
+                        backupTask.getName(),
+                        destination.toPath(),
+                        point,
+                        path,
+                        target
+                    );
+                }
+                if (Archive.isArchiveFolder(destination.toPath())) {
+                    return new SnapshotRestorer(chunkEngine).restoreArchive(
+                        backupTask.getName(),
+                        destination.toPath(),
+                        point,
+                        path,
+                        target,
+                        archiveKeyOf(backupTask, destination.toPath())
+                    );
+                }
+                return new SnapshotRestorer(engine).restore(
+                    backupTask.getName(),
+                    Paths.get(destination.getAbsolutePath(), sdPath),
+                    point,
+                    path,
+                    target
+                );
+            }
+            catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure == null) {
+            throw new IOException("The task has no destinations");
+        }
+        throw failure;
+    }
+
+    /**
+     * Compares two snapshots of the given task, from the first of its
+     * destinations that has both.
+     *
+     * @param backupTask task to look up
+     * @param from       older snapshot
+     * @param to         newer snapshot
+     * @param path       path of a file or folder relative to the target of
+     *                   the task, separated by '/', or empty for all of it
+     * @return the changes between the snapshots
+     * @throws IOException if no destination has both snapshots
+     * @see SnapshotDiff
+     */
+    public static SnapshotDiff.Result diff(
+        BackupTask backupTask,
+        RestorePoint from,
+        RestorePoint to,
+        String path
+    ) throws IOException {
+        final String sdPath = backupTask.isSdBackup() ? backupTask.getSdPath() : "";
+        IOException failure = null;
+
+        for (File destination : backupTask) {
+            try {
+                if (ChunkStore.isRepository(destination.toPath())) {
+                    return SnapshotDiff.diffRepository(backupTask.getName(), destination.toPath(), from, to, path);
+                }
+                if (Archive.isArchiveFolder(destination.toPath())) {
+                    return SnapshotDiff.diffArchive(
+                        backupTask.getName(),
+                        destination.toPath(),
+                        from,
+                        to,
+                        path,
+                        archiveKeyOf(backupTask, destination.toPath())
+                    );
+                }
+                return SnapshotDiff.diff(
+                    backupTask.getName(),
+                    Paths.get(destination.getAbsolutePath(), sdPath),
+                    from,
+                    to,
+                    path
+                );
+            }
+            catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure == null) {
+            throw new IOException("The task has no destinations");
+        }
+        throw failure;
+    }
+
+    private static void backupToFolders(
+        BackupTask backupTask,
+        List<Path> finalDestinations,
+        CopyProgress progress,
+        int threads,
+        Throttle throttle
+    ) throws IOException {
+        final Path originFolder = backupTask.getTarget().toPath();
+        final long createdAt = System.currentTimeMillis();
+
+        // Changes are only trusted if the watcher is still recording them
+        final ChangeJournal.Changes changes = ChangeJournal.read(
+            journalOf(backupTask),
+            createdAt,
+            JOURNAL_WAIT_MILLIS
+        );
+        final IncrementalBackup incrementalBackup = IncrementalBackup.open(
+            backupTask.getName(),
+            originFolder,
+            finalDestinations,
+            createdAt,
+            true,
+            changes
+        );
+        final CopyEngine engine = FileUtils.newCopyEngine(threads, FileUtils.DEFAULT_COPY_STRATEGY);
+
+        engine.setProgress(progress);
+        engine.setFilter(filterOf(backupTask));
+        engine.setThrottle(throttle);
+        engine.setChecksums(backupTask.isChecksums());
+        try {
+            if (backupTask.isChecksums()) {
+                incrementalBackup.enableChecksums();
+            }
+            final List<Path> staged = incrementalBackup.enableStaging();
+
+            // Reported under the snapshot folders they're published to
+            for (int i = 0; i < staged.size(); i++) {
+                progress.label(staged.get(i), finalDestinations.get(i));
+            }
+            engine.copy(originFolder, staged, incrementalBackup);
+            incrementalBackup.commit();
+        }
+        catch (IOException e) {
+            incrementalBackup.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the key of each of the given folders, creating it if the folder
+     * has none yet, before anything is written, so a missing or wrong
+     * passphrase fails the backup up front.
+     */
+    private static List<ArchiveKey> archiveKeysOf(
+        BackupTask backupTask,
+        List<Path> archiveFolders,
+        int otherDestinations
+    ) throws IOException {
+        final byte[] secret = secretOf(backupTask);
+        final List<ArchiveKey> keys = new ArrayList<>(archiveFolders.size());
+
+        if (otherDestinations > 0) {
+            throw new IOException("Only folders of archives can be encrypted");
+        }
+        if (secret == null) {
+            throw new IOException("Encrypting needs a key file or the " + PASSPHRASE_VARIABLE + " variable");
+        }
+        for (Path archiveFolder : archiveFolders) {
+            keys.add(ArchiveKey.openOrCreate(archiveFolder, secret));
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the content of the key file of the given task without its last
+     * line break, or else the passphrase in the environment, or {@code null}
+     * if there's neither.
+     */
+    private static byte[] secretOf(BackupTask backupTask) throws IOException {
+        if (backupTask.getKeyFile() != null) {
+            final byte[] content = Files.readAllBytes(backupTask.getKeyFile().toPath());
+            int length = content.length;
+
+            if (length > 0 && content[length - 1] == '\n') {
+                length--;
+            }
+            if (length > 0 && content[length - 1] == '\r') {
+                length--;
+            }
+            if (length == 0) {
+                throw new IOException("Empty key file " + backupTask.getKeyFile());
+            }
+            return Arrays.copyOf(content, length);
+        }
+        final String passphrase = System.getenv(PASSPHRASE_VARIABLE);
+
+        return passphrase == null || passphrase.isEmpty() ? null : passphrase.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Moves the tasks saved by older versions, one serialized task per file,
+     * into a new task store.
+     */
+    private static void importSerializedTasks(File folder, Path storeFile) throws IOException {
+        final File[] files = folder.listFiles();
+        final List<BackupTask> tasks = new ArrayList<>();
+
+        if (files == null) {
+            throw new IOException("Fail to read data");
+        }
+        for (File file : files) {
+            // Skips what's left of an interrupted write of the store
+            if (!isSerializedTask(file)) {
+                continue;
+            }
+            try (final ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
+                tasks.add((BackupTask) ois.readObject());
+            }
+            catch (ClassNotFoundException e) {
+                throw new IOException("Class not found. " + e.getMessage());
+            }
+        }
+        TaskStore.write(storeFile, tasks);
+        for (File file : files) {
+            if (isSerializedTask(file) && !file.delete()) {
+                throw new IOException("Couldn't delete old task file " + file);
+            }
+        }
+    }
+
+    private static boolean isSerializedTask(File file) {
+        return file.isFile()
+               && !file.getName().startsWith(TASK_STORE_FILE_NAME)
+               && !file.getName().equals(EXCLUSIONS_FILE_NAME);
+    }
+
+    private static void requireNotExists(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            final String msg = "Already exists: " + path;
+            throw new IOException(msg);
+        }
+    }
+
+    private static File getFolder(String path) throws IOException {
+        final File file = new File(path);
+
+        if ((file.exists() && !file.isDirectory()) || !file.exists()) {
+            if (!file.mkdirs()) {
+                throw new IOException("Couldn't create folder " + path);
+            }
+        }
+        return file;
+    }
+
+    private Backups() {}
+}
@@ -12,40 +12,112 @@
 
 package dev.tobiasbriones.ep.sdbackup;
 
+import dev.tobiasbriones.ep.sdbackup.io.CopyEngine;
+import dev.tobiasbriones.ep.sdbackup.io.CopyProgress;
+import dev.tobiasbriones.ep.sdbackup.io.CopyStrategies;
+import dev.tobiasbriones.ep.sdbackup.io.CopyStrategy;
+import dev.tobiasbriones.ep.sdbackup.io.FileSelector;
+
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public final class FileUtils {
+    public static final int DEFAULT_COPY_THREADS = Math.max(
+        1,
+        Runtime.getRuntime().availableProcessors()
+    );
+    public static final CopyStrategy DEFAULT_COPY_STRATEGY = CopyStrategies.AUTO;
+
+    /**
+     * Number of copy threads that stands for tuning the number of workers
+     * copying at once while copying, up to {@link #MAX_COPY_THREADS}.
+     */
+    public static final int ADAPTIVE_COPY_THREADS = 0;
+    public static final int MAX_COPY_THREADS = Math.min(
+        64,
+        Math.max(16, 4 * Runtime.getRuntime().availableProcessors())
+    );
+
     public static void copyDirectory(File src, File dst) throws IOException {
         copyDirectory(src.toPath(), dst.toPath());
     }
 
     public static void copyDirectory(Path src, Path dst) throws IOException {
-        Files.createDirectories(dst);
-        try (Stream<Path> walk = Files.walk(src)) {
-            final List<Path> paths = walk.collect(Collectors.toList());
+        copyDirectory(src, dst, ADAPTIVE_COPY_THREADS);
+    }
 
-            for (Path path : paths) {
-                copyFile(src, path, dst);
-            }
-        }
+    public static void copyDirectory(Path src, Path dst, int threads) throws IOException {
+        copyDirectory(src, dst, threads, DEFAULT_COPY_STRATEGY);
+    }
+
+    public static void copyDirectory(
+        Path src,
+        Path dst,
+        int threads,
+        CopyStrategy strategy
+    ) throws IOException {
+        newCopyEngine(threads, strategy).copy(src, dst);
+    }
+
+    /**
+     * Copies the source directory into every destination at once. The source
+     * is walked and read only once.
+     */
+    public static void copyDirectory(Path src, List<Path> dsts) throws IOException {
+        copyDirectory(src, dsts, ADAPTIVE_COPY_THREADS);
+    }
+
+    public static void copyDirectory(Path src, List<Path> dsts, int threads) throws IOException {
+        newCopyEngine(threads, DEFAULT_COPY_STRATEGY).copy(src, dsts);
+    }
+
+    /**
+     * Copies the source directory into every destination at once, leaving
+     * out the files the selector doesn't select for each destination.
+     */
+    public static void copyDirectory(Path src, List<Path> dsts, FileSelector selector) throws IOException {
+        copyDirectory(src, dsts, selector, null);
+    }
+
+    /**
+     * Copies the source directory into every destination at once, counting
+     * the copied files and bytes of each destination in the given progress.
+     */
+    public static void copyDirectory(
+        Path src,
+        List<Path> dsts,
+        FileSelector selector,
+        CopyProgress progress
+    ) throws IOException {
+        final CopyEngine engine = newCopyEngine(ADAPTIVE_COPY_THREADS, DEFAULT_COPY_STRATEGY);
+
+        engine.setProgress(progress);
+        engine.copy(src, dsts, selector);
     }
 
-    private static void copyFile(Path rootSrc, Path src, Path rootDst) throws IOException {
-        final String srcStr = src.toString();
-        final String relDst = srcStr.substring(rootSrc.toString().length());
-        final Path dst = Paths.get(rootDst.toString(), relDst);
+    /**
+     * Creates a copy engine with the given number of threads, or an adaptive
+     * one if it's {@link #ADAPTIVE_COPY_THREADS}.
+     */
+    public static CopyEngine newCopyEngine(int threads, CopyStrategy strategy) {
+        if (threads == ADAPTIVE_COPY_THREADS) {
+            final CopyEngine engine = new CopyEngine(MAX_COPY_THREADS, strategy);
 
-        if (Files.isDirectory(dst)) {
-            return;
+            engine.setAdaptive(true);
+            return engine;
         }
-        Files.copy(src, dst);
+        return new CopyEngine(threads, strategy);
+    }
+
+    public static void copyFile(Path src, Path dst) throws IOException {
+        copyFile(src, dst, DEFAULT_COPY_STRATEGY);
+    }
+
+    public static void copyFile(Path src, Path dst, CopyStrategy strategy) throws IOException {
+        strategy.forDestination(dst.getParent()).copy(src, dst, Files.size(src));
     }
 
     private FileUtils() {}
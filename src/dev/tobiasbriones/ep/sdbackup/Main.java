@@ -12,6 +12,7 @@
 
 package dev.tobiasbriones.ep.sdbackup;
 
+import dev.tobiasbriones.ep.sdbackup.cli.Cli;
 import dev.tobiasbriones.ep.sdbackup.ui.MWController;
 import dev.tobiasbriones.ep.sdbackup.ui.MainWindow;
 
@@ -22,6 +23,10 @@ import javax.swing.*;
  */
 public final class Main {
     public static void main(String[] args) {
+        // Runs headless when given any arguments
+        if (args.length > 0) {
+            System.exit(Cli.run(args));
+        }
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         }
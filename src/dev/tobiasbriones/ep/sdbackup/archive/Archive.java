@@ -0,0 +1,915 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.archive;
+
+import dev.tobiasbriones.ep.sdbackup.io.CopyProgress;
+import dev.tobiasbriones.ep.sdbackup.io.Throttle;
+import dev.tobiasbriones.ep.sdbackup.io.TreeFilter;
+import dev.tobiasbriones.ep.sdbackup.snapshot.ManifestEntry;
+import dev.tobiasbriones.ep.sdbackup.snapshot.Snapshots;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Defines a compressed archive holding a snapshot in a single file, for
+ * destinations where creating many small files is slow, like USB drives and
+ * network shares.
+ *
+ * <p>File contents are laid end to end, like in a tar file, in two streams:
+ * one for files worth compressing and one for files that are already
+ * compressed, like images, videos and zip files, which are told by their
+ * extension or their first bytes. Both streams are cut into blocks that are
+ * deflated on their own on several threads, and a block that doesn't get
+ * smaller is stored as it is. An index at the end of the archive tells the
+ * stream, offset and CRC-32 of every file and where each block starts, so
+ * a single file is extracted by inflating only the blocks it spans.</p>
+ *
+ * <p>An archive may be encrypted with a key derived from an {@link
+ * ArchiveKey} and a salt in its header. Every block is then sealed on its
+ * own with AES-GCM once deflated, on the same threads, with its stream and
+ * number as nonce and its header as additional data, and so is the index,
+ * with the archive header as additional data. The task and snapshot names in
+ * the header are left readable so archives can be listed and pruned without
+ * the key, but they can't be changed unnoticed.</p>
+ *
+ * <p>A folder holds archives if it contains a file named {@link
+ * #MARKER_FILE_NAME}. Archives are written under a temporary name and
+ * renamed once complete, so an interrupted backup never leaves a partial
+ * archive behind.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class Archive implements Closeable {
+    public static final String MARKER_FILE_NAME = "sdbackup-archives";
+    static final int MAGIC = 0x53444241;
+    static final int VERSION = 2;
+    static final int FOOTER_SIZE = 12;
+    static final int BLOCK_HEADER_SIZE = 9;
+    static final byte STREAM_PACKED = 0;
+    static final byte STREAM_STORED = 1;
+    static final byte METHOD_STORED = 0;
+    static final byte METHOD_DEFLATED = 1;
+
+    // Nonce stream of the index, which is sealed like a block of its own
+    static final byte STREAM_INDEX = 2;
+    static final int TAG_LENGTH = 16;
+    private static final int FIRST_VERSION = 1;
+    private static final int NONCE_LENGTH = 12;
+
+    // Every Java platform is required to support AES/GCM/NoPadding
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final String EXTENSION = ".sdar";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int IN_FLIGHT_BLOCKS_PER_THREAD = 4;
+    private final Path file;
+    private final FileChannel channel;
+    private final Header header;
+    private final SecretKey key;
+    private final List<Entry> entries;
+    private final long[][] blockPositions;
+    private final long[][] blockStarts;
+
+    private Archive(
+        Path file,
+        FileChannel channel,
+        Header header,
+        SecretKey key,
+        List<Entry> entries,
+        long[][] blockPositions,
+        long[][] blockStarts
+    ) {
+        this.file = file;
+        this.channel = channel;
+        this.header = header;
+        this.key = key;
+        this.entries = entries;
+        this.blockPositions = blockPositions;
+        this.blockStarts = blockStarts;
+    }
+
+    public static boolean isArchiveFolder(Path dir) {
+        return Files.isRegularFile(dir.resolve(MARKER_FILE_NAME));
+    }
+
+    /**
+     * Turns the given folder into an empty folder of archives.
+     *
+     * @param dir folder to hold the archives
+     * @throws IOException if the folder already holds archives or can't be
+     *                     written
+     */
+    public static void create(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Files.createFile(dir.resolve(MARKER_FILE_NAME));
+    }
+
+    /**
+     * Returns the archives in the given folder, oldest first.
+     *
+     * @param dir folder holding the archives
+     * @return the archive files
+     * @throws IOException if the archives can't be listed
+     */
+    public static List<Path> list(Path dir) throws IOException {
+        final List<Path> archives = new ArrayList<>();
+        final Map<Path, Long> createdAt = new HashMap<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + EXTENSION)) {
+            for (Path archive : stream) {
+                archives.add(archive);
+                createdAt.put(archive, readHeader(archive).getCreatedAt());
+            }
+        }
+        archives.sort(Comparator.comparing(createdAt::get));
+        return archives;
+    }
+
+    public static Header readHeader(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an archive " + file);
+            }
+            final int version = in.readInt();
+
+            if (version < FIRST_VERSION || version > VERSION) {
+                throw new IOException("Unsupported archive version " + version + ": " + file);
+            }
+            final String task = in.readUTF();
+            final String snapshot = in.readUTF();
+            final long createdAt = in.readLong();
+            byte[] salt = null;
+
+            if (version >= 2 && in.readBoolean()) {
+                salt = new byte[ArchiveKey.SALT_LENGTH];
+                in.readFully(salt);
+            }
+            return new Header(task, snapshot, createdAt, salt);
+        }
+    }
+
+    /**
+     * Opens the given archive, which must not be encrypted, and reads its
+     * index.
+     *
+     * @see #open(Path, ArchiveKey)
+     */
+    public static Archive open(Path file) throws IOException {
+        return open(file, null);
+    }
+
+    /**
+     * Opens the given archive and reads its index.
+     *
+     * @param file archive file
+     * @param key  key of the folder holding the archive, or {@code null} if
+     *             it isn't encrypted
+     * @return the archive
+     * @throws IOException if the file is not a complete archive, or it's
+     *                     encrypted and the key is missing or wrong
+     */
+    public static Archive open(Path file, ArchiveKey key) throws IOException {
+        final Header header = readHeader(file);
+        final SecretKey archiveKey;
+
+        if (!header.isEncrypted()) {
+            archiveKey = null;
+        }
+        else if (key == null) {
+            throw new IOException("Encrypted archive " + file + " needs a passphrase or key file");
+        }
+        else {
+            archiveKey = key.archiveKey(header.salt);
+        }
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+        try {
+            final long size = channel.size();
+            final ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+
+            if (size < FOOTER_SIZE) {
+                throw new IOException("Not an archive " + file);
+            }
+            readFully(channel, footer, size - FOOTER_SIZE, file);
+            final long indexPosition = footer.getLong();
+
+            if (footer.getInt() != MAGIC || indexPosition < 0L || indexPosition > size - FOOTER_SIZE) {
+                throw new IOException("Incomplete archive " + file);
+            }
+            final ByteBuffer index = ByteBuffer.allocate((int) (size - FOOTER_SIZE - indexPosition));
+
+            readFully(channel, index, indexPosition, file);
+            byte[] indexBytes = index.array();
+
+            if (archiveKey != null) {
+                indexBytes = decrypt(archiveKey, STREAM_INDEX, 0L, header.toBytes(), indexBytes, file);
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(indexBytes)),
+                BUFFER_SIZE
+            ))) {
+                final int count = in.readInt();
+                final List<Entry> entries = new ArrayList<>(count);
+                final long[][] positions = new long[2][];
+                final long[][] starts = new long[2][];
+
+                for (int i = 0; i < count; i++) {
+                    entries.add(new Entry(
+                        in.readUTF(),
+                        in.readLong(),
+                        in.readLong(),
+                        in.readInt(),
+                        in.readByte(),
+                        in.readLong(),
+                        in.readInt()
+                    ));
+                }
+                for (int stream = 0; stream < 2; stream++) {
+                    final int blocks = in.readInt();
+                    long start = 0L;
+
+                    positions[stream] = new long[blocks];
+                    starts[stream] = new long[blocks + 1];
+                    for (int i = 0; i < blocks; i++) {
+                        positions[stream][i] = in.readLong();
+                        starts[stream][i] = start;
+                        start += in.readInt();
+                    }
+                    starts[stream][blocks] = start;
+                }
+                return new Archive(file, channel, header, archiveKey, entries, positions, starts);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the files of the source folder accepted by the given filter
+     * into a new archive in the given folder, which is not encrypted.
+     *
+     * @see #backup(Path, String, String, Path, int, CopyProgress, TreeFilter, Throttle, ArchiveKey)
+     */
+    public static Path backup(
+        Path dir,
+        String task,
+        String snapshot,
+        Path src,
+        int threads,
+        CopyProgress progress,
+        TreeFilter filter,
+        Throttle throttle
+    ) throws IOException {
+        return backup(dir, task, snapshot, src, threads, progress, filter, throttle, null);
+    }
+
+    /**
+     * Writes the files of the source folder accepted by the given filter
+     * into a new archive in the given folder, reading them no faster than
+     * the given throttle allows. Rejected directories are not walked.
+     *
+     * @param dir      folder holding the archives
+     * @param task     name of the task
+     * @param snapshot name of the new snapshot
+     * @param src      source folder
+     * @param threads  number of threads compressing blocks
+     * @param progress progress to count the archived files and bytes in
+     * @param filter   filter of the files to archive
+     * @param throttle limits of the reads
+     * @param key      key of the folder to encrypt the archive with, or
+     *                 {@code null} to leave it plain
+     * @return the new archive file
+     * @throws IOException if the archive already exists or the backup fails
+     */
+    public static Path backup(
+        Path dir,
+        String task,
+        String snapshot,
+        Path src,
+        int threads,
+        CopyProgress progress,
+        TreeFilter filter,
+        Throttle throttle,
+        ArchiveKey key
+    ) throws IOException {
+        final Path archive = dir.resolve(fileName(task, snapshot));
+        final Path tmpArchive = archive.resolveSibling(archive.getFileName() + ".tmp");
+        final CopyProgress.Destination counter = progress.addDestination(dir);
+
+        if (Files.exists(archive)) {
+            throw new IOException("Already exists: " + archive);
+        }
+        Files.deleteIfExists(tmpArchive);
+        final byte[] salt = key == null ? null : ArchiveKey.newSalt();
+        final ArchiveWriter writer = new ArchiveWriter(
+            tmpArchive,
+            new Header(task, snapshot, System.currentTimeMillis(), salt),
+            key == null ? null : key.archiveKey(salt),
+            threads
+        );
+
+        try {
+            Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    final Path relativeDir = src.relativize(dir);
+
+                    if (!dir.equals(src) && !filter.accept(relativeDir, true)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    filter.enter(dir, relativeDir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    filter.leave(src.relativize(dir));
+                    return super.postVisitDirectory(dir, exc);
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    // Links are never followed, like in folder snapshots
+                    if (!attrs.isRegularFile() || !filter.accept(src.relativize(file), attrs.isDirectory())) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    final long start;
+
+                    counter.fileFound(attrs.size());
+                    throttle.acquire(attrs.size(), 1);
+                    start = System.nanoTime();
+                    counter.bytesCopied(writer.add(
+                        file,
+                        ManifestEntry.toManifestPath(src.relativize(file)),
+                        attrs.lastModifiedTime().toMillis(),
+                        ManifestEntry.permissionsOf(file)
+                    ));
+                    counter.fileCopied();
+                    throttle.completed(attrs.size(), System.nanoTime() - start);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            writer.finish();
+        }
+        catch (IOException | RuntimeException e) {
+            writer.abort();
+            Files.deleteIfExists(tmpArchive);
+            throw e;
+        }
+        finally {
+            counter.walkDone();
+        }
+        Files.move(tmpArchive, archive, StandardCopyOption.ATOMIC_MOVE);
+        return archive;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public Header getHeader() {
+        return header;
+    }
+
+    /**
+     * Returns the files of this archive, sorted by path.
+     *
+     * @return the files of this archive
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Returns the file at the given path, or {@code null} if there's none.
+     *
+     * @param path path relative to the snapshot root, separated by '/'
+     * @return the file at the path
+     */
+    public Entry find(String path) {
+        int low = 0;
+        int high = entries.size() - 1;
+
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int order = entries.get(middle).path.compareTo(path);
+
+            if (order < 0) {
+                low = middle + 1;
+            }
+            else if (order > 0) {
+                high = middle - 1;
+            }
+            else {
+                return entries.get(middle);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Extracts the file or the files under the folder at the given path into
+     * the given target folder, on several threads. Each thread inflates the
+     * blocks holding a run of files once, and files are checked against their
+     * CRC-32 and given the modified time they had. Files already at the
+     * target with the same size and modified time are skipped, so an
+     * interrupted extraction carries on where it stopped. Other files at the
+     * target are replaced.
+     *
+     * @param path    path of a file or folder relative to the snapshot root,
+     *                separated by '/', or empty for the whole snapshot
+     * @param target  folder to write the files to
+     * @param threads number of threads writing files
+     * @param counter counter of the files and bytes extracted
+     * @return the number of files skipped
+     * @throws IOException if nothing is at the path, a file can't be written
+     *                     or the archive is corrupt
+     */
+    public long extract(
+        String path,
+        Path target,
+        int threads,
+        CopyProgress.Destination counter
+    ) throws IOException {
+        final String prefix = path.isEmpty() ? "" : path + "/";
+        final Path root = target.toAbsolutePath().normalize();
+        final List<List<Entry>> selected = Arrays.asList(new ArrayList<>(), new ArrayList<>());
+        final Map<Entry, Path> outs = new HashMap<>();
+        long skipped = 0L;
+
+        for (Entry entry : entries) {
+            final Path out;
+
+            if (entry.path.equals(path)) {
+                out = target.resolve(entry.path.substring(entry.path.lastIndexOf('/') + 1));
+            }
+            else if (entry.path.startsWith(prefix)) {
+                out = target.resolve(entry.path.substring(prefix.length()));
+            }
+            else {
+                continue;
+            }
+            if (!isWithin(root, out)) {
+                throw new IOException("Entry " + entry.path + " escapes " + target + " in " + file);
+            }
+            if (isExtracted(out, entry)) {
+                skipped++;
+                continue;
+            }
+            selected.get(entry.stream).add(entry);
+            outs.put(entry, out);
+            counter.fileFound(entry.size);
+        }
+        if (outs.isEmpty() && skipped == 0L && !path.isEmpty()) {
+            counter.walkDone();
+            throw new IOException("Nothing at " + path + " in " + file);
+        }
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final Semaphore inFlight = new Semaphore(threads * IN_FLIGHT_BLOCKS_PER_THREAD);
+
+        try {
+            for (List<Entry> stream : selected) {
+                int from = 0;
+
+                stream.sort(Comparator.comparingLong(entry -> entry.offset));
+
+                // Files starting in the same block go together so it's inflated once
+                while (from < stream.size()) {
+                    final int block = blockOf(stream.get(from).stream, stream.get(from).offset);
+                    int to = from + 1;
+
+                    while (to < stream.size() && blockOf(stream.get(to).stream, stream.get(to).offset) == block) {
+                        to++;
+                    }
+                    if (failure.get() != null) {
+                        throw failure.get();
+                    }
+                    final List<Entry> run = stream.subList(from, to);
+
+                    acquire(inFlight);
+                    executor.execute(() -> {
+                        final BlockReader reader = new BlockReader();
+
+                        try {
+                            for (Entry entry : run) {
+                                extractFile(entry, outs.get(entry), reader);
+                                counter.bytesCopied(entry.size);
+                                counter.fileCopied();
+                            }
+                        }
+                        catch (IOException e) {
+                            failure.compareAndSet(null, e);
+                        }
+                        finally {
+                            reader.close();
+                            inFlight.release();
+                        }
+                    });
+                    from = to;
+                }
+            }
+        }
+        finally {
+            counter.walkDone();
+            executor.shutdown();
+            awaitTermination(executor);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void extractFile(Entry entry, Path out, BlockReader reader) throws IOException {
+        final CRC32 crc = new CRC32();
+
+        Files.createDirectories(out.getParent());
+        Files.deleteIfExists(out);
+        try (FileChannel channel = FileChannel.open(
+            out,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE
+        )) {
+            long offset = entry.offset;
+            long remaining = entry.size;
+
+            while (remaining > 0L) {
+                final int block = blockOf(entry.stream, offset);
+                final byte[] data = reader.read(entry.stream, block);
+                final int from = (int) (offset - blockStarts[entry.stream][block]);
+                final int length = (int) Math.min(remaining, data.length - from);
+                final ByteBuffer buffer = ByteBuffer.wrap(data, from, length);
+
+                crc.update(data, from, length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                offset += length;
+                remaining -= length;
+            }
+        }
+        if ((int) crc.getValue() != entry.checksum) {
+            throw new IOException("Corrupt file " + entry.path + " in " + file);
+        }
+
+        // Set last, so a file cut short is never taken as extracted
+        ManifestEntry.setPermissions(out, entry.permissions);
+        Files.setLastModifiedTime(out, FileTime.fromMillis(entry.modifiedTime));
+    }
+
+    /**
+     * Tells whether the given output path falls inside the given normalized
+     * folder once its ".." are resolved, which a crafted archive could use to
+     * write anywhere.
+     */
+    private static boolean isWithin(Path root, Path out) {
+        final Path normalized = out.toAbsolutePath().normalize();
+
+        return normalized.startsWith(root) && !normalized.equals(root);
+    }
+
+    /**
+     * Returns the index of the block of the given stream holding the byte at
+     * the given offset.
+     */
+    private int blockOf(byte stream, long offset) {
+        final int found = Arrays.binarySearch(blockStarts[stream], offset);
+
+        return found >= 0 ? found : -found - 2;
+    }
+
+    /**
+     * Encrypts the given data, sealed with the given additional data.
+     *
+     * @param key    key of the archive
+     * @param stream stream of the data
+     * @param block  number of the block in the stream
+     * @param aad    additional data to authenticate along with the data
+     * @param data   data to encrypt
+     * @param length length of the data
+     * @param out    buffer of at least {@code length + TAG_LENGTH} bytes to
+     *               write the encrypted data and its tag to
+     * @return the length written
+     */
+    static int encrypt(SecretKey key, byte stream, long block, byte[] aad, byte[] data, int length, byte[] out) {
+        try {
+            final Cipher cipher = cipher(Cipher.ENCRYPT_MODE, key, stream, block);
+
+            cipher.updateAAD(aad);
+            return cipher.doFinal(data, 0, length, out);
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] decrypt(
+        SecretKey key,
+        byte stream,
+        long block,
+        byte[] aad,
+        byte[] data,
+        Path file
+    ) throws IOException {
+        try {
+            final Cipher cipher = cipher(Cipher.DECRYPT_MODE, key, stream, block);
+
+            cipher.updateAAD(aad);
+            return cipher.doFinal(data);
+        }
+        catch (AEADBadTagException e) {
+            throw new IOException("Corrupt or tampered archive " + file, e);
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("Couldn't decrypt " + file, e);
+        }
+    }
+
+    /**
+     * Returns the cipher of this thread ready for the given block, whose
+     * nonce is made of its stream and number, so no two blocks of an archive
+     * share one.
+     */
+    private static Cipher cipher(int mode, SecretKey key, byte stream, long block) throws GeneralSecurityException {
+        final Cipher cipher = CIPHER.get();
+        final ByteBuffer nonce = ByteBuffer.allocate(NONCE_LENGTH);
+
+        nonce.put(0, stream).putLong(NONCE_LENGTH - Long.BYTES, block);
+        cipher.init(mode, key, new GCMParameterSpec(8 * TAG_LENGTH, nonce.array()));
+        return cipher;
+    }
+
+    private static boolean isExtracted(Path out, Entry entry) throws IOException {
+        try {
+            final BasicFileAttributes attrs = Files.readAttributes(out, BasicFileAttributes.class);
+
+            return attrs.isRegularFile()
+                   && attrs.size() == entry.size
+                   && attrs.lastModifiedTime().toMillis() == entry.modifiedTime;
+        }
+        catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private static String fileName(String task, String snapshot) {
+        return Snapshots.fileNameOf(task + "@" + snapshot) + EXTENSION;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, Path file) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new IOException("Truncated archive " + file);
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void acquire(Semaphore semaphore) throws IOException {
+        try {
+            semaphore.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Extraction interrupted", e);
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executor) throws IOException {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Extraction interrupted", e);
+        }
+    }
+
+    /**
+     * Identifies the task and snapshot an archive belongs to, and whether
+     * it's encrypted.
+     */
+    public static final class Header {
+        private final String task;
+        private final String snapshot;
+        private final long createdAt;
+        final byte[] salt;
+
+        Header(String task, String snapshot, long createdAt, byte[] salt) {
+            this.task = task;
+            this.snapshot = snapshot;
+            this.createdAt = createdAt;
+            this.salt = salt;
+        }
+
+        public String getTask() {
+            return task;
+        }
+
+        public String getSnapshot() {
+            return snapshot;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        public boolean isEncrypted() {
+            return salt != null;
+        }
+
+        /**
+         * Returns this header as it's written at the start of the archive.
+         */
+        byte[] toBytes() throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(task);
+            out.writeUTF(snapshot);
+            out.writeLong(createdAt);
+            out.writeBoolean(salt != null);
+            if (salt != null) {
+                out.write(salt);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * A file of an archive and where its content is.
+     */
+    public static final class Entry {
+        private final String path;
+        private final long size;
+        private final long modifiedTime;
+        private final int permissions;
+        final byte stream;
+        final long offset;
+        private final int checksum;
+
+        Entry(
+            String path,
+            long size,
+            long modifiedTime,
+            int permissions,
+            byte stream,
+            long offset,
+            int checksum
+        ) {
+            this.path = path;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.permissions = permissions;
+            this.stream = stream;
+            this.offset = offset;
+            this.checksum = checksum;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModifiedTime() {
+            return modifiedTime;
+        }
+
+        public int getPermissions() {
+            return permissions;
+        }
+
+        /**
+         * Returns the CRC-32 of the content of the file.
+         */
+        public int getChecksum() {
+            return checksum;
+        }
+    }
+
+    /**
+     * Reads the blocks of the archive from a single thread, keeping the last
+     * one decrypted and inflated.
+     */
+    private final class BlockReader {
+        private final Inflater inflater;
+        private byte stream;
+        private int block;
+        private byte[] data;
+
+        BlockReader() {
+            this.inflater = new Inflater();
+            this.stream = -1;
+            this.block = -1;
+            this.data = null;
+        }
+
+        byte[] read(byte stream, int block) throws IOException {
+            if (stream == this.stream && block == this.block) {
+                return data;
+            }
+            final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            final long position = blockPositions[stream][block];
+
+            readFully(channel, header, position, file);
+            final byte method = header.get();
+            final int rawLength = header.getInt();
+            final int length = header.getInt();
+
+            // Checked before allocating, so a corrupt length can't throw or
+            // exhaust the heap
+            if (rawLength != blockStarts[stream][block + 1] - blockStarts[stream][block]
+                || length < 0
+                || length > channel.size() - position - BLOCK_HEADER_SIZE) {
+                throw new IOException("Corrupt block in " + file);
+            }
+            final ByteBuffer content = ByteBuffer.allocate(length);
+
+            readFully(channel, content, position + BLOCK_HEADER_SIZE, file);
+            byte[] plain = content.array();
+
+            if (key != null) {
+                plain = decrypt(key, stream, block, header.array(), plain, file);
+            }
+            if (method == METHOD_STORED) {
+                data = plain;
+            }
+            else {
+                data = inflate(plain, rawLength);
+            }
+            this.stream = stream;
+            this.block = block;
+            return data;
+        }
+
+        void close() {
+            inflater.end();
+        }
+
+        private byte[] inflate(byte[] compressed, int rawLength) throws IOException {
+            final byte[] raw = new byte[rawLength];
+
+            inflater.reset();
+            inflater.setInput(compressed);
+            try {
+                if (inflater.inflate(raw) != rawLength || !inflater.finished()) {
+                    throw new IOException("Corrupt block in " + file);
+                }
+            }
+            catch (DataFormatException e) {
+                throw new IOException("Corrupt block in " + file, e);
+            }
+            return raw;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.archive;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Holds the key of the encrypted archives of a folder, derived from a
+ * passphrase or the content of a key file.
+ *
+ * <p>The passphrase is stretched with PBKDF2-HMAC-SHA256 and a random salt
+ * kept in the folder, in a file named {@link #KEY_FILE_NAME}, along with a
+ * check value so a wrong passphrase is told before anything is written or
+ * restored. Each archive is encrypted with its own AES-256 key, derived from
+ * this one and a random salt in its header with HMAC-SHA256, so the block
+ * numbers used as nonces are never repeated under the same key.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class ArchiveKey {
+    public static final String KEY_FILE_NAME = "sdbackup-key";
+    static final int SALT_LENGTH = 16;
+    private static final int MAGIC = 0x5344424B;
+    private static final int VERSION = 1;
+    private static final int ITERATIONS = 600000;
+    private static final int KEY_LENGTH = 32;
+    private static final byte[] CHECK_LABEL = "sdbackup key check".getBytes(StandardCharsets.US_ASCII);
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private final byte[] key;
+
+    private ArchiveKey(byte[] key) {
+        this.key = key;
+    }
+
+    public static boolean exists(Path dir) {
+        return Files.isRegularFile(dir.resolve(KEY_FILE_NAME));
+    }
+
+    /**
+     * Derives the key of the given folder from the given passphrase.
+     *
+     * @param dir    folder holding the archives
+     * @param secret passphrase or content of a key file
+     * @return the key
+     * @throws IOException if the folder has no key or the passphrase is
+     *                     wrong
+     */
+    public static ArchiveKey open(Path dir, byte[] secret) throws IOException {
+        final Path file = dir.resolve(KEY_FILE_NAME);
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a key file " + file);
+            }
+            final int version = in.readInt();
+
+            if (version != VERSION) {
+                throw new IOException("Unsupported key file version " + version + ": " + file);
+            }
+            final int iterations = in.readInt();
+            final byte[] salt = new byte[SALT_LENGTH];
+            final byte[] check = new byte[KEY_LENGTH];
+
+            in.readFully(salt);
+            in.readFully(check);
+            final ArchiveKey key = new ArchiveKey(stretch(secret, salt, iterations));
+
+            if (!MessageDigest.isEqual(check, key.hmac(CHECK_LABEL))) {
+                throw new IOException("Wrong passphrase or key file for " + dir);
+            }
+            return key;
+        }
+    }
+
+    /**
+     * Derives the key of the given folder from the given passphrase, first
+     * giving the folder a new salt if it has no key yet. The key file is
+     * never replaced, as the archives encrypted with it would be lost.
+     *
+     * @see #open(Path, byte[])
+     */
+    public static synchronized ArchiveKey openOrCreate(Path dir, byte[] secret) throws IOException {
+        if (!exists(dir)) {
+            create(dir, secret);
+        }
+        return open(dir, secret);
+    }
+
+    /**
+     * Returns the key of the archive with the given salt.
+     */
+    SecretKey archiveKey(byte[] salt) {
+        return new SecretKeySpec(hmac(salt), "AES");
+    }
+
+    static byte[] newSalt() {
+        final byte[] salt = new byte[SALT_LENGTH];
+
+        RANDOM.nextBytes(salt);
+        return salt;
+    }
+
+    private byte[] hmac(byte[] message) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(message);
+        }
+        catch (GeneralSecurityException e) {
+            // Every Java platform is required to support HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void create(Path dir, byte[] secret) throws IOException {
+        final Path file = dir.resolve(KEY_FILE_NAME);
+        final Path tmp = Files.createTempFile(dir, KEY_FILE_NAME, ".tmp");
+        final byte[] salt = newSalt();
+        final ArchiveKey key = new ArchiveKey(stretch(secret, salt, ITERATIONS));
+
+        try (FileOutputStream stream = new FileOutputStream(tmp.toFile())) {
+            final DataOutputStream out = new DataOutputStream(stream);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(ITERATIONS);
+            out.write(salt);
+            out.write(key.hmac(CHECK_LABEL));
+            out.flush();
+
+            // Losing the salt would lose every archive encrypted with it
+            stream.getFD().sync();
+        }
+        try {
+            Files.move(tmp, file);
+        }
+        catch (FileAlreadyExistsException e) {
+            // Created by another process in the meantime, whose key is kept
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static byte[] stretch(byte[] secret, byte[] salt, int iterations) throws IOException {
+        // Latin-1 maps every byte to a char, so key files of any content work
+        final char[] password = new String(secret, StandardCharsets.ISO_8859_1).toCharArray();
+        final PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, 8 * KEY_LENGTH);
+
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("Couldn't derive the key", e);
+        }
+        finally {
+            spec.clearPassword();
+            Arrays.fill(password, '\0');
+        }
+    }
+}
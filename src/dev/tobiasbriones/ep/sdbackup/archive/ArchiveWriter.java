@@ -0,0 +1,418 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.archive;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an {@link Archive} from a single thread, compressing and encrypting
+ * its blocks on a pool of threads. Blocks are written in the order they were
+ * filled, and the writer waits for the oldest one once too many are being
+ * compressed, so memory stays bounded however fast the files are read.
+ *
+ * @author Tobias Briones
+ */
+final class ArchiveWriter {
+    static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int PENDING_BLOCKS_PER_THREAD = 2;
+
+    // Blocks that don't shrink by at least 1/32 are stored as they are
+    private static final int MIN_SAVING = 32;
+
+    // Blocks are only deflated whole if a sample of them shrinks
+    private static final int SAMPLES = 4;
+    private static final int SAMPLE_SIZE = 16 * 1024;
+    private static final int SIGNATURE_LENGTH = 8;
+
+    // The default level deflates a few times slower than most disks write
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(
+        () -> new Deflater(Deflater.BEST_SPEED)
+    );
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+        "7z", "aac", "avi", "avif", "br", "bz2", "docx", "epub", "flac", "gif", "gz", "heic", "jar", "jpeg",
+        "jpg", "lz4", "m4a", "m4v", "mkv", "mov", "mp3", "mp4", "odt", "ogg", "opus", "png", "pptx", "rar",
+        "tgz", "txz", "webm", "webp", "xlsx", "xz", "zip", "zst"
+    ));
+    private static final byte[][] COMPRESSED_SIGNATURES = {
+        { 0x1F, (byte) 0x8B },
+        { 0x50, 0x4B, 0x03, 0x04 },
+        { (byte) 0x89, 0x50, 0x4E, 0x47 },
+        { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF },
+        { 0x28, (byte) 0xB5, 0x2F, (byte) 0xFD },
+        { (byte) 0xFD, 0x37, 0x7A, 0x58, 0x5A, 0x00 },
+        { 0x37, 0x7A, (byte) 0xBC, (byte) 0xAF, 0x27, 0x1C },
+        { 0x42, 0x5A, 0x68 },
+        { 0x52, 0x61, 0x72, 0x21 }
+    };
+    private final FileChannel channel;
+    private final byte[] header;
+    private final SecretKey key;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Deque<Future<Block>> pending;
+    private final Stream[] streams;
+    private final List<Archive.Entry> entries;
+    private final CRC32 crc;
+    private final ByteBuffer head;
+
+    ArchiveWriter(Path file, Archive.Header header, SecretKey key, int threads) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.header = header.toBytes();
+        this.key = key;
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.maxPending = threads * PENDING_BLOCKS_PER_THREAD;
+        this.pending = new ArrayDeque<>();
+        this.streams = new Stream[] { new Stream(Archive.STREAM_PACKED), new Stream(Archive.STREAM_STORED) };
+        this.entries = new ArrayList<>();
+        this.crc = new CRC32();
+        this.head = ByteBuffer.allocate(SIGNATURE_LENGTH);
+        writeFully(ByteBuffer.wrap(this.header));
+    }
+
+    /**
+     * Appends the content of the given file to the archive, to the stored
+     * stream if it's already compressed.
+     *
+     * @param file         file to read
+     * @param path         path of the file in the archive, separated by '/'
+     * @param modifiedTime modified time of the file
+     * @param permissions  permissions of the file
+     * @return the number of bytes read
+     * @throws IOException if the file can't be read or a block can't be
+     *                     written
+     */
+    long add(Path file, String path, long modifiedTime, int permissions) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            readHead(in);
+            final Stream stream = streams[isCompressed(path, head) ? Archive.STREAM_STORED : Archive.STREAM_PACKED];
+            final long offset = stream.offset;
+
+            crc.reset();
+            while (head.hasRemaining()) {
+                final int n = Math.min(head.remaining(), BLOCK_SIZE - stream.filled);
+
+                head.get(stream.buffer, stream.filled, n);
+                appended(stream, n);
+            }
+            while (true) {
+                final int n = in.read(ByteBuffer.wrap(stream.buffer, stream.filled, BLOCK_SIZE - stream.filled));
+
+                if (n == -1) {
+                    break;
+                }
+                appended(stream, n);
+            }
+            final long size = stream.offset - offset;
+
+            entries.add(new Archive.Entry(
+                path,
+                size,
+                modifiedTime,
+                permissions,
+                stream.id,
+                offset,
+                (int) crc.getValue()
+            ));
+            return size;
+        }
+    }
+
+    /**
+     * Writes the blocks still pending, the index and the footer, and forces
+     * the archive to the disk. The index is built in memory, as it's sealed
+     * whole when the archive is encrypted.
+     *
+     * @throws IOException if the archive can't be written
+     */
+    void finish() throws IOException {
+        try {
+            for (Stream stream : streams) {
+                flush(stream);
+            }
+            while (!pending.isEmpty()) {
+                write(pending.poll());
+            }
+            final long indexPosition = channel.position();
+            final ByteArrayOutputStream index = new ByteArrayOutputStream();
+            final DeflaterOutputStream deflater = new DeflaterOutputStream(index);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(deflater, BUFFER_SIZE));
+            final ByteBuffer footer = ByteBuffer.allocate(Archive.FOOTER_SIZE);
+
+            entries.sort(Comparator.comparing(Archive.Entry::getPath));
+            out.writeInt(entries.size());
+            for (Archive.Entry entry : entries) {
+                out.writeUTF(entry.getPath());
+                out.writeLong(entry.getSize());
+                out.writeLong(entry.getModifiedTime());
+                out.writeInt(entry.getPermissions());
+                out.writeByte(entry.stream);
+                out.writeLong(entry.offset);
+                out.writeInt(entry.getChecksum());
+            }
+            for (Stream stream : streams) {
+                out.writeInt(stream.positions.size());
+                for (int i = 0; i < stream.positions.size(); i++) {
+                    out.writeLong(stream.positions.get(i));
+                    out.writeInt(stream.rawLengths.get(i));
+                }
+            }
+            out.close();
+            writeFully(sealIndex(index.toByteArray()));
+            footer.putLong(indexPosition).putInt(Archive.MAGIC).flip();
+            writeFully(footer);
+            channel.force(false);
+        }
+        finally {
+            abort();
+        }
+    }
+
+    /**
+     * Stops compressing and closes the archive, which is left incomplete.
+     */
+    void abort() throws IOException {
+        executor.shutdownNow();
+        channel.close();
+    }
+
+    /**
+     * Reads the first bytes of the file, to look for a known signature.
+     */
+    private void readHead(FileChannel in) throws IOException {
+        head.clear();
+        while (head.hasRemaining()) {
+            if (in.read(head) == -1) {
+                break;
+            }
+        }
+        head.flip();
+    }
+
+    private void appended(Stream stream, int count) throws IOException {
+        crc.update(stream.buffer, stream.filled, count);
+        stream.filled += count;
+        stream.offset += count;
+        if (stream.filled == BLOCK_SIZE) {
+            flush(stream);
+        }
+    }
+
+    /**
+     * Hands the filled part of the block of the given stream to the pool, and
+     * writes the blocks already compressed.
+     */
+    private void flush(Stream stream) throws IOException {
+        if (stream.filled == 0) {
+            return;
+        }
+        final byte id = stream.id;
+        final long number = stream.blocks++;
+        final byte[] data = stream.buffer;
+        final int length = stream.filled;
+
+        pending.add(executor.submit(() -> seal(compress(id, data, length), number)));
+        stream.buffer = new byte[BLOCK_SIZE];
+        stream.filled = 0;
+        while (!pending.isEmpty() && (pending.size() > maxPending || pending.peek().isDone())) {
+            write(pending.poll());
+        }
+    }
+
+    private void write(Future<Block> future) throws IOException {
+        final Block block = get(future);
+        final Stream stream = streams[block.stream];
+
+        stream.positions.add(channel.position());
+        stream.rawLengths.add(block.rawLength);
+        writeFully(ByteBuffer.wrap(blockHeader(block.method, block.rawLength, block.length)));
+        writeFully(ByteBuffer.wrap(block.data, 0, block.length));
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Encrypts the given block, whose header is authenticated along with it,
+     * if the archive is encrypted.
+     */
+    private Block seal(Block block, long number) {
+        if (key == null) {
+            return block;
+        }
+        final int length = block.length + Archive.TAG_LENGTH;
+        final byte[] sealed = new byte[length];
+        final byte[] aad = blockHeader(block.method, block.rawLength, length);
+
+        Archive.encrypt(key, block.stream, number, aad, block.data, block.length, sealed);
+        return new Block(block.stream, block.method, block.rawLength, sealed, length);
+    }
+
+    /**
+     * Encrypts the given index, with the archive header authenticated along
+     * with it, if the archive is encrypted.
+     */
+    private ByteBuffer sealIndex(byte[] index) {
+        if (key == null) {
+            return ByteBuffer.wrap(index);
+        }
+        final byte[] sealed = new byte[index.length + Archive.TAG_LENGTH];
+
+        Archive.encrypt(key, Archive.STREAM_INDEX, 0L, header, index, index.length, sealed);
+        return ByteBuffer.wrap(sealed);
+    }
+
+    private static byte[] blockHeader(byte method, int rawLength, int length) {
+        return ByteBuffer.allocate(Archive.BLOCK_HEADER_SIZE).put(method).putInt(rawLength).putInt(length).array();
+    }
+
+    private static Block compress(byte stream, byte[] data, int length) {
+        if (stream == Archive.STREAM_STORED) {
+            return new Block(stream, Archive.METHOD_STORED, length, data, length);
+        }
+        final Deflater deflater = DEFLATER.get();
+        final byte[] compressed = new byte[length - length / MIN_SAVING];
+
+        if (!isWorthDeflating(deflater, data, length, compressed) || !deflate(deflater, data, 0, length, compressed)) {
+            return new Block(stream, Archive.METHOD_STORED, length, data, length);
+        }
+        return new Block(stream, Archive.METHOD_DEFLATED, length, compressed, (int) deflater.getBytesWritten());
+    }
+
+    /**
+     * Deflates samples spread over the given data, and returns whether any of
+     * them shrank, so blocks of random or already compressed data are not
+     * deflated whole for nothing.
+     */
+    private static boolean isWorthDeflating(Deflater deflater, byte[] data, int length, byte[] compressed) {
+        if (length <= SAMPLES * SAMPLE_SIZE) {
+            return true;
+        }
+        for (int i = 0; i < SAMPLES; i++) {
+            final int offset = (int) ((long) i * (length - SAMPLE_SIZE) / (SAMPLES - 1));
+
+            if (deflate(deflater, data, offset, SAMPLE_SIZE, compressed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deflates the given range of the data, and returns whether it shrank
+     * enough to be worth it.
+     */
+    private static boolean deflate(Deflater deflater, byte[] data, int offset, int length, byte[] compressed) {
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        deflater.deflate(compressed, 0, length - length / MIN_SAVING);
+        return deflater.finished();
+    }
+
+    private static boolean isCompressed(String path, ByteBuffer head) {
+        final String name = path.substring(path.lastIndexOf('/') + 1);
+        final int dot = name.lastIndexOf('.');
+
+        if (dot != -1 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return true;
+        }
+        for (byte[] signature : COMPRESSED_SIGNATURES) {
+            if (startsWith(head, signature)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(ByteBuffer head, byte[] signature) {
+        if (head.remaining() < signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if (head.get(head.position() + i) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Block get(Future<Block> future) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Backup interrupted");
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Couldn't compress a block", e.getCause());
+        }
+    }
+
+    /**
+     * Content of one of the two streams of the archive, filled one block at
+     * a time.
+     */
+    private static final class Stream {
+        private final byte id;
+        private final List<Long> positions;
+        private final List<Integer> rawLengths;
+        private byte[] buffer;
+        private int filled;
+        private long offset;
+        private long blocks;
+
+        Stream(byte id) {
+            this.id = id;
+            this.positions = new ArrayList<>();
+            this.rawLengths = new ArrayList<>();
+            this.buffer = new byte[BLOCK_SIZE];
+            this.filled = 0;
+            this.offset = 0L;
+            this.blocks = 0L;
+        }
+    }
+
+    private static final class Block {
+        private final byte stream;
+        private final byte method;
+        private final int rawLength;
+        private final byte[] data;
+        private final int length;
+
+        Block(byte stream, byte method, int rawLength, byte[] data, int length) {
+            this.stream = stream;
+            this.method = method;
+            this.rawLength = rawLength;
+            this.data = data;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.cli;
+
+import dev.tobiasbriones.ep.sdbackup.Backups;
+import dev.tobiasbriones.ep.sdbackup.FileUtils;
+import dev.tobiasbriones.ep.sdbackup.io.CopyProgress;
+import dev.tobiasbriones.ep.sdbackup.io.Throttle;
+import dev.tobiasbriones.ep.sdbackup.io.TokenBucket;
+import dev.tobiasbriones.ep.sdbackup.model.BackupTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs several backup tasks at once. Each device, that is each file store
+ * holding the target or a destination of a task, runs at most a given number
+ * of tasks at a time, so tasks on different devices run concurrently while
+ * a spinning disk is never shared by too many of them.
+ *
+ * <p>Tasks start in the given order, except that a task waiting for a busy
+ * device doesn't hold back later tasks on other devices.</p>
+ *
+ * <p>If device limits are set, every device gets a {@link TokenBucket} of
+ * its own, shared by all the tasks using it, besides the limits of each
+ * task.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class BatchRunner {
+    private final int tasksPerDevice;
+    private final int threads;
+    private final Object lock;
+    private final Map<Object, Integer> busyDevices;
+    private final Map<Object, Throttle> deviceThrottles;
+    private long deviceBytesPerSecond;
+    private long deviceFilesPerSecond;
+    private int runningTasks;
+
+    /**
+     * @param tasksPerDevice maximum number of tasks using a device at once
+     * @param threads        number of copy threads of each task, or {@link
+     *                       FileUtils#ADAPTIVE_COPY_THREADS}
+     */
+    public BatchRunner(int tasksPerDevice, int threads) {
+        if (tasksPerDevice < 1 || threads < FileUtils.ADAPTIVE_COPY_THREADS) {
+            throw new IllegalArgumentException("Limits must be at least 1");
+        }
+        this.tasksPerDevice = tasksPerDevice;
+        this.threads = threads;
+        this.lock = new Object();
+        this.busyDevices = new HashMap<>();
+        this.deviceThrottles = new HashMap<>();
+        this.deviceBytesPerSecond = TokenBucket.UNLIMITED;
+        this.deviceFilesPerSecond = TokenBucket.UNLIMITED;
+        this.runningTasks = 0;
+    }
+
+    public long getDeviceBytesPerSecond() {
+        return deviceBytesPerSecond;
+    }
+
+    /**
+     * Sets the bytes per second each device allows to all its tasks
+     * together, or {@link TokenBucket#UNLIMITED}.
+     */
+    public void setDeviceBytesPerSecond(long value) {
+        this.deviceBytesPerSecond = value;
+    }
+
+    public long getDeviceFilesPerSecond() {
+        return deviceFilesPerSecond;
+    }
+
+    /**
+     * Sets the files per second each device allows to all its tasks
+     * together, or {@link TokenBucket#UNLIMITED}.
+     */
+    public void setDeviceFilesPerSecond(long value) {
+        this.deviceFilesPerSecond = value;
+    }
+
+    /**
+     * Runs every given task and returns their results in the same order.
+     */
+    public List<Result> run(List<BackupTask> tasks) throws InterruptedException {
+        final Result[] results = new Result[tasks.size()];
+        final List<Integer> pending = new LinkedList<>();
+        final List<Set<Object>> devices = new ArrayList<>(tasks.size());
+        final ExecutorService executor = Executors.newCachedThreadPool();
+
+        for (int i = 0; i < tasks.size(); i++) {
+            pending.add(i);
+            devices.add(devicesOf(tasks.get(i)));
+        }
+        try {
+            synchronized (lock) {
+                while (!pending.isEmpty() || runningTasks > 0) {
+                    final Iterator<Integer> it = pending.iterator();
+
+                    while (it.hasNext()) {
+                        final int index = it.next();
+                        final Set<Object> taskDevices = devices.get(index);
+
+                        if (!areFree(taskDevices)) {
+                            continue;
+                        }
+                        final Throttle throttle = throttleOf(taskDevices);
+
+                        it.remove();
+                        acquire(taskDevices);
+                        executor.execute(() -> {
+                            try {
+                                results[index] = runTask(tasks.get(index), throttle);
+                            }
+                            finally {
+                                release(taskDevices);
+                            }
+                        });
+                    }
+                    lock.wait();
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        return Arrays.asList(results);
+    }
+
+    private Result runTask(BackupTask task, Throttle throttle) {
+        final CopyProgress progress = new CopyProgress();
+        final long startedAt = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        String error = null;
+
+        try {
+            Backups.backup(task, progress, threads, throttle);
+        }
+        catch (Exception e) {
+            error = e.getMessage() == null ? e.toString() : e.getMessage();
+        }
+        return new Result(task.getName(), error, startedAt, System.nanoTime() - start, progress.sample());
+    }
+
+    private Throttle throttleOf(Set<Object> devices) {
+        if (deviceBytesPerSecond <= 0L && deviceFilesPerSecond <= 0L) {
+            return Throttle.NONE;
+        }
+        final List<Throttle> throttles = new ArrayList<>(devices.size());
+
+        for (Object device : devices) {
+            throttles.add(deviceThrottles.computeIfAbsent(
+                device,
+                key -> new TokenBucket(deviceBytesPerSecond, deviceFilesPerSecond)
+            ));
+        }
+        return Throttle.all(throttles);
+    }
+
+    private boolean areFree(Set<Object> devices) {
+        for (Object device : devices) {
+            if (busyDevices.getOrDefault(device, 0) >= tasksPerDevice) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void acquire(Set<Object> devices) {
+        for (Object device : devices) {
+            busyDevices.merge(device, 1, Integer::sum);
+        }
+        runningTasks++;
+    }
+
+    private void release(Set<Object> devices) {
+        synchronized (lock) {
+            for (Object device : devices) {
+                busyDevices.merge(device, -1, Integer::sum);
+            }
+            runningTasks--;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the file stores of the target and destinations of the given
+     * task. Paths whose store can't be read count as a device of their own
+     * root.
+     */
+    static Set<Object> devicesOf(BackupTask task) {
+        final Set<Object> devices = new HashSet<>();
+
+        if (task.getTarget() != null) {
+            devices.add(deviceOf(task.getTarget()));
+        }
+        for (File destination : task) {
+            devices.add(deviceOf(destination));
+        }
+        return devices;
+    }
+
+    private static Object deviceOf(File file) {
+        Path path = file.toPath().toAbsolutePath();
+
+        // Destinations may not exist yet, so their closest existing parent
+        // tells the device
+        while (path != null && !Files.exists(path)) {
+            path = path.getParent();
+        }
+        if (path == null) {
+            return file.toPath().toAbsolutePath().getRoot();
+        }
+        try {
+            return Files.getFileStore(path);
+        }
+        catch (IOException e) {
+            return path.getRoot();
+        }
+    }
+
+    /**
+     * Outcome of a single task.
+     */
+    public static final class Result {
+        private final String name;
+        private final String error;
+        private final long startedAt;
+        private final long nanos;
+        private final List<CopyProgress.Status> destinations;
+
+        Result(String name, String error, long startedAt, long nanos, List<CopyProgress.Status> destinations) {
+            this.name = name;
+            this.error = error;
+            this.startedAt = startedAt;
+            this.nanos = nanos;
+            this.destinations = destinations;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isSuccessful() {
+            return error == null;
+        }
+
+        /**
+         * Returns the message of the error that stopped the task, or null if
+         * it succeeded.
+         */
+        public String getError() {
+            return error;
+        }
+
+        public long getStartedAt() {
+            return startedAt;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Returns the final counts of each destination, in the order they were
+         * written.
+         */
+        public List<CopyProgress.Status> getDestinations() {
+            return destinations;
+        }
+
+        public long getFilesCopied() {
+            long files = 0L;
+
+            for (CopyProgress.Status status : destinations) {
+                files += status.getFilesDone();
+            }
+            return files;
+        }
+
+        /**
+         * Returns the bytes written into all the destinations together.
+         */
+        public long getBytesCopied() {
+            long bytes = 0L;
+
+            for (CopyProgress.Status status : destinations) {
+                bytes += status.getBytesDone();
+            }
+            return bytes;
+        }
+
+        public long getBytesPerSecond() {
+            return nanos > 0L ? (long) (getBytesCopied() * 1.0e9 / nanos) : 0L;
+        }
+    }
+}
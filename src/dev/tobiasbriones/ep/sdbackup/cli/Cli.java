@@ -0,0 +1,987 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.cli;
+
+import dev.tobiasbriones.ep.sdbackup.Backups;
+import dev.tobiasbriones.ep.sdbackup.FileUtils;
+import dev.tobiasbriones.ep.sdbackup.diff.SnapshotDiff;
+import dev.tobiasbriones.ep.sdbackup.io.CopyProgress;
+import dev.tobiasbriones.ep.sdbackup.model.BackupTask;
+import dev.tobiasbriones.ep.sdbackup.model.RetentionPolicy;
+import dev.tobiasbriones.ep.sdbackup.restore.RestorePoint;
+import dev.tobiasbriones.ep.sdbackup.restore.SnapshotRestorer;
+import dev.tobiasbriones.ep.sdbackup.retention.SnapshotPruner;
+import dev.tobiasbriones.ep.sdbackup.snapshot.Catalog;
+import dev.tobiasbriones.ep.sdbackup.snapshot.ManifestEntry;
+import dev.tobiasbriones.ep.sdbackup.snapshot.SnapshotVerifier;
+import dev.tobiasbriones.ep.sdbackup.watch.TreeWatcher;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.*;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs saved backup tasks without the window and prints a JSON summary with
+ * the time and throughput of each task.
+ *
+ * <p>Exits with 0 if every task succeeded, 1 if any failed and 2 if the
+ * arguments are wrong.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class Cli {
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILED = 1;
+    public static final int EXIT_USAGE = 2;
+    private static final int FIND_LIMIT = 1000;
+
+    // Held so the level set on it isn't lost, loggers are only weakly kept
+    private static final Logger LOGGER = Logger.getLogger("dev.tobiasbriones.ep.sdbackup");
+    private static final String USAGE = String.join(
+        System.lineSeparator(),
+        "Usage: sd-backup (--all | TASK...) [options]",
+        "       sd-backup --verify SNAPSHOT [--threads N]",
+        "       sd-backup TASK --restore WHEN --to DIR [--path PATH] [--threads N]",
+        "       sd-backup TASK --diff FROM TO [--path PATH]",
+        "",
+        "  --all                 run every saved task",
+        "  --device-limit N      tasks using the same device at once (default 1)",
+        "  --threads N           copy threads of each task (default tuned while",
+        "                        copying, up to " + FileUtils.MAX_COPY_THREADS + ")",
+        "  --summary FILE        write the JSON summary to FILE instead of stdout",
+        "  --exclude PATTERN     also leave out files matching the gitignore-style",
+        "                        PATTERN, can be given more than once",
+        "  --max-rate N          read at most N bytes per second in each task,",
+        "                        N can end in K, M or G",
+        "  --max-files N         copy at most N files per second in each task",
+        "  --device-rate N       read at most N bytes per second from and to each",
+        "                        device, shared by all the tasks using it",
+        "  --device-files N      copy at most N files per second on each device",
+        "  --idle                slow tasks down while other work uses their disks",
+        "  --checksums           hash the files while copying them, so the",
+        "                        snapshots can be verified",
+        "  --encrypt             encrypt the archives written, with the key file",
+        "                        or the passphrase in SDBACKUP_PASSPHRASE",
+        "  --key-file FILE       read the key of encrypted archives from FILE",
+        "  --verify SNAPSHOT     check the files of the snapshot folder against",
+        "                        its checksums and print the result as JSON",
+        "  --keep-last N         keep the N latest snapshots, deleting the rest",
+        "                        after each backup",
+        "  --keep-hourly N       also keep the latest snapshot of each of the",
+        "  --keep-daily N        last N hours, days, weeks or months",
+        "  --keep-weekly N",
+        "  --keep-monthly N",
+        "  --prune               only delete the snapshots the retention policy",
+        "                        doesn't keep, printing the result as JSON",
+        "  --dry-run             with --prune, tell what would be deleted",
+        "  --find PATH           print the versions of the file at PATH, or of the",
+        "                        files under the folder at PATH, kept in the",
+        "                        snapshots of the tasks, as JSON",
+        "  --restore WHEN        rebuild the snapshot of the task taken at WHEN,",
+        "                        which is latest, a snapshot name, a date or a",
+        "                        date and time like 2018-06-30T14:05, into the",
+        "                        --to folder and print the result as JSON; files",
+        "                        already restored there are skipped",
+        "  --to DIR              folder to restore into",
+        "  --path PATH           only restore or compare the file or folder at PATH",
+        "  --diff FROM TO        print the files added, removed, modified and",
+        "                        moved between the snapshots of the task taken",
+        "                        at FROM and TO, given like for --restore, as JSON",
+        "  --watch               keep change journals of the tasks until stopped,",
+        "                        so their next backups skip unchanged folders",
+        "  --verbose             log details like the copy threads chosen",
+        "  --help                show this message"
+    );
+
+    /**
+     * Runs the command line with the given arguments and returns the exit
+     * code.
+     */
+    public static int run(String[] args) {
+        final Set<String> names = new LinkedHashSet<>();
+        final List<String> exclusions = new ArrayList<>();
+        boolean all = false;
+        boolean watch = false;
+        int deviceLimit = 1;
+        int threads = FileUtils.ADAPTIVE_COPY_THREADS;
+        long maxRate = 0L;
+        long maxFiles = 0L;
+        long deviceRate = 0L;
+        long deviceFiles = 0L;
+        boolean idle = false;
+        boolean checksums = false;
+        boolean encrypt = false;
+        String keyFile = null;
+        String summary = null;
+        String verify = null;
+        final int[] keep = { -1, -1, -1, -1, -1 };
+        boolean prune = false;
+        boolean dryRun = false;
+        String find = null;
+        RestorePoint restore = null;
+        RestorePoint[] diff = null;
+        String restoreTo = null;
+        String restorePath = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--all":
+                        all = true;
+                        break;
+
+                    case "--device-limit":
+                        deviceLimit = positive(args, ++i);
+                        break;
+
+                    case "--threads":
+                        threads = positive(args, ++i);
+                        break;
+
+                    case "--summary":
+                        summary = value(args, ++i);
+                        break;
+
+                    case "--exclude":
+                        exclusions.add(value(args, ++i));
+                        break;
+
+                    case "--max-rate":
+                        maxRate = amount(args, ++i);
+                        break;
+
+                    case "--max-files":
+                        maxFiles = amount(args, ++i);
+                        break;
+
+                    case "--device-rate":
+                        deviceRate = amount(args, ++i);
+                        break;
+
+                    case "--device-files":
+                        deviceFiles = amount(args, ++i);
+                        break;
+
+                    case "--idle":
+                        idle = true;
+                        break;
+
+                    case "--checksums":
+                        checksums = true;
+                        break;
+
+                    case "--encrypt":
+                        encrypt = true;
+                        break;
+
+                    case "--key-file":
+                        keyFile = value(args, ++i);
+                        break;
+
+                    case "--verify":
+                        verify = value(args, ++i);
+                        break;
+
+                    case "--keep-last":
+                        keep[0] = count(args, ++i);
+                        break;
+
+                    case "--keep-hourly":
+                        keep[1] = count(args, ++i);
+                        break;
+
+                    case "--keep-daily":
+                        keep[2] = count(args, ++i);
+                        break;
+
+                    case "--keep-weekly":
+                        keep[3] = count(args, ++i);
+                        break;
+
+                    case "--keep-monthly":
+                        keep[4] = count(args, ++i);
+                        break;
+
+                    case "--prune":
+                        prune = true;
+                        break;
+
+                    case "--dry-run":
+                        dryRun = true;
+                        break;
+
+                    case "--find":
+                        find = value(args, ++i);
+                        break;
+
+                    case "--restore":
+                        restore = restorePoint(args, ++i);
+                        break;
+
+                    case "--diff":
+                        diff = new RestorePoint[] { restorePoint(args, ++i), restorePoint(args, ++i) };
+                        break;
+
+                    case "--to":
+                        restoreTo = value(args, ++i);
+                        break;
+
+                    case "--path":
+                        restorePath = value(args, ++i);
+                        break;
+
+                    case "--watch":
+                        watch = true;
+                        break;
+
+                    case "--verbose":
+                        verbose();
+                        break;
+
+                    case "--help":
+                        System.out.println(USAGE);
+                        return EXIT_OK;
+
+                    default:
+                        if (args[i].startsWith("--")) {
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        }
+                        names.add(args[i]);
+                }
+            }
+            if (verify != null) {
+                if (all || !names.isEmpty()) {
+                    throw new IllegalArgumentException("--verify doesn't run tasks");
+                }
+            }
+            else if (all == !names.isEmpty()) {
+                throw new IllegalArgumentException("Give either --all or task names");
+            }
+            if (dryRun && !prune) {
+                throw new IllegalArgumentException("--dry-run only applies to --prune");
+            }
+            if (find != null && prune) {
+                throw new IllegalArgumentException("--find doesn't prune");
+            }
+            if (restore == null && restoreTo != null) {
+                throw new IllegalArgumentException("--to only applies to --restore");
+            }
+            if (restore == null && diff == null && restorePath != null) {
+                throw new IllegalArgumentException("--path only applies to --restore and --diff");
+            }
+            if (diff != null) {
+                if (all || names.size() != 1) {
+                    throw new IllegalArgumentException("--diff takes a single task");
+                }
+                if (prune || find != null || watch || restore != null) {
+                    throw new IllegalArgumentException("--diff doesn't run other commands");
+                }
+            }
+            if (restore != null) {
+                if (restoreTo == null) {
+                    throw new IllegalArgumentException("--restore needs --to");
+                }
+                if (all || names.size() != 1) {
+                    throw new IllegalArgumentException("--restore takes a single task");
+                }
+                if (prune || find != null || watch) {
+                    throw new IllegalArgumentException("--restore doesn't run other commands");
+                }
+            }
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        if (verify != null) {
+            return verify(
+                Paths.get(verify),
+                threads == FileUtils.ADAPTIVE_COPY_THREADS ? FileUtils.DEFAULT_COPY_THREADS : threads
+            );
+        }
+        final List<BackupTask> tasks;
+
+        try {
+            tasks = select(Backups.readTasks(), names, all);
+        }
+        catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return EXIT_USAGE;
+        }
+        final RetentionPolicy retention = retentionOf(keep);
+
+        // Only for this run, the store is never written
+        for (BackupTask task : tasks) {
+            exclusions.forEach(task::addExclusion);
+            if (maxRate > 0L) {
+                task.setMaxBytesPerSecond(maxRate);
+            }
+            if (maxFiles > 0L) {
+                task.setMaxFilesPerSecond(maxFiles);
+            }
+            if (idle) {
+                task.setIdlePriority(true);
+            }
+            if (checksums) {
+                task.setChecksums(true);
+            }
+            if (retention != null) {
+                task.setRetention(retention);
+            }
+            if (encrypt) {
+                task.setEncrypted(true);
+            }
+            if (keyFile != null) {
+                task.setKeyFile(new File(keyFile));
+            }
+        }
+        if (prune) {
+            return prune(tasks, threads, dryRun);
+        }
+        if (find != null) {
+            return find(tasks, find);
+        }
+        if (diff != null) {
+            return diff(tasks.get(0), diff[0], diff[1], restorePath);
+        }
+        if (restore != null) {
+            return restore(tasks.get(0), restore, restorePath, Paths.get(restoreTo), threads);
+        }
+        if (watch) {
+            return watch(tasks);
+        }
+        final long start = System.nanoTime();
+        final BatchRunner runner = new BatchRunner(deviceLimit, threads);
+        final List<BatchRunner.Result> results;
+
+        runner.setDeviceBytesPerSecond(deviceRate);
+        runner.setDeviceFilesPerSecond(deviceFiles);
+        try {
+            results = runner.run(tasks);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted");
+            return EXIT_FAILED;
+        }
+        final String json = toJson(results, System.nanoTime() - start);
+
+        try {
+            if (summary == null) {
+                System.out.println(json);
+            }
+            else {
+                Files.write(Paths.get(summary), json.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            return EXIT_FAILED;
+        }
+        for (BatchRunner.Result result : results) {
+            if (!result.isSuccessful()) {
+                return EXIT_FAILED;
+            }
+        }
+        return EXIT_OK;
+    }
+
+    /**
+     * Prunes the given tasks one after the other and prints the result.
+     */
+    private static int prune(List<BackupTask> tasks, int threads, boolean dryRun) {
+        final StringBuilder json = new StringBuilder(256 * (tasks.size() + 1));
+        int failed = 0;
+
+        json.append("{\n  \"dryRun\": ").append(dryRun).append(",\n  \"tasks\": [");
+        for (int i = 0; i < tasks.size(); i++) {
+            final BackupTask task = tasks.get(i);
+            List<SnapshotPruner.Result> results = Collections.emptyList();
+            String error = null;
+
+            try {
+                results = Backups.prune(task, threads, dryRun);
+            }
+            catch (IOException e) {
+                error = e.getMessage() == null ? e.toString() : e.getMessage();
+                failed++;
+            }
+            json.append(i == 0 ? "\n" : ",\n")
+                .append("    {\"name\": ").append(quote(task.getName()))
+                .append(", \"status\": \"").append(error == null ? "ok" : "failed").append('"')
+                .append(", \"error\": ").append(quote(error))
+                .append(", \"destinations\": [");
+            for (int j = 0; j < results.size(); j++) {
+                final SnapshotPruner.Result result = results.get(j);
+
+                json.append(j == 0 ? "" : ", ")
+                    .append("{\"path\": ").append(quote(result.getRoot().toString()))
+                    .append(", \"seconds\": ").append(seconds(result.getNanos()))
+                    .append(", \"files\": ").append(result.getFilesDeleted())
+                    .append(", \"bytesFreed\": ").append(result.getBytesFreed())
+                    .append(", \"kept\": ");
+                appendStrings(json, result.getKept());
+                json.append(", \"pruned\": ");
+                appendStrings(json, result.getPruned());
+                json.append(", \"held\": ");
+                appendStrings(json, result.getHeld());
+                json.append(", \"unknown\": ");
+                appendStrings(json, result.getUnknown());
+                json.append('}');
+            }
+            json.append("]}");
+        }
+        json.append(tasks.isEmpty() ? "],\n" : "\n  ],\n")
+            .append("  \"failed\": ").append(failed)
+            .append("\n}");
+        System.out.println(json);
+        return failed == 0 ? EXIT_OK : EXIT_FAILED;
+    }
+
+    /**
+     * Looks the given path up in the catalogs of the given tasks and prints
+     * the versions found.
+     */
+    private static int find(List<BackupTask> tasks, String query) {
+        final StringBuilder json = new StringBuilder(1024);
+        int failed = 0;
+
+        json.append("{\n  \"query\": ").append(quote(query)).append(",\n  \"tasks\": [");
+        for (int i = 0; i < tasks.size(); i++) {
+            final BackupTask task = tasks.get(i);
+            final StringBuilder destinations = new StringBuilder(512);
+            String error = null;
+
+            try {
+                final String path = catalogPathOf(task, query);
+                int j = 0;
+
+                for (Catalog catalog : Backups.catalogsOf(task)) {
+                    final long start = System.nanoTime();
+                    final List<Catalog.Version> versions = catalog.find(path);
+                    final SortedMap<String, List<Catalog.Version>> files = catalog.findUnder(
+                        path.isEmpty() ? "" : path + "/",
+                        FIND_LIMIT + 1
+                    );
+                    final long nanos = System.nanoTime() - start;
+
+                    destinations.append(j++ == 0 ? "" : ",")
+                                .append("\n        {\"path\": ")
+                                .append(quote(catalog.getSnapshotRoot().toString()))
+                                .append(", \"seconds\": ").append(seconds(nanos))
+                                .append(", \"snapshots\": ").append(catalog.getSnapshots().size())
+                                .append(", \"truncated\": ").append(files.size() > FIND_LIMIT)
+                                .append(", \"files\": [");
+                    int k = 0;
+
+                    if (!versions.isEmpty()) {
+                        appendFile(destinations, catalog, path, versions, k++);
+                    }
+                    for (Map.Entry<String, List<Catalog.Version>> file : files.entrySet()) {
+                        if (k == FIND_LIMIT) {
+                            break;
+                        }
+                        appendFile(destinations, catalog, file.getKey(), file.getValue(), k++);
+                    }
+                    destinations.append(k == 0 ? "]}" : "\n        ]}");
+                }
+                if (j > 0) {
+                    destinations.append("\n      ");
+                }
+            }
+            catch (IOException | IllegalArgumentException e) {
+                error = e.getMessage() == null ? e.toString() : e.getMessage();
+                destinations.setLength(0);
+                failed++;
+            }
+            json.append(i == 0 ? "\n" : ",\n")
+                .append("    {\"name\": ").append(quote(task.getName()))
+                .append(", \"status\": \"").append(error == null ? "ok" : "failed").append('"')
+                .append(", \"error\": ").append(quote(error))
+                .append(", \"destinations\": [").append(destinations).append("]}");
+        }
+        json.append(tasks.isEmpty() ? "],\n" : "\n  ],\n")
+            .append("  \"failed\": ").append(failed)
+            .append("\n}");
+        System.out.println(json);
+        return failed == 0 ? EXIT_OK : EXIT_FAILED;
+    }
+
+    /**
+     * Restores a snapshot of the given task and prints the result.
+     */
+    private static int restore(BackupTask task, RestorePoint point, String query, Path to, int threads) {
+        final Path target = to.toAbsolutePath().normalize();
+        final SnapshotRestorer.Result result;
+
+        try {
+            result = Backups.restore(
+                task,
+                point,
+                query == null ? "" : catalogPathOf(task, query),
+                target,
+                new CopyProgress(),
+                threads
+            );
+        }
+        catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage() == null ? e.toString() : e.getMessage());
+            return EXIT_FAILED;
+        }
+        final long nanos = result.getNanos();
+        final StringBuilder json = new StringBuilder(256);
+
+        json.append("{\n  \"name\": ").append(quote(task.getName())).append(",\n")
+            .append("  \"from\": ").append(quote(result.getRoot().toString())).append(",\n")
+            .append("  \"snapshot\": ").append(quote(result.getSnapshot())).append(",\n")
+            .append("  \"to\": ").append(quote(target.toString())).append(",\n")
+            .append("  \"seconds\": ").append(seconds(nanos)).append(",\n")
+            .append("  \"files\": ").append(result.getFilesRestored()).append(",\n")
+            .append("  \"skipped\": ").append(result.getFilesSkipped()).append(",\n")
+            .append("  \"bytes\": ").append(result.getBytesRestored()).append(",\n")
+            .append("  \"bytesPerSecond\": ")
+            .append(nanos > 0L ? (long) (result.getBytesRestored() * 1.0e9 / nanos) : 0L)
+            .append("\n}");
+        System.out.println(json);
+        return EXIT_OK;
+    }
+
+    /**
+     * Compares two snapshots of the given task and prints the changes.
+     */
+    private static int diff(BackupTask task, RestorePoint from, RestorePoint to, String query) {
+        final SnapshotDiff.Result result;
+
+        try {
+            result = Backups.diff(task, from, to, query == null ? "" : catalogPathOf(task, query));
+        }
+        catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage() == null ? e.toString() : e.getMessage());
+            return EXIT_FAILED;
+        }
+        final List<SnapshotDiff.Change> changes = result.getChanges();
+        final StringBuilder json = new StringBuilder(256 + 96 * changes.size());
+
+        json.append("{\n  \"name\": ").append(quote(task.getName())).append(",\n")
+            .append("  \"path\": ").append(quote(result.getRoot().toString())).append(",\n")
+            .append("  \"from\": ").append(quote(result.getFrom())).append(",\n")
+            .append("  \"to\": ").append(quote(result.getTo())).append(",\n")
+            .append("  \"seconds\": ").append(seconds(result.getNanos())).append(",\n")
+            .append("  \"unchanged\": ").append(result.getUnchanged()).append(",\n");
+        for (SnapshotDiff.Type type : SnapshotDiff.Type.values()) {
+            json.append("  \"").append(type.name().toLowerCase(Locale.ROOT)).append("\": ")
+                .append(result.getCount(type)).append(",\n");
+        }
+        json.append("  \"bytesAdded\": ").append(result.getBytesAdded()).append(",\n")
+            .append("  \"bytesRemoved\": ").append(result.getBytesRemoved()).append(",\n")
+            .append("  \"bytesModified\": ").append(result.getBytesModified()).append(",\n")
+            .append("  \"changes\": [");
+        for (int i = 0; i < changes.size(); i++) {
+            final SnapshotDiff.Change change = changes.get(i);
+
+            json.append(i == 0 ? "\n" : ",\n")
+                .append("    {\"type\": \"").append(change.getType().name().toLowerCase(Locale.ROOT)).append('"')
+                .append(", \"path\": ").append(quote(change.getPath()));
+            if (change.getType() == SnapshotDiff.Type.MOVED) {
+                json.append(", \"from\": ").append(quote(change.getOldPath()));
+            }
+            if (change.getOldSize() != -1L) {
+                json.append(", \"oldSize\": ").append(change.getOldSize());
+            }
+            if (change.getSize() != -1L) {
+                json.append(", \"size\": ").append(change.getSize());
+            }
+            json.append('}');
+        }
+        json.append(changes.isEmpty() ? "]" : "\n  ]").append("\n}");
+        System.out.println(json);
+        return EXIT_OK;
+    }
+
+    /**
+     * Returns the given path relative to the target of the task, separated
+     * by '/' like in the catalog. Relative paths are taken as relative to the
+     * target already.
+     */
+    private static String catalogPathOf(BackupTask task, String query) {
+        final Path path = Paths.get(query).normalize();
+
+        if (!path.isAbsolute()) {
+            return ManifestEntry.toManifestPath(path);
+        }
+        final Path target = task.getTarget().toPath().toAbsolutePath().normalize();
+
+        if (!path.startsWith(target)) {
+            throw new IllegalArgumentException(query + " is not in the target of " + task.getName());
+        }
+        return ManifestEntry.toManifestPath(target.relativize(path));
+    }
+
+    private static void appendFile(
+        StringBuilder json,
+        Catalog catalog,
+        String path,
+        List<Catalog.Version> versions,
+        int index
+    ) {
+        json.append(index == 0 ? "\n" : ",\n")
+            .append("          {\"path\": ").append(quote(path))
+            .append(", \"versions\": [");
+        for (int i = 0; i < versions.size(); i++) {
+            final Catalog.Version version = versions.get(i);
+
+            json.append(i == 0 ? "" : ", ")
+                .append("{\"size\": ").append(version.getSize())
+                .append(", \"modifiedAt\": ")
+                .append(quote(Instant.ofEpochMilli(version.getModifiedTime()).toString()))
+                .append(", \"sha256\": ").append(quote(version.getDigest()))
+                .append(", \"first\": ").append(quote(version.getFirstSnapshot()))
+                .append(", \"last\": ").append(quote(version.getLastSnapshot()))
+                .append(", \"snapshots\": ").append(version.getSnapshotCount())
+                .append(", \"current\": ").append(version.isCurrent())
+                .append(", \"location\": ").append(quote(locationOf(catalog.getSnapshotRoot(), version)))
+                .append('}');
+        }
+        json.append("]}");
+    }
+
+    /**
+     * Returns the file holding the content of the given version, or null if
+     * it's gone.
+     */
+    private static String locationOf(Path snapshotRoot, Catalog.Version version) {
+        final String path = version.getPath();
+
+        for (String snapshot : Arrays.asList(version.getLastSnapshot(), version.getCopiedTo())) {
+            final Path file = snapshotRoot.resolve(snapshot).resolve(path);
+
+            if (Files.isRegularFile(file)) {
+                return file.toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the policy given by the keep options, or null if none was
+     * given.
+     */
+    private static RetentionPolicy retentionOf(int[] keep) {
+        boolean given = false;
+
+        for (int count : keep) {
+            given |= count != -1;
+        }
+        if (!given) {
+            return null;
+        }
+        return new RetentionPolicy(
+            Math.max(0, keep[0]),
+            Math.max(0, keep[1]),
+            Math.max(0, keep[2]),
+            Math.max(0, keep[3]),
+            Math.max(0, keep[4])
+        );
+    }
+
+    /**
+     * Verifies the given snapshot and prints the result.
+     */
+    private static int verify(Path snapshot, int threads) {
+        final SnapshotVerifier.Result result;
+
+        try {
+            result = SnapshotVerifier.verify(snapshot.toAbsolutePath().normalize(), threads);
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            return EXIT_FAILED;
+        }
+        System.out.println(toJson(snapshot, result));
+        return result.isValid() ? EXIT_OK : EXIT_FAILED;
+    }
+
+    /**
+     * Watches the targets of the given tasks until the process is stopped.
+     */
+    private static int watch(List<BackupTask> tasks) {
+        final List<TreeWatcher> watchers = new ArrayList<>(tasks.size());
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            synchronized (watchers) {
+                for (TreeWatcher watcher : watchers) {
+                    try {
+                        watcher.close();
+                    }
+                    catch (IOException ignore) {}
+                }
+            }
+        }));
+        synchronized (watchers) {
+            for (BackupTask task : tasks) {
+                try {
+                    watchers.add(TreeWatcher.start(
+                        task.getTarget().toPath(),
+                        Backups.journalOf(task),
+                        Backups.filterOf(task)
+                    ));
+                    System.err.println("Watching " + task.getName());
+                }
+                catch (IOException e) {
+                    System.err.println(task.getName() + ": " + e.getMessage());
+                    return EXIT_FAILED;
+                }
+            }
+        }
+        try {
+            Thread.currentThread().join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return EXIT_OK;
+    }
+
+    /**
+     * Logs every detail of the app to the standard error.
+     */
+    private static void verbose() {
+        final Handler handler = new ConsoleHandler();
+
+        handler.setLevel(Level.ALL);
+        LOGGER.setLevel(Level.ALL);
+        LOGGER.addHandler(handler);
+        LOGGER.setUseParentHandlers(false);
+    }
+
+    private static List<BackupTask> select(List<BackupTask> saved, Set<String> names, boolean all) {
+        if (all) {
+            return saved;
+        }
+        final Map<String, BackupTask> byName = new HashMap<>();
+        final List<BackupTask> tasks = new ArrayList<>(names.size());
+
+        for (BackupTask task : saved) {
+            byName.put(task.getName(), task);
+        }
+        for (String name : names) {
+            final BackupTask task = byName.get(name);
+
+            if (task == null) {
+                throw new IllegalArgumentException("Unknown task " + name);
+            }
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    static String toJson(List<BatchRunner.Result> results, long nanos) {
+        final StringBuilder json = new StringBuilder(256 * (results.size() + 1));
+        long files = 0L;
+        long bytes = 0L;
+        int failed = 0;
+
+        json.append("{\n  \"tasks\": [");
+        for (int i = 0; i < results.size(); i++) {
+            final BatchRunner.Result result = results.get(i);
+
+            json.append(i == 0 ? "\n" : ",\n")
+                .append("    {\"name\": ").append(quote(result.getName()))
+                .append(", \"status\": \"").append(result.isSuccessful() ? "ok" : "failed").append('"')
+                .append(", \"error\": ").append(quote(result.getError()))
+                .append(", \"startedAt\": ").append(quote(Instant.ofEpochMilli(result.getStartedAt()).toString()))
+                .append(", \"seconds\": ").append(seconds(result.getNanos()))
+                .append(", \"files\": ").append(result.getFilesCopied())
+                .append(", \"bytes\": ").append(result.getBytesCopied())
+                .append(", \"bytesPerSecond\": ").append(result.getBytesPerSecond())
+                .append(", \"destinations\": [");
+            for (int j = 0; j < result.getDestinations().size(); j++) {
+                final CopyProgress.Status status = result.getDestinations().get(j);
+
+                json.append(j == 0 ? "" : ", ")
+                    .append("{\"path\": ").append(quote(status.getRoot().toString()))
+                    .append(", \"files\": ").append(status.getFilesDone())
+                    .append(", \"bytes\": ").append(status.getBytesDone())
+                    .append('}');
+            }
+            json.append("]}");
+            files += result.getFilesCopied();
+            bytes += result.getBytesCopied();
+            failed += result.isSuccessful() ? 0 : 1;
+        }
+        json.append(results.isEmpty() ? "],\n" : "\n  ],\n")
+            .append("  \"failed\": ").append(failed).append(",\n")
+            .append("  \"seconds\": ").append(seconds(nanos)).append(",\n")
+            .append("  \"files\": ").append(files).append(",\n")
+            .append("  \"bytes\": ").append(bytes).append(",\n")
+            .append("  \"bytesPerSecond\": ").append(nanos > 0L ? (long) (bytes * 1.0e9 / nanos) : 0L)
+            .append("\n}");
+        return json.toString();
+    }
+
+    static String toJson(Path snapshot, SnapshotVerifier.Result result) {
+        final StringBuilder json = new StringBuilder(256);
+
+        json.append("{\n  \"snapshot\": ").append(quote(snapshot.toString())).append(",\n")
+            .append("  \"status\": \"").append(result.isValid() ? "ok" : "failed").append("\",\n")
+            .append("  \"seconds\": ").append(seconds(result.getNanos())).append(",\n")
+            .append("  \"files\": ").append(result.getFiles()).append(",\n")
+            .append("  \"bytes\": ").append(result.getBytes()).append(",\n")
+            .append("  \"bytesPerSecond\": ")
+            .append(result.getNanos() > 0L ? (long) (result.getBytes() * 1.0e9 / result.getNanos()) : 0L)
+            .append(",\n  \"mismatched\": ");
+        appendStrings(json, result.getMismatched());
+        json.append(",\n  \"missing\": ");
+        appendStrings(json, result.getMissing());
+        json.append(",\n  \"unverified\": ");
+        appendStrings(json, result.getUnverified());
+        return json.append("\n}").toString();
+    }
+
+    private static void appendStrings(StringBuilder json, List<String> values) {
+        json.append('[');
+        for (int i = 0; i < values.size(); i++) {
+            json.append(i == 0 ? "" : ", ").append(quote(values.get(i)));
+        }
+        json.append(']');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1.0e9);
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        final StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static String value(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[index - 1]);
+        }
+        return args[index];
+    }
+
+    private static int positive(String[] args, int index) {
+        final String value = value(args, index);
+
+        try {
+            final int n = Integer.parseInt(value);
+
+            if (n < 1) {
+                throw new NumberFormatException();
+            }
+            return n;
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a positive number for " + args[index - 1]);
+        }
+    }
+
+    private static RestorePoint restorePoint(String[] args, int index) {
+        final String value = value(args, index);
+
+        try {
+            return RestorePoint.parse(value);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(e.getMessage() + " for " + args[index - 1]);
+        }
+    }
+
+    private static int count(String[] args, int index) {
+        final String value = value(args, index);
+
+        try {
+            final int n = Integer.parseInt(value);
+
+            if (n < 0) {
+                throw new NumberFormatException();
+            }
+            return n;
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a count of at least 0 for " + args[index - 1]);
+        }
+    }
+
+    /**
+     * Parses a positive amount that may end in K, M or G, for powers of
+     * 1024.
+     */
+    private static long amount(String[] args, int index) {
+        final String value = value(args, index);
+        final String units = "KMG";
+        final int unit = value.isEmpty() ? -1 : units.indexOf(Character.toUpperCase(value.charAt(value.length() - 1)));
+
+        try {
+            final long n = Long.parseLong(unit == -1 ? value : value.substring(0, value.length() - 1));
+
+            if (n < 1L) {
+                throw new NumberFormatException();
+            }
+            return n << (10 * (unit + 1));
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a positive amount for " + args[index - 1]);
+        }
+    }
+
+    private Cli() {}
+}
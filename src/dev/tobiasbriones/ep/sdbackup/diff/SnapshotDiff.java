@@ -0,0 +1,588 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.diff;
+
+import dev.tobiasbriones.ep.sdbackup.archive.Archive;
+import dev.tobiasbriones.ep.sdbackup.archive.ArchiveKey;
+import dev.tobiasbriones.ep.sdbackup.restore.RestorePoint;
+import dev.tobiasbriones.ep.sdbackup.snapshot.ChecksumFile;
+import dev.tobiasbriones.ep.sdbackup.snapshot.Manifest;
+import dev.tobiasbriones.ep.sdbackup.snapshot.ManifestEntry;
+import dev.tobiasbriones.ep.sdbackup.snapshot.Snapshots;
+import dev.tobiasbriones.ep.sdbackup.store.ChunkStore;
+import dev.tobiasbriones.ep.sdbackup.store.SnapshotTree;
+import dev.tobiasbriones.ep.sdbackup.store.StoredFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Tells which files were added, removed, modified and moved between two
+ * snapshots of a task, from their manifests or repository trees alone. The
+ * files of both are sorted by path and merged in a single pass, so no
+ * snapshot folder is walked.
+ *
+ * <p>A file removed and a file added with the same size and modified time
+ * are taken as moved. If both snapshots have checksums, or are stored in a
+ * repository, their content must be equal too. Empty files are never taken
+ * as moved, and a file keeping its name is preferred when several match.</p>
+ *
+ * <p>Modified files are those whose size, modified time or permissions
+ * changed, like the backups tell them.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class SnapshotDiff {
+    private static final Comparator<Row> BY_PATH = Comparator.comparing(row -> row.path);
+
+    /**
+     * Compares two snapshots of the given task in a folder of snapshots.
+     *
+     * @param task         name of the task
+     * @param snapshotRoot folder holding the snapshot folders
+     * @param from         older snapshot
+     * @param to           newer snapshot
+     * @param path         path of a file or folder relative to the snapshots
+     *                     to only compare that, or empty for everything
+     * @return the changes from one snapshot to the other
+     * @throws IOException if there's no such snapshot or a manifest can't be
+     *                     read
+     */
+    public static Result diff(
+        String task,
+        Path snapshotRoot,
+        RestorePoint from,
+        RestorePoint to,
+        String path
+    ) throws IOException {
+        final long start = System.nanoTime();
+        final Map<String, Long> createdAt = Snapshots.snapshotsOf(snapshotRoot, task);
+        final String fromName = select(task, snapshotRoot, from, createdAt);
+        final String toName = select(task, snapshotRoot, to, createdAt);
+        final Path fromSnapshot = snapshotRoot.resolve(fromName);
+        final Path toSnapshot = snapshotRoot.resolve(toName);
+        final String prefix = normalize(path);
+        return compare(
+            snapshotRoot,
+            fromName,
+            toName,
+            rowsOf(Snapshots.manifestOf(fromSnapshot), prefix),
+            rowsOf(Snapshots.manifestOf(toSnapshot), prefix),
+            new DigestCheck(Snapshots.checksumsOf(fromSnapshot), Snapshots.checksumsOf(toSnapshot)),
+            start
+        );
+    }
+
+    /**
+     * Compares two snapshots of the given task stored in a repository.
+     *
+     * @param task       name of the task
+     * @param repository repository folder
+     * @param from       older snapshot
+     * @param to         newer snapshot
+     * @param path       path of a file or folder relative to the snapshots to
+     *                   only compare that, or empty for everything
+     * @return the changes from one snapshot to the other
+     * @throws IOException if there's no such snapshot or a tree can't be read
+     */
+    public static Result diffRepository(
+        String task,
+        Path repository,
+        RestorePoint from,
+        RestorePoint to,
+        String path
+    ) throws IOException {
+        final long start = System.nanoTime();
+        final Map<String, Long> createdAt = new HashMap<>();
+        final Map<String, Path> trees = new HashMap<>();
+
+        try (ChunkStore store = ChunkStore.open(repository)) {
+            for (Path tree : store.listSnapshots()) {
+                final SnapshotTree.Header header = SnapshotTree.readHeader(tree);
+
+                if (header.getTask().equals(task)) {
+                    createdAt.put(header.getSnapshot(), header.getCreatedAt());
+                    trees.put(header.getSnapshot(), tree);
+                }
+            }
+        }
+        final String fromName = select(task, repository, from, createdAt);
+        final String toName = select(task, repository, to, createdAt);
+        final String prefix = normalize(path);
+
+        return compare(
+            repository,
+            fromName,
+            toName,
+            rowsOf(SnapshotTree.read(trees.get(fromName)), prefix),
+            rowsOf(SnapshotTree.read(trees.get(toName)), prefix),
+            (removed, added) -> removed.stored.hasSameContent(added.stored),
+            start
+        );
+    }
+
+    /**
+     * Compares two snapshots of the given task stored in a folder of
+     * archives, from their indexes. Moved files are told by their CRC-32.
+     *
+     * @param task name of the task
+     * @param dir  folder holding the archives
+     * @param from older snapshot
+     * @param to   newer snapshot
+     * @param path path of a file or folder relative to the snapshots to only
+     *             compare that, or empty for everything
+     * @param key  key of the folder if it holds encrypted archives, or
+     *             {@code null}
+     * @return the changes from one snapshot to the other
+     * @throws IOException if there's no such snapshot or an archive can't be
+     *                     read
+     */
+    public static Result diffArchive(
+        String task,
+        Path dir,
+        RestorePoint from,
+        RestorePoint to,
+        String path,
+        ArchiveKey key
+    ) throws IOException {
+        final long start = System.nanoTime();
+        final Map<String, Long> createdAt = new HashMap<>();
+        final Map<String, Path> archives = new HashMap<>();
+
+        for (Path archive : Archive.list(dir)) {
+            final Archive.Header header = Archive.readHeader(archive);
+
+            if (header.getTask().equals(task)) {
+                createdAt.put(header.getSnapshot(), header.getCreatedAt());
+                archives.put(header.getSnapshot(), archive);
+            }
+        }
+        final String fromName = select(task, dir, from, createdAt);
+        final String toName = select(task, dir, to, createdAt);
+        final String prefix = normalize(path);
+
+        try (
+            Archive fromArchive = Archive.open(archives.get(fromName), key);
+            Archive toArchive = Archive.open(archives.get(toName), key)
+        ) {
+            return compare(
+                dir,
+                fromName,
+                toName,
+                rowsOf(fromArchive, prefix),
+                rowsOf(toArchive, prefix),
+                (removed, added) -> fromArchive.find(removed.path).getChecksum()
+                                    == toArchive.find(added.path).getChecksum(),
+                start
+            );
+        }
+    }
+
+    private static Result compare(
+        Path root,
+        String from,
+        String to,
+        List<Row> fromRows,
+        List<Row> toRows,
+        ContentCheck check,
+        long start
+    ) throws IOException {
+        final List<Row> removed = new ArrayList<>();
+        final List<Row> added = new ArrayList<>();
+        final List<Change> changes = new ArrayList<>();
+        final Map<Long, List<Row>> removedByKey = new HashMap<>();
+        long unchanged = 0L;
+        int i = 0;
+        int j = 0;
+
+        fromRows.sort(BY_PATH);
+        toRows.sort(BY_PATH);
+        while (i < fromRows.size() || j < toRows.size()) {
+            final int order = i == fromRows.size() ? 1
+                              : j == toRows.size() ? -1
+                              : fromRows.get(i).path.compareTo(toRows.get(j).path);
+
+            if (order < 0) {
+                removed.add(fromRows.get(i++));
+            }
+            else if (order > 0) {
+                added.add(toRows.get(j++));
+            }
+            else {
+                final Row old = fromRows.get(i++);
+                final Row row = toRows.get(j++);
+
+                if (old.isUnchanged(row)) {
+                    unchanged++;
+                }
+                else {
+                    changes.add(new Change(Type.MODIFIED, row.path, row.path, old.size, row.size));
+                }
+            }
+        }
+        for (Row row : removed) {
+            if (row.size > 0L) {
+                removedByKey.computeIfAbsent(row.key(), key -> new ArrayList<>(1)).add(row);
+            }
+        }
+        for (Row row : added) {
+            final Row source = removedByKey.isEmpty() ? null : moveSource(row, removedByKey.get(row.key()), check);
+
+            if (source == null) {
+                changes.add(new Change(Type.ADDED, row.path, null, -1L, row.size));
+            }
+            else {
+                source.moved = true;
+                changes.add(new Change(Type.MOVED, row.path, source.path, source.size, row.size));
+            }
+        }
+        for (Row row : removed) {
+            if (!row.moved) {
+                changes.add(new Change(Type.REMOVED, row.path, row.path, row.size, -1L));
+            }
+        }
+        changes.sort(Comparator.comparing(Change::getPath));
+        return new Result(root, from, to, changes, unchanged, System.nanoTime() - start);
+    }
+
+    /**
+     * Returns the removed file the given added file was moved from, or null
+     * if there's none.
+     */
+    private static Row moveSource(Row row, List<Row> candidates, ContentCheck check) throws IOException {
+        final String name = nameOf(row.path);
+        Row source = null;
+
+        if (candidates == null) {
+            return null;
+        }
+        for (Row candidate : candidates) {
+            if (candidate.moved || candidate.size != row.size || candidate.modifiedTime != row.modifiedTime) {
+                continue;
+            }
+            if (!check.isSameContent(candidate, row)) {
+                continue;
+            }
+            if (nameOf(candidate.path).equals(name)) {
+                return candidate;
+            }
+            if (source == null) {
+                source = candidate;
+            }
+        }
+        return source;
+    }
+
+    private static List<Row> rowsOf(Path manifest, String prefix) throws IOException {
+        final List<Row> rows = new ArrayList<>();
+
+        Manifest.readEntries(manifest, entry -> {
+            if (isUnder(entry.getPath(), prefix)) {
+                rows.add(new Row(
+                    entry.getPath(),
+                    entry.getSize(),
+                    entry.getModifiedTime(),
+                    entry.getPermissions(),
+                    null
+                ));
+            }
+        });
+        return rows;
+    }
+
+    private static List<Row> rowsOf(SnapshotTree tree, String prefix) {
+        final List<Row> rows = new ArrayList<>(tree.getFiles().size());
+
+        for (StoredFile file : tree.getFiles()) {
+            if (isUnder(file.getPath(), prefix)) {
+                rows.add(new Row(file.getPath(), file.getSize(), file.getModifiedTime(), file.getPermissions(), file));
+            }
+        }
+        return rows;
+    }
+
+    private static List<Row> rowsOf(Archive archive, String prefix) {
+        final List<Row> rows = new ArrayList<>(archive.getEntries().size());
+
+        for (Archive.Entry entry : archive.getEntries()) {
+            if (isUnder(entry.getPath(), prefix)) {
+                rows.add(new Row(
+                    entry.getPath(),
+                    entry.getSize(),
+                    entry.getModifiedTime(),
+                    entry.getPermissions(),
+                    null
+                ));
+            }
+        }
+        return rows;
+    }
+
+    private static String select(
+        String task,
+        Path root,
+        RestorePoint point,
+        Map<String, Long> createdAt
+    ) throws IOException {
+        final String name = point.select(createdAt);
+
+        if (name == null) {
+            throw new IOException("No snapshot of " + task + " at " + point + " in " + root);
+        }
+        return name;
+    }
+
+    private static boolean isUnder(String path, String prefix) {
+        return prefix.isEmpty()
+               || path.equals(prefix)
+               || (path.startsWith(prefix) && path.charAt(prefix.length()) == '/');
+    }
+
+    private static String nameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static String normalize(String path) {
+        String normalized = path.replace('\\', '/');
+
+        while (normalized.startsWith("/")) {
+            normalized = normalized.substring(1);
+        }
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+
+    private SnapshotDiff() {}
+
+    public enum Type {
+        ADDED,
+        REMOVED,
+        MODIFIED,
+        MOVED
+    }
+
+    private interface ContentCheck {
+        boolean isSameContent(Row removed, Row added) throws IOException;
+    }
+
+    /**
+     * Compares the digests of the checksum files of both snapshots, which are
+     * only read the first time a move is checked. Files without a digest are
+     * taken as equal.
+     */
+    private static final class DigestCheck implements ContentCheck {
+        private final Path fromFile;
+        private final Path toFile;
+        private Map<String, String> fromDigests;
+        private Map<String, String> toDigests;
+
+        DigestCheck(Path fromFile, Path toFile) {
+            this.fromFile = fromFile;
+            this.toFile = toFile;
+            this.fromDigests = null;
+            this.toDigests = null;
+        }
+
+        @Override
+        public boolean isSameContent(Row removed, Row added) throws IOException {
+            if (fromDigests == null) {
+                final boolean both = Files.exists(fromFile) && Files.exists(toFile);
+
+                fromDigests = both ? ChecksumFile.read(fromFile) : Collections.emptyMap();
+                toDigests = both ? ChecksumFile.read(toFile) : Collections.emptyMap();
+            }
+            final String fromDigest = fromDigests.get(removed.path);
+            final String toDigest = toDigests.get(added.path);
+            return fromDigest == null || toDigest == null || fromDigest.equals(toDigest);
+        }
+    }
+
+    private static final class Row {
+        private final String path;
+        private final long size;
+        private final long modifiedTime;
+        private final int permissions;
+        private final StoredFile stored;
+        private boolean moved;
+
+        Row(String path, long size, long modifiedTime, int permissions, StoredFile stored) {
+            this.path = path;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.permissions = permissions;
+            this.stored = stored;
+            this.moved = false;
+        }
+
+        boolean isUnchanged(Row other) {
+            return size == other.size &&
+                   modifiedTime == other.modifiedTime &&
+                   permissions == other.permissions;
+        }
+
+        long key() {
+            return size * 31L + modifiedTime;
+        }
+    }
+
+    /**
+     * A file that differs between the two snapshots.
+     */
+    public static final class Change {
+        private final Type type;
+        private final String path;
+        private final String oldPath;
+        private final long oldSize;
+        private final long size;
+
+        private Change(Type type, String path, String oldPath, long oldSize, long size) {
+            this.type = type;
+            this.path = path;
+            this.oldPath = oldPath;
+            this.oldSize = oldSize;
+            this.size = size;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * Returns the path of the file in the newer snapshot, or in the older
+         * one if it was removed.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Returns the path of the file in the older snapshot, or null if it
+         * was added.
+         */
+        public String getOldPath() {
+            return oldPath;
+        }
+
+        /**
+         * Returns the size in the older snapshot, or -1 if it was added.
+         */
+        public long getOldSize() {
+            return oldSize;
+        }
+
+        /**
+         * Returns the size in the newer snapshot, or -1 if it was removed.
+         */
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Changes between two snapshots, sorted by path.
+     */
+    public static final class Result {
+        private final Path root;
+        private final String from;
+        private final String to;
+        private final List<Change> changes;
+        private final long unchanged;
+        private final long[] counts;
+        private final long bytesAdded;
+        private final long bytesRemoved;
+        private final long bytesModified;
+        private final long nanos;
+
+        private Result(Path root, String from, String to, List<Change> changes, long unchanged, long nanos) {
+            long added = 0L;
+            long removed = 0L;
+            long modified = 0L;
+
+            this.root = root;
+            this.from = from;
+            this.to = to;
+            this.changes = Collections.unmodifiableList(changes);
+            this.unchanged = unchanged;
+            this.counts = new long[Type.values().length];
+            this.nanos = nanos;
+            for (Change change : changes) {
+                counts[change.type.ordinal()]++;
+                if (change.type == Type.ADDED) {
+                    added += change.size;
+                }
+                else if (change.type == Type.REMOVED) {
+                    removed += change.oldSize;
+                }
+                else if (change.type == Type.MODIFIED) {
+                    modified += change.size;
+                }
+            }
+            this.bytesAdded = added;
+            this.bytesRemoved = removed;
+            this.bytesModified = modified;
+        }
+
+        /**
+         * Returns the folder of snapshots or repository compared.
+         */
+        public Path getRoot() {
+            return root;
+        }
+
+        public String getFrom() {
+            return from;
+        }
+
+        public String getTo() {
+            return to;
+        }
+
+        public List<Change> getChanges() {
+            return changes;
+        }
+
+        /**
+         * Returns the number of changes of the given type.
+         */
+        public long getCount(Type type) {
+            return counts[type.ordinal()];
+        }
+
+        public long getUnchanged() {
+            return unchanged;
+        }
+
+        public long getBytesAdded() {
+            return bytesAdded;
+        }
+
+        public long getBytesRemoved() {
+            return bytesRemoved;
+        }
+
+        /**
+         * Returns the size of the modified files in the newer snapshot.
+         */
+        public long getBytesModified() {
+            return bytesModified;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.filter;
+
+import dev.tobiasbriones.ep.sdbackup.io.TreeFilter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Excludes the entries matched by the rules of a task and, if enabled, by the
+ * .gitignore files found in the tree.
+ *
+ * <p>The rules of the task come first, so they can't be overridden by a
+ * .gitignore file. After them, the .gitignore files of the folders being
+ * walked are tried from the deepest one up, and their patterns are relative
+ * to the folder they're in. A directory that is excluded is never walked, so
+ * nothing under it can be included back, just like in git.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class ExclusionFilter implements TreeFilter {
+    public static final String GITIGNORE_FILE_NAME = ".gitignore";
+    private final IgnoreRules rules;
+    private final boolean gitignore;
+    private final Deque<Scope> scopes;
+
+    /**
+     * Creates a filter with the given rules.
+     *
+     * @param rules     rules relative to the root of the tree
+     * @param gitignore whether to honor .gitignore files in the tree
+     */
+    public ExclusionFilter(IgnoreRules rules, boolean gitignore) {
+        this.rules = rules;
+        this.gitignore = gitignore;
+        this.scopes = new ArrayDeque<>();
+    }
+
+    /**
+     * Returns whether this filter can exclude anything at all.
+     */
+    public boolean isEmpty() {
+        return rules.isEmpty() && !gitignore;
+    }
+
+    @Override
+    public boolean accept(Path relativePath, boolean isDirectory) {
+        final String path = toPortable(relativePath);
+        final String name = relativePath.getFileName().toString();
+        final Boolean excluded = rules.match(path, name, isDirectory);
+
+        if (excluded != null) {
+            return !excluded;
+        }
+        final Iterator<Scope> it = scopes.iterator();
+
+        while (it.hasNext()) {
+            final Scope scope = it.next();
+            final Boolean ignored = scope.rules.match(path.substring(scope.prefix.length()), name, isDirectory);
+
+            if (ignored != null) {
+                return !ignored;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void enter(Path dir, Path relativeDir) throws IOException {
+        if (!gitignore) {
+            return;
+        }
+        final Path file = dir.resolve(GITIGNORE_FILE_NAME);
+
+        if (Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+            final IgnoreRules ignored = IgnoreRules.read(file);
+
+            if (!ignored.isEmpty()) {
+                scopes.push(new Scope(relativeDir, ignored));
+            }
+        }
+    }
+
+    @Override
+    public void leave(Path relativeDir) {
+        if (!scopes.isEmpty() && scopes.peek().dir.equals(relativeDir)) {
+            scopes.pop();
+        }
+    }
+
+    private static String toPortable(Path path) {
+        final String separator = path.getFileSystem().getSeparator();
+        final String value = path.toString();
+        return separator.equals("/") ? value : value.replace(separator, "/");
+    }
+
+    private static final class Scope {
+        private final Path dir;
+        private final String prefix;
+        private final IgnoreRules rules;
+
+        Scope(Path dir, IgnoreRules rules) {
+            final String path = toPortable(dir);
+
+            this.dir = dir;
+            this.prefix = path.isEmpty() ? "" : path + "/";
+            this.rules = rules;
+        }
+    }
+}
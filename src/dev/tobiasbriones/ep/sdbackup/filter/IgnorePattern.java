@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.filter;
+
+import java.util.regex.Pattern;
+
+/**
+ * A single gitignore-style pattern. Plain names and {@code *.ext} patterns,
+ * by far the most common ones, are matched without regular expressions.
+ *
+ * @author Tobias Briones
+ */
+final class IgnorePattern {
+    private static final String GLOB_CHARS = "*?[\\";
+    private final String source;
+    private final boolean negated;
+    private final boolean directoryOnly;
+    private final boolean anchored;
+    private final String literal;
+    private final String suffix;
+    private final Pattern regex;
+
+    private IgnorePattern(
+        String source,
+        boolean negated,
+        boolean directoryOnly,
+        boolean anchored,
+        String literal,
+        String suffix,
+        Pattern regex
+    ) {
+        this.source = source;
+        this.negated = negated;
+        this.directoryOnly = directoryOnly;
+        this.anchored = anchored;
+        this.literal = literal;
+        this.suffix = suffix;
+        this.regex = regex;
+    }
+
+    /**
+     * Parses a line of a gitignore file.
+     *
+     * @param line the line
+     * @return the pattern, or null if the line is blank or a comment
+     */
+    static IgnorePattern parse(String line) {
+        String pattern = trimTrailingSpaces(line);
+        boolean negated = false;
+        boolean directoryOnly = false;
+
+        if (pattern.isEmpty() || pattern.charAt(0) == '#') {
+            return null;
+        }
+        if (pattern.charAt(0) == '!') {
+            negated = true;
+            pattern = pattern.substring(1);
+        }
+        else if (pattern.startsWith("\\!") || pattern.startsWith("\\#")) {
+            pattern = pattern.substring(1);
+        }
+        while (pattern.endsWith("/")) {
+            directoryOnly = true;
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        if (pattern.isEmpty()) {
+            return null;
+        }
+        final boolean anchored = pattern.indexOf('/') != -1;
+
+        if (pattern.charAt(0) == '/') {
+            pattern = pattern.substring(1);
+        }
+        String literal = null;
+        String suffix = null;
+        Pattern regex = null;
+
+        if (!anchored && !hasGlobChars(pattern, 0)) {
+            literal = pattern;
+        }
+        else if (!anchored && pattern.charAt(0) == '*' && !hasGlobChars(pattern, 1)) {
+            suffix = pattern.substring(1);
+        }
+        else {
+            regex = Pattern.compile(toRegex(pattern));
+        }
+        return new IgnorePattern(line, negated, directoryOnly, anchored, literal, suffix, regex);
+    }
+
+    boolean isNegated() {
+        return negated;
+    }
+
+    boolean isDirectoryOnly() {
+        return directoryOnly;
+    }
+
+    /**
+     * Returns the plain name this pattern matches, or null if it's not a
+     * plain name.
+     */
+    String getLiteral() {
+        return literal;
+    }
+
+    /**
+     * Returns whether this pattern matches the given entry.
+     *
+     * @param path        path relative to the folder of the pattern,
+     *                    separated by '/'
+     * @param name        file name of the entry
+     * @param isDirectory whether the entry is a directory
+     */
+    boolean matches(String path, String name, boolean isDirectory) {
+        if (directoryOnly && !isDirectory) {
+            return false;
+        }
+        if (literal != null) {
+            return name.equals(literal);
+        }
+        if (suffix != null) {
+            return name.endsWith(suffix);
+        }
+        return regex.matcher(anchored ? path : name).matches();
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    private static String trimTrailingSpaces(String line) {
+        int end = line.length();
+
+        while (end > 0 && line.charAt(end - 1) == ' ' && (end < 2 || line.charAt(end - 2) != '\\')) {
+            end--;
+        }
+        return line.substring(0, end);
+    }
+
+    private static boolean hasGlobChars(String pattern, int from) {
+        for (int i = from; i < pattern.length(); i++) {
+            if (GLOB_CHARS.indexOf(pattern.charAt(i)) != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Translates the glob to a regular expression. A star doesn't cross
+     * slashes, and a double star matches any number of folders.
+     */
+    private static String toRegex(String glob) {
+        final StringBuilder regex = new StringBuilder(glob.length() * 2);
+        int i = 0;
+
+        while (i < glob.length()) {
+            final char c = glob.charAt(i);
+
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    if (i + 2 < glob.length() && glob.charAt(i + 2) == '/') {
+                        regex.append("(?:.*/)?");
+                        i += 3;
+                    }
+                    else {
+                        regex.append(".*");
+                        i += 2;
+                    }
+                    continue;
+                }
+                regex.append("[^/]*");
+            }
+            else if (c == '?') {
+                regex.append("[^/]");
+            }
+            else if (c == '[') {
+                final int end = classEnd(glob, i);
+
+                if (end == -1) {
+                    regex.append("\\[");
+                }
+                else {
+                    regex.append(toRegexClass(glob.substring(i + 1, end)));
+                    i = end;
+                }
+            }
+            else if (c == '\\' && i + 1 < glob.length()) {
+                regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+            }
+            else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+            i++;
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Returns the index of the bracket closing the class opened at the given
+     * index, or -1 if it's not closed.
+     */
+    private static int classEnd(String glob, int open) {
+        int i = open + 1;
+
+        if (i < glob.length() && (glob.charAt(i) == '!' || glob.charAt(i) == '^')) {
+            i++;
+        }
+        // A bracket right after the opening one is part of the class
+        if (i < glob.length() && glob.charAt(i) == ']') {
+            i++;
+        }
+        return glob.indexOf(']', i);
+    }
+
+    private static String toRegexClass(String content) {
+        final StringBuilder regex = new StringBuilder(content.length() + 2).append('[');
+        int i = 0;
+
+        if (!content.isEmpty() && (content.charAt(0) == '!' || content.charAt(0) == '^')) {
+            regex.append('^');
+            i++;
+        }
+        for (; i < content.length(); i++) {
+            final char c = content.charAt(i);
+
+            if (c == '\\' || c == '[' || c == ']' || c == '&' || c == '^') {
+                regex.append('\\');
+            }
+            regex.append(c);
+        }
+        return regex.append(']').toString();
+    }
+}
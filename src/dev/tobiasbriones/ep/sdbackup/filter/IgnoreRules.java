@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.filter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * An ordered list of gitignore-style patterns. As in git, the last pattern
+ * matching an entry decides whether it's excluded, so a negated pattern can
+ * bring back what an earlier one excluded.
+ *
+ * <p>When there are no negated patterns the order doesn't matter, so plain
+ * names are looked up in a set and only the remaining patterns are tried one
+ * by one.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class IgnoreRules {
+    public static final IgnoreRules NONE = new IgnoreRules(Collections.emptyList());
+    private final List<IgnorePattern> patterns;
+    private final boolean ordered;
+    private final Set<String> names;
+    private final Set<String> directoryNames;
+    private final List<IgnorePattern> others;
+
+    private IgnoreRules(List<IgnorePattern> patterns) {
+        this.patterns = patterns;
+        this.ordered = patterns.stream().anyMatch(IgnorePattern::isNegated);
+        this.names = new HashSet<>();
+        this.directoryNames = new HashSet<>();
+        this.others = new ArrayList<>();
+
+        if (!ordered) {
+            for (IgnorePattern pattern : patterns) {
+                if (pattern.getLiteral() == null) {
+                    others.add(pattern);
+                }
+                else if (pattern.isDirectoryOnly()) {
+                    directoryNames.add(pattern.getLiteral());
+                }
+                else {
+                    names.add(pattern.getLiteral());
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles the given lines, skipping blank lines and comments.
+     *
+     * @param lines lines in gitignore syntax
+     * @return the rules
+     */
+    public static IgnoreRules parse(Collection<String> lines) {
+        final List<IgnorePattern> patterns = new ArrayList<>(lines.size());
+
+        for (String line : lines) {
+            final IgnorePattern pattern = IgnorePattern.parse(line);
+
+            if (pattern != null) {
+                patterns.add(pattern);
+            }
+        }
+        return patterns.isEmpty() ? NONE : new IgnoreRules(patterns);
+    }
+
+    /**
+     * Reads the rules of a gitignore file.
+     *
+     * @param file the file
+     * @return the rules
+     * @throws IOException if the file can't be read
+     */
+    public static IgnoreRules read(Path file) throws IOException {
+        return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns a new list with the rules of this one followed by the given
+     * ones, which take precedence.
+     */
+    public IgnoreRules concat(IgnoreRules rules) {
+        if (rules.isEmpty()) {
+            return this;
+        }
+        if (isEmpty()) {
+            return rules;
+        }
+        final List<IgnorePattern> all = new ArrayList<>(patterns.size() + rules.patterns.size());
+
+        all.addAll(patterns);
+        all.addAll(rules.patterns);
+        return new IgnoreRules(all);
+    }
+
+    public boolean isEmpty() {
+        return patterns.isEmpty();
+    }
+
+    /**
+     * Returns whether the given entry is excluded.
+     *
+     * @param path        path relative to the folder of the rules, separated
+     *                    by '/'
+     * @param name        file name of the entry
+     * @param isDirectory whether the entry is a directory
+     * @return true if it's excluded, false if a negated pattern includes it
+     * back, or null if no pattern matches it
+     */
+    public Boolean match(String path, String name, boolean isDirectory) {
+        if (ordered) {
+            for (int i = patterns.size() - 1; i >= 0; i--) {
+                final IgnorePattern pattern = patterns.get(i);
+
+                if (pattern.matches(path, name, isDirectory)) {
+                    return !pattern.isNegated();
+                }
+            }
+            return null;
+        }
+        if (names.contains(name) || isDirectory && directoryNames.contains(name)) {
+            return Boolean.TRUE;
+        }
+        for (IgnorePattern pattern : others) {
+            if (pattern.matches(path, name, isDirectory)) {
+                return Boolean.TRUE;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return patterns.toString();
+    }
+}
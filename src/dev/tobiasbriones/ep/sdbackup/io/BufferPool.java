@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a bounded number of direct buffers of a fixed size that are reused
+ * by every copy, so copying doesn't allocate a buffer per file or chunk and
+ * channels read into and write from them without an extra copy. Buffers are
+ * allocated the first time they're needed, and taking one waits when all of
+ * them are in use.
+ *
+ * <p>A buffer taken from the pool is shared by reference counting: whoever
+ * passes it on retains it first, and it goes back to the pool once everyone
+ * released it. Each holder writes it through a view of its own, so they
+ * don't share a position.</p>
+ *
+ * <p>The shared pools are only for buffers that are given back once a copy
+ * is done with them. Buffers queued to {@link DestinationWriter}s, which a
+ * slow destination can hold for long, come from pools of the copy itself
+ * sized to the budgets of its writers, so they never starve other copies.
+ * When the copy ends, the buffers of its pools go back to a reserve shared
+ * by the process, of up to {@link #MAX_RESERVED_BYTES} for each size, which
+ * the pools of the next copies take from before allocating, since direct
+ * memory is only freed once the collector gets to its buffers.</p>
+ *
+ * @author Tobias Briones
+ */
+final class BufferPool {
+    static final int SMALL_BUFFER_SIZE = 64 * 1024;
+    static final int CHUNK_SIZE = 1024 * 1024;
+    static final int MAX_RESERVED_BYTES = 32 * 1024 * 1024;
+    private static final BlockingQueue<ByteBuffer> SMALL_RESERVE = new ArrayBlockingQueue<>(
+        MAX_RESERVED_BYTES / SMALL_BUFFER_SIZE
+    );
+    private static final BlockingQueue<ByteBuffer> CHUNK_RESERVE = new ArrayBlockingQueue<>(
+        MAX_RESERVED_BYTES / CHUNK_SIZE
+    );
+
+    /**
+     * Pool of the buffers files and chunks smaller than 64 KiB are read
+     * into.
+     */
+    static final BufferPool SMALL = new BufferPool(SMALL_BUFFER_SIZE, 256);
+
+    /**
+     * Pool of the 1 MiB buffers larger files are read into.
+     */
+    static final BufferPool CHUNKS = new BufferPool(CHUNK_SIZE, 32);
+    private final int bufferSize;
+    private final int capacity;
+    private final BlockingQueue<Buffer> free;
+    private final AtomicInteger allocated;
+    private final BlockingQueue<ByteBuffer> reserve;
+
+    BufferPool(int bufferSize, int capacity) {
+        this(bufferSize, capacity, null);
+    }
+
+    private BufferPool(int bufferSize, int capacity, BlockingQueue<ByteBuffer> reserve) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.allocated = new AtomicInteger();
+        this.reserve = reserve;
+    }
+
+    /**
+     * Creates a pool of buffers of the given size with enough of them for
+     * each of the given writers to spend its whole budget of pending bytes,
+     * and for each of the given threads to read into one more. It takes the
+     * buffers left by previous copies first, and must be closed once the
+     * copy is done.
+     */
+    static BufferPool forWriters(int bufferSize, int writers, int threads) {
+        final BlockingQueue<ByteBuffer> reserve = bufferSize == SMALL_BUFFER_SIZE
+                                                  ? SMALL_RESERVE
+                                                  : bufferSize == CHUNK_SIZE ? CHUNK_RESERVE : null;
+
+        return new BufferPool(
+            bufferSize,
+            writers * (DestinationWriter.MAX_PENDING_BYTES / bufferSize) + threads,
+            reserve
+        );
+    }
+
+    /**
+     * Returns the pool whose buffers fit the given number of bytes best.
+     */
+    static BufferPool of(long length) {
+        return length < SMALL.bufferSize ? SMALL : CHUNKS;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Takes a cleared buffer, waiting for one to be released if they're all
+     * in use.
+     *
+     * @return a buffer with a reference count of one
+     * @throws IOException if interrupted while waiting
+     */
+    Buffer take() throws IOException {
+        Buffer buffer = free.poll();
+
+        if (buffer == null && reserve()) {
+            final ByteBuffer reserved = reserve == null ? null : reserve.poll();
+
+            buffer = new Buffer(this, reserved != null ? reserved : ByteBuffer.allocateDirect(bufferSize));
+        }
+        if (buffer == null) {
+            try {
+                buffer = free.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Copy interrupted", e);
+            }
+        }
+        buffer.references.set(1);
+        buffer.content.clear();
+        return buffer;
+    }
+
+    /**
+     * Hands the free buffers of this pool over to the reserve of the process
+     * for the next copies, up to its bound, leaving the rest to the
+     * collector. It must be called once no buffer is in use.
+     */
+    void close() {
+        Buffer buffer;
+
+        while ((buffer = free.poll()) != null) {
+            if (reserve == null || !reserve.offer(buffer.content)) {
+                break;
+            }
+        }
+        free.clear();
+    }
+
+    /**
+     * Counts a new buffer to allocate, and returns false once all of them
+     * are.
+     */
+    private boolean reserve() {
+        while (true) {
+            final int count = allocated.get();
+
+            if (count >= capacity) {
+                return false;
+            }
+            if (allocated.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * A pooled direct buffer.
+     */
+    static final class Buffer {
+        private static final ByteBuffer[] NO_VIEWS = new ByteBuffer[0];
+        private final BufferPool pool;
+        private final ByteBuffer content;
+        private final AtomicInteger references;
+        private ByteBuffer[] views;
+
+        private Buffer(BufferPool pool, ByteBuffer content) {
+            this.pool = pool;
+            this.content = content;
+            this.references = new AtomicInteger();
+            this.views = NO_VIEWS;
+        }
+
+        /**
+         * Returns the buffer to read into, which must be flipped once it's
+         * filled and not modified after it's passed on.
+         */
+        ByteBuffer content() {
+            return content;
+        }
+
+        /**
+         * Returns the view of the given holder over the bytes between the
+         * position and the limit of the content. It must be called by the
+         * holder that passes the buffer on, before it's released.
+         */
+        ByteBuffer view(int holder) {
+            if (holder >= views.length) {
+                final ByteBuffer[] grown = new ByteBuffer[holder + 1];
+
+                System.arraycopy(views, 0, grown, 0, views.length);
+                for (int i = views.length; i < grown.length; i++) {
+                    grown[i] = content.duplicate();
+                }
+                views = grown;
+            }
+            final ByteBuffer view = views[holder];
+
+            view.limit(content.limit());
+            view.position(content.position());
+            return view;
+        }
+
+        void retain() {
+            references.incrementAndGet();
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                pool.free.add(this);
+            }
+        }
+    }
+}
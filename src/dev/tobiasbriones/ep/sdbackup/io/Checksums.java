@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Computes the SHA-256 digests of files, either on their own or while they're
+ * copied, so the source is read only once.
+ *
+ * @author Tobias Briones
+ */
+public final class Checksums {
+    public static final String ALGORITHM = "SHA-256";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(Checksums::newDigest);
+
+    /**
+     * Returns the digest of the given file.
+     *
+     * @param file file to read
+     * @return the digest
+     * @throws IOException if the file can't be read
+     */
+    public static byte[] hash(Path file) throws IOException {
+        final MessageDigest digest = digest();
+
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            final BufferPool.Buffer pooled = BufferPool.of(in.size()).take();
+            final ByteBuffer buffer = pooled.content();
+
+            try {
+                while (in.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+            finally {
+                pooled.release();
+            }
+        }
+        return digest.digest();
+    }
+
+    public static String toHex(byte[] digest) {
+        final char[] hex = new char[digest.length * 2];
+
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Parses a digest written by {@link #toHex(byte[])}.
+     *
+     * @param hex hex digest
+     * @return the digest
+     * @throws IllegalArgumentException if the value is not hex
+     */
+    public static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Not a hex digest: " + hex);
+        }
+        final byte[] digest = new byte[hex.length() / 2];
+
+        for (int i = 0; i < digest.length; i++) {
+            final int high = Character.digit(hex.charAt(2 * i), 16);
+            final int low = Character.digit(hex.charAt(2 * i + 1), 16);
+
+            if (high == -1 || low == -1) {
+                throw new IllegalArgumentException("Not a hex digest: " + hex);
+            }
+            digest[i] = (byte) (high << 4 | low);
+        }
+        return digest;
+    }
+
+    /**
+     * Copies the source of the given size into a new destination file
+     * through a pooled buffer, and returns the digest of the bytes copied.
+     * Bytes are reserved on the throttle as they're
+     * read, and each chunk is reported to it as completed with the time it
+     * took without the wait, so the wait is never taken as latency. The time
+     * spent hashing is added to the given counter.
+     */
+    static byte[] copy(
+        Path src,
+        Path dst,
+        long size,
+        Throttle throttle,
+        LongAdder hashingNanos
+    ) throws IOException {
+        final BufferPool.Buffer pooled = BufferPool.of(size).take();
+        final ByteBuffer buffer = pooled.content();
+        final MessageDigest digest = digest();
+
+        try (
+            FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+            FileChannel out = CopyStrategies.create(dst, CopyStrategies.creationAttributes(src))
+        ) {
+            while (true) {
+                final long start = System.nanoTime();
+                final long read;
+                final long waited;
+                final int length;
+
+                if (in.read(buffer) == -1) {
+                    break;
+                }
+                buffer.flip();
+                length = buffer.remaining();
+                read = System.nanoTime();
+                throttle.acquire(length, 0);
+                waited = System.nanoTime() - read;
+                update(digest, buffer.duplicate(), hashingNanos);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+                throttle.completed(length, System.nanoTime() - start - waited);
+            }
+        }
+        finally {
+            pooled.release();
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Adds the remaining bytes of the given buffer to the digest, counting
+     * the time it takes.
+     */
+    static void update(MessageDigest digest, ByteBuffer buffer, LongAdder hashingNanos) {
+        final long start = System.nanoTime();
+
+        digest.update(buffer);
+        hashingNanos.add(System.nanoTime() - start);
+    }
+
+    /**
+     * Returns the digest of the calling thread, reset.
+     */
+    static MessageDigest digest() {
+        final MessageDigest digest = DIGEST.get();
+
+        digest.reset();
+        return digest;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Checksums() {}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits how many copy workers run at once and tunes that level while
+ * copying, by hill climbing on the throughput of the slowest destination.
+ *
+ * <p>Each window, the level moves one way while throughput keeps growing,
+ * taking longer steps each time, and turns back with a single step when it
+ * drops or stays flat. So it settles around the level past which more
+ * workers stop helping, and follows it when the tree goes from small files
+ * to large ones or the other way around.</p>
+ *
+ * <p>Files and bytes are both work, so throughput counts each file as
+ * {@link #FILE_COST_BYTES} besides its bytes.</p>
+ *
+ * @author Tobias Briones
+ */
+final class ConcurrencyTuner {
+    static final long WINDOW_MILLIS = 500L;
+    static final long FILE_COST_BYTES = 64L * 1024L;
+    private static final Logger LOGGER = Logger.getLogger(CopyEngine.class.getName());
+    private static final double MIN_GAIN = 0.05;
+    private static final int MAX_STEP = 4;
+    private final int maxLevel;
+    private final List<CopyProgress.Destination> counters;
+    private final List<Integer> levels;
+    private final long[] lastWork;
+    private int level;
+    private int active;
+    private int direction;
+    private int step;
+    private long lastNanos;
+    private double lastScore;
+
+    ConcurrencyTuner(int initialLevel, int maxLevel, List<CopyProgress.Destination> counters) {
+        this.maxLevel = maxLevel;
+        this.counters = counters;
+        this.levels = new ArrayList<>();
+        this.lastWork = new long[counters.size()];
+        this.level = Math.min(initialLevel, maxLevel);
+        this.active = 0;
+        this.direction = 1;
+        this.step = 1;
+        this.lastNanos = System.nanoTime();
+        this.lastScore = -1.0;
+
+        levels.add(level);
+    }
+
+    /**
+     * Waits until the worker can run without going over the current level.
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (active >= level) {
+            wait();
+        }
+        active++;
+    }
+
+    synchronized void release() {
+        active--;
+        notifyAll();
+    }
+
+    /**
+     * Returns a gate that holds another pool of threads, like the writers of
+     * a destination, to the current level too.
+     */
+    Gate newGate() {
+        return new Gate();
+    }
+
+    /**
+     * Returns every level used so far, in order.
+     */
+    synchronized List<Integer> getLevels() {
+        return new ArrayList<>(levels);
+    }
+
+    /**
+     * Measures the throughput since the last window and moves the level.
+     */
+    synchronized void adjust() {
+        final long now = System.nanoTime();
+        final double seconds = (now - lastNanos) / 1.0e9;
+        double score = Double.MAX_VALUE;
+
+        for (int i = 0; i < counters.size(); i++) {
+            final CopyProgress.Destination counter = counters.get(i);
+            final long work = counter.bytesDone() + counter.filesDone() * FILE_COST_BYTES;
+
+            score = Math.min(score, (work - lastWork[i]) / seconds);
+            lastWork[i] = work;
+        }
+        lastNanos = now;
+
+        // Nothing was copied, like while the walk is in a large folder
+        if (score <= 0.0) {
+            return;
+        }
+        if (lastScore >= 0.0) {
+            if (score > lastScore * (1.0 + MIN_GAIN)) {
+                step = Math.min(step * 2, MAX_STEP);
+            }
+            else {
+                direction = -direction;
+                step = 1;
+            }
+        }
+        lastScore = score;
+        move(score);
+    }
+
+    private void move(double score) {
+        int next = level + direction * step;
+
+        if (next < 1 || next > maxLevel) {
+            direction = -direction;
+            next = Math.max(1, Math.min(maxLevel, level + direction));
+        }
+        if (next != level) {
+            LOGGER.log(
+                Level.FINE,
+                "Copy concurrency {0} -> {1} at {2} KiB/s",
+                new Object[] { level, next, (long) (score / 1024.0) }
+            );
+            level = next;
+            levels.add(level);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Limits the threads that go through it to the level of the tuner, on
+     * their own count.
+     */
+    final class Gate {
+        private int active;
+
+        private Gate() {
+            this.active = 0;
+        }
+
+        void acquire() throws InterruptedException {
+            synchronized (ConcurrencyTuner.this) {
+                while (active >= level) {
+                    ConcurrencyTuner.this.wait();
+                }
+                active++;
+            }
+        }
+
+        void release() {
+            synchronized (ConcurrencyTuner.this) {
+                active--;
+                ConcurrencyTuner.this.notifyAll();
+            }
+        }
+    }
+}
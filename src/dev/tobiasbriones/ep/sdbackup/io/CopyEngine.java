@@ -0,0 +1,796 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies a directory tree into one or more destinations using a fixed number
+ * of worker threads. The tree is walked on the calling thread, which creates
+ * each directory before any of its files is handed to the workers through a
+ * bounded queue, so copying starts as soon as the first file is found and
+ * memory use doesn't depend on the size of the tree.
+ *
+ * <p>When there are several destinations, the tree is walked and each file is
+ * read only once. Its chunks are read into direct buffers of a {@link
+ * BufferPool} of the copy, sized to the budgets of its writers, and written
+ * to every destination by a {@link DestinationWriter} of its own.</p>
+ *
+ * <p>A {@link FileSelector} can leave out files from some or all of the
+ * destinations, or have them hard linked to an existing copy, but every
+ * directory is still created in all of them.</p>
+ *
+ * <p>Files copied to a single destination, or linked where linking failed,
+ * are copied with the given {@link CopyStrategy}.</p>
+ *
+ * <p>With more than one worker, files of at least {@link
+ * #getLargeFileSize()} bytes are split into ranges of {@link #getRangeSize()}
+ * bytes that are queued as jobs of their own, so a single huge file is copied
+ * by every worker at once.</p>
+ *
+ * <p>Files and directories rejected by the {@link TreeFilter} are left out,
+ * and rejected directories are not walked at all. Symbolic links, which are
+ * never followed, and other files that aren't regular, like sockets and
+ * devices, are left out of every destination too.</p>
+ *
+ * <p>If it's adaptive, the number of threads is the most workers that copy
+ * at once, and the actual level is tuned by a {@link ConcurrencyTuner} while
+ * copying, starting from {@link #INITIAL_ADAPTIVE_THREADS}. The writers of
+ * each destination are held to the same level, so a slow disk never gets
+ * more writes at once than the level the tuner settled on. The levels it
+ * goes through are logged.</p>
+ *
+ * <p>With checksums on, every copied file is hashed while its bytes go
+ * through the copy buffers, and its digest is given to the selector. Files
+ * are then never split into ranges, since a digest needs the bytes in order,
+ * nor copied in the kernel. The time spent hashing is logged.</p>
+ *
+ * <p>If a {@link Throttle} is set, every file and range is reserved on it
+ * before it's copied. Files of at least {@link #THROTTLED_RANGE_SIZE} are
+ * then split into ranges of that size even with a single worker, so a huge
+ * file can't go past the limits in one go.</p>
+ *
+ * <p>If a {@link CopyProgress} is set, each destination of a copy is added
+ * to it and counts the files and bytes found and copied.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class CopyEngine {
+    private static final int QUEUE_CAPACITY_PER_THREAD = 64;
+    public static final long DEFAULT_LARGE_FILE_SIZE = 256L * 1024L * 1024L;
+    public static final long DEFAULT_RANGE_SIZE = 32L * 1024L * 1024L;
+    public static final long THROTTLED_RANGE_SIZE = 8L * 1024L * 1024L;
+    public static final int INITIAL_ADAPTIVE_THREADS = 4;
+    private static final Logger LOGGER = Logger.getLogger(CopyEngine.class.getName());
+    private static final Job END_OF_WALK = new Job(null, null, 0L, null, null);
+    private final int threads;
+    private final CopyStrategy strategy;
+    private long largeFileSize;
+    private long rangeSize;
+    private CopyProgress progress;
+    private TreeFilter filter;
+    private Throttle throttle;
+    private boolean adaptive;
+    private boolean checksums;
+
+    public CopyEngine(int threads) {
+        this(threads, CopyStrategies.AUTO);
+    }
+
+    public CopyEngine(int threads, CopyStrategy strategy) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be at least 1");
+        }
+        this.threads = threads;
+        this.strategy = strategy;
+        this.largeFileSize = DEFAULT_LARGE_FILE_SIZE;
+        this.rangeSize = DEFAULT_RANGE_SIZE;
+        this.progress = null;
+        this.filter = TreeFilter.ALL;
+        this.throttle = Throttle.NONE;
+        this.adaptive = false;
+        this.checksums = false;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public CopyStrategy getStrategy() {
+        return strategy;
+    }
+
+    public long getLargeFileSize() {
+        return largeFileSize;
+    }
+
+    public void setLargeFileSize(long value) {
+        if (value < 1L) {
+            throw new IllegalArgumentException("Large file size must be positive");
+        }
+        this.largeFileSize = value;
+    }
+
+    public long getRangeSize() {
+        return rangeSize;
+    }
+
+    public void setRangeSize(long value) {
+        if (value < 1L) {
+            throw new IllegalArgumentException("Range size must be positive");
+        }
+        this.rangeSize = value;
+    }
+
+    public CopyProgress getProgress() {
+        return progress;
+    }
+
+    public void setProgress(CopyProgress value) {
+        this.progress = value;
+    }
+
+    public TreeFilter getFilter() {
+        return filter;
+    }
+
+    public void setFilter(TreeFilter value) {
+        this.filter = value;
+    }
+
+    /**
+     * Returns whether the number of workers copying at once is tuned while
+     * copying, up to the number of threads.
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public void setAdaptive(boolean value) {
+        this.adaptive = value;
+    }
+
+    /**
+     * Returns whether copied files are hashed and their digests given to the
+     * {@link FileSelector}.
+     */
+    public boolean isChecksums() {
+        return checksums;
+    }
+
+    public void setChecksums(boolean value) {
+        this.checksums = value;
+    }
+
+    public Throttle getThrottle() {
+        return throttle;
+    }
+
+    public void setThrottle(Throttle value) {
+        this.throttle = value;
+    }
+
+    public void copy(Path src, Path dst) throws IOException {
+        copy(src, Collections.singletonList(dst));
+    }
+
+    public void copy(Path src, List<Path> dsts) throws IOException {
+        copy(src, dsts, FileSelector.ALL);
+    }
+
+    public void copy(Path src, List<Path> dsts, FileSelector selector) throws IOException {
+        if (dsts.isEmpty()) {
+            return;
+        }
+        for (Path dst : dsts) {
+            Files.createDirectories(dst);
+        }
+        new Run(src, dsts, selector).execute();
+    }
+
+    static void await(Future<?> future) throws IOException {
+        try {
+            future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Copy interrupted", e);
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    private static void put(BlockingQueue<Job> queue, Job job) throws IOException {
+        try {
+            queue.put(job);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Copy interrupted", e);
+        }
+    }
+
+    /**
+     * Reads until the buffer is full or the end of the file is reached, and
+     * returns whether anything was read.
+     */
+    private static boolean readFully(FileChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) == -1) {
+                break;
+            }
+        }
+        return buffer.position() > 0;
+    }
+
+    private interface JobConsumer {
+        void accept(Job job) throws IOException;
+    }
+
+    private static final class Job {
+        private final Path file;
+        private final Path relativePath;
+        private final long size;
+        private final BitSet destinations;
+        private final Path[] links;
+        private final LargeFile largeFile;
+        private final long position;
+
+        /**
+         * @param destinations destinations to copy the file to
+         * @param links        files to hard link into each destination, or
+         *                     null if there's nothing to link
+         */
+        Job(Path file, Path relativePath, long size, BitSet destinations, Path[] links) {
+            this.file = file;
+            this.relativePath = relativePath;
+            this.size = size;
+            this.destinations = destinations;
+            this.links = links;
+            this.largeFile = null;
+            this.position = 0L;
+        }
+
+        /**
+         * Creates the job copying the range of the given length starting at
+         * the given position.
+         */
+        Job(LargeFile largeFile, long position, long length) {
+            this.file = null;
+            this.relativePath = null;
+            this.size = length;
+            this.destinations = null;
+            this.links = null;
+            this.largeFile = largeFile;
+            this.position = position;
+        }
+    }
+
+    private final class Run {
+        private final Path src;
+        private final List<Path> dsts;
+        private final FileSelector selector;
+        private final AtomicReference<IOException> failure;
+        private final List<CopyStrategy> strategies;
+        private final List<DestinationWriter> writers;
+        private final List<CopyProgress.Destination> counters;
+        private final long splitSize;
+        private final long sliceSize;
+        private final LongAdder hashedBytes;
+        private final LongAdder hashingNanos;
+        private ConcurrencyTuner tuner;
+        private BufferPool smallBuffers;
+        private BufferPool chunkBuffers;
+
+        Run(Path src, List<Path> dsts, FileSelector selector) {
+            this.src = src;
+            this.dsts = dsts;
+            this.selector = selector;
+            this.failure = new AtomicReference<>();
+            this.strategies = new ArrayList<>(dsts.size());
+            this.writers = new ArrayList<>(dsts.size());
+            this.counters = new ArrayList<>(dsts.size());
+            this.splitSize = checksums
+                             ? Long.MAX_VALUE
+                             : throttle == Throttle.NONE
+                               ? largeFileSize
+                               : Math.min(largeFileSize, THROTTLED_RANGE_SIZE);
+            this.sliceSize = throttle == Throttle.NONE ? rangeSize : Math.min(rangeSize, THROTTLED_RANGE_SIZE);
+            this.hashedBytes = new LongAdder();
+            this.hashingNanos = new LongAdder();
+            this.tuner = null;
+            this.smallBuffers = null;
+            this.chunkBuffers = null;
+        }
+
+        void execute() throws IOException {
+            for (Path dst : dsts) {
+                strategies.add(strategy.forDestination(dst));
+                counters.add(
+                    progress != null ? progress.addDestination(dst) : new CopyProgress.Destination(dst)
+                );
+            }
+            if (adaptive && threads > 1) {
+                tuner = new ConcurrencyTuner(INITIAL_ADAPTIVE_THREADS, threads, counters);
+            }
+            if (dsts.size() > 1) {
+                smallBuffers = BufferPool.forWriters(BufferPool.SMALL_BUFFER_SIZE, dsts.size(), threads);
+                chunkBuffers = BufferPool.forWriters(BufferPool.CHUNK_SIZE, dsts.size(), threads);
+                for (int i = 0; i < dsts.size(); i++) {
+                    writers.add(new DestinationWriter(
+                        dsts.get(i),
+                        threads,
+                        tuner != null ? tuner.newGate() : null,
+                        failure,
+                        counters.get(i),
+                        i,
+                        selector
+                    ));
+                }
+            }
+            try {
+                if (threads == 1) {
+                    try {
+                        walk(new TreeVisitor(this::runJob, throttle != Throttle.NONE));
+                    }
+                    finally {
+                        counters.forEach(CopyProgress.Destination::walkDone);
+                    }
+                }
+                else {
+                    walkConcurrently();
+                }
+            }
+            finally {
+                try {
+                    for (DestinationWriter writer : writers) {
+                        writer.close();
+                    }
+                }
+                finally {
+                    if (smallBuffers != null) {
+                        smallBuffers.close();
+                        chunkBuffers.close();
+                    }
+                }
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+            if (checksums) {
+                logHashing();
+            }
+        }
+
+        private void logHashing() {
+            final double mib = hashedBytes.sum() / (1024.0 * 1024.0);
+            final double millis = hashingNanos.sum() / 1.0e6;
+
+            LOGGER.log(
+                Level.FINE,
+                "Hashed {0} MiB in {1} ms of copy thread time, {2} MiB/s",
+                new Object[] { (long) mib, (long) millis, millis > 0.0 ? (long) (mib * 1000.0 / millis) : 0L }
+            );
+        }
+
+        private void walkConcurrently() throws IOException {
+            final BlockingQueue<Job> queue = new ArrayBlockingQueue<>(threads * QUEUE_CAPACITY_PER_THREAD);
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            final ScheduledExecutorService scheduler = tuner != null
+                                                       ? Executors.newSingleThreadScheduledExecutor()
+                                                       : null;
+            final List<Future<?>> workers = new ArrayList<>(threads);
+            final JobConsumer producer = job -> {
+                if (failure.get() != null) {
+                    throw failure.get();
+                }
+                put(queue, job);
+            };
+
+            try {
+                for (int i = 0; i < threads; i++) {
+                    workers.add(executor.submit(() -> {
+                        consume(queue, tuner);
+                        return null;
+                    }));
+                }
+                if (scheduler != null) {
+                    scheduler.scheduleAtFixedRate(
+                        tuner::adjust,
+                        ConcurrencyTuner.WINDOW_MILLIS,
+                        ConcurrencyTuner.WINDOW_MILLIS,
+                        TimeUnit.MILLISECONDS
+                    );
+                }
+                try {
+                    walk(new TreeVisitor(producer, true));
+                }
+                catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+                finally {
+                    counters.forEach(CopyProgress.Destination::walkDone);
+                    for (int i = 0; i < threads; i++) {
+                        put(queue, END_OF_WALK);
+                    }
+                }
+                for (Future<?> worker : workers) {
+                    await(worker);
+                }
+            }
+            finally {
+                if (scheduler != null) {
+                    scheduler.shutdownNow();
+                    LOGGER.log(Level.FINE, "Copy concurrency levels {0}", tuner.getLevels());
+                }
+                executor.shutdownNow();
+            }
+        }
+
+        /**
+         * Walks the source tree depth first like {@link Files#walkFileTree},
+         * except that the attributes of the files the selector already knows
+         * are not read, and directories the filter rejects are not entered.
+         * The relative path of each entry is built once from the one of its
+         * directory, instead of relativizing every path against the source.
+         */
+        private void walk(TreeVisitor visitor) throws IOException {
+            walkDirectory(src, src.relativize(src), visitor);
+        }
+
+        private void walkDirectory(Path dir, Path relativeDir, TreeVisitor visitor) throws IOException {
+            visitor.preVisitDirectory(relativeDir);
+            final Map<String, BasicFileAttributes> known = selector.knownFiles(relativeDir);
+
+            filter.enter(dir, relativeDir);
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes entryAttrs = known != null
+                                                     ? known.get(entry.getFileName().toString())
+                                                     : null;
+
+                    if (entryAttrs == null) {
+                        entryAttrs = Files.readAttributes(
+                            entry,
+                            BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS
+                        );
+                    }
+                    final Path relativePath = relativeDir.resolve(entry.getFileName());
+
+                    if (!filter.accept(relativePath, entryAttrs.isDirectory())) {
+                        continue;
+                    }
+                    if (entryAttrs.isDirectory()) {
+                        walkDirectory(entry, relativePath, visitor);
+                    }
+                    else if (entryAttrs.isRegularFile()) {
+                        visitor.visitFile(entry, relativePath, entryAttrs);
+                    }
+                    else {
+                        LOGGER.log(Level.FINE, "Leaving out {0}, which is not a regular file", entry);
+                    }
+                }
+            }
+            finally {
+                filter.leave(relativeDir);
+            }
+        }
+
+        private void consume(BlockingQueue<Job> queue, ConcurrencyTuner tuner) throws InterruptedException {
+            while (true) {
+                if (tuner != null) {
+                    tuner.acquire();
+                }
+                try {
+                    final Job job = queue.take();
+
+                    if (job == END_OF_WALK) {
+                        return;
+                    }
+                    // Keep draining after a failure so the walking thread
+                    // never blocks on a full queue
+                    if (failure.get() != null) {
+                        if (job.largeFile != null) {
+                            job.largeFile.skipRanges(1);
+                        }
+                        continue;
+                    }
+                    runJob(job);
+                }
+                catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+                finally {
+                    if (tuner != null) {
+                        tuner.release();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Copies the file or range of the given job once the throttle allows
+         * it.
+         */
+        private void runJob(Job job) throws IOException {
+            final long bytes = job.destinations == null || !job.destinations.isEmpty() ? job.size : 0L;
+
+            // With checksums, bytes are reserved as they're read instead, and
+            // each chunk is reported without its wait
+            final int files = job.largeFile == null || job.position == 0L ? 1 : 0;
+            final long start;
+
+            throttle.acquire(checksums ? 0L : bytes, files);
+            start = System.nanoTime();
+            if (job.largeFile != null) {
+                job.largeFile.copyRange(job.position, job.size);
+            }
+            else {
+                copyFile(job);
+            }
+            if (!checksums) {
+                throttle.completed(bytes, System.nanoTime() - start);
+            }
+        }
+
+        private void copyFile(Job job) throws IOException {
+            if (!job.destinations.isEmpty()) {
+                if (writers.isEmpty() && checksums) {
+                    final byte[] digest = Checksums.copy(
+                        job.file,
+                        dsts.get(0).resolve(job.relativePath),
+                        job.size,
+                        throttle,
+                        hashingNanos
+                    );
+
+                    hashedBytes.add(job.size);
+                    selector.checksummed(0, job.relativePath, digest);
+                    counters.get(0).bytesCopied(job.size);
+                    counters.get(0).fileCopied();
+                    selector.copied(0, job.relativePath);
+                }
+                else if (writers.isEmpty()) {
+                    strategies.get(0).copy(job.file, dsts.get(0).resolve(job.relativePath), job.size);
+                    counters.get(0).bytesCopied(job.size);
+                    counters.get(0).fileCopied();
+                    selector.copied(0, job.relativePath);
+                }
+                else {
+                    fanOut(job);
+                }
+            }
+            if (job.links != null) {
+                link(job);
+            }
+        }
+
+        private void link(Job job) throws IOException {
+            for (int i = 0; i < job.links.length; i++) {
+                if (job.links[i] == null) {
+                    continue;
+                }
+                final Path target = dsts.get(i).resolve(job.relativePath);
+
+                try {
+                    Files.createLink(target, job.links[i]);
+                }
+                catch (UnsupportedOperationException | IOException e) {
+                    // No hard links on this file system, across devices, or
+                    // the existing copy is gone
+                    strategies.get(i).copy(job.file, target, job.size);
+                }
+                counters.get(i).bytesCopied(job.size);
+                counters.get(i).fileCopied();
+                selector.copied(i, job.relativePath);
+            }
+        }
+
+        private List<DestinationWriter> writersOf(BitSet destinations) {
+            final List<DestinationWriter> targets = new ArrayList<>(destinations.cardinality());
+
+            for (int i = destinations.nextSetBit(0); i >= 0; i = destinations.nextSetBit(i + 1)) {
+                targets.add(writers.get(i));
+            }
+            return targets;
+        }
+
+        /**
+         * Queues the ranges of a large file, and the links of the file, if
+         * any, as a job of its own.
+         */
+        private void split(Job job, JobConsumer consumer) throws IOException {
+            final int ranges = (int) ((job.size + sliceSize - 1L) / sliceSize);
+            final LargeFile largeFile = writers.isEmpty()
+                                        ? LargeFile.open(
+                                            job.file,
+                                            job.size,
+                                            dsts.get(0).resolve(job.relativePath),
+                                            ranges,
+                                            failure,
+                                            counters.get(0),
+                                            job.relativePath,
+                                            selector
+                                        )
+                                        : LargeFile.open(
+                                            job.file,
+                                            job.relativePath,
+                                            writersOf(job.destinations),
+                                            chunkBuffers,
+                                            ranges,
+                                            failure
+                                        );
+
+            int queued = 0;
+
+            try {
+                for (long position = 0L; position < job.size; position += sliceSize) {
+                    consumer.accept(new Job(largeFile, position, Math.min(sliceSize, job.size - position)));
+                    queued++;
+                }
+            }
+            catch (IOException e) {
+                largeFile.skipRanges(ranges - queued);
+                throw e;
+            }
+            if (job.links != null) {
+                consumer.accept(new Job(job.file, job.relativePath, job.size, new BitSet(), job.links));
+            }
+        }
+
+        private void fanOut(Job job) throws IOException {
+            final List<DestinationWriter> targets = writersOf(job.destinations);
+            final List<DestinationWriter.OutputFile> outputs = new ArrayList<>(targets.size());
+            final MessageDigest digest = checksums ? Checksums.digest() : null;
+
+            try (FileChannel in = FileChannel.open(job.file, StandardOpenOption.READ)) {
+                final FileAttribute<?>[] attrs = CopyStrategies.creationAttributes(job.file);
+
+                for (DestinationWriter writer : targets) {
+                    outputs.add(writer.open(job.relativePath, attrs));
+                }
+                final long size = in.size();
+                final BufferPool pool = size < smallBuffers.getBufferSize() ? smallBuffers : chunkBuffers;
+                long position = 0L;
+
+                while (position < size) {
+                    final BufferPool.Buffer chunk = pool.take();
+                    final long start = System.nanoTime();
+
+                    try {
+                        final ByteBuffer content = chunk.content();
+                        long waited = 0L;
+
+                        content.limit((int) Math.min(content.capacity(), size - position));
+                        if (!readFully(in, content)) {
+                            break;
+                        }
+                        content.flip();
+                        if (digest != null) {
+                            final long read = System.nanoTime();
+
+                            throttle.acquire(content.remaining(), 0);
+                            waited = System.nanoTime() - read;
+                            Checksums.update(digest, content, hashingNanos);
+                            content.rewind();
+                        }
+                        for (int i = 0; i < targets.size(); i++) {
+                            targets.get(i).write(outputs.get(i), chunk, position);
+                        }
+                        if (digest != null) {
+                            throttle.completed(content.remaining(), System.nanoTime() - start - waited);
+                        }
+                        position += content.remaining();
+                    }
+                    finally {
+                        chunk.release();
+                    }
+                }
+                if (digest != null) {
+                    final byte[] value = digest.digest();
+
+                    hashedBytes.add(position);
+                    for (int i = job.destinations.nextSetBit(0); i >= 0; i = job.destinations.nextSetBit(i + 1)) {
+                        selector.checksummed(i, job.relativePath, value);
+                    }
+                }
+            }
+            catch (IOException e) {
+                // Set before the files are released, so they're not taken as
+                // copied
+                failure.compareAndSet(null, e);
+                throw e;
+            }
+            finally {
+                for (DestinationWriter.OutputFile output : outputs) {
+                    output.release();
+                }
+            }
+        }
+
+        private final class TreeVisitor {
+            private final JobConsumer consumer;
+            private final boolean splitsLargeFiles;
+
+            TreeVisitor(JobConsumer consumer, boolean splitsLargeFiles) {
+                this.consumer = consumer;
+                this.splitsLargeFiles = splitsLargeFiles;
+            }
+
+            void preVisitDirectory(Path relativeDir) throws IOException {
+                for (Path dst : dsts) {
+                    Files.createDirectories(dst.resolve(relativeDir));
+                }
+            }
+
+            void visitFile(Path file, Path relativePath, BasicFileAttributes attrs) throws IOException {
+                final BitSet destinations = new BitSet(dsts.size());
+                Path[] links = null;
+
+                for (int i = 0; i < dsts.size(); i++) {
+                    if (selector.select(i, relativePath, attrs)) {
+                        destinations.set(i);
+                        continue;
+                    }
+                    final Path link = selector.linkSource(i, relativePath);
+
+                    if (link != null) {
+                        if (links == null) {
+                            links = new Path[dsts.size()];
+                        }
+                        links[i] = link;
+                    }
+                }
+                if (destinations.isEmpty() && links == null) {
+                    return;
+                }
+                for (int i = 0; i < dsts.size(); i++) {
+                    if (destinations.get(i) || (links != null && links[i] != null)) {
+                        counters.get(i).fileFound(attrs.size());
+                    }
+                }
+                final Job job = new Job(file, relativePath, attrs.size(), destinations, links);
+
+                if (splitsLargeFiles && !destinations.isEmpty() && attrs.size() >= splitSize) {
+                    split(job, consumer);
+                }
+                else {
+                    consumer.accept(job);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.io;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the files and bytes copied into each destination of a backup.
+ *
+ * <p>Copy threads only add to striped counters, so keeping the counts costs
+ * next to nothing however many files there are. Throughput and time left are
+ * computed when the progress is sampled, which should be done from a single
+ * thread at a low rate.</p>
+ *
+ * <p>The tree is copied while it's still being walked, so the totals keep
+ * growing until the walk is done. No time left is given until then.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class CopyProgress {
+    private static final double SMOOTHING = 0.3;
+    private final List<Destination> destinations;
+    private final Map<Path, Path> labels;
+
+    public CopyProgress() {
+        this.destinations = new CopyOnWriteArrayList<>();
+        this.labels = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Reports the destination copied to the given folder under another path,
+     * like a staging folder that is renamed to its snapshot once complete. It
+     * must be called before the destination is added.
+     */
+    public void label(Path root, Path label) {
+        labels.put(root, label);
+    }
+
+    /**
+     * Starts counting a new destination.
+     */
+    public Destination addDestination(Path root) {
+        final Destination destination = new Destination(labels.getOrDefault(root, root));
+
+        destinations.add(destination);
+        return destination;
+    }
+
+    /**
+     * Reads the current state of every destination added so far.
+     */
+    public List<Status> sample() {
+        final long now = System.nanoTime();
+        final List<Status> statuses = new ArrayList<>(destinations.size());
+
+        for (Destination destination : destinations) {
+            statuses.add(destination.sample(now));
+        }
+        return statuses;
+    }
+
+    /**
+     * Counters of a single destination.
+     */
+    public static final class Destination {
+        private final Path root;
+        private final LongAdder filesTotal;
+        private final LongAdder bytesTotal;
+        private final LongAdder filesDone;
+        private final LongAdder bytesDone;
+        private volatile boolean walked;
+        private long lastSampleNanos;
+        private long lastBytesDone;
+        private double bytesPerSecond;
+
+        Destination(Path root) {
+            this.root = root;
+            this.filesTotal = new LongAdder();
+            this.bytesTotal = new LongAdder();
+            this.filesDone = new LongAdder();
+            this.bytesDone = new LongAdder();
+            this.walked = false;
+            this.lastSampleNanos = System.nanoTime();
+            this.lastBytesDone = 0L;
+            this.bytesPerSecond = 0.0;
+        }
+
+        public Path getRoot() {
+            return root;
+        }
+
+        /**
+         * Counts a file found by the walk that will be copied.
+         */
+        public void fileFound(long size) {
+            filesTotal.increment();
+            bytesTotal.add(size);
+        }
+
+        public void bytesCopied(long count) {
+            bytesDone.add(count);
+        }
+
+        public void fileCopied() {
+            filesDone.increment();
+        }
+
+        /**
+         * Marks the totals as final.
+         */
+        public void walkDone() {
+            walked = true;
+        }
+
+        /**
+         * Returns the bytes copied so far.
+         */
+        public long bytesDone() {
+            return bytesDone.sum();
+        }
+
+        /**
+         * Returns the files copied so far.
+         */
+        public long filesDone() {
+            return filesDone.sum();
+        }
+
+        private synchronized Status sample(long now) {
+            final long bytes = bytesDone.sum();
+            final long elapsed = now - lastSampleNanos;
+
+            if (elapsed > 0L) {
+                final double rate = (bytes - lastBytesDone) * 1.0e9 / elapsed;
+
+                // Smooths the rate so the time left doesn't jump around
+                bytesPerSecond = lastBytesDone == 0L && bytesPerSecond == 0.0
+                                 ? rate
+                                 : SMOOTHING * rate + (1.0 - SMOOTHING) * bytesPerSecond;
+                lastSampleNanos = now;
+                lastBytesDone = bytes;
+            }
+            return new Status(
+                root,
+                filesDone.sum(),
+                filesTotal.sum(),
+                bytes,
+                bytesTotal.sum(),
+                (long) bytesPerSecond,
+                walked
+            );
+        }
+    }
+
+    /**
+     * Immutable state of a destination at the time it was sampled.
+     */
+    public static final class Status {
+        private final Path root;
+        private final long filesDone;
+        private final long filesTotal;
+        private final long bytesDone;
+        private final long bytesTotal;
+        private final long bytesPerSecond;
+        private final boolean walked;
+
+        private Status(
+            Path root,
+            long filesDone,
+            long filesTotal,
+            long bytesDone,
+            long bytesTotal,
+            long bytesPerSecond,
+            boolean walked
+        ) {
+            this.root = root;
+            this.filesDone = filesDone;
+            this.filesTotal = filesTotal;
+            this.bytesDone = bytesDone;
+            this.bytesTotal = bytesTotal;
+            this.bytesPerSecond = bytesPerSecond;
+            this.walked = walked;
+        }
+
+        public Path getRoot() {
+            return root;
+        }
+
+        public long getFilesDone() {
+            return filesDone;
+        }
+
+        public long getFilesTotal() {
+            return filesTotal;
+        }
+
+        public long getBytesDone() {
+            return bytesDone;
+        }
+
+        public long getBytesTotal() {
+            return bytesTotal;
+        }
+
+        public long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * Returns whether the whole tree has been walked, so the totals are
+         * final.
+         */
+        public boolean isWalked() {
+            return walked;
+        }
+
+        /**
+         * Returns the estimated seconds left, or -1 if it's not known yet.
+         */
+        public long getSecondsLeft() {
+            if (!walked || bytesPerSecond <= 0L) {
+                return -1L;
+            }
+            return (bytesTotal - bytesDone + bytesPerSecond - 1L) / bytesPerSecond;
+        }
+    }
+}
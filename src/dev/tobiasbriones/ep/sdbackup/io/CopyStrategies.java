@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+
+/**
+ * Provides the available file copy strategies.
+ *
+ * <ul>
+ *     <li>{@link #FILES}: {@link Files#copy(Path, Path, CopyOption...)}.</li>
+ *     <li>{@link #TRANSFER}: {@link FileChannel#transferTo}, which lets the
+ *     kernel copy the file without passing it through user space, like
+ *     sendfile or copy_file_range on Linux.</li>
+ *     <li>{@link #BUFFERED}: reads and writes through a direct buffer taken
+ *     from a pool shared by every copy.</li>
+ *     <li>{@link #AUTO}: {@link #FILES} for small files since opening
+ *     channels costs more than the copy itself, and {@link #TRANSFER} for
+ *     the rest, or {@link #BUFFERED} on network and FUSE file systems where
+ *     in-kernel copies aren't available.</li>
+ * </ul>
+ *
+ * @author Tobias Briones
+ */
+public final class CopyStrategies {
+    /**
+     * Files smaller than this are copied with {@link #FILES} by {@link
+     * #AUTO}.
+     */
+    public static final long AUTO_SMALL_FILE_SIZE = 64 * 1024;
+    public static final CopyStrategy FILES = (src, dst, size) -> Files.copy(src, dst);
+    public static final CopyStrategy TRANSFER = CopyStrategies::transfer;
+    public static final CopyStrategy BUFFERED = CopyStrategies::buffered;
+    public static final CopyStrategy AUTO = new Auto(TRANSFER);
+    private static final Set<OpenOption> CREATE_OPTIONS = Collections.unmodifiableSet(
+        EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)
+    );
+    private static final Set<String> NO_IN_KERNEL_COPY_TYPES = new HashSet<>(Arrays.asList(
+        "nfs",
+        "nfs4",
+        "cifs",
+        "smbfs",
+        "smb2",
+        "fuse",
+        "fuseblk",
+        "sshfs",
+        "webdav"
+    ));
+
+    /**
+     * Returns the strategy with the given name, case insensitive.
+     *
+     * @param name one of "files", "transfer", "buffered" or "auto"
+     * @return the strategy with that name
+     * @throws IllegalArgumentException if there's no strategy with that name
+     */
+    public static CopyStrategy valueOf(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "files":
+                return FILES;
+            case "transfer":
+                return TRANSFER;
+            case "buffered":
+                return BUFFERED;
+            case "auto":
+                return AUTO;
+            default:
+                throw new IllegalArgumentException("Unknown copy strategy " + name);
+        }
+    }
+
+    /**
+     * Returns the attributes to create a copy of the given file with, so it
+     * keeps the POSIX permissions like {@link Files#copy} does.
+     */
+    static FileAttribute<?>[] creationAttributes(Path src) throws IOException {
+        final PosixFileAttributeView view = Files.getFileAttributeView(src, PosixFileAttributeView.class);
+
+        if (view == null) {
+            return new FileAttribute<?>[0];
+        }
+        return new FileAttribute<?>[] {
+            PosixFilePermissions.asFileAttribute(view.readAttributes().permissions())
+        };
+    }
+
+    static FileChannel create(Path dst, FileAttribute<?>... attrs) throws IOException {
+        return FileChannel.open(dst, CREATE_OPTIONS, attrs);
+    }
+
+    private static void transfer(Path src, Path dst, long size) throws IOException {
+        try (
+            FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+            FileChannel out = create(dst, creationAttributes(src))
+        ) {
+            final long length = in.size();
+            long position = 0L;
+
+            while (position < length) {
+                final long n = in.transferTo(position, length - position, out);
+
+                // The file was truncated while copying
+                if (n <= 0L) {
+                    break;
+                }
+                position += n;
+            }
+        }
+    }
+
+    private static void buffered(Path src, Path dst, long size) throws IOException {
+        final BufferPool.Buffer pooled = BufferPool.of(size).take();
+        final ByteBuffer buffer = pooled.content();
+
+        try (
+            FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+            FileChannel out = create(dst, creationAttributes(src))
+        ) {
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+        finally {
+            pooled.release();
+        }
+    }
+
+    private static final class Auto implements CopyStrategy {
+        private final CopyStrategy large;
+
+        Auto(CopyStrategy large) {
+            this.large = large;
+        }
+
+        @Override
+        public void copy(Path src, Path dst, long size) throws IOException {
+            if (size < AUTO_SMALL_FILE_SIZE) {
+                FILES.copy(src, dst, size);
+            }
+            else {
+                large.copy(src, dst, size);
+            }
+        }
+
+        @Override
+        public CopyStrategy forDestination(Path root) throws IOException {
+            Path existing = root.toAbsolutePath();
+
+            while (existing != null && !Files.exists(existing)) {
+                existing = existing.getParent();
+            }
+            if (existing == null) {
+                return this;
+            }
+            final String type = Files.getFileStore(existing).type().toLowerCase(Locale.ROOT);
+            return NO_IN_KERNEL_COPY_TYPES.contains(type) || type.startsWith("fuse.")
+                   ? new Auto(BUFFERED)
+                   : new Auto(TRANSFER);
+        }
+    }
+
+    private CopyStrategies() {}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.io;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Defines how a single regular file is copied. The available strategies are
+ * in {@link CopyStrategies}.
+ *
+ * @author Tobias Briones
+ */
+public interface CopyStrategy {
+    /**
+     * Copies a regular file of the given size to a path that must not exist
+     * yet. The new file gets the permissions of the source file.
+     *
+     * @param src  file to copy
+     * @param dst  path of the new file
+     * @param size size of the source file when it was found
+     * @throws IOException if the copy fails or the destination exists
+     */
+    void copy(Path src, Path dst, long size) throws IOException;
+
+    /**
+     * Returns the strategy to use for the files copied under the given
+     * destination folder, so the strategy can adapt to its file system. It's
+     * called once per destination before copying.
+     *
+     * @param root destination folder
+     * @return the strategy for that destination
+     * @throws IOException if the file system can't be inspected
+     */
+    default CopyStrategy forDestination(Path root) throws IOException {
+        return this;
+    }
+}
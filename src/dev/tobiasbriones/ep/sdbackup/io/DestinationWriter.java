@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes pooled chunks read from the source into one destination tree on
+ * its own threads. Buffers of at most {@link #MAX_PENDING_BYTES} can be
+ * waiting to be written, counted by their capacity however few bytes they
+ * hold, so a slow destination only stalls the reader once that budget is
+ * spent, and never holds more buffers than the budget allows. Given the
+ * gate of a {@link ConcurrencyTuner}, only as many chunks as its level are
+ * written at once. Written bytes, and files once they're closed, are counted
+ * in the given destination counter, and files written whole are given to the
+ * selector.
+ *
+ * @author Tobias Briones
+ */
+final class DestinationWriter {
+    static final int MAX_PENDING_BYTES = 16 * 1024 * 1024;
+    private static final Write END_OF_WRITES = new Write(null, null, null, 0L);
+    private final Path root;
+    private final BlockingQueue<Write> queue;
+    private final Semaphore pendingBytes;
+    private final AtomicReference<IOException> failure;
+    private final ConcurrencyTuner.Gate gate;
+    private final ExecutorService executor;
+    private final List<Future<?>> workers;
+    private final CopyProgress.Destination counter;
+    private final int index;
+    private final FileSelector selector;
+
+    DestinationWriter(
+        Path root,
+        int threads,
+        ConcurrencyTuner.Gate gate,
+        AtomicReference<IOException> failure,
+        CopyProgress.Destination counter,
+        int index,
+        FileSelector selector
+    ) {
+        this.root = root;
+        this.queue = new LinkedBlockingQueue<>();
+        this.pendingBytes = new Semaphore(MAX_PENDING_BYTES);
+        this.failure = failure;
+        this.gate = gate;
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.workers = new ArrayList<>(threads);
+        this.counter = counter;
+        this.index = index;
+        this.selector = selector;
+
+        for (int i = 0; i < threads; i++) {
+            workers.add(executor.submit(() -> {
+                consume();
+                return null;
+            }));
+        }
+    }
+
+    Path getRoot() {
+        return root;
+    }
+
+    OutputFile open(Path relativePath, FileAttribute<?>... attrs) throws IOException {
+        return new OutputFile(CopyStrategies.create(root.resolve(relativePath), attrs), relativePath);
+    }
+
+    /**
+     * Queues the remaining bytes of the given pooled chunk to be written at
+     * the given position, retaining the chunk until they're written. The
+     * chunk must not be modified afterwards.
+     */
+    void write(OutputFile file, BufferPool.Buffer chunk, long position) throws IOException {
+        final ByteBuffer view = chunk.view(index);
+
+        try {
+            pendingBytes.acquire(chunk.content().capacity());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Copy interrupted", e);
+        }
+        file.retain();
+        chunk.retain();
+        queue.add(new Write(file, chunk, view, position));
+    }
+
+    /**
+     * Waits for every queued write to finish and stops the writer threads.
+     */
+    void close() throws IOException {
+        try {
+            for (int i = 0; i < workers.size(); i++) {
+                queue.add(END_OF_WRITES);
+            }
+            for (Future<?> worker : workers) {
+                CopyEngine.await(worker);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void consume() throws InterruptedException {
+        Write write;
+
+        while ((write = queue.take()) != END_OF_WRITES) {
+            final int length = write.view.remaining();
+
+            try {
+                if (failure.get() == null) {
+                    write(write);
+                    counter.bytesCopied(length);
+                }
+            }
+            catch (IOException e) {
+                failure.compareAndSet(null, e);
+            }
+            finally {
+                pendingBytes.release(write.chunk.content().capacity());
+                write.chunk.release();
+                write.file.release();
+            }
+        }
+    }
+
+    private void write(Write write) throws IOException, InterruptedException {
+        if (gate == null) {
+            write.run();
+            return;
+        }
+        gate.acquire();
+        try {
+            write.run();
+        }
+        finally {
+            gate.release();
+        }
+    }
+
+    /**
+     * An open destination file. It's closed once the reader and every queued
+     * write have released it.
+     */
+    final class OutputFile {
+        private final FileChannel channel;
+        private final Path relativePath;
+        private final AtomicInteger references;
+
+        private OutputFile(FileChannel channel, Path relativePath) {
+            this.channel = channel;
+            this.relativePath = relativePath;
+            this.references = new AtomicInteger(1);
+        }
+
+        void retain() {
+            references.incrementAndGet();
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                    counter.fileCopied();
+
+                    // Failures are set before the file is released
+                    if (failure.get() == null) {
+                        selector.copied(index, relativePath);
+                    }
+                }
+                catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        }
+    }
+
+    private static final class Write {
+        private final OutputFile file;
+        private final BufferPool.Buffer chunk;
+        private final ByteBuffer view;
+        private final long position;
+
+        Write(OutputFile file, BufferPool.Buffer chunk, ByteBuffer view, long position) {
+            this.file = file;
+            this.chunk = chunk;
+            this.view = view;
+            this.position = position;
+        }
+
+        void run() throws IOException {
+            long offset = position;
+
+            while (view.hasRemaining()) {
+                offset += file.channel.write(view, offset);
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.io;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+
+/**
+ * Decides which destinations each file found by the {@link CopyEngine} is
+ * copied to. It's always called from the thread walking the tree, in walk
+ * order, except for {@link #checksummed} and {@link #copied}.
+ *
+ * @author Tobias Briones
+ */
+public interface FileSelector {
+    FileSelector ALL = (destination, relativePath, attrs) -> true;
+
+    boolean select(int destination, Path relativePath, BasicFileAttributes attrs) throws IOException;
+
+    /**
+     * Returns an existing file with the same content to hard link into the
+     * destination instead of copying, or null to leave the file out. It's
+     * called right after {@link #select} returns false for the same
+     * destination. If the link can't be created, the file is copied.
+     *
+     * @param destination  index of the destination
+     * @param relativePath path of the file relative to the source
+     * @return the file to link to or null
+     */
+    default Path linkSource(int destination, Path relativePath) {
+        return null;
+    }
+
+    /**
+     * Returns the attributes of the files in the given directory that are
+     * known not to have changed, by file name, so the walk doesn't read them
+     * again, or null if there are none. Entries left out are read as usual.
+     * It's called before the entries of the directory are visited.
+     *
+     * @param relativeDir path of the directory relative to the source
+     * @return the attributes of the unchanged files or null
+     */
+    default Map<String, BasicFileAttributes> knownFiles(Path relativeDir) throws IOException {
+        return null;
+    }
+
+    /**
+     * Receives the digest of a file copied to the given destination, if the
+     * engine computes checksums. It's called from the copy threads, in no
+     * particular order.
+     *
+     * @param destination  index of the destination
+     * @param relativePath path of the file relative to the source
+     * @param digest       digest of the copied bytes
+     * @see Checksums
+     */
+    default void checksummed(int destination, Path relativePath, byte[] digest) throws IOException {}
+
+    /**
+     * Tells that a file was copied or linked whole into the given destination
+     * and closed. It's not called for files whose copy failed. It's called
+     * from the copy threads, in no particular order.
+     *
+     * @param destination  index of the destination
+     * @param relativePath path of the file relative to the source
+     */
+    default void copied(int destination, Path relativePath) throws IOException {}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.io;
+
+/**
+ * Throttles a copy so it only uses the disk when nothing else needs it. Other
+ * work on the same disk shows up as higher latency of the copy's own reads
+ * and writes, so whenever the latency of the last window goes over the
+ * lowest latency seen by more than {@link #LATENCY_TOLERANCE}, the rate is
+ * halved, and otherwise it grows back a little at a time. This is the same
+ * idea as delay-based background transports like LEDBAT.
+ *
+ * <p>The lowest latency slowly drifts up, so a disk that became slower for
+ * good isn't throttled forever.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class IdleThrottle implements Throttle {
+    public static final double LATENCY_TOLERANCE = 1.5;
+    public static final long MIN_BYTES_PER_SECOND = 1024L * 1024L;
+    private static final long WINDOW_NANOS = 250_000_000L;
+    private static final double BASE_DRIFT = 1.01;
+    private static final double INCREASE = 1.1;
+
+    // Latency is measured per this many bytes, so large files don't look
+    // like slow ones
+    private static final long LATENCY_UNIT_BYTES = 64L * 1024L;
+    private final TokenBucket bucket;
+    private final long maxBytesPerSecond;
+    private long windowStart;
+    private long windowBytes;
+    private long windowOperations;
+    private double windowLatency;
+    private double baseLatency;
+
+    /**
+     * @param maxBytesPerSecond highest rate ever allowed, or {@link
+     *                          TokenBucket#UNLIMITED}
+     */
+    public IdleThrottle(long maxBytesPerSecond) {
+        this.bucket = new TokenBucket(maxBytesPerSecond, TokenBucket.UNLIMITED);
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.windowStart = System.nanoTime();
+        this.windowBytes = 0L;
+        this.windowOperations = 0L;
+        this.windowLatency = 0.0;
+        this.baseLatency = Double.MAX_VALUE;
+    }
+
+    /**
+     * Returns the rate currently allowed, or {@link TokenBucket#UNLIMITED}.
+     */
+    public long getBytesPerSecond() {
+        return bucket.getBytesPerSecond();
+    }
+
+    @Override
+    public long reserve(long bytes, int files) {
+        return bucket.reserve(bytes, files);
+    }
+
+    @Override
+    public synchronized void completed(long bytes, long nanos) {
+        final long units = Math.max(1L, (bytes + LATENCY_UNIT_BYTES - 1L) / LATENCY_UNIT_BYTES);
+        final long now = System.nanoTime();
+
+        windowBytes += bytes;
+        windowOperations++;
+        windowLatency += (double) nanos / units;
+        if (now - windowStart >= WINDOW_NANOS) {
+            adjust(now - windowStart);
+            windowStart = now;
+            windowBytes = 0L;
+            windowOperations = 0L;
+            windowLatency = 0.0;
+        }
+    }
+
+    private void adjust(long elapsed) {
+        final double latency = windowLatency / windowOperations;
+        final long throughput = (long) (windowBytes * 1.0e9 / elapsed);
+        final long rate = bucket.getBytesPerSecond();
+
+        baseLatency = Math.min(baseLatency * BASE_DRIFT, latency);
+        if (latency > LATENCY_TOLERANCE * baseLatency) {
+            final long current = rate == TokenBucket.UNLIMITED ? throughput : Math.min(rate, throughput);
+
+            bucket.setBytesPerSecond(Math.max(MIN_BYTES_PER_SECOND, current / 2L));
+        }
+        else if (rate != TokenBucket.UNLIMITED) {
+            final long increased = (long) (rate * INCREASE) + 1L;
+
+            if (maxBytesPerSecond != TokenBucket.UNLIMITED) {
+                bucket.setBytesPerSecond(Math.min(maxBytesPerSecond, increased));
+            }
+            else {
+                // Once the limit is well over what the copy does anyway,
+                // it's no longer what holds it back
+                bucket.setBytesPerSecond(increased > 2L * throughput ? TokenBucket.UNLIMITED : increased);
+            }
+        }
+    }
+}
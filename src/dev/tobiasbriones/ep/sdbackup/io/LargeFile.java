@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copies a large file as independent fixed-size ranges, so several workers
+ * can copy it at the same time. The source channel is shared by all the
+ * ranges and closed after the last one.
+ *
+ * <p>For a single destination, each range is transferred in the kernel into
+ * a channel of its own positioned at the range. Otherwise, each range is read
+ * into pooled buffers that are queued to every {@link DestinationWriter}.</p>
+ *
+ * @author Tobias Briones
+ */
+final class LargeFile {
+    private final FileChannel in;
+    private final Path target;
+    private final List<DestinationWriter> writers;
+    private final List<DestinationWriter.OutputFile> outputs;
+    private final BufferPool chunks;
+    private final AtomicInteger remainingRanges;
+    private final AtomicReference<IOException> failure;
+    private final CopyProgress.Destination counter;
+    private final Path relativePath;
+    private final FileSelector selector;
+
+    private LargeFile(
+        FileChannel in,
+        Path target,
+        List<DestinationWriter> writers,
+        List<DestinationWriter.OutputFile> outputs,
+        BufferPool chunks,
+        int ranges,
+        AtomicReference<IOException> failure,
+        CopyProgress.Destination counter,
+        Path relativePath,
+        FileSelector selector
+    ) {
+        this.in = in;
+        this.target = target;
+        this.writers = writers;
+        this.outputs = outputs;
+        this.chunks = chunks;
+        this.remainingRanges = new AtomicInteger(ranges);
+        this.failure = failure;
+        this.counter = counter;
+        this.relativePath = relativePath;
+        this.selector = selector;
+    }
+
+    /**
+     * Opens the source and creates the destination file with its final size,
+     * ready to be filled by the given number of ranges. Copied bytes are
+     * counted in the given destination counter, and the file is given to the
+     * selector once it's copied whole.
+     */
+    static LargeFile open(
+        Path file,
+        long size,
+        Path target,
+        int ranges,
+        AtomicReference<IOException> failure,
+        CopyProgress.Destination counter,
+        Path relativePath,
+        FileSelector selector
+    ) throws IOException {
+        final FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+
+        try (FileChannel out = CopyStrategies.create(target, CopyStrategies.creationAttributes(file))) {
+            // Sets the final size upfront so ranges never extend the file
+            out.write(ByteBuffer.allocate(1), size - 1L);
+        }
+        catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new LargeFile(in, target, null, null, null, ranges, failure, counter, relativePath, selector);
+    }
+
+    /**
+     * Opens the source and creates the destination file in each of the given
+     * writers, ready to be filled by the given number of ranges read into
+     * buffers of the given pool.
+     */
+    static LargeFile open(
+        Path file,
+        Path relativePath,
+        List<DestinationWriter> writers,
+        BufferPool chunks,
+        int ranges,
+        AtomicReference<IOException> failure
+    ) throws IOException {
+        final FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+        final List<DestinationWriter.OutputFile> outputs = new ArrayList<>(writers.size());
+
+        try {
+            final FileAttribute<?>[] attrs = CopyStrategies.creationAttributes(file);
+
+            for (DestinationWriter writer : writers) {
+                outputs.add(writer.open(relativePath, attrs));
+            }
+        }
+        catch (IOException e) {
+            failure.compareAndSet(null, e);
+            outputs.forEach(DestinationWriter.OutputFile::release);
+            in.close();
+            throw e;
+        }
+        return new LargeFile(in, null, writers, outputs, chunks, ranges, failure, null, null, null);
+    }
+
+    /**
+     * Copies the given range and releases the file if it was the last one.
+     */
+    void copyRange(long position, long length) throws IOException {
+        try {
+            if (target != null) {
+                copyRangeToFile(position, length);
+            }
+            else {
+                copyRangeToWriters(position, length);
+            }
+        }
+        catch (IOException e) {
+            // Set before the file is released, so it's not taken as copied
+            failure.compareAndSet(null, e);
+            throw e;
+        }
+        finally {
+            if (remainingRanges.decrementAndGet() == 0) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Gives up on the given number of ranges that won't be copied because the
+     * copy failed, so the file is still released.
+     */
+    void skipRanges(int count) {
+        if (remainingRanges.addAndGet(-count) == 0) {
+            close();
+        }
+    }
+
+    private void copyRangeToFile(long position, long length) throws IOException {
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            final long end = position + length;
+            long offset = position;
+
+            out.position(position);
+            while (offset < end) {
+                final long n = in.transferTo(offset, end - offset, out);
+
+                // The file was truncated while copying
+                if (n <= 0L) {
+                    break;
+                }
+                offset += n;
+                counter.bytesCopied(n);
+            }
+        }
+    }
+
+    private void copyRangeToWriters(long position, long length) throws IOException {
+        final long end = position + length;
+        long offset = position;
+
+        while (offset < end) {
+            final BufferPool.Buffer chunk = chunks.take();
+
+            try {
+                final ByteBuffer content = chunk.content();
+
+                content.limit((int) Math.min(content.capacity(), end - offset));
+                if (!readFully(content, offset)) {
+                    break;
+                }
+                content.flip();
+                for (int i = 0; i < writers.size(); i++) {
+                    writers.get(i).write(outputs.get(i), chunk, offset);
+                }
+                offset += content.remaining();
+            }
+            finally {
+                chunk.release();
+            }
+        }
+    }
+
+    /**
+     * Reads at the given position until the buffer is full or the end of the
+     * file is reached, and returns whether anything was read.
+     */
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        long offset = position;
+
+        while (buffer.hasRemaining()) {
+            final int n = in.read(buffer, offset);
+
+            if (n == -1) {
+                break;
+            }
+            offset += n;
+        }
+        return buffer.position() > 0;
+    }
+
+    private void close() {
+        closeChannel(in);
+        if (counter != null) {
+            counter.fileCopied();
+            if (failure.get() == null) {
+                try {
+                    selector.copied(0, relativePath);
+                }
+                catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        }
+        if (outputs != null) {
+            outputs.forEach(DestinationWriter.OutputFile::release);
+        }
+    }
+
+    private void closeChannel(FileChannel channel) {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which a copy reads bytes and files. It's shared by every
+ * copy thread, which reserve what they're about to copy and wait for as long
+ * as the throttle tells them.
+ *
+ * @author Tobias Briones
+ */
+public interface Throttle {
+    Throttle NONE = (bytes, files) -> 0L;
+
+    /**
+     * Reserves the given amount of work.
+     *
+     * @param bytes bytes about to be read
+     * @param files files about to be opened
+     * @return nanoseconds to wait before doing the work
+     */
+    long reserve(long bytes, int files);
+
+    /**
+     * Called after reserved work is done, with how long it took.
+     *
+     * @param bytes bytes that were read
+     * @param nanos time it took
+     */
+    default void completed(long bytes, long nanos) {}
+
+    /**
+     * Reserves the given amount of work and waits until it can be done.
+     *
+     * @param bytes bytes about to be read
+     * @param files files about to be opened
+     * @throws IOException if the thread is interrupted while waiting
+     */
+    default void acquire(long bytes, int files) throws IOException {
+        final long wait = reserve(bytes, files);
+
+        if (wait > 0L) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Copy interrupted", e);
+            }
+        }
+    }
+
+    /**
+     * Returns a throttle that holds back work until every given throttle
+     * allows it.
+     */
+    static Throttle all(List<Throttle> throttles) {
+        final List<Throttle> limited = new ArrayList<>(throttles.size());
+
+        for (Throttle throttle : throttles) {
+            if (throttle != NONE) {
+                limited.add(throttle);
+            }
+        }
+        if (limited.isEmpty()) {
+            return NONE;
+        }
+        if (limited.size() == 1) {
+            return limited.get(0);
+        }
+        return new Throttle() {
+            @Override
+            public long reserve(long bytes, int files) {
+                long wait = 0L;
+
+                for (Throttle throttle : limited) {
+                    wait = Math.max(wait, throttle.reserve(bytes, files));
+                }
+                return wait;
+            }
+
+            @Override
+            public void completed(long bytes, long nanos) {
+                for (Throttle throttle : limited) {
+                    throttle.completed(bytes, nanos);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.io;
+
+/**
+ * Throttles bytes and files per second with a token bucket for each. Work is
+ * reserved against a virtual clock that advances by the time the work takes
+ * at the configured rate, and waits until the clock catches up with it, so
+ * the rate holds however many threads share the bucket.
+ *
+ * <p>A bucket that wasn't used for a while lets through up to {@link
+ * #BURST_NANOS} worth of work without waiting.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class TokenBucket implements Throttle {
+    public static final long UNLIMITED = 0L;
+    public static final long BURST_NANOS = 100_000_000L;
+    private final Rate bytes;
+    private final Rate files;
+
+    /**
+     * @param bytesPerSecond bytes allowed per second, or {@link #UNLIMITED}
+     * @param filesPerSecond files allowed per second, or {@link #UNLIMITED}
+     */
+    public TokenBucket(long bytesPerSecond, long filesPerSecond) {
+        this.bytes = new Rate(bytesPerSecond);
+        this.files = new Rate(filesPerSecond);
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return bytes.perSecond;
+    }
+
+    public synchronized void setBytesPerSecond(long value) {
+        bytes.perSecond = value;
+    }
+
+    public synchronized long getFilesPerSecond() {
+        return files.perSecond;
+    }
+
+    public synchronized void setFilesPerSecond(long value) {
+        files.perSecond = value;
+    }
+
+    @Override
+    public synchronized long reserve(long bytes, int files) {
+        final long now = System.nanoTime();
+        return Math.max(this.bytes.reserve(now, bytes), this.files.reserve(now, files));
+    }
+
+    private static final class Rate {
+        private long perSecond;
+        private long next;
+
+        Rate(long perSecond) {
+            this.perSecond = perSecond;
+            this.next = System.nanoTime() - BURST_NANOS;
+        }
+
+        long reserve(long now, long amount) {
+            if (perSecond <= 0L || amount <= 0L) {
+                return 0L;
+            }
+            // Unused time only adds up to the burst
+            if (next - now < -BURST_NANOS) {
+                next = now - BURST_NANOS;
+            }
+            next += (long) (amount * 1.0e9 / perSecond);
+            return Math.max(0L, next - now);
+        }
+    }
+}
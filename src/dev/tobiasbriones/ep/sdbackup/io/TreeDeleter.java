@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Deletes whole folder trees on several threads. Each folder is listed by
+ * the thread that finds it, its files are deleted right away and its
+ * subfolders are split among the threads, so deep and wide trees both keep
+ * every thread busy. A folder is deleted once everything in it is.
+ *
+ * <p>Files are only unlinked, never opened or truncated, so a file that is
+ * also hard linked from somewhere else keeps its content there. Symbolic
+ * links are deleted themselves, never followed. Given files can be kept, in
+ * which case the folders holding them are kept too.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class TreeDeleter {
+    private final ForkJoinPool pool;
+    private final LongAdder files;
+
+    public TreeDeleter(int threads) {
+        this.pool = new ForkJoinPool(threads);
+        this.files = new LongAdder();
+    }
+
+    /**
+     * Deletes the given folders and everything in them. Folders that don't
+     * exist are skipped.
+     *
+     * @param dirs folders to delete
+     * @throws IOException if something can't be deleted, in which case the
+     *                     rest of the trees may be partially deleted
+     */
+    public void delete(List<Path> dirs) throws IOException {
+        delete(dirs, file -> false);
+    }
+
+    /**
+     * Deletes everything in the given folders but the files the given
+     * predicate keeps, and the folders left empty.
+     *
+     * @param dirs folders to delete
+     * @param keep tells whether to keep a file, called from several threads
+     * @throws IOException if something can't be deleted
+     */
+    public void delete(List<Path> dirs, Predicate<Path> keep) throws IOException {
+        final List<ForkJoinTask<Boolean>> tasks = new ArrayList<>(dirs.size());
+
+        try {
+            for (Path dir : dirs) {
+                tasks.add(pool.submit(new DeleteDirectory(dir, keep)));
+            }
+            for (ForkJoinTask<Boolean> task : tasks) {
+                task.join();
+            }
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Returns the number of files deleted so far, not counting folders.
+     */
+    public long getFilesDeleted() {
+        return files.sum();
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Deletes a folder and returns whether it's gone, which is only not the
+     * case if it holds a file to keep.
+     */
+    private final class DeleteDirectory extends RecursiveTask<Boolean> {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+        private final Predicate<Path> keep;
+
+        DeleteDirectory(Path dir, Predicate<Path> keep) {
+            this.dir = dir;
+            this.keep = keep;
+        }
+
+        @Override
+        protected Boolean compute() {
+            try {
+                final List<DeleteDirectory> subdirs = new ArrayList<>();
+                final DirectoryStream<Path> entries;
+                boolean empty = true;
+
+                try {
+                    entries = Files.newDirectoryStream(dir);
+                }
+                catch (NoSuchFileException e) {
+                    return true;
+                }
+                try (DirectoryStream<Path> stream = entries) {
+                    for (Path child : stream) {
+                        final BasicFileAttributes attrs = Files.readAttributes(
+                            child,
+                            BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS
+                        );
+
+                        if (attrs.isDirectory()) {
+                            subdirs.add(new DeleteDirectory(child, keep));
+                        }
+                        else if (keep.test(child)) {
+                            empty = false;
+                        }
+                        else {
+                            Files.delete(child);
+                            files.increment();
+                        }
+                    }
+                }
+                invokeAll(subdirs);
+                for (DeleteDirectory subdir : subdirs) {
+                    empty &= subdir.join();
+                }
+                if (empty) {
+                    Files.delete(dir);
+                }
+                return empty;
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
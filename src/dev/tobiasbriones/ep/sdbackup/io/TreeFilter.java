@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.io;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Leaves files and whole directories of the source tree out of a copy. A
+ * directory that isn't accepted is never walked. It's called from the thread
+ * walking the tree, in walk order.
+ *
+ * @author Tobias Briones
+ */
+public interface TreeFilter {
+    TreeFilter ALL = (relativePath, isDirectory) -> true;
+
+    /**
+     * Returns whether the given entry is part of the copy.
+     *
+     * @param relativePath path of the entry relative to the source
+     * @param isDirectory  whether the entry is a directory
+     * @return whether to copy the file or walk the directory
+     */
+    boolean accept(Path relativePath, boolean isDirectory);
+
+    /**
+     * Called when an accepted directory is entered, before its entries.
+     *
+     * @param dir         the directory
+     * @param relativeDir path of the directory relative to the source
+     */
+    default void enter(Path dir, Path relativeDir) throws IOException {}
+
+    /**
+     * Called after every entry of a directory was visited.
+     *
+     * @param relativeDir path of the directory relative to the source
+     */
+    default void leave(Path relativeDir) {}
+}
@@ -15,6 +15,7 @@ package dev.tobiasbriones.ep.sdbackup.model;
 import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -35,6 +36,15 @@ public final class BackupTask implements Serializable, Iterable<File> {
     private String sdPath;
     private String sdOwner;
     private String sdType;
+    private List<String> exclusions;
+    private boolean honorGitignore;
+    private long maxBytesPerSecond;
+    private long maxFilesPerSecond;
+    private boolean idlePriority;
+    private boolean checksums;
+    private RetentionPolicy retention;
+    private boolean encrypted;
+    private File keyFile;
 
     public BackupTask() {
         this.destinations = new ArrayList<>(INITIAL_CAPACITY);
@@ -43,6 +53,15 @@ public final class BackupTask implements Serializable, Iterable<File> {
         this.sdPath = null;
         this.sdOwner = null;
         this.sdType = null;
+        this.exclusions = new ArrayList<>();
+        this.honorGitignore = false;
+        this.maxBytesPerSecond = 0L;
+        this.maxFilesPerSecond = 0L;
+        this.idlePriority = false;
+        this.checksums = false;
+        this.retention = RetentionPolicy.KEEP_ALL;
+        this.encrypted = false;
+        this.keyFile = null;
     }
 
     public String getName() {
@@ -85,6 +104,122 @@ public final class BackupTask implements Serializable, Iterable<File> {
         return sdPath != null;
     }
 
+    /**
+     * Returns the gitignore-style patterns of the files to leave out of the
+     * backup, relative to the target.
+     *
+     * @return the exclusion patterns
+     */
+    public List<String> getExclusions() {
+        // Tasks saved before exclusions existed are deserialized without them
+        return exclusions == null ? Collections.emptyList() : Collections.unmodifiableList(exclusions);
+    }
+
+    public void addExclusion(String pattern) {
+        if (exclusions == null) {
+            exclusions = new ArrayList<>();
+        }
+        exclusions.add(pattern);
+    }
+
+    /**
+     * Returns whether the .gitignore files found in the target are applied
+     * besides the exclusions of the task.
+     */
+    public boolean isHonorGitignore() {
+        return honorGitignore;
+    }
+
+    public void setHonorGitignore(boolean value) {
+        this.honorGitignore = value;
+    }
+
+    /**
+     * Returns the bytes read per second the backup is limited to, or 0 if
+     * it's not limited.
+     */
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    public void setMaxBytesPerSecond(long value) {
+        this.maxBytesPerSecond = value;
+    }
+
+    /**
+     * Returns the files copied per second the backup is limited to, or 0 if
+     * it's not limited.
+     */
+    public long getMaxFilesPerSecond() {
+        return maxFilesPerSecond;
+    }
+
+    public void setMaxFilesPerSecond(long value) {
+        this.maxFilesPerSecond = value;
+    }
+
+    /**
+     * Returns whether the backup slows down while other work is using the
+     * same disks.
+     */
+    public boolean isIdlePriority() {
+        return idlePriority;
+    }
+
+    public void setIdlePriority(boolean value) {
+        this.idlePriority = value;
+    }
+
+    /**
+     * Returns whether the copied files are hashed, so the snapshots can be
+     * verified later.
+     */
+    public boolean isChecksums() {
+        return checksums;
+    }
+
+    public void setChecksums(boolean value) {
+        this.checksums = value;
+    }
+
+    /**
+     * Returns the policy deciding which old snapshots are deleted after each
+     * backup.
+     */
+    public RetentionPolicy getRetention() {
+        // Tasks saved before retention existed are deserialized without it
+        return retention == null ? RetentionPolicy.KEEP_ALL : retention;
+    }
+
+    public void setRetention(RetentionPolicy value) {
+        this.retention = value;
+    }
+
+    /**
+     * Returns whether the archives written by this task are encrypted, with
+     * the key file if there's one or the passphrase set in the environment
+     * otherwise.
+     */
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+
+    public void setEncrypted(boolean value) {
+        this.encrypted = value;
+    }
+
+    /**
+     * Returns the file whose content is the key of the encrypted archives, or
+     * {@code null} to use the passphrase set in the environment.
+     */
+    public File getKeyFile() {
+        return keyFile;
+    }
+
+    public void setKeyFile(File value) {
+        this.keyFile = value;
+    }
+
     @Override
     public Iterator<File> iterator() {
         return destinations.iterator();
@@ -100,8 +235,19 @@ public final class BackupTask implements Serializable, Iterable<File> {
         sdPath = null;
         sdOwner = null;
         sdType = null;
+        honorGitignore = false;
+        maxBytesPerSecond = 0L;
+        maxFilesPerSecond = 0L;
+        idlePriority = false;
+        checksums = false;
+        retention = RetentionPolicy.KEEP_ALL;
+        encrypted = false;
+        keyFile = null;
 
         destinations.clear();
+        if (exclusions != null) {
+            exclusions.clear();
+        }
     }
 
     private void updateSdPath() {
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.model;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+
+/**
+ * Decides which snapshots of a task are kept. The latest snapshots are kept,
+ * up to the keep last count, and so is the latest snapshot of each of the
+ * most recent hours, days, weeks and months that have one, up to the count
+ * of each. A snapshot kept by any rule is kept.
+ *
+ * <p>The latest snapshot is always kept, since the next backup is based on
+ * it. A policy with every count at 0 keeps everything.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class RetentionPolicy implements Serializable {
+    public static final RetentionPolicy KEEP_ALL = new RetentionPolicy(0, 0, 0, 0, 0);
+    private static final long serialVersionUID = 1L;
+    private final int last;
+    private final int hourly;
+    private final int daily;
+    private final int weekly;
+    private final int monthly;
+
+    public RetentionPolicy(int last, int hourly, int daily, int weekly, int monthly) {
+        if (last < 0 || hourly < 0 || daily < 0 || weekly < 0 || monthly < 0) {
+            throw new IllegalArgumentException("Negative retention count");
+        }
+        this.last = last;
+        this.hourly = hourly;
+        this.daily = daily;
+        this.weekly = weekly;
+        this.monthly = monthly;
+    }
+
+    public int getLast() {
+        return last;
+    }
+
+    public int getHourly() {
+        return hourly;
+    }
+
+    public int getDaily() {
+        return daily;
+    }
+
+    public int getWeekly() {
+        return weekly;
+    }
+
+    public int getMonthly() {
+        return monthly;
+    }
+
+    /**
+     * Returns whether this policy keeps every snapshot.
+     */
+    public boolean isKeepAll() {
+        return last == 0 && hourly == 0 && daily == 0 && weekly == 0 && monthly == 0;
+    }
+
+    /**
+     * Returns the snapshots to keep out of the given ones.
+     *
+     * @param snapshots  snapshots of a single task, in any order
+     * @param createdAt  time each snapshot was taken, in epoch milliseconds
+     * @param zone       time zone the hours, days, weeks and months are in
+     * @param <T>        type of the snapshots
+     * @return the snapshots to keep, newest first
+     */
+    public <T> Set<T> select(List<T> snapshots, ToLongFunction<? super T> createdAt, ZoneId zone) {
+        final List<T> newestFirst = new ArrayList<>(snapshots);
+        final Set<T> kept = new LinkedHashSet<>();
+
+        newestFirst.sort(Comparator.comparingLong(createdAt).reversed());
+        if (isKeepAll()) {
+            kept.addAll(newestFirst);
+            return kept;
+        }
+        final long[] hours = new long[newestFirst.size()];
+        final long[] days = new long[newestFirst.size()];
+        final long[] weeks = new long[newestFirst.size()];
+        final long[] months = new long[newestFirst.size()];
+
+        for (int i = 0; i < newestFirst.size(); i++) {
+            final LocalDateTime time = LocalDateTime.ofInstant(
+                Instant.ofEpochMilli(createdAt.applyAsLong(newestFirst.get(i))),
+                zone
+            );
+
+            days[i] = time.toLocalDate().toEpochDay();
+            hours[i] = days[i] * 24L + time.getHour();
+            weeks[i] = time.get(IsoFields.WEEK_BASED_YEAR) * 100L + time.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR);
+            months[i] = time.getYear() * 12L + time.getMonthValue();
+        }
+        for (int i = 0; i < newestFirst.size() && i < Math.max(1, last); i++) {
+            kept.add(newestFirst.get(i));
+        }
+        keepLatestOfEach(newestFirst, hours, hourly, kept);
+        keepLatestOfEach(newestFirst, days, daily, kept);
+        keepLatestOfEach(newestFirst, weeks, weekly, kept);
+        keepLatestOfEach(newestFirst, months, monthly, kept);
+        return kept;
+    }
+
+    /**
+     * Keeps the newest snapshot of each of the given number of most recent
+     * periods, given the period of each snapshot sorted newest first.
+     */
+    private static <T> void keepLatestOfEach(List<T> newestFirst, long[] periods, int count, Set<T> kept) {
+        int periodsKept = 0;
+
+        for (int i = 0; i < newestFirst.size() && periodsKept < count; i++) {
+            if (i == 0 || periods[i] != periods[i - 1]) {
+                kept.add(newestFirst.get(i));
+                periodsKept++;
+            }
+        }
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.model;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Stores every backup task in a single append-only file. Each change only
+ * appends a small record with the task that changed, and the file is
+ * rewritten into a new one, which atomically replaces it, once most of its
+ * records are outdated.
+ *
+ * <p>The file starts with a magic number and a version, followed by the
+ * records. Each record has its length and a CRC-32 of its content, so a
+ * record torn by a crash is detected and dropped when the store is opened.
+ * Only the last record can be torn, so a bad record followed by others
+ * fails to open instead, leaving the store as it is.</p>
+ *
+ * <p>An open store holds an exclusive lock on a sibling lock file, so a
+ * second one can't truncate or compact it under the first.</p>
+ *
+ * <p>Version 2 adds the exclusions of each task, version 3 its throttling
+ * limits, version 4 whether it keeps checksums, version 5 its retention
+ * policy and version 6 whether it encrypts its archives and its key file.
+ * Stores of older versions are still read, and rewritten with the
+ * current version when opened.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class TaskStore implements Closeable {
+    private static final int MAGIC = 0x53445453;
+    private static final int VERSION = 6;
+    private static final int FIRST_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final byte TAG_PUT = 1;
+    private static final byte TAG_REMOVE = 2;
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String LOCK_EXTENSION = ".lock";
+    private final Path file;
+    private final Map<String, BackupTask> tasks;
+    private final FileChannel lockChannel;
+    private FileChannel channel;
+    private int records;
+
+    private TaskStore(
+        Path file,
+        Map<String, BackupTask> tasks,
+        FileChannel lockChannel,
+        FileChannel channel,
+        int records
+    ) {
+        this.file = file;
+        this.tasks = tasks;
+        this.lockChannel = lockChannel;
+        this.channel = channel;
+        this.records = records;
+    }
+
+    /**
+     * Opens the store in the given file, creating it if it doesn't exist.
+     *
+     * @param file store file
+     * @return the open store
+     * @throws IOException if the store is open somewhere else, or it can't
+     *                     be read or written
+     */
+    public static TaskStore open(Path file) throws IOException {
+        final FileChannel lockChannel = FileChannel.open(
+            file.resolveSibling(file.getFileName() + LOCK_EXTENSION),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE
+        );
+        FileLock lock = null;
+
+        try {
+            lock = lockChannel.tryLock();
+        }
+        catch (OverlappingFileLockException ignore) {}
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Task store in use: " + file);
+        }
+        try {
+            return open(file, lockChannel);
+        }
+        catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    private static TaskStore open(Path file, FileChannel lockChannel) throws IOException {
+        if (!Files.exists(file)) {
+            write(file, new ArrayList<>(0));
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        final Map<String, BackupTask> tasks = new LinkedHashMap<>();
+        final int version = readHeader(buffer, file);
+        int records = 0;
+
+        while (readRecord(buffer, tasks, version, file)) {
+            records++;
+        }
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+
+        try {
+            // Drops a record torn by a crash, so new ones follow the last
+            // complete record
+            channel.truncate(buffer.position());
+            channel.position(buffer.position());
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        final TaskStore store = new TaskStore(file, tasks, lockChannel, channel, records);
+
+        if (version < VERSION) {
+            store.compact();
+        }
+        else {
+            store.compactIfNeeded();
+        }
+        return store;
+    }
+
+    /**
+     * Reads the tasks of the store in the given file without opening it for
+     * writing, so a store kept open by someone else is never touched.
+     */
+    public static List<BackupTask> read(Path file) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        final Map<String, BackupTask> tasks = new LinkedHashMap<>();
+        final int version = readHeader(buffer, file);
+
+        while (readRecord(buffer, tasks, version, file)) {}
+        return new ArrayList<>(tasks.values());
+    }
+
+    /**
+     * Writes a new compacted store with the given tasks, replacing the given
+     * file atomically.
+     */
+    public static void write(Path file, Collection<BackupTask> tasks) throws IOException {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (
+            FileChannel out = FileChannel.open(
+                tmp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+            );
+            DataOutputStream data = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(out), BUFFER_SIZE)
+            )
+        ) {
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            for (BackupTask task : tasks) {
+                data.write(putRecord(task));
+            }
+            data.flush();
+            out.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the stored tasks in the order they were first added.
+     */
+    public synchronized List<BackupTask> getTasks() {
+        return new ArrayList<>(tasks.values());
+    }
+
+    /**
+     * Adds the given task, or replaces the task with the same name.
+     */
+    public synchronized void put(BackupTask task) throws IOException {
+        append(putRecord(task), 1);
+        tasks.put(task.getName(), task);
+        compactIfNeeded();
+    }
+
+    /**
+     * Replaces the task with the given old name by the given task, which may
+     * have been renamed.
+     */
+    public synchronized void replace(String oldName, BackupTask task) throws IOException {
+        if (oldName.equals(task.getName())) {
+            put(task);
+            return;
+        }
+        final byte[] remove = removeRecord(oldName);
+        final byte[] put = putRecord(task);
+        final byte[] both = new byte[remove.length + put.length];
+
+        // Both records go in a single write so a crash can't lose the task
+        System.arraycopy(remove, 0, both, 0, remove.length);
+        System.arraycopy(put, 0, both, remove.length, put.length);
+        append(both, 2);
+        tasks.remove(oldName);
+        tasks.put(task.getName(), task);
+        compactIfNeeded();
+    }
+
+    public synchronized void remove(String name) throws IOException {
+        if (tasks.containsKey(name)) {
+            append(removeRecord(name), 1);
+            tasks.remove(name);
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Rewrites the store with only the current tasks.
+     */
+    public synchronized void compact() throws IOException {
+        channel.close();
+        try {
+            write(file, tasks.values());
+        }
+        finally {
+            channel = FileChannel.open(file, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        }
+        records = tasks.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            channel.close();
+        }
+        finally {
+            // Releases the lock
+            lockChannel.close();
+        }
+    }
+
+    private void append(byte[] bytes, int count) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        records += count;
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (records >= MIN_COMPACTION_RECORDS && records > 2 * tasks.size()) {
+            compact();
+        }
+    }
+
+    private static byte[] putRecord(BackupTask task) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final List<File> destinations = new ArrayList<>();
+
+        task.forEach(destinations::add);
+        out.writeByte(TAG_PUT);
+        writeString(out, task.getName());
+        out.writeBoolean(task.getTarget() != null);
+        if (task.getTarget() != null) {
+            writeString(out, task.getTarget().getPath());
+        }
+        out.writeInt(destinations.size());
+        for (File destination : destinations) {
+            writeString(out, destination.getPath());
+        }
+        out.writeInt(task.getExclusions().size());
+        for (String exclusion : task.getExclusions()) {
+            writeString(out, exclusion);
+        }
+        out.writeBoolean(task.isHonorGitignore());
+        out.writeLong(task.getMaxBytesPerSecond());
+        out.writeLong(task.getMaxFilesPerSecond());
+        out.writeBoolean(task.isIdlePriority());
+        out.writeBoolean(task.isChecksums());
+        writeRetention(out, task.getRetention());
+        out.writeBoolean(task.isEncrypted());
+        out.writeBoolean(task.getKeyFile() != null);
+        if (task.getKeyFile() != null) {
+            writeString(out, task.getKeyFile().getPath());
+        }
+        return frame(bytes.toByteArray());
+    }
+
+    private static byte[] removeRecord(String name) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeByte(TAG_REMOVE);
+        writeString(out, name);
+        return frame(bytes.toByteArray());
+    }
+
+    /**
+     * Prefixes the given content with its length and follows it with its
+     * CRC-32.
+     */
+    private static byte[] frame(byte[] content) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer record = ByteBuffer.allocate(content.length + 8);
+
+        crc.update(content, 0, content.length);
+        record.putInt(content.length);
+        record.put(content);
+        record.putInt((int) crc.getValue());
+        return record.array();
+    }
+
+    /**
+     * Reads the magic number and the version, returning the version.
+     */
+    private static int readHeader(ByteBuffer buffer, Path file) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a task store " + file);
+        }
+        final int version = buffer.getInt();
+
+        if (version < FIRST_VERSION || version > VERSION) {
+            throw new IOException("Unsupported task store version " + version + ": " + file);
+        }
+        return version;
+    }
+
+    /**
+     * Applies the next record to the given tasks, and returns false without
+     * moving the buffer if there's no complete record left, that is, if the
+     * rest of the file is a record torn by a crash.
+     *
+     * @throws IOException if the next record is corrupted but isn't the last
+     */
+    private static boolean readRecord(
+        ByteBuffer buffer,
+        Map<String, BackupTask> tasks,
+        int version,
+        Path file
+    ) throws IOException {
+        final int start = buffer.position();
+
+        if (buffer.remaining() < 4) {
+            return false;
+        }
+        final int length = buffer.getInt();
+
+        // A record has at least its tag
+        if (length <= 0 || length > buffer.remaining() - 4) {
+            buffer.position(start);
+            if (length > 0 || isTornTail(buffer)) {
+                return false;
+            }
+            throw new IOException("Corrupted task store record at " + start + ": " + file);
+        }
+        final CRC32 crc = new CRC32();
+        final int contentOffset = buffer.position();
+
+        crc.update(buffer.array(), contentOffset, length);
+        buffer.position(contentOffset + length);
+        if (buffer.getInt() != (int) crc.getValue()) {
+            final boolean last = !buffer.hasRemaining();
+
+            buffer.position(start);
+            if (last || isTornTail(buffer)) {
+                return false;
+            }
+            throw new IOException("Corrupted task store record at " + start + ": " + file);
+        }
+        final ByteBuffer in = ByteBuffer.wrap(buffer.array(), contentOffset, length);
+        final byte tag = in.get();
+        final String name = readString(in);
+
+        switch (tag) {
+            case TAG_PUT:
+                tasks.put(name, readTask(in, name, version));
+                break;
+
+            case TAG_REMOVE:
+                tasks.remove(name);
+                break;
+
+            default:
+                throw new IOException("Corrupted task store record " + tag);
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether the rest of the buffer is only zeros, which a crash
+     * leaves when the file grew but its last record never reached the disk.
+     */
+    private static boolean isTornTail(ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static BackupTask readTask(ByteBuffer in, String name, int version) {
+        final BackupTask task = new BackupTask();
+
+        if (in.get() != 0) {
+            task.setTarget(new File(readString(in)));
+        }
+        // Restored after the target since it may rename SD Backup tasks
+        task.setName(name);
+        final int destinations = in.getInt();
+
+        for (int i = 0; i < destinations; i++) {
+            task.addDestination(new File(readString(in)));
+        }
+        if (version >= 2) {
+            final int exclusions = in.getInt();
+
+            for (int i = 0; i < exclusions; i++) {
+                task.addExclusion(readString(in));
+            }
+            task.setHonorGitignore(in.get() != 0);
+        }
+        if (version >= 3) {
+            task.setMaxBytesPerSecond(in.getLong());
+            task.setMaxFilesPerSecond(in.getLong());
+            task.setIdlePriority(in.get() != 0);
+        }
+        if (version >= 4) {
+            task.setChecksums(in.get() != 0);
+        }
+        if (version >= 5) {
+            task.setRetention(new RetentionPolicy(in.getInt(), in.getInt(), in.getInt(), in.getInt(), in.getInt()));
+        }
+        if (version >= 6) {
+            task.setEncrypted(in.get() != 0);
+            if (in.get() != 0) {
+                task.setKeyFile(new File(readString(in)));
+            }
+        }
+        return task;
+    }
+
+    private static void writeRetention(DataOutputStream out, RetentionPolicy retention) throws IOException {
+        out.writeInt(retention.getLast());
+        out.writeInt(retention.getHourly());
+        out.writeInt(retention.getDaily());
+        out.writeInt(retention.getWeekly());
+        out.writeInt(retention.getMonthly());
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        final int length = in.getInt();
+        final String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+
+        in.position(in.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.restore;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+
+/**
+ * Tells which snapshot of a task to restore: the latest one, the one with a
+ * given name, or the newest one taken at or before a given time.
+ *
+ * @author Tobias Briones
+ */
+public final class RestorePoint {
+    public static final String LATEST = "latest";
+    private static final DateTimeFormatter SNAPSHOT_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM.dd HH_mm");
+    private static final long MINUTE_MILLIS = 60L * 1000L;
+    private final String name;
+    private final long time;
+
+    private RestorePoint(String name, long time) {
+        this.name = name;
+        this.time = time;
+    }
+
+    /**
+     * Returns the name of the snapshot asked for, or null if it was given by
+     * time.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the latest time in epoch milliseconds a snapshot can have been
+     * taken at to be restored.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public static RestorePoint latest() {
+        return new RestorePoint(null, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns the newest snapshot taken at or before the given time.
+     *
+     * @param time time in epoch milliseconds
+     * @return the restore point
+     */
+    public static RestorePoint at(long time) {
+        return new RestorePoint(null, time);
+    }
+
+    /**
+     * Reads a restore point given as {@link #LATEST}, as a snapshot name like
+     * 2018.06.30 14_05, as a local date and time like 2018-06-30T14:05 or as
+     * a local date, which stands for the end of that day.
+     *
+     * @param text restore point to read
+     * @return the restore point
+     * @throws IllegalArgumentException if the text is none of those
+     */
+    public static RestorePoint parse(String text) {
+        final ZoneId zone = ZoneId.systemDefault();
+
+        if (text.equalsIgnoreCase(LATEST)) {
+            return latest();
+        }
+        try {
+            final long start = LocalDateTime.parse(text, SNAPSHOT_NAME_FORMAT).atZone(zone).toInstant().toEpochMilli();
+
+            // A snapshot named after a minute may have been taken at any
+            // time within it
+            return new RestorePoint(text, start + MINUTE_MILLIS - 1L);
+        }
+        catch (DateTimeParseException ignore) {}
+        try {
+            return at(LocalDateTime.parse(text).atZone(zone).toInstant().toEpochMilli());
+        }
+        catch (DateTimeParseException ignore) {}
+        try {
+            return at(LocalDate.parse(text).plusDays(1L).atStartOfDay(zone).toInstant().toEpochMilli() - 1L);
+        }
+        catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Not a snapshot, date or time: " + text);
+        }
+    }
+
+    /**
+     * Picks the snapshot this point refers to. A snapshot with the name asked
+     * for comes first, then the newest snapshot taken at or before the time.
+     *
+     * @param createdAt time each snapshot was taken at by name
+     * @return the name of the snapshot or null if there's none
+     */
+    public String select(Map<String, Long> createdAt) {
+        String selected = null;
+        long selectedAt = Long.MIN_VALUE;
+
+        if (name != null && createdAt.containsKey(name)) {
+            return name;
+        }
+        for (Map.Entry<String, Long> entry : createdAt.entrySet()) {
+            final long at = entry.getValue();
+
+            if (at <= time && (at > selectedAt || (at == selectedAt && entry.getKey().compareTo(selected) > 0))) {
+                selected = entry.getKey();
+                selectedAt = at;
+            }
+        }
+        return selected;
+    }
+
+    @Override
+    public String toString() {
+        if (name != null) {
+            return name;
+        }
+        if (time == Long.MAX_VALUE) {
+            return LATEST;
+        }
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()).toString();
+    }
+}
@@ -0,0 +1,578 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.restore;
+
+import dev.tobiasbriones.ep.sdbackup.archive.Archive;
+import dev.tobiasbriones.ep.sdbackup.archive.ArchiveKey;
+import dev.tobiasbriones.ep.sdbackup.io.CopyEngine;
+import dev.tobiasbriones.ep.sdbackup.io.CopyProgress;
+import dev.tobiasbriones.ep.sdbackup.io.FileSelector;
+import dev.tobiasbriones.ep.sdbackup.io.TreeFilter;
+import dev.tobiasbriones.ep.sdbackup.snapshot.Manifest;
+import dev.tobiasbriones.ep.sdbackup.snapshot.ManifestEntry;
+import dev.tobiasbriones.ep.sdbackup.snapshot.Snapshots;
+import dev.tobiasbriones.ep.sdbackup.store.ChunkStore;
+import dev.tobiasbriones.ep.sdbackup.store.SnapshotTree;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Rebuilds a snapshot of a task, or a file or folder of it, into a target
+ * folder with the workers of a {@link CopyEngine}.
+ *
+ * <p>The manifest of the snapshot tells which files it has and which
+ * snapshot holds each of them. The files are copied from the snapshot folder
+ * itself, which has all of them when it was taken with hard links, and the
+ * ones it lacks are then copied from the snapshots holding them, so there's
+ * one copy per snapshot read from. Only the folders leading to files of the
+ * snapshot are walked.</p>
+ *
+ * <p>Restored files are given the modified time they had when the snapshot
+ * was taken, once they are complete. Files already at the target with the
+ * same size and modified time are skipped, so an interrupted restore can be
+ * run again and only copies what's left. Other files at the target are
+ * replaced, and files the snapshot doesn't have are left alone.</p>
+ *
+ * <p>Snapshot folders without a manifest, taken by older versions, are only
+ * looked at when the task has no manifest in the snapshot root. They are
+ * copied whole, and expected to hold the state of each file as it is.</p>
+ *
+ * <p>Symbolic links and special files are left out of backups. Manifests of
+ * older versions may still list links of the target, which the snapshot
+ * holds as a link or as the folder it pointed to. Those entries aren't
+ * restored, and a warning tells which ones.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class SnapshotRestorer {
+    private static final Pattern SNAPSHOT_NAME = Pattern.compile("\\d{4}\\.\\d{2}\\.\\d{2} \\d{2}_\\d{2}");
+    private static final DateTimeFormatter SNAPSHOT_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM.dd HH_mm");
+    private static final Logger LOGGER = Logger.getLogger(SnapshotRestorer.class.getName());
+    private final CopyEngine engine;
+
+    /**
+     * Creates a restorer copying with the given engine. Its progress, if
+     * any, counts each snapshot read from as a destination of its own, and
+     * its filter is replaced on every copy.
+     *
+     * @param engine engine to copy the files with
+     */
+    public SnapshotRestorer(CopyEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Restores the given file or folder of a snapshot of the task into the
+     * target folder. A file is restored right into the target folder, and
+     * the content of a folder becomes the content of the target folder.
+     *
+     * @param task         name of the task
+     * @param snapshotRoot folder holding the snapshot folders
+     * @param point        snapshot to restore
+     * @param path         path of a file or folder relative to the snapshot,
+     *                     or empty for the whole snapshot
+     * @param target       folder to restore into
+     * @return the snapshot restored and how many files were copied
+     * @throws IOException if there's no such snapshot or path, a file held by
+     *                     the snapshot is missing or the copy fails
+     */
+    public Result restore(
+        String task,
+        Path snapshotRoot,
+        RestorePoint point,
+        String path,
+        Path target
+    ) throws IOException {
+        final long start = System.nanoTime();
+        final String relativePath = normalize(path);
+        final Map<String, Long> createdAt = Snapshots.snapshotsOf(snapshotRoot, task);
+        final boolean legacy = createdAt.isEmpty();
+
+        if (legacy) {
+            listLegacySnapshots(snapshotRoot, createdAt);
+        }
+        final String snapshot = point.select(createdAt);
+
+        if (snapshot == null) {
+            throw new IOException("No snapshot of " + task + " at " + point + " in " + snapshotRoot);
+        }
+        final Selection selection = new Selection(target);
+
+        if (legacy) {
+            restoreLegacy(snapshotRoot.resolve(snapshot), relativePath, selection);
+        }
+        else {
+            final Manifest manifest = Manifest.read(Snapshots.manifestOf(snapshotRoot.resolve(snapshot)));
+
+            restoreEntries(snapshotRoot, snapshot, manifest, relativePath, selection);
+        }
+        return new Result(
+            snapshotRoot,
+            snapshot,
+            selection.restored,
+            selection.skipped,
+            selection.bytes,
+            System.nanoTime() - start
+        );
+    }
+
+    /**
+     * Restores the given file or folder of a snapshot of the task stored in
+     * a repository, like {@link #restore}, writing as many files at once as
+     * the engine has threads.
+     *
+     * @param task       name of the task
+     * @param repository repository folder
+     * @param point      snapshot to restore
+     * @param path       path of a file or folder relative to the snapshot,
+     *                   or empty for the whole snapshot
+     * @param target     folder to restore into
+     * @return the snapshot restored and how many files were written
+     * @throws IOException if there's no such snapshot or path, a chunk is
+     *                     missing or a file can't be written
+     */
+    public Result restoreRepository(
+        String task,
+        Path repository,
+        RestorePoint point,
+        String path,
+        Path target
+    ) throws IOException {
+        final long start = System.nanoTime();
+
+        try (ChunkStore store = ChunkStore.open(repository)) {
+            final Map<String, Long> createdAt = new HashMap<>();
+            final Map<String, Path> trees = new HashMap<>();
+
+            for (Path tree : store.listSnapshots()) {
+                final SnapshotTree.Header header = SnapshotTree.readHeader(tree);
+
+                if (header.getTask().equals(task)) {
+                    createdAt.put(header.getSnapshot(), header.getCreatedAt());
+                    trees.put(header.getSnapshot(), tree);
+                }
+            }
+            final String snapshot = point.select(createdAt);
+
+            if (snapshot == null) {
+                throw new IOException("No snapshot of " + task + " at " + point + " in " + repository);
+            }
+            final CopyProgress progress = engine.getProgress() == null ? new CopyProgress() : engine.getProgress();
+            final CopyProgress.Destination counter = progress.addDestination(target);
+            final long skipped = store.restore(
+                trees.get(snapshot),
+                normalize(path),
+                target,
+                engine.getThreads(),
+                counter
+            );
+
+            return new Result(
+                repository,
+                snapshot,
+                counter.filesDone(),
+                skipped,
+                counter.bytesDone(),
+                System.nanoTime() - start
+            );
+        }
+    }
+
+    /**
+     * Restores the given file or folder of a snapshot of the task stored in
+     * a folder of archives, like {@link #restore}, writing as many files at
+     * once as the engine has threads.
+     *
+     * @param task   name of the task
+     * @param dir    folder holding the archives
+     * @param point  snapshot to restore
+     * @param path   path of a file or folder relative to the snapshot, or
+     *               empty for the whole snapshot
+     * @param target folder to restore into
+     * @param key    key of the folder if it holds encrypted archives, or
+     *               {@code null}
+     * @return the snapshot restored and how many files were written
+     * @throws IOException if there's no such snapshot or path, the archive is
+     *                     corrupt or can't be decrypted, or a file can't be
+     *                     written
+     */
+    public Result restoreArchive(
+        String task,
+        Path dir,
+        RestorePoint point,
+        String path,
+        Path target,
+        ArchiveKey key
+    ) throws IOException {
+        final long start = System.nanoTime();
+        final Map<String, Long> createdAt = new HashMap<>();
+        final Map<String, Path> archives = new HashMap<>();
+
+        for (Path archive : Archive.list(dir)) {
+            final Archive.Header header = Archive.readHeader(archive);
+
+            if (header.getTask().equals(task)) {
+                createdAt.put(header.getSnapshot(), header.getCreatedAt());
+                archives.put(header.getSnapshot(), archive);
+            }
+        }
+        final String snapshot = point.select(createdAt);
+
+        if (snapshot == null) {
+            throw new IOException("No snapshot of " + task + " at " + point + " in " + dir);
+        }
+        final CopyProgress progress = engine.getProgress() == null ? new CopyProgress() : engine.getProgress();
+        final CopyProgress.Destination counter = progress.addDestination(target);
+
+        try (Archive archive = Archive.open(archives.get(snapshot), key)) {
+            final long skipped = archive.extract(normalize(path), target, engine.getThreads(), counter);
+
+            return new Result(
+                dir,
+                snapshot,
+                counter.filesDone(),
+                skipped,
+                counter.bytesDone(),
+                System.nanoTime() - start
+            );
+        }
+    }
+
+    private void restoreEntries(
+        Path snapshotRoot,
+        String snapshot,
+        Manifest manifest,
+        String path,
+        Selection selection
+    ) throws IOException {
+        final Map<String, ManifestEntry> expected = new HashMap<>();
+        final String base;
+
+        if (manifest.getEntries().containsKey(path)) {
+            expected.put(path, manifest.getEntries().get(path));
+            base = path.lastIndexOf('/') == -1 ? "" : path.substring(0, path.lastIndexOf('/'));
+        }
+        else {
+            final String prefix = path.isEmpty() ? "" : path + "/";
+
+            for (ManifestEntry entry : manifest.getEntries().values()) {
+                if (entry.getPath().startsWith(prefix)) {
+                    expected.put(entry.getPath(), entry);
+                }
+            }
+            if (expected.isEmpty() && !path.isEmpty()) {
+                throw new IOException("Nothing at " + path + " in " + snapshot);
+            }
+            base = path;
+        }
+        final Set<String> remaining = new HashSet<>(expected.keySet());
+        final Map<String, Set<String>> byHolder = new TreeMap<>();
+        final List<String> missing = new ArrayList<>();
+
+        selection.expected = expected;
+        selection.base = base;
+        copy(snapshotRoot.resolve(snapshot), selection, remaining);
+        for (String file : remaining) {
+            final String holder = expected.get(file).getSnapshot();
+
+            if (holder.equals(snapshot)) {
+                missing.add(file);
+            }
+            else {
+                byHolder.computeIfAbsent(holder, key -> new HashSet<>()).add(file);
+            }
+        }
+        for (Map.Entry<String, Set<String>> holder : byHolder.entrySet()) {
+            copy(snapshotRoot.resolve(holder.getKey()), selection, holder.getValue());
+            missing.addAll(holder.getValue());
+        }
+        missing.removeIf(file -> isLink(snapshotRoot.resolve(expected.get(file).getSnapshot()), file));
+        if (!missing.isEmpty()) {
+            Collections.sort(missing);
+            throw new IOException(
+                "Missing " + missing.size() + " files of " + snapshot + " in " + snapshotRoot
+                + ", like " + missing.get(0)
+            );
+        }
+    }
+
+    /**
+     * Tells whether the given manifest path of a snapshot is held as a link
+     * or a folder rather than a file, which is how older versions recorded
+     * the links of the target.
+     */
+    private static boolean isLink(Path dir, String path) {
+        final Path file = dir.resolve(path);
+
+        if (Files.isSymbolicLink(file) || Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+            LOGGER.log(Level.WARNING, "Not restoring {0}, which is a link in {1}", new Object[] { path, dir });
+            return true;
+        }
+        return false;
+    }
+
+    private void restoreLegacy(Path dir, String path, Selection selection) throws IOException {
+        if (Files.isRegularFile(dir.resolve(path))) {
+            final Set<String> files = new HashSet<>(Collections.singleton(path));
+
+            selection.base = path.lastIndexOf('/') == -1 ? "" : path.substring(0, path.lastIndexOf('/'));
+            copy(dir, selection, files);
+        }
+        else if (Files.isDirectory(dir.resolve(path))) {
+            selection.base = path;
+            copy(dir, selection, null);
+        }
+        else {
+            throw new IOException("Nothing at " + path + " in " + dir.getFileName());
+        }
+    }
+
+    /**
+     * Copies the given files of the snapshot, or all of them if null, and
+     * removes the ones found from the set.
+     */
+    private void copy(Path dir, Selection selection, Set<String> files) throws IOException {
+        final Path src = selection.base.isEmpty() ? dir : dir.resolve(selection.base);
+
+        if (!Files.isDirectory(src)) {
+            return;
+        }
+        selection.files = files;
+        selection.dirs = files == null ? null : ancestorsOf(files, selection.base);
+        engine.setFilter(selection);
+        engine.copy(src, Collections.singletonList(selection.target), selection);
+    }
+
+    /**
+     * Returns the folders between the base and each file, so only those are
+     * walked.
+     */
+    private static Set<String> ancestorsOf(Set<String> files, String base) {
+        final Set<String> dirs = new HashSet<>();
+
+        for (String file : files) {
+            int end = file.lastIndexOf('/');
+
+            while (end > base.length() && dirs.add(file.substring(0, end))) {
+                end = file.lastIndexOf('/', end - 1);
+            }
+        }
+        return dirs;
+    }
+
+    private static void listLegacySnapshots(Path snapshotRoot, Map<String, Long> createdAt) throws IOException {
+        final ZoneId zone = ZoneId.systemDefault();
+
+        if (!Files.isDirectory(snapshotRoot)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(snapshotRoot)) {
+            for (Path dir : stream) {
+                final String name = dir.getFileName().toString();
+
+                if (!SNAPSHOT_NAME.matcher(name).matches()
+                    || !Files.isDirectory(dir)
+                    || Snapshots.isBackupInProgress(dir)) {
+                    continue;
+                }
+                try {
+                    createdAt.put(
+                        name,
+                        LocalDateTime.parse(name, SNAPSHOT_NAME_FORMAT).atZone(zone).toInstant().toEpochMilli()
+                    );
+                }
+                catch (DateTimeParseException ignore) {}
+            }
+        }
+    }
+
+    private static String normalize(String path) {
+        String normalized = path.replace('\\', '/');
+
+        while (normalized.startsWith("/")) {
+            normalized = normalized.substring(1);
+        }
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+
+    /**
+     * Walks the snapshot folders, only selecting the files that differ at
+     * the target.
+     */
+    private static final class Selection implements FileSelector, TreeFilter {
+        private final Path target;
+        private final Map<Path, ManifestEntry> pending;
+        private Map<String, ManifestEntry> expected;
+        private String base;
+        private Set<String> files;
+        private Set<String> dirs;
+        private long restored;
+        private long skipped;
+        private long bytes;
+
+        Selection(Path target) {
+            this.target = target;
+            this.pending = new ConcurrentHashMap<>();
+            this.expected = null;
+            this.base = "";
+            this.files = null;
+            this.dirs = null;
+            this.restored = 0L;
+            this.skipped = 0L;
+            this.bytes = 0L;
+        }
+
+        @Override
+        public boolean accept(Path relativePath, boolean isDirectory) {
+            if (files == null) {
+                return true;
+            }
+            final String path = pathOf(relativePath);
+            return isDirectory ? dirs.contains(path) : files.contains(path);
+        }
+
+        @Override
+        public boolean select(int destination, Path relativePath, BasicFileAttributes attrs) throws IOException {
+            final String path = pathOf(relativePath);
+            final ManifestEntry entry = expected == null ? null : expected.get(path);
+            final long size = entry == null ? attrs.size() : entry.getSize();
+            final long modifiedTime = entry == null ? attrs.lastModifiedTime().toMillis() : entry.getModifiedTime();
+            final Path out = target.resolve(relativePath);
+
+            if (files != null) {
+                files.remove(path);
+            }
+            if (isRestored(out, size, modifiedTime)) {
+                skipped++;
+                return false;
+            }
+            // The copy never overwrites
+            Files.deleteIfExists(out);
+            pending.put(
+                relativePath,
+                entry == null ? new ManifestEntry(path, size, modifiedTime, ManifestEntry.NO_PERMISSIONS, null) : entry
+            );
+            restored++;
+            bytes += size;
+            return true;
+        }
+
+        @Override
+        public void copied(int destination, Path relativePath) throws IOException {
+            final ManifestEntry entry = pending.remove(relativePath);
+
+            // Set last, so a file cut short is never taken as restored
+            if (entry != null) {
+                final Path out = target.resolve(relativePath);
+
+                ManifestEntry.setPermissions(out, entry.getPermissions());
+                Files.setLastModifiedTime(out, FileTime.fromMillis(entry.getModifiedTime()));
+            }
+        }
+
+        private String pathOf(Path relativePath) {
+            final String path = ManifestEntry.toManifestPath(relativePath);
+            return base.isEmpty() ? path : base + "/" + path;
+        }
+
+        private static boolean isRestored(Path out, long size, long modifiedTime) throws IOException {
+            try {
+                final BasicFileAttributes attrs = Files.readAttributes(out, BasicFileAttributes.class);
+
+                return attrs.isRegularFile()
+                       && attrs.size() == size
+                       && attrs.lastModifiedTime().toMillis() == modifiedTime;
+            }
+            catch (NoSuchFileException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Outcome of a restore.
+     */
+    public static final class Result {
+        private final Path root;
+        private final String snapshot;
+        private final long filesRestored;
+        private final long filesSkipped;
+        private final long bytesRestored;
+        private final long nanos;
+
+        private Result(
+            Path root,
+            String snapshot,
+            long filesRestored,
+            long filesSkipped,
+            long bytesRestored,
+            long nanos
+        ) {
+            this.root = root;
+            this.snapshot = snapshot;
+            this.filesRestored = filesRestored;
+            this.filesSkipped = filesSkipped;
+            this.bytesRestored = bytesRestored;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Returns the folder of snapshots or repository restored from.
+         */
+        public Path getRoot() {
+            return root;
+        }
+
+        public String getSnapshot() {
+            return snapshot;
+        }
+
+        public long getFilesRestored() {
+            return filesRestored;
+        }
+
+        /**
+         * Returns the files that were already restored at the target.
+         */
+        public long getFilesSkipped() {
+            return filesSkipped;
+        }
+
+        public long getBytesRestored() {
+            return bytesRestored;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+}
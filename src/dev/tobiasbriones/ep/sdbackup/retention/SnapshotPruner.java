@@ -0,0 +1,558 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.retention;
+
+import dev.tobiasbriones.ep.sdbackup.archive.Archive;
+import dev.tobiasbriones.ep.sdbackup.io.TreeDeleter;
+import dev.tobiasbriones.ep.sdbackup.model.RetentionPolicy;
+import dev.tobiasbriones.ep.sdbackup.snapshot.Catalog;
+import dev.tobiasbriones.ep.sdbackup.snapshot.Manifest;
+import dev.tobiasbriones.ep.sdbackup.snapshot.ManifestEntry;
+import dev.tobiasbriones.ep.sdbackup.snapshot.Snapshots;
+import dev.tobiasbriones.ep.sdbackup.store.ChunkStore;
+import dev.tobiasbriones.ep.sdbackup.store.SnapshotTree;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Deletes the snapshots of a task that its retention policy doesn't keep,
+ * from a folder of snapshots or from a repository.
+ *
+ * <p>Expired snapshot folders are first moved to the trash of the metadata
+ * folder, so they disappear at once, and then deleted on several threads. A
+ * prune that is interrupted is finished by the next one. Files are only
+ * unlinked, so content hard linked into the kept snapshots is never touched.
+ * </p>
+ *
+ * <p>Snapshots taken without hard links leave unchanged files in the
+ * snapshot that first copied them. An expired snapshot still holding files of
+ * a kept one is held: its manifest is deleted, so it's no longer a snapshot
+ * on its own, and only the files the kept snapshots use are left in it.</p>
+ *
+ * <p>Timestamped folders without a manifest, left by versions that copied
+ * the whole target every time or by failed backups, say nothing about the
+ * task that made them. They're only pruned as snapshots of the task when the
+ * caller tells that the task owns the folder of snapshots, and no manifest of
+ * another task is found in it. Otherwise they're left and reported.</p>
+ *
+ * <p>The catalog of the task is told which snapshots are gone, so their
+ * versions are no longer found.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class SnapshotPruner {
+    private static final Pattern SNAPSHOT_NAME = Pattern.compile("\\d{4}\\.\\d{2}\\.\\d{2} \\d{2}_\\d{2}");
+    private static final DateTimeFormatter SNAPSHOT_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM.dd HH_mm");
+    private static final String MANIFEST_GLOB = "*.manifest";
+    private final RetentionPolicy policy;
+    private final ZoneId zone;
+    private int threads;
+    private boolean dryRun;
+    private boolean ownsSnapshotRoot;
+
+    public SnapshotPruner(RetentionPolicy policy) {
+        this.policy = policy;
+        this.zone = ZoneId.systemDefault();
+        this.threads = 1;
+        this.dryRun = false;
+        this.ownsSnapshotRoot = false;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads deleting files.
+     */
+    public void setThreads(int value) {
+        if (value < 1) {
+            throw new IllegalArgumentException("Threads must be at least 1");
+        }
+        this.threads = value;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    /**
+     * Sets whether to only tell what would be pruned, without deleting
+     * anything.
+     */
+    public void setDryRun(boolean value) {
+        this.dryRun = value;
+    }
+
+    public boolean isOwnsSnapshotRoot() {
+        return ownsSnapshotRoot;
+    }
+
+    /**
+     * Sets whether no other task backs up into the folders of snapshots
+     * pruned, so their timestamped folders without a manifest can be pruned
+     * as snapshots of the task. It's false by default.
+     */
+    public void setOwnsSnapshotRoot(boolean value) {
+        this.ownsSnapshotRoot = value;
+    }
+
+    /**
+     * Prunes the snapshots of the given task in the given folder of
+     * snapshots.
+     *
+     * @param task         name of the task
+     * @param snapshotRoot folder holding the snapshot folders
+     * @return the snapshots kept, pruned and held, and the unknown folders
+     *         left
+     * @throws IOException if a manifest can't be read or something can't be
+     *                     deleted
+     */
+    public Result prune(String task, Path snapshotRoot) throws IOException {
+        final long start = System.nanoTime();
+        final Path trash = Snapshots.trashDir(snapshotRoot);
+        final Map<String, Snapshot> snapshots = new HashMap<>();
+        final List<Path> orphanManifests = new ArrayList<>();
+        final Map<String, Snapshot> unknown = new HashMap<>();
+        final TreeDeleter deleter = new TreeDeleter(threads);
+        boolean shared = false;
+
+        try {
+            if (!Files.isDirectory(snapshotRoot)) {
+                return new Result(
+                    snapshotRoot,
+                    new ArrayList<>(),
+                    new ArrayList<>(),
+                    new ArrayList<>(),
+                    new ArrayList<>(),
+                    0L,
+                    0L,
+                    0L
+                );
+            }
+            // Finishes a prune that was interrupted
+            if (!dryRun && Files.isDirectory(trash)) {
+                deleter.delete(list(trash));
+            }
+            final Path metadataDir = Snapshots.metadataDir(snapshotRoot);
+
+            if (Files.isDirectory(metadataDir)) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(metadataDir, MANIFEST_GLOB)) {
+                    for (Path manifest : stream) {
+                        final Manifest.Header header = Manifest.readHeader(manifest);
+
+                        if (!header.getTask().equals(task)) {
+                            shared = true;
+                        }
+                        else if (Files.isDirectory(snapshotRoot.resolve(header.getSnapshot()))) {
+                            snapshots.put(
+                                header.getSnapshot(),
+                                new Snapshot(header.getSnapshot(), header.getCreatedAt(), manifest)
+                            );
+                        }
+                        else {
+                            orphanManifests.add(manifest);
+                        }
+                    }
+                }
+            }
+            addUnknownSnapshots(snapshotRoot, snapshots.keySet(), unknown);
+            if (ownsSnapshotRoot && !shared) {
+                snapshots.putAll(unknown);
+                unknown.clear();
+            }
+            final Set<Snapshot> kept = policy.select(
+                new ArrayList<>(snapshots.values()),
+                snapshot -> snapshot.createdAt,
+                zone
+            );
+            final Set<String> expired = new HashSet<>(snapshots.keySet());
+
+            kept.forEach(snapshot -> expired.remove(snapshot.name));
+            final Map<String, Set<String>> held = referencesOf(kept, expired);
+            final List<String> pruned = new ArrayList<>(expired);
+
+            pruned.removeAll(held.keySet());
+            Collections.sort(pruned);
+            if (!dryRun) {
+                delete(snapshotRoot, pruned, snapshots, orphanManifests, deleter);
+                thin(snapshotRoot, held, snapshots, deleter);
+                Catalog.sync(snapshotRoot, task);
+            }
+            return new Result(
+                snapshotRoot,
+                names(kept),
+                pruned,
+                sorted(held.keySet()),
+                sorted(unknown.keySet()),
+                deleter.getFilesDeleted(),
+                0L,
+                System.nanoTime() - start
+            );
+        }
+        finally {
+            deleter.shutdown();
+        }
+    }
+
+    /**
+     * Prunes the snapshots of the given task in the given repository, and
+     * deletes the pack files no longer used by any snapshot.
+     *
+     * @param task       name of the task
+     * @param repository repository folder
+     * @return the snapshots kept and pruned, and the bytes freed
+     * @throws IOException if the repository can't be opened or something
+     *                     can't be deleted
+     */
+    public Result pruneRepository(String task, Path repository) throws IOException {
+        final long start = System.nanoTime();
+
+        try (ChunkStore store = ChunkStore.open(repository)) {
+            final List<Path> trees = new ArrayList<>();
+            final Map<Path, SnapshotTree.Header> headers = new HashMap<>();
+
+            for (Path tree : store.listSnapshots()) {
+                final SnapshotTree.Header header = SnapshotTree.readHeader(tree);
+
+                if (header.getTask().equals(task)) {
+                    trees.add(tree);
+                    headers.put(tree, header);
+                }
+            }
+            final Set<Path> kept = policy.select(trees, tree -> headers.get(tree).getCreatedAt(), zone);
+            final List<Path> expired = new ArrayList<>(trees);
+            final List<String> keptNames = new ArrayList<>(kept.size());
+            final List<String> prunedNames = new ArrayList<>();
+
+            expired.removeAll(kept);
+            kept.forEach(tree -> keptNames.add(headers.get(tree).getSnapshot()));
+            expired.forEach(tree -> prunedNames.add(headers.get(tree).getSnapshot()));
+            Collections.sort(prunedNames);
+            final long freed = dryRun || expired.isEmpty() ? 0L : store.deleteSnapshots(expired);
+
+            return new Result(
+                repository,
+                keptNames,
+                prunedNames,
+                new ArrayList<>(),
+                new ArrayList<>(),
+                0L,
+                freed,
+                System.nanoTime() - start
+            );
+        }
+    }
+
+    /**
+     * Prunes the snapshots of the given task in the given folder of archives,
+     * deleting the archives of the expired ones.
+     *
+     * @param task name of the task
+     * @param dir  folder holding the archives
+     * @return the snapshots kept and pruned, and the bytes freed
+     * @throws IOException if an archive can't be read or deleted
+     */
+    public Result pruneArchives(String task, Path dir) throws IOException {
+        final long start = System.nanoTime();
+        final List<Path> archives = new ArrayList<>();
+        final Map<Path, Archive.Header> headers = new HashMap<>();
+
+        for (Path archive : Archive.list(dir)) {
+            final Archive.Header header = Archive.readHeader(archive);
+
+            if (header.getTask().equals(task)) {
+                archives.add(archive);
+                headers.put(archive, header);
+            }
+        }
+        final Set<Path> kept = policy.select(archives, archive -> headers.get(archive).getCreatedAt(), zone);
+        final List<Path> expired = new ArrayList<>(archives);
+        final List<String> keptNames = new ArrayList<>(kept.size());
+        final List<String> prunedNames = new ArrayList<>();
+        long freed = 0L;
+
+        expired.removeAll(kept);
+        kept.forEach(archive -> keptNames.add(headers.get(archive).getSnapshot()));
+        expired.forEach(archive -> prunedNames.add(headers.get(archive).getSnapshot()));
+        Collections.sort(prunedNames);
+        if (!dryRun) {
+            for (Path archive : expired) {
+                freed += Files.size(archive);
+                Files.delete(archive);
+            }
+        }
+        return new Result(
+            dir,
+            keptNames,
+            prunedNames,
+            new ArrayList<>(),
+            new ArrayList<>(),
+            0L,
+            freed,
+            System.nanoTime() - start
+        );
+    }
+
+    /**
+     * Adds the timestamped folders that have no manifest to the unknown
+     * snapshots, skipping those being backed up right now.
+     */
+    private void addUnknownSnapshots(
+        Path snapshotRoot,
+        Set<String> known,
+        Map<String, Snapshot> unknown
+    ) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(snapshotRoot)) {
+            for (Path dir : stream) {
+                final String name = dir.getFileName().toString();
+
+                if (known.contains(name)
+                    || !SNAPSHOT_NAME.matcher(name).matches()
+                    || !Files.isDirectory(dir)
+                    || Snapshots.isBackupInProgress(dir)) {
+                    continue;
+                }
+                try {
+                    final long createdAt = LocalDateTime.parse(name, SNAPSHOT_NAME_FORMAT)
+                                                        .atZone(zone)
+                                                        .toInstant()
+                                                        .toEpochMilli();
+
+                    unknown.put(name, new Snapshot(name, createdAt, null));
+                }
+                catch (DateTimeParseException ignore) {}
+            }
+        }
+    }
+
+    /**
+     * Returns the files of the kept snapshots that are held by each of the
+     * expired ones.
+     */
+    private static Map<String, Set<String>> referencesOf(Set<Snapshot> kept, Set<String> expired) throws IOException {
+        final Map<String, Set<String>> references = new HashMap<>();
+
+        if (expired.isEmpty()) {
+            return references;
+        }
+        for (Snapshot snapshot : kept) {
+            if (snapshot.manifest == null) {
+                continue;
+            }
+            Manifest.readReferences(snapshot.manifest, expired).forEach(
+                (name, paths) -> references.computeIfAbsent(name, key -> new HashSet<>()).addAll(paths)
+            );
+        }
+        return references;
+    }
+
+    private static void delete(
+        Path snapshotRoot,
+        List<String> pruned,
+        Map<String, Snapshot> snapshots,
+        List<Path> orphanManifests,
+        TreeDeleter deleter
+    ) throws IOException {
+        final Path trash = Snapshots.trashDir(snapshotRoot);
+        final List<Path> trashed = new ArrayList<>(pruned.size());
+
+        if (!pruned.isEmpty()) {
+            Files.createDirectories(trash);
+        }
+        for (String name : pruned) {
+            final Path dir = snapshotRoot.resolve(name);
+            final Path target = trash.resolve(name);
+            final Snapshot snapshot = snapshots.get(name);
+
+            // The folder goes first, a manifest without it is removed later
+            Files.move(dir, target, StandardCopyOption.ATOMIC_MOVE);
+            trashed.add(target);
+            if (snapshot.manifest != null) {
+                Files.deleteIfExists(Snapshots.checksumsOf(dir));
+                Files.delete(snapshot.manifest);
+            }
+        }
+        for (Path manifest : orphanManifests) {
+            final String name = manifest.getFileName().toString();
+            final Path dir = snapshotRoot.resolve(name.substring(0, name.lastIndexOf('.')));
+
+            Files.deleteIfExists(Snapshots.checksumsOf(dir));
+            Files.delete(manifest);
+        }
+        deleter.delete(trashed);
+    }
+
+    /**
+     * Deletes the files of the held snapshots that no kept snapshot uses,
+     * after their manifests.
+     */
+    private static void thin(
+        Path snapshotRoot,
+        Map<String, Set<String>> held,
+        Map<String, Snapshot> snapshots,
+        TreeDeleter deleter
+    ) throws IOException {
+        for (Map.Entry<String, Set<String>> entry : held.entrySet()) {
+            final Path dir = snapshotRoot.resolve(entry.getKey());
+            final Snapshot snapshot = snapshots.get(entry.getKey());
+            final Set<String> paths = entry.getValue();
+
+            if (snapshot.manifest != null) {
+                Files.deleteIfExists(Snapshots.checksumsOf(dir));
+                Files.delete(snapshot.manifest);
+            }
+            deleter.delete(
+                Collections.singletonList(dir),
+                file -> paths.contains(ManifestEntry.toManifestPath(dir.relativize(file)))
+            );
+        }
+    }
+
+    private static List<Path> list(Path dir) throws IOException {
+        final List<Path> children = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            stream.forEach(children::add);
+        }
+        return children;
+    }
+
+    private static List<String> names(Collection<Snapshot> snapshots) {
+        final List<String> names = new ArrayList<>(snapshots.size());
+
+        snapshots.forEach(snapshot -> names.add(snapshot.name));
+        return names;
+    }
+
+    private static List<String> sorted(Collection<String> values) {
+        final List<String> list = new ArrayList<>(values);
+
+        Collections.sort(list);
+        return list;
+    }
+
+    /**
+     * Outcome of the pruning of a folder of snapshots, a repository or a
+     * folder of archives.
+     */
+    public static final class Result {
+        private final Path root;
+        private final List<String> kept;
+        private final List<String> pruned;
+        private final List<String> held;
+        private final List<String> unknown;
+        private final long filesDeleted;
+        private final long bytesFreed;
+        private final long nanos;
+
+        private Result(
+            Path root,
+            List<String> kept,
+            List<String> pruned,
+            List<String> held,
+            List<String> unknown,
+            long filesDeleted,
+            long bytesFreed,
+            long nanos
+        ) {
+            this.root = root;
+            this.kept = Collections.unmodifiableList(kept);
+            this.pruned = Collections.unmodifiableList(pruned);
+            this.held = Collections.unmodifiableList(held);
+            this.unknown = Collections.unmodifiableList(unknown);
+            this.filesDeleted = filesDeleted;
+            this.bytesFreed = bytesFreed;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Returns the folder of snapshots, repository or folder of archives
+         * pruned.
+         */
+        public Path getRoot() {
+            return root;
+        }
+
+        /**
+         * Returns the snapshots the policy keeps, newest first.
+         */
+        public List<String> getKept() {
+            return kept;
+        }
+
+        /**
+         * Returns the snapshots deleted, or that would be deleted on a dry
+         * run.
+         */
+        public List<String> getPruned() {
+            return pruned;
+        }
+
+        /**
+         * Returns the expired snapshots that still hold files of kept
+         * snapshots. Only those files are left in them.
+         */
+        public List<String> getHeld() {
+            return held;
+        }
+
+        /**
+         * Returns the timestamped folders without a manifest left, because
+         * the folder of snapshots isn't proven to belong only to the task.
+         */
+        public List<String> getUnknown() {
+            return unknown;
+        }
+
+        /**
+         * Returns the files deleted from snapshot folders.
+         */
+        public long getFilesDeleted() {
+            return filesDeleted;
+        }
+
+        /**
+         * Returns the bytes of the repository pack files or archives deleted.
+         */
+        public long getBytesFreed() {
+            return bytesFreed;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    private static final class Snapshot {
+        private final String name;
+        private final long createdAt;
+        private final Path manifest;
+
+        Snapshot(String name, long createdAt, Path manifest) {
+            this.name = name;
+            this.createdAt = createdAt;
+            this.manifest = manifest;
+        }
+    }
+}
@@ -0,0 +1,815 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.snapshot;
+
+import dev.tobiasbriones.ep.sdbackup.io.Checksums;
+import dev.tobiasbriones.ep.sdbackup.snapshot.CatalogSegment.Record;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Indexes every version of every file across the snapshots of a task in a
+ * snapshot root, so finding the snapshots that hold a file, or the files
+ * under a folder, takes neither walking the snapshot folders nor reading
+ * their manifests.
+ *
+ * <p>A version is a state of a file, with its size, modified time,
+ * permissions and digest if known, that stays the same through a range of
+ * snapshots. The catalog only stores a record where a version starts and
+ * where the file is deleted, so each backup adds records for the files that
+ * changed and nothing else. Records are kept in sorted segments that are
+ * never modified: each backup writes a small one, and the newest segments are
+ * merged once they grow close to the size of the one before them, so there
+ * are only a few at any time. Merging also drops the versions no snapshot
+ * holds anymore once old snapshots are pruned.</p>
+ *
+ * <p>The segments and the snapshot table are listed in a state file that's
+ * replaced atomically, so an interrupted update leaves the previous catalog
+ * in place. A catalog that doesn't end at the snapshot a backup is based on
+ * is rebuilt from the manifests.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class Catalog {
+    private static final int MAGIC = 0x53444243;
+    private static final int VERSION = 1;
+    private static final String STATE_FILE_NAME = "state";
+    private static final String SEGMENT_EXTENSION = ".seg";
+    private static final String MANIFEST_GLOB = "*.manifest";
+    private static final int MAX_SEGMENTS = 32;
+    private static final int BATCH_SIZE = 1024 * 1024;
+    private final Path snapshotRoot;
+    private final State state;
+    private final List<CatalogSegment> segments;
+    private final int[] liveBefore;
+    private final int[] nextLive;
+    private final int[] previousLive;
+
+    private Catalog(Path snapshotRoot, State state, List<CatalogSegment> segments) {
+        final int count = state.snapshots.size();
+
+        this.snapshotRoot = snapshotRoot;
+        this.state = state;
+        this.segments = segments;
+        this.liveBefore = state.liveBefore();
+        this.nextLive = new int[count];
+        this.previousLive = new int[count];
+
+        for (int i = count - 1, next = -1; i >= 0; i--) {
+            next = state.snapshots.get(i).live ? i : next;
+            nextLive[i] = next;
+        }
+        for (int i = 0, previous = -1; i < count; i++) {
+            previous = state.snapshots.get(i).live ? i : previous;
+            previousLive[i] = previous;
+        }
+    }
+
+    public static boolean exists(Path snapshotRoot, String task) {
+        return Files.isRegularFile(Snapshots.catalogDir(snapshotRoot, task).resolve(STATE_FILE_NAME));
+    }
+
+    /**
+     * Opens the catalog of the given task for lookups. The catalog is not
+     * updated afterwards, so a later backup needs it to be opened again.
+     *
+     * @param snapshotRoot folder holding the snapshots
+     * @param task         name of the task
+     * @return the catalog
+     * @throws IOException if the catalog doesn't exist or can't be read
+     */
+    public static Catalog open(Path snapshotRoot, String task) throws IOException {
+        final Path dir = Snapshots.catalogDir(snapshotRoot, task);
+        final State state = State.read(dir, task);
+        final List<CatalogSegment> segments = new ArrayList<>();
+
+        if (state == null) {
+            throw new IOException("No catalog of " + task + " in " + snapshotRoot);
+        }
+        for (long id : state.segments) {
+            segments.add(CatalogSegment.open(dir.resolve(segmentName(id))));
+        }
+        return new Catalog(snapshotRoot, state, segments);
+    }
+
+    public Path getSnapshotRoot() {
+        return snapshotRoot;
+    }
+
+    /**
+     * Returns the names of the snapshots of the catalog that still exist,
+     * oldest first.
+     *
+     * @return the snapshot names
+     */
+    public List<String> getSnapshots() {
+        final List<String> names = new ArrayList<>();
+
+        for (SnapshotInfo snapshot : state.snapshots) {
+            if (snapshot.live) {
+                names.add(snapshot.name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns the versions of the file at the given path held by the
+     * existing snapshots, oldest first.
+     *
+     * @param path path relative to the snapshot root, separated by '/'
+     * @return the versions of the file, empty if no snapshot has it
+     */
+    public List<Version> find(String path) {
+        final List<Record> records = new ArrayList<>();
+
+        for (CatalogSegment segment : segments) {
+            segment.collect(path, records);
+        }
+        return versionsOf(records);
+    }
+
+    /**
+     * Returns the versions of the first files, in path order, whose path
+     * starts with the given prefix. Files whose versions are all gone are
+     * left out, so there may be fewer than the limit even if more files
+     * match.
+     *
+     * @param prefix start of the paths, like a folder path ending in '/'
+     * @param limit  maximum number of files
+     * @return the versions of each file by path
+     */
+    public SortedMap<String, List<Version>> findUnder(String prefix, int limit) {
+        final SortedMap<String, List<Record>> records = new TreeMap<>();
+        final SortedMap<String, List<Version>> files = new TreeMap<>();
+        int count = 0;
+
+        // The first paths of the catalog are among the first of each segment
+        for (CatalogSegment segment : segments) {
+            segment.collectUnder(prefix, limit, records);
+        }
+        for (Map.Entry<String, List<Record>> entry : records.entrySet()) {
+            if (count++ == limit) {
+                break;
+            }
+            final List<Version> versions = versionsOf(entry.getValue());
+
+            if (!versions.isEmpty()) {
+                files.put(entry.getKey(), versions);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Returns the names of the existing snapshots that hold the given
+     * version, oldest first.
+     *
+     * @param version version found in this catalog
+     * @return the snapshot names
+     */
+    public List<String> snapshotsOf(Version version) {
+        final List<String> names = new ArrayList<>(version.snapshotCount);
+
+        for (int i = version.start; i < version.end; i++) {
+            if (state.snapshots.get(i).live) {
+                names.add(state.snapshots.get(i).name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Rebuilds the catalog of the given task from the manifests of its
+     * snapshots.
+     *
+     * @param snapshotRoot folder holding the snapshots
+     * @param task         name of the task
+     * @throws IOException if a manifest can't be read or the catalog can't
+     *                     be written
+     */
+    public static void rebuild(Path snapshotRoot, String task) throws IOException {
+        final Path dir = Snapshots.catalogDir(snapshotRoot, task);
+        final State state = new State(task);
+        final List<Record> batch = new ArrayList<>();
+        Map<String, ManifestEntry> previous = Collections.emptyMap();
+
+        // Keeps the segments of the old catalog until the new one replaces it
+        try {
+            final State old = State.read(dir, task);
+
+            state.nextSegmentId = old == null ? 0L : old.nextSegmentId;
+        }
+        catch (IOException ignore) {}
+        Files.createDirectories(dir);
+        for (Path file : manifestsOf(snapshotRoot, task)) {
+            final Manifest manifest = Manifest.read(file);
+            final String snapshot = manifest.getHeader().getSnapshot();
+            final Path checksumFile = Snapshots.checksumsOf(snapshotRoot.resolve(snapshot));
+            final Map<String, String> digests = Files.exists(checksumFile)
+                                                ? ChecksumFile.read(checksumFile)
+                                                : Collections.emptyMap();
+            final Map<String, ManifestEntry> entries = manifest.getEntries();
+            final int index = state.add(snapshot, manifest.getHeader().getCreatedAt());
+
+            for (ManifestEntry entry : entries.values()) {
+                final ManifestEntry old = previous.get(entry.getPath());
+                final String hex = digests.get(entry.getPath());
+
+                if (old == null || !old.isUnchanged(entry)) {
+                    batch.add(versionOf(entry, index, hex == null ? null : Checksums.fromHex(hex)));
+                }
+            }
+            for (String path : previous.keySet()) {
+                if (!entries.containsKey(path)) {
+                    batch.add(Record.gap(path, index));
+                }
+            }
+            previous = entries;
+            if (batch.size() >= BATCH_SIZE) {
+                writeSegment(dir, state, batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            writeSegment(dir, state, batch);
+        }
+        if (state.segments.size() > 1) {
+            merge(dir, state, 0);
+        }
+        publish(dir, state);
+    }
+
+    /**
+     * Marks the snapshots whose manifest was deleted as gone, so their
+     * versions are no longer found. It does nothing if the task has no
+     * catalog.
+     *
+     * @param snapshotRoot folder holding the snapshots
+     * @param task         name of the task
+     * @throws IOException if the catalog can't be read or written
+     */
+    public static void sync(Path snapshotRoot, String task) throws IOException {
+        final Path dir = Snapshots.catalogDir(snapshotRoot, task);
+        final State state = State.read(dir, task);
+
+        if (state != null && state.refreshLive(snapshotRoot)) {
+            publish(dir, state);
+        }
+    }
+
+    /**
+     * Adds a new snapshot to the catalog given the files that changed since
+     * the previous snapshot, or rebuilds the catalog if it doesn't end at the
+     * previous snapshot. The records are sorted and written in batches, like
+     * when rebuilding, and merged by the compaction that follows.
+     *
+     * @param previous name of the snapshot the new one is based on, or null
+     * @param changed  entries of the files added or changed
+     * @param deleted  paths of the files deleted
+     * @param digests  digests of the changed files by path, if known
+     */
+    static void append(
+        Path snapshotRoot,
+        String task,
+        String previous,
+        String snapshot,
+        long createdAt,
+        ChangedFiles changed,
+        Collection<String> deleted,
+        Map<String, byte[]> digests
+    ) throws IOException {
+        final Path dir = Snapshots.catalogDir(snapshotRoot, task);
+        final State read = State.read(dir, task);
+
+        if (read == null ? previous != null : !read.endsWith(previous)) {
+            rebuild(snapshotRoot, task);
+            return;
+        }
+        final State state = read == null ? new State(task) : read;
+        final int index = state.add(snapshot, createdAt);
+        final List<Record> records = new ArrayList<>(Math.min(changed.size() + deleted.size(), BATCH_SIZE));
+        ManifestEntry entry;
+
+        Files.createDirectories(dir);
+        changed.rewind();
+        while ((entry = changed.next()) != null) {
+            records.add(versionOf(entry, index, digests.get(entry.getPath())));
+            if (records.size() >= BATCH_SIZE) {
+                writeSegment(dir, state, records);
+                records.clear();
+            }
+        }
+        for (String path : deleted) {
+            records.add(Record.gap(path, index));
+            if (records.size() >= BATCH_SIZE) {
+                writeSegment(dir, state, records);
+                records.clear();
+            }
+        }
+        writeSegment(dir, state, records);
+        state.refreshLive(snapshotRoot);
+        compact(dir, state);
+        publish(dir, state);
+    }
+
+    private List<Version> versionsOf(List<Record> records) {
+        final List<Version> versions = new ArrayList<>();
+        final int count = state.snapshots.size();
+
+        records.sort(CatalogSegment.ORDER);
+        for (int i = 0; i < records.size(); i++) {
+            final Record record = records.get(i);
+            final int end = i + 1 < records.size() ? records.get(i + 1).snapshot : count;
+            final int live = liveBefore[end] - liveBefore[record.snapshot];
+
+            if (record.isGap() || live == 0) {
+                continue;
+            }
+            versions.add(new Version(
+                record.path,
+                record.size,
+                record.modifiedTime,
+                record.permissions,
+                record.hash == null ? null : Checksums.toHex(record.hash),
+                state.snapshots.get(record.snapshot).name,
+                state.snapshots.get(nextLive[record.snapshot]).name,
+                state.snapshots.get(previousLive[end - 1]).name,
+                live,
+                end == count,
+                record.snapshot,
+                end
+            ));
+        }
+        return versions;
+    }
+
+    private static Record versionOf(ManifestEntry entry, int snapshot, byte[] hash) {
+        return Record.version(
+            entry.getPath(),
+            snapshot,
+            entry.getSize(),
+            entry.getModifiedTime(),
+            entry.getPermissions(),
+            hash
+        );
+    }
+
+    /**
+     * Returns the manifests of the given task, oldest first.
+     */
+    private static List<Path> manifestsOf(Path snapshotRoot, String task) throws IOException {
+        final Path metadataDir = Snapshots.metadataDir(snapshotRoot);
+        final Map<Path, Long> createdAt = new HashMap<>();
+        final List<Path> manifests = new ArrayList<>();
+
+        if (!Files.isDirectory(metadataDir)) {
+            return manifests;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(metadataDir, MANIFEST_GLOB)) {
+            for (Path file : stream) {
+                final Manifest.Header header = Manifest.readHeader(file);
+
+                if (header.getTask().equals(task)) {
+                    createdAt.put(file, header.getCreatedAt());
+                    manifests.add(file);
+                }
+            }
+        }
+        manifests.sort(Comparator.comparing(createdAt::get));
+        return manifests;
+    }
+
+    /**
+     * Sorts the given records and writes them to a new segment added to the
+     * state.
+     */
+    private static void writeSegment(Path dir, State state, List<Record> records) throws IOException {
+        final long id = state.nextSegmentId++;
+
+        records.sort(CatalogSegment.ORDER);
+        try (CatalogSegment.Writer writer = newWriter(dir, id)) {
+            for (Record record : records) {
+                writer.write(record);
+            }
+        }
+        state.segments.add(id);
+    }
+
+    /**
+     * Merges the newest segments while they're at least half the size of the
+     * one before them, or every segment if there are too many.
+     */
+    private static void compact(Path dir, State state) throws IOException {
+        final List<Long> ids = state.segments;
+        int from = ids.size() - 1;
+
+        if (ids.size() > MAX_SEGMENTS) {
+            from = 0;
+        }
+        else {
+            long merged = Files.size(dir.resolve(segmentName(ids.get(from))));
+
+            while (from > 0 && 2L * merged >= Files.size(dir.resolve(segmentName(ids.get(from - 1))))) {
+                from--;
+                merged += Files.size(dir.resolve(segmentName(ids.get(from))));
+            }
+        }
+        if (ids.size() - from > 1) {
+            merge(dir, state, from);
+        }
+    }
+
+    /**
+     * Replaces the segments of the state from the given one on with a single
+     * segment holding their records.
+     */
+    private static void merge(Path dir, State state, int from) throws IOException {
+        final List<Long> ids = state.segments.subList(from, state.segments.size());
+        final PriorityQueue<Cursor> cursors = new PriorityQueue<>(
+            ids.size(),
+            (a, b) -> CatalogSegment.ORDER.compare(a.record, b.record)
+        );
+        final int[] liveBefore = state.liveBefore();
+        final List<Record> group = new ArrayList<>();
+        final long id = state.nextSegmentId++;
+
+        for (long input : ids) {
+            final Cursor cursor = new Cursor(CatalogSegment.open(dir.resolve(segmentName(input))));
+
+            if (cursor.next()) {
+                cursors.add(cursor);
+            }
+        }
+        try (CatalogSegment.Writer writer = newWriter(dir, id)) {
+            while (!cursors.isEmpty()) {
+                final Cursor cursor = cursors.poll();
+
+                if (!group.isEmpty() && !group.get(0).path.equals(cursor.record.path)) {
+                    writeGroup(writer, group, liveBefore, from == 0);
+                    group.clear();
+                }
+                group.add(cursor.record);
+                if (cursor.next()) {
+                    cursors.add(cursor);
+                }
+            }
+            writeGroup(writer, group, liveBefore, from == 0);
+        }
+        ids.clear();
+        state.segments.add(id);
+    }
+
+    /**
+     * Writes the records of a single path, turning the versions no existing
+     * snapshot holds into gaps and leaving out the gaps that mark nothing.
+     * Leading gaps only mark nothing if no older segment is left.
+     */
+    private static void writeGroup(
+        CatalogSegment.Writer writer,
+        List<Record> records,
+        int[] liveBefore,
+        boolean whole
+    ) throws IOException {
+        Record last = null;
+
+        for (int i = 0; i < records.size(); i++) {
+            final int end = i + 1 < records.size() ? records.get(i + 1).snapshot : liveBefore.length - 1;
+            Record record = records.get(i);
+
+            if (!record.isGap() && liveBefore[end] == liveBefore[record.snapshot]) {
+                record = Record.gap(record.path, record.snapshot);
+            }
+            if (record.isGap() && (last == null ? whole : last.isGap())) {
+                continue;
+            }
+            writer.write(record);
+            last = record;
+        }
+    }
+
+    private static CatalogSegment.Writer newWriter(Path dir, long id) throws IOException {
+        final Path file = dir.resolve(segmentName(id));
+
+        // Only an interrupted update can have left it
+        Files.deleteIfExists(file);
+        return new CatalogSegment.Writer(file);
+    }
+
+    /**
+     * Writes the state and deletes the segments it no longer lists.
+     */
+    private static void publish(Path dir, State state) throws IOException {
+        final Set<String> kept = new HashSet<>();
+
+        state.write(dir);
+        for (long id : state.segments) {
+            kept.add(segmentName(id));
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SEGMENT_EXTENSION)) {
+            for (Path file : stream) {
+                if (!kept.contains(file.getFileName().toString())) {
+                    try {
+                        Files.delete(file);
+                    }
+                    catch (IOException ignore) {
+                        // Some platforms can't delete a mapped file, the next update retries
+                    }
+                }
+            }
+        }
+    }
+
+    private static String segmentName(long id) {
+        return id + SEGMENT_EXTENSION;
+    }
+
+    /**
+     * A state of a file that stayed the same through a range of snapshots.
+     */
+    public static final class Version {
+        private final String path;
+        private final long size;
+        private final long modifiedTime;
+        private final int permissions;
+        private final String digest;
+        private final String copiedTo;
+        private final String firstSnapshot;
+        private final String lastSnapshot;
+        private final int snapshotCount;
+        private final boolean current;
+        private final int start;
+        private final int end;
+
+        private Version(
+            String path,
+            long size,
+            long modifiedTime,
+            int permissions,
+            String digest,
+            String copiedTo,
+            String firstSnapshot,
+            String lastSnapshot,
+            int snapshotCount,
+            boolean current,
+            int start,
+            int end
+        ) {
+            this.path = path;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.permissions = permissions;
+            this.digest = digest;
+            this.copiedTo = copiedTo;
+            this.firstSnapshot = firstSnapshot;
+            this.lastSnapshot = lastSnapshot;
+            this.snapshotCount = snapshotCount;
+            this.current = current;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModifiedTime() {
+            return modifiedTime;
+        }
+
+        public int getPermissions() {
+            return permissions;
+        }
+
+        /**
+         * Returns the hex SHA-256 digest of the file, or null if the snapshot
+         * was taken without checksums.
+         */
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * Returns the name of the snapshot this version was copied to. It
+         * holds the content even if it was pruned since, as long as a
+         * snapshot taken without hard links still uses it.
+         */
+        public String getCopiedTo() {
+            return copiedTo;
+        }
+
+        /**
+         * Returns the name of the oldest existing snapshot holding this
+         * version.
+         */
+        public String getFirstSnapshot() {
+            return firstSnapshot;
+        }
+
+        /**
+         * Returns the name of the newest existing snapshot holding this
+         * version.
+         */
+        public String getLastSnapshot() {
+            return lastSnapshot;
+        }
+
+        public int getSnapshotCount() {
+            return snapshotCount;
+        }
+
+        /**
+         * Returns whether this version is in the latest snapshot.
+         */
+        public boolean isCurrent() {
+            return current;
+        }
+    }
+
+    /**
+     * Reads the records of a segment in order.
+     */
+    private static final class Cursor {
+        private final CatalogSegment segment;
+        private int index;
+        private Record record;
+
+        Cursor(CatalogSegment segment) {
+            this.segment = segment;
+            this.index = 0;
+            this.record = null;
+        }
+
+        boolean next() {
+            if (index == segment.count()) {
+                return false;
+            }
+            record = segment.read(index++);
+            return true;
+        }
+    }
+
+    private static final class SnapshotInfo {
+        private final String name;
+        private final long createdAt;
+        private boolean live;
+
+        SnapshotInfo(String name, long createdAt, boolean live) {
+            this.name = name;
+            this.createdAt = createdAt;
+            this.live = live;
+        }
+    }
+
+    /**
+     * The segments and the snapshot table of a catalog. Records refer to
+     * snapshots by their index in the table, which only grows, and snapshots
+     * that were pruned stay in it marked as gone.
+     */
+    private static final class State {
+        private final String task;
+        private final List<Long> segments;
+        private final List<SnapshotInfo> snapshots;
+        private long nextSegmentId;
+
+        State(String task) {
+            this.task = task;
+            this.segments = new ArrayList<>();
+            this.snapshots = new ArrayList<>();
+            this.nextSegmentId = 0L;
+        }
+
+        /**
+         * Reads the state in the given folder, or returns null if there's
+         * none.
+         */
+        static State read(Path dir, String task) throws IOException {
+            final Path file = dir.resolve(STATE_FILE_NAME);
+
+            if (!Files.isRegularFile(file)) {
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a catalog " + file);
+                }
+                final int version = in.readInt();
+
+                if (version != VERSION) {
+                    throw new IOException("Unsupported catalog version " + version + ": " + file);
+                }
+                final State state = new State(in.readUTF());
+
+                if (!state.task.equals(task)) {
+                    throw new IOException("Catalog " + file + " belongs to task " + state.task);
+                }
+                state.nextSegmentId = in.readLong();
+                for (int i = in.readInt(); i > 0; i--) {
+                    state.segments.add(in.readLong());
+                }
+                for (int i = in.readInt(); i > 0; i--) {
+                    state.snapshots.add(new SnapshotInfo(in.readUTF(), in.readLong(), in.readBoolean()));
+                }
+                return state;
+            }
+        }
+
+        /**
+         * Replaces the state in the given folder, atomically.
+         */
+        void write(Path dir) throws IOException {
+            final Path file = dir.resolve(STATE_FILE_NAME);
+            final Path tmp = file.resolveSibling(STATE_FILE_NAME + IncrementalBackup.TMP_EXTENSION);
+
+            try (
+                FileChannel channel = FileChannel.open(
+                    tmp,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE
+                );
+                DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel))
+                )
+            ) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(task);
+                out.writeLong(nextSegmentId);
+                out.writeInt(segments.size());
+                for (long id : segments) {
+                    out.writeLong(id);
+                }
+                out.writeInt(snapshots.size());
+                for (SnapshotInfo snapshot : snapshots) {
+                    out.writeUTF(snapshot.name);
+                    out.writeLong(snapshot.createdAt);
+                    out.writeBoolean(snapshot.live);
+                }
+                out.flush();
+                channel.force(false);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        int add(String name, long createdAt) {
+            snapshots.add(new SnapshotInfo(name, createdAt, true));
+            return snapshots.size() - 1;
+        }
+
+        boolean endsWith(String name) {
+            return !snapshots.isEmpty() && snapshots.get(snapshots.size() - 1).name.equals(name);
+        }
+
+        /**
+         * Marks the snapshots whose manifest is gone, and returns whether any
+         * was found.
+         */
+        boolean refreshLive(Path snapshotRoot) {
+            boolean changed = false;
+
+            for (SnapshotInfo snapshot : snapshots) {
+                if (snapshot.live && !Files.exists(Snapshots.manifestOf(snapshotRoot.resolve(snapshot.name)))) {
+                    snapshot.live = false;
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        /**
+         * Returns the number of existing snapshots before each index of the
+         * table, up to its size.
+         */
+        int[] liveBefore() {
+            final int[] counts = new int[snapshots.size() + 1];
+
+            for (int i = 0; i < snapshots.size(); i++) {
+                counts[i + 1] = counts[i] + (snapshots.get(i).live ? 1 : 0);
+            }
+            return counts;
+        }
+    }
+}
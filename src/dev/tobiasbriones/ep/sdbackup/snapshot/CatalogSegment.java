@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.snapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable file of catalog records sorted by path and then by snapshot,
+ * read through memory maps so a lookup only touches the pages it needs.
+ *
+ * <p>The records are followed by the offset of each of them and a footer, so
+ * a path is found with a binary search of the offsets. Files larger than a
+ * single map are read through overlapping windows, each one holding every
+ * record that starts in it whole. Maps are released once the segment is
+ * no longer reachable.</p>
+ *
+ * @author Tobias Briones
+ */
+final class CatalogSegment {
+    static final byte KIND_VERSION = 0;
+    static final byte KIND_GAP = 1;
+    static final Comparator<Record> ORDER = Comparator.comparing((Record record) -> record.path)
+                                                      .thenComparingInt(record -> record.snapshot);
+    private static final int MAGIC = 0x53444253;
+    private static final int FOOTER_SIZE = 16;
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    // Paths are limited to 64 KiB like in manifests, so no record is larger
+    private static final long WINDOW_OVERLAP = 128L * 1024L;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private final Path file;
+    private final long size;
+    private final int count;
+    private final ByteBuffer offsets;
+    private final ByteBuffer[] windows;
+
+    private CatalogSegment(Path file, long size, int count, ByteBuffer offsets, ByteBuffer[] windows) {
+        this.file = file;
+        this.size = size;
+        this.count = count;
+        this.offsets = offsets;
+        this.windows = windows;
+    }
+
+    static CatalogSegment open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+
+            if (size < FOOTER_SIZE) {
+                throw new IOException("Not a catalog segment " + file);
+            }
+            while (footer.hasRemaining()) {
+                if (channel.read(footer, size - FOOTER_SIZE + footer.position()) == -1) {
+                    throw new IOException("Not a catalog segment " + file);
+                }
+            }
+            footer.flip();
+            final long recordsEnd = footer.getLong();
+            final int count = footer.getInt();
+
+            if (footer.getInt() != MAGIC
+                || recordsEnd < 0L
+                || count < 0
+                || recordsEnd + 8L * count + FOOTER_SIZE != size) {
+                throw new IOException("Not a catalog segment " + file);
+            }
+            final ByteBuffer offsets = channel.map(FileChannel.MapMode.READ_ONLY, recordsEnd, 8L * count);
+            final ByteBuffer[] windows = new ByteBuffer[(int) ((recordsEnd + WINDOW_SIZE - 1L) / WINDOW_SIZE)];
+
+            for (int i = 0; i < windows.length; i++) {
+                final long start = i * WINDOW_SIZE;
+
+                windows[i] = channel.map(
+                    FileChannel.MapMode.READ_ONLY,
+                    start,
+                    Math.min(WINDOW_SIZE + WINDOW_OVERLAP, recordsEnd - start)
+                );
+            }
+            return new CatalogSegment(file, size, count, offsets, windows);
+        }
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    long size() {
+        return size;
+    }
+
+    int count() {
+        return count;
+    }
+
+    Record read(int index) {
+        final ByteBuffer in = at(index);
+        final byte[] path = new byte[in.getInt()];
+
+        in.get(path);
+        final String value = new String(path, StandardCharsets.UTF_8);
+        final int snapshot = in.getInt();
+        final byte kind = in.get();
+
+        if (kind == KIND_GAP) {
+            return Record.gap(value, snapshot);
+        }
+        final long size = in.getLong();
+        final long modifiedTime = in.getLong();
+        final int permissions = in.getInt();
+        final int hashLength = Byte.toUnsignedInt(in.get());
+        final byte[] hash = hashLength == 0 ? null : new byte[hashLength];
+
+        if (hash != null) {
+            in.get(hash);
+        }
+        return Record.version(value, snapshot, size, modifiedTime, permissions, hash);
+    }
+
+    /**
+     * Adds the records of the given path to the list.
+     */
+    void collect(String path, List<Record> records) {
+        for (int i = lowerBound(path); i < count && pathAt(i).equals(path); i++) {
+            records.add(read(i));
+        }
+    }
+
+    /**
+     * Adds the records of the first paths starting with the given prefix to
+     * the map, at most the given number of paths.
+     */
+    void collectUnder(String prefix, int limit, Map<String, List<Record>> records) {
+        int paths = 0;
+        String last = null;
+
+        for (int i = lowerBound(prefix); i < count; i++) {
+            final String path = pathAt(i);
+
+            if (!path.startsWith(prefix)) {
+                break;
+            }
+            if (!path.equals(last)) {
+                if (paths == limit) {
+                    break;
+                }
+                paths++;
+                last = path;
+            }
+            records.computeIfAbsent(path, key -> new ArrayList<>()).add(read(i));
+        }
+    }
+
+    /**
+     * Returns the index of the first record whose path is not less than the
+     * given one.
+     */
+    private int lowerBound(String path) {
+        int low = 0;
+        int high = count;
+
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+
+            if (pathAt(middle).compareTo(path) < 0) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private String pathAt(int index) {
+        final ByteBuffer in = at(index);
+        final byte[] path = new byte[in.getInt()];
+
+        in.get(path);
+        return new String(path, StandardCharsets.UTF_8);
+    }
+
+    private ByteBuffer at(int index) {
+        final long offset = offsets.getLong(8 * index);
+        final ByteBuffer in = windows[(int) (offset / WINDOW_SIZE)].duplicate();
+
+        in.position((int) (offset % WINDOW_SIZE));
+        return in;
+    }
+
+    /**
+     * A version of a file, or a gap marking that it was deleted, starting at
+     * the snapshot at the given index of the snapshot table.
+     */
+    static final class Record {
+        final String path;
+        final int snapshot;
+        final byte kind;
+        final long size;
+        final long modifiedTime;
+        final int permissions;
+        final byte[] hash;
+
+        private Record(
+            String path,
+            int snapshot,
+            byte kind,
+            long size,
+            long modifiedTime,
+            int permissions,
+            byte[] hash
+        ) {
+            this.path = path;
+            this.snapshot = snapshot;
+            this.kind = kind;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.permissions = permissions;
+            this.hash = hash;
+        }
+
+        static Record version(
+            String path,
+            int snapshot,
+            long size,
+            long modifiedTime,
+            int permissions,
+            byte[] hash
+        ) {
+            return new Record(path, snapshot, KIND_VERSION, size, modifiedTime, permissions, hash);
+        }
+
+        static Record gap(String path, int snapshot) {
+            return new Record(path, snapshot, KIND_GAP, 0L, 0L, ManifestEntry.NO_PERMISSIONS, null);
+        }
+
+        boolean isGap() {
+            return kind == KIND_GAP;
+        }
+    }
+
+    /**
+     * Writes a new segment from records given in order.
+     */
+    static final class Writer implements Closeable {
+        private final FileChannel channel;
+        private final DataOutputStream out;
+        private long[] offsets;
+        private int count;
+        private long position;
+        private Record last;
+
+        Writer(Path file) throws IOException {
+            this.channel = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE
+            );
+            this.out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE)
+            );
+            this.offsets = new long[1024];
+            this.count = 0;
+            this.position = 0L;
+            this.last = null;
+        }
+
+        void write(Record record) throws IOException {
+            if (last != null && ORDER.compare(last, record) >= 0) {
+                throw new IOException("Catalog records out of order at " + record.path);
+            }
+            final byte[] path = record.path.getBytes(StandardCharsets.UTF_8);
+
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, 2 * count);
+            }
+            offsets[count++] = position;
+            out.writeInt(path.length);
+            out.write(path);
+            out.writeInt(record.snapshot);
+            out.writeByte(record.kind);
+            position += 9L + path.length;
+            if (!record.isGap()) {
+                out.writeLong(record.size);
+                out.writeLong(record.modifiedTime);
+                out.writeInt(record.permissions);
+                out.writeByte(record.hash == null ? 0 : record.hash.length);
+                if (record.hash != null) {
+                    out.write(record.hash);
+                }
+                position += 21L + (record.hash == null ? 0 : record.hash.length);
+            }
+            last = record;
+        }
+
+        /**
+         * Writes the offsets and the footer, and forces the segment to the
+         * disk.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(offsets[i]);
+                }
+                out.writeLong(position);
+                out.writeInt(count);
+                out.writeInt(MAGIC);
+                out.flush();
+                channel.force(false);
+            }
+            finally {
+                channel.close();
+            }
+        }
+    }
+}
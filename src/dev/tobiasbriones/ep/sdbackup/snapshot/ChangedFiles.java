@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.snapshot;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Spills the entries of the files added or changed by a backup to a
+ * temporary file as they're selected, so a backup of many changes doesn't
+ * keep them all in memory until the catalog is updated. The file is deleted
+ * once closed, or by the system if the backup is killed.
+ *
+ * <p>Entries are added from the walking thread, and read back in the same
+ * order once the backup is done.</p>
+ *
+ * @author Tobias Briones
+ */
+final class ChangedFiles implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final String snapshot;
+    private final FileChannel channel;
+    private final DataOutputStream out;
+    private DataInputStream in;
+    private int count;
+    private int remaining;
+
+    /**
+     * Creates the spill file of the given snapshot.
+     *
+     * @param file     temporary file, replaced if it exists
+     * @param snapshot name of the snapshot the entries belong to
+     * @throws IOException if the file can't be created
+     */
+    ChangedFiles(Path file, String snapshot) throws IOException {
+        this.snapshot = snapshot;
+        this.channel = FileChannel.open(
+            file,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.DELETE_ON_CLOSE
+        );
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+        this.in = null;
+        this.count = 0;
+        this.remaining = 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    void add(ManifestEntry entry) throws IOException {
+        out.writeUTF(entry.getPath());
+        out.writeLong(entry.getSize());
+        out.writeLong(entry.getModifiedTime());
+        out.writeInt(entry.getPermissions());
+        count++;
+    }
+
+    /**
+     * Starts reading the entries from the first one.
+     */
+    void rewind() throws IOException {
+        out.flush();
+        channel.position(0L);
+        in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+        remaining = count;
+    }
+
+    /**
+     * Returns the next entry, or null once they're all read.
+     */
+    ManifestEntry next() throws IOException {
+        if (remaining == 0) {
+            return null;
+        }
+        remaining--;
+        return new ManifestEntry(in.readUTF(), in.readLong(), in.readLong(), in.readInt(), snapshot);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.snapshot;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes the digests of the files of a snapshot in the format of
+ * {@code sha256sum}, so a snapshot can also be checked with {@code
+ * sha256sum -c} from its folder. Paths with a backslash or a line break are
+ * escaped the same way.
+ *
+ * <p>Lines may be written from several threads at once.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class ChecksumFile implements Closeable {
+    private final BufferedWriter out;
+
+    /**
+     * Creates a new empty checksum file.
+     */
+    public ChecksumFile(Path file) throws IOException {
+        this.out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the digests of the given checksum file.
+     *
+     * @param file checksum file
+     * @return the hex digests by path relative to the snapshot, in file order
+     * @throws IOException if the file can't be read or is not a checksum file
+     */
+    public static Map<String, String> read(Path file) throws IOException {
+        final Map<String, String> digests = new LinkedHashMap<>();
+
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                final boolean escaped = line.startsWith("\\");
+                final int start = escaped ? 1 : 0;
+                final int separator = line.indexOf("  ", start);
+
+                if (separator == -1) {
+                    throw new IOException("Not a checksum file " + file);
+                }
+                final String path = line.substring(separator + 2);
+
+                digests.put(escaped ? unescape(path) : path, line.substring(start, separator));
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * Writes the hex digest of the file at the given path.
+     *
+     * @param path path relative to the snapshot, separated by '/'
+     * @param hex  hex digest
+     */
+    public synchronized void write(String path, String hex) throws IOException {
+        if (path.indexOf('\\') != -1 || path.indexOf('\n') != -1) {
+            out.write('\\');
+            out.write(hex);
+            out.write("  ");
+            out.write(path.replace("\\", "\\\\").replace("\n", "\\n"));
+        }
+        else {
+            out.write(hex);
+            out.write("  ");
+            out.write(path);
+        }
+        out.write('\n');
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private static String unescape(String path) {
+        final StringBuilder value = new StringBuilder(path.length());
+
+        for (int i = 0; i < path.length(); i++) {
+            final char c = path.charAt(i);
+
+            if (c == '\\' && i + 1 < path.length()) {
+                value.append(path.charAt(++i) == 'n' ? '\n' : path.charAt(i));
+            }
+            else {
+                value.append(c);
+            }
+        }
+        return value.toString();
+    }
+}
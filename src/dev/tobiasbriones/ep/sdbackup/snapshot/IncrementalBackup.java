@@ -0,0 +1,567 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.snapshot;
+
+import dev.tobiasbriones.ep.sdbackup.io.Checksums;
+import dev.tobiasbriones.ep.sdbackup.io.FileSelector;
+import dev.tobiasbriones.ep.sdbackup.watch.ChangeJournal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selects only the files that were added or changed since the previous
+ * snapshot of a task, and writes the manifest of the new snapshot of every
+ * destination while the source is walked.
+ *
+ * <p>With hard links enabled, unchanged files are linked to the snapshot
+ * holding them, like rsync's {@code --link-dest}, so every snapshot is a
+ * complete tree on disk that only costs the changed bytes. Without them, the
+ * new snapshot only contains the added and changed files.</p>
+ *
+ * <p>The manifests are written to temporary files and only replace them on
+ * {@link #commit()}, so a failed backup is never taken as the base of the next
+ * one.</p>
+ *
+ * <p>Given a {@link ChangeJournal} that covers every change since the
+ * previous snapshot of each destination, the files of the directories that
+ * didn't change are taken from the previous manifest instead of being read
+ * again.</p>
+ *
+ * <p>With checksums enabled, the digests the engine computes are written to
+ * the checksum file of each snapshot, together with the digests of the
+ * files linked from the previous snapshot, so the checksum file covers the
+ * whole snapshot folder.</p>
+ *
+ * <p>With staging enabled, the files are written to a staging folder of
+ * each destination instead, whose copied files are recorded in a checkpoint
+ * journal, and it's renamed to the snapshot folder on {@link #commit()}. An
+ * aborted or killed backup leaves it for the next one of the task, which
+ * only copies the files it didn't finish. See {@link Staging}.</p>
+ *
+ * <p>Once committed, the added, changed and deleted files are added to the
+ * {@link Catalog} of each destination. A catalog that can't be updated is
+ * rebuilt by the next backup, so the backup doesn't fail for it.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class IncrementalBackup implements FileSelector {
+    private static final Logger LOGGER = Logger.getLogger(IncrementalBackup.class.getName());
+    static final String TMP_EXTENSION = ".tmp";
+    private static final String CHANGED_EXTENSION = ".changed";
+    private final Path src;
+    private final List<Destination> destinations;
+    private final ChangeJournal.Changes changes;
+    private final long changesSince;
+    private final Map<String, Map<String, ManifestEntry>> previousByDirectory;
+    private Path lastRelativePath;
+    private int lastPermissions;
+
+    private IncrementalBackup(Path src, List<Destination> destinations, ChangeJournal.Changes changes) {
+        this.src = src;
+        this.destinations = destinations;
+        this.lastRelativePath = null;
+        this.lastPermissions = ManifestEntry.NO_PERMISSIONS;
+        long since = Long.MAX_VALUE;
+
+        for (Destination destination : destinations) {
+            since = Math.min(since, destination.previousCreatedAt);
+        }
+        if (changes != null && !destinations.isEmpty() && changes.covers(since)) {
+            this.changes = changes;
+            this.changesSince = since;
+            this.previousByDirectory = byDirectory(destinations.get(0).previous.values());
+        }
+        else {
+            this.changes = null;
+            this.changesSince = 0L;
+            this.previousByDirectory = null;
+        }
+    }
+
+    /**
+     * Prepares an incremental backup of the source into each of the given
+     * snapshot folders, based on the latest manifest of the task next to
+     * each of them.
+     *
+     * @param task      name of the task
+     * @param src       source folder
+     * @param snapshots new snapshot folders, one per destination
+     * @param createdAt time of the backup in epoch milliseconds
+     * @param hardLinks whether to hard link unchanged files
+     * @return the incremental backup ready to be used as selector
+     * @throws IOException if a previous manifest can't be read or the new
+     *                     manifests can't be created
+     */
+    public static IncrementalBackup open(
+        String task,
+        Path src,
+        List<Path> snapshots,
+        long createdAt,
+        boolean hardLinks
+    ) throws IOException {
+        return open(task, src, snapshots, createdAt, hardLinks, null);
+    }
+
+    /**
+     * Prepares an incremental backup that trusts the given changes, if they
+     * cover every destination, to skip reading unchanged directories.
+     *
+     * @param changes changes of the source read from its journal, or null
+     * @see #open(String, Path, List, long, boolean)
+     */
+    public static IncrementalBackup open(
+        String task,
+        Path src,
+        List<Path> snapshots,
+        long createdAt,
+        boolean hardLinks,
+        ChangeJournal.Changes changes
+    ) throws IOException {
+        final List<Destination> destinations = new ArrayList<>(snapshots.size());
+
+        try {
+            for (Path snapshot : snapshots) {
+                destinations.add(new Destination(task, snapshot, createdAt, hardLinks));
+            }
+        }
+        catch (IOException e) {
+            destinations.forEach(Destination::abort);
+            throw e;
+        }
+        return new IncrementalBackup(src, destinations, changes);
+    }
+
+    /**
+     * Writes a checksum file for each new snapshot, with the digests given to
+     * {@link #checksummed}. It must be called before the copy starts.
+     *
+     * @throws IOException if a previous checksum file can't be read or the
+     *                     new ones can't be created
+     */
+    public void enableChecksums() throws IOException {
+        for (Destination destination : destinations) {
+            destination.enableChecksums();
+        }
+    }
+
+    /**
+     * Writes the files to a staging folder of each destination, resuming the
+     * one left by an interrupted backup, and returns them, so the copy must
+     * go to them instead of the new snapshot folders. It must be called
+     * before the copy starts, and after {@link #enableChecksums()} if it's
+     * called.
+     *
+     * @return the folders to copy to, one per destination
+     * @throws IOException if a staging folder can't be read or created
+     */
+    public List<Path> enableStaging() throws IOException {
+        final List<Path> trees = new ArrayList<>(destinations.size());
+
+        for (Destination destination : destinations) {
+            trees.add(destination.enableStaging());
+        }
+        return trees;
+    }
+
+    @Override
+    public boolean select(int destination, Path relativePath, BasicFileAttributes attrs) throws IOException {
+        // The engine asks for every destination in a row with the same path
+        if (relativePath != lastRelativePath) {
+            lastRelativePath = relativePath;
+            lastPermissions = attrs instanceof KnownAttributes
+                              ? ((KnownAttributes) attrs).entry.getPermissions()
+                              : ManifestEntry.permissionsOf(src.resolve(relativePath));
+        }
+        return destinations.get(destination).select(relativePath, attrs, lastPermissions);
+    }
+
+    @Override
+    public Path linkSource(int destination, Path relativePath) {
+        return destinations.get(destination).pendingLink;
+    }
+
+    @Override
+    public Map<String, BasicFileAttributes> knownFiles(Path relativeDir) {
+        if (changes == null) {
+            return null;
+        }
+        final String dir = ManifestEntry.toManifestPath(relativeDir);
+
+        if (!changes.isUnchanged(dir, changesSince)) {
+            return null;
+        }
+        final Map<String, ManifestEntry> entries = previousByDirectory.get(dir);
+        final Map<String, BasicFileAttributes> known = new HashMap<>();
+
+        if (entries != null) {
+            entries.forEach((name, entry) -> known.put(name, new KnownAttributes(entry)));
+        }
+        return known;
+    }
+
+    @Override
+    public void checksummed(int destination, Path relativePath, byte[] digest) throws IOException {
+        final Destination target = destinations.get(destination);
+        final String path = ManifestEntry.toManifestPath(relativePath);
+
+        target.checksums.write(path, Checksums.toHex(digest));
+        target.digests.put(path, digest);
+    }
+
+    @Override
+    public void copied(int destination, Path relativePath) {
+        destinations.get(destination).copied(relativePath);
+    }
+
+    /**
+     * Records the deleted files, publishes the new manifests and updates the
+     * catalogs.
+     *
+     * @throws IOException if a manifest can't be written
+     */
+    public void commit() throws IOException {
+        for (Destination destination : destinations) {
+            destination.commit(src);
+        }
+        for (Destination destination : destinations) {
+            destination.updateCatalog();
+        }
+    }
+
+    /**
+     * Discards the new manifests, leaving the previous ones as the latest.
+     */
+    public void abort() {
+        destinations.forEach(Destination::abort);
+    }
+
+    /**
+     * Groups the given entries by their directory and then by file name.
+     */
+    private static Map<String, Map<String, ManifestEntry>> byDirectory(Collection<ManifestEntry> entries) {
+        final Map<String, Map<String, ManifestEntry>> directories = new HashMap<>();
+
+        for (ManifestEntry entry : entries) {
+            final String path = entry.getPath();
+            final int slash = path.lastIndexOf('/');
+            final String dir = slash == -1 ? "" : path.substring(0, slash);
+
+            directories.computeIfAbsent(dir, key -> new HashMap<>()).put(path.substring(slash + 1), entry);
+        }
+        return directories;
+    }
+
+    /**
+     * Attributes of a file taken from the previous manifest.
+     */
+    private static final class KnownAttributes implements BasicFileAttributes {
+        private final ManifestEntry entry;
+        private final FileTime modifiedTime;
+
+        KnownAttributes(ManifestEntry entry) {
+            this.entry = entry;
+            this.modifiedTime = FileTime.fromMillis(entry.getModifiedTime());
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return modifiedTime;
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return modifiedTime;
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return modifiedTime;
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return true;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return false;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return entry.getSize();
+        }
+
+        @Override
+        public Object fileKey() {
+            return null;
+        }
+    }
+
+    private static final class Destination {
+        private final String task;
+        private final Path snapshotRoot;
+        private final boolean hardLinks;
+        private final String snapshot;
+        private final Path manifest;
+        private final Path tmpManifest;
+        private final Path checksumFile;
+        private final Path tmpChecksumFile;
+        private final Path previousChecksumFile;
+        private final Map<String, ManifestEntry> previous;
+        private final long previousCreatedAt;
+        private final String previousSnapshot;
+        private final long createdAt;
+        private final ManifestWriter writer;
+        private final ChangedFiles changed;
+        private final Map<String, byte[]> digests;
+        private Path pendingLink;
+        private ChecksumFile checksums;
+        private Map<String, String> previousChecksums;
+        private Staging staging;
+
+        Destination(String task, Path snapshotPath, long createdAt, boolean hardLinks) throws IOException {
+            final Path metadataDir = Snapshots.metadataDir(snapshotPath.getParent());
+            final Path previousFile = Snapshots.latestManifest(snapshotPath.getParent(), task);
+            final Set<String> snapshots = new LinkedHashSet<>();
+
+            this.task = task;
+            this.snapshotRoot = snapshotPath.getParent();
+            this.hardLinks = hardLinks;
+            this.snapshot = snapshotPath.getFileName().toString();
+            this.manifest = Snapshots.manifestOf(snapshotPath);
+            this.tmpManifest = manifest.resolveSibling(manifest.getFileName() + TMP_EXTENSION);
+            this.checksumFile = Snapshots.checksumsOf(snapshotPath);
+            this.tmpChecksumFile = checksumFile.resolveSibling(checksumFile.getFileName() + TMP_EXTENSION);
+
+            if (previousFile != null) {
+                final Manifest manifest = Manifest.read(previousFile);
+
+                this.previous = new HashMap<>(manifest.getEntries());
+                this.previousCreatedAt = manifest.getHeader().getCreatedAt();
+                this.previousSnapshot = manifest.getHeader().getSnapshot();
+                this.previousChecksumFile = Snapshots.checksumsOf(
+                    snapshotRoot.resolve(manifest.getHeader().getSnapshot())
+                );
+                previous.values().forEach(entry -> snapshots.add(entry.getSnapshot()));
+            }
+            else {
+                this.previous = new HashMap<>();
+
+                // Nothing is known, so no change journal can help
+                this.previousCreatedAt = Long.MIN_VALUE;
+                this.previousSnapshot = null;
+                this.previousChecksumFile = null;
+            }
+            snapshots.add(snapshot);
+            Files.createDirectories(metadataDir);
+            this.writer = new ManifestWriter(
+                tmpManifest,
+                task,
+                snapshot,
+                createdAt,
+                new ArrayList<>(snapshots)
+            );
+            this.createdAt = createdAt;
+            try {
+                this.changed = new ChangedFiles(
+                    metadataDir.resolve(snapshot + CHANGED_EXTENSION + TMP_EXTENSION),
+                    snapshot
+                );
+            }
+            catch (IOException e) {
+                writer.close();
+                Files.deleteIfExists(tmpManifest);
+                throw e;
+            }
+            this.digests = new ConcurrentHashMap<>();
+            this.pendingLink = null;
+            this.checksums = null;
+            this.previousChecksums = null;
+            this.staging = null;
+        }
+
+        void enableChecksums() throws IOException {
+            previousChecksums = previousChecksumFile != null && Files.exists(previousChecksumFile)
+                                ? ChecksumFile.read(previousChecksumFile)
+                                : new HashMap<>();
+            checksums = new ChecksumFile(tmpChecksumFile);
+        }
+
+        Path enableStaging() throws IOException {
+            staging = Staging.open(snapshotRoot, task, snapshot);
+            return staging.getTree();
+        }
+
+        boolean select(Path relativePath, BasicFileAttributes attrs, int permissions) throws IOException {
+            final ManifestEntry current = ManifestEntry.of(relativePath, attrs, permissions, snapshot);
+            final ManifestEntry old = previous.remove(current.getPath());
+
+            pendingLink = null;
+            if (old != null && old.isUnchanged(current)) {
+                if (hardLinks) {
+                    // The linked file makes this snapshot hold the content
+                    pendingLink = snapshotRoot.resolve(old.getSnapshot()).resolve(relativePath);
+                    writer.write(current);
+                    writeLinkedChecksum(current.getPath());
+                    if (staging != null && isStaged(relativePath, current, false)) {
+                        pendingLink = null;
+                    }
+                }
+                else {
+                    writer.write(current.withSnapshot(old.getSnapshot()));
+                }
+                return false;
+            }
+            writer.write(current);
+            changed.add(current);
+            return staging == null || !isStaged(relativePath, current, true);
+        }
+
+        /**
+         * Returns whether the interrupted backup already staged the given
+         * file, writing its digest if it was copied, or else tells the
+         * staging that it's going to be.
+         */
+        private boolean isStaged(Path relativePath, ManifestEntry current, boolean copy) throws IOException {
+            final String path = current.getPath();
+            final Staging.Record record = staging.resume(
+                path,
+                relativePath,
+                current.getSize(),
+                current.getModifiedTime(),
+                copy && checksums != null
+            );
+
+            if (record == null) {
+                staging.selected(relativePath, path, current.getSize(), current.getModifiedTime());
+                return false;
+            }
+            if (copy && checksums != null) {
+                checksums.write(path, Checksums.toHex(record.getDigest()));
+                digests.put(path, record.getDigest());
+            }
+            return true;
+        }
+
+        void copied(Path relativePath) {
+            if (staging != null) {
+                staging.copied(relativePath, digests.get(ManifestEntry.toManifestPath(relativePath)));
+            }
+        }
+
+        private void writeLinkedChecksum(String path) throws IOException {
+            if (checksums == null) {
+                return;
+            }
+            final String hex = previousChecksums.get(path);
+
+            // Files linked from a snapshot taken without checksums have none
+            if (hex != null) {
+                checksums.write(path, hex);
+            }
+        }
+
+        void commit(Path src) throws IOException {
+            for (String path : previous.keySet()) {
+                writer.writeDeleted(path);
+            }
+            writer.close();
+            if (checksums != null) {
+                checksums.close();
+            }
+            // Complete before the folder is published, so the next backup
+            // can finish moving them if this one is killed in between
+            if (staging != null) {
+                staging.publish(snapshotRoot.resolve(snapshot), src);
+            }
+            if (checksums != null) {
+                Files.move(tmpChecksumFile, checksumFile, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.move(tmpManifest, manifest, StandardCopyOption.ATOMIC_MOVE);
+            if (staging != null) {
+                staging.finish();
+            }
+        }
+
+        /**
+         * Adds the new snapshot to the catalog, once its manifest is
+         * published.
+         */
+        void updateCatalog() {
+            try {
+                Catalog.append(
+                    snapshotRoot,
+                    task,
+                    previousSnapshot,
+                    snapshot,
+                    createdAt,
+                    changed,
+                    previous.keySet(),
+                    digests
+                );
+            }
+            catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Couldn't update the catalog in " + snapshotRoot, e);
+            }
+            finally {
+                closeChanged();
+            }
+        }
+
+        void abort() {
+            if (staging != null) {
+                staging.close();
+            }
+            closeChanged();
+            try {
+                writer.close();
+                Files.deleteIfExists(tmpManifest);
+                if (checksums != null) {
+                    checksums.close();
+                    Files.deleteIfExists(tmpChecksumFile);
+                }
+            }
+            catch (IOException ignore) {}
+        }
+
+        private void closeChanged() {
+            try {
+                changed.close();
+            }
+            catch (IOException e) {
+                LOGGER.log(Level.FINE, "Couldn't delete the changed files of " + snapshot, e);
+            }
+        }
+    }
+}
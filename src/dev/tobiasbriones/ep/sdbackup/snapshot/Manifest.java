@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.snapshot;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Defines the content of a snapshot manifest, that is, every file of the
+ * source tree when the snapshot was taken and the files deleted since the
+ * previous snapshot of the same task.
+ *
+ * <p>Manifests are stored as gzipped binary files written by {@link
+ * ManifestWriter}.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class Manifest {
+    static final int MAGIC = 0x5344424D;
+    static final int VERSION = 1;
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final byte TAG_END = 0;
+    static final byte TAG_ENTRY = 1;
+    static final byte TAG_DELETED = 2;
+    private final Header header;
+    private final Map<String, ManifestEntry> entries;
+    private final List<String> deleted;
+
+    private Manifest(Header header, Map<String, ManifestEntry> entries, List<String> deleted) {
+        this.header = header;
+        this.entries = entries;
+        this.deleted = deleted;
+    }
+
+    public Header getHeader() {
+        return header;
+    }
+
+    /**
+     * Returns the entries of this manifest by path, in the order they were
+     * written.
+     *
+     * @return the entries by relative path
+     */
+    public Map<String, ManifestEntry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    public List<String> getDeleted() {
+        return Collections.unmodifiableList(deleted);
+    }
+
+    public static Header readHeader(Path file) throws IOException {
+        try (DataInputStream in = open(file)) {
+            return readHeader(in, file);
+        }
+    }
+
+    public static Manifest read(Path file) throws IOException {
+        try (DataInputStream in = open(file)) {
+            final Header header = readHeader(in, file);
+            final Map<String, ManifestEntry> entries = new LinkedHashMap<>();
+            final List<String> deleted = new ArrayList<>();
+
+            readBody(in, file, entry -> entries.put(entry.getPath(), entry), deleted);
+            return new Manifest(header, entries, deleted);
+        }
+    }
+
+    /**
+     * Reads only the entries of the given manifest, in the order they were
+     * written, without keeping them.
+     *
+     * @param file    manifest file
+     * @param entries receives each entry
+     * @throws IOException if the manifest can't be read
+     */
+    public static void readEntries(Path file, Consumer<ManifestEntry> entries) throws IOException {
+        try (DataInputStream in = open(file)) {
+            readHeader(in, file);
+            readBody(in, file, entries, new ArrayList<>());
+        }
+    }
+
+    /**
+     * Returns the files of the given manifest held by each of the given
+     * snapshots. Without hard links, unchanged files stay in the snapshot
+     * that first copied them. Entries are only read if the manifest may point
+     * to one of the snapshots.
+     *
+     * @param file      manifest file
+     * @param snapshots names of snapshot folders
+     * @return the paths of the entries pointing to each of the snapshots
+     *         that has any
+     * @throws IOException if the manifest can't be read
+     */
+    public static Map<String, Set<String>> readReferences(Path file, Set<String> snapshots) throws IOException {
+        try (DataInputStream in = open(file)) {
+            readHeader(in, file);
+            final String[] table = readSnapshotTable(in);
+            final Map<String, Set<String>> references = new HashMap<>();
+            final BitSet candidates = new BitSet(table.length);
+            byte tag;
+
+            for (int i = 0; i < table.length; i++) {
+                candidates.set(i, snapshots.contains(table[i]));
+            }
+            if (candidates.isEmpty()) {
+                return references;
+            }
+            while ((tag = in.readByte()) != TAG_END) {
+                if (tag == TAG_ENTRY) {
+                    final String path = in.readUTF();
+                    final int snapshot;
+
+                    in.readLong();
+                    in.readLong();
+                    in.readInt();
+                    snapshot = in.readInt();
+                    if (candidates.get(snapshot)) {
+                        references.computeIfAbsent(table[snapshot], key -> new HashSet<>()).add(path);
+                    }
+                }
+                else if (tag == TAG_DELETED) {
+                    in.readUTF();
+                }
+                else {
+                    throw new IOException("Corrupted manifest " + file);
+                }
+            }
+            return references;
+        }
+    }
+
+    private static void readBody(
+        DataInputStream in,
+        Path file,
+        Consumer<ManifestEntry> entries,
+        List<String> deleted
+    ) throws IOException {
+        final String[] snapshots = readSnapshotTable(in);
+        byte tag;
+
+        while ((tag = in.readByte()) != TAG_END) {
+            if (tag == TAG_ENTRY) {
+                entries.accept(new ManifestEntry(
+                    in.readUTF(),
+                    in.readLong(),
+                    in.readLong(),
+                    in.readInt(),
+                    snapshots[in.readInt()]
+                ));
+            }
+            else if (tag == TAG_DELETED) {
+                deleted.add(in.readUTF());
+            }
+            else {
+                throw new IOException("Corrupted manifest " + file);
+            }
+        }
+    }
+
+    private static DataInputStream open(Path file) throws IOException {
+        return new DataInputStream(
+            new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(file), BUFFER_SIZE),
+                BUFFER_SIZE
+            )
+        );
+    }
+
+    private static Header readHeader(DataInputStream in, Path file) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a manifest " + file);
+        }
+        final int version = in.readInt();
+
+        if (version != VERSION) {
+            throw new IOException("Unsupported manifest version " + version + ": " + file);
+        }
+        return new Header(in.readUTF(), in.readUTF(), in.readLong());
+    }
+
+    private static String[] readSnapshotTable(DataInputStream in) throws IOException {
+        final String[] snapshots = new String[in.readInt()];
+
+        for (int i = 0; i < snapshots.length; i++) {
+            snapshots[i] = in.readUTF();
+        }
+        return snapshots;
+    }
+
+    /**
+     * Identifies the task and snapshot a manifest belongs to.
+     */
+    public static final class Header {
+        private final String task;
+        private final String snapshot;
+        private final long createdAt;
+
+        Header(String task, String snapshot, long createdAt) {
+            this.task = task;
+            this.snapshot = snapshot;
+            this.createdAt = createdAt;
+        }
+
+        public String getTask() {
+            return task;
+        }
+
+        /**
+         * Returns the name of the snapshot folder this manifest describes.
+         *
+         * @return the snapshot folder name
+         */
+        public String getSnapshot() {
+            return snapshot;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+    }
+}
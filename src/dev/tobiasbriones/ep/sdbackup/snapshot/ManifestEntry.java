@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Defines the state of a source file when a snapshot was taken, and the
+ * snapshot that holds its content.
+ *
+ * @author Tobias Briones
+ */
+public final class ManifestEntry {
+    /**
+     * Permissions value used when the file system has no POSIX permissions.
+     */
+    public static final int NO_PERMISSIONS = -1;
+    private final String path;
+    private final long size;
+    private final long modifiedTime;
+    private final int permissions;
+    private final String snapshot;
+
+    public ManifestEntry(String path, long size, long modifiedTime, int permissions, String snapshot) {
+        this.path = path;
+        this.size = size;
+        this.modifiedTime = modifiedTime;
+        this.permissions = permissions;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Returns the path relative to the snapshot root, always separated by
+     * '/'.
+     *
+     * @return the relative path of the file
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModifiedTime() {
+        return modifiedTime;
+    }
+
+    public int getPermissions() {
+        return permissions;
+    }
+
+    /**
+     * Returns the name of the snapshot folder where this file was actually
+     * copied to.
+     *
+     * @return the name of the snapshot holding the content
+     */
+    public String getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Returns true if both entries describe the same state of a file, no
+     * matter which snapshot holds their content.
+     *
+     * @param other entry to compare to
+     * @return true if size, modified time and permissions are equal
+     */
+    public boolean isUnchanged(ManifestEntry other) {
+        return size == other.size &&
+               modifiedTime == other.modifiedTime &&
+               permissions == other.permissions;
+    }
+
+    ManifestEntry withSnapshot(String value) {
+        return new ManifestEntry(path, size, modifiedTime, permissions, value);
+    }
+
+    static ManifestEntry of(
+        Path relativePath,
+        BasicFileAttributes attrs,
+        int permissions,
+        String snapshot
+    ) {
+        return new ManifestEntry(
+            toManifestPath(relativePath),
+            attrs.size(),
+            attrs.lastModifiedTime().toMillis(),
+            permissions,
+            snapshot
+        );
+    }
+
+    /**
+     * Returns the given relative path separated by '/' no matter the
+     * platform.
+     *
+     * @param relativePath path relative to the source or snapshot root
+     * @return the portable path string
+     */
+    public static String toManifestPath(Path relativePath) {
+        final String path = relativePath.toString();
+        return File.separatorChar == '/' ? path : path.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Returns the POSIX permission bits of the file, like 0644, or {@link
+     * #NO_PERMISSIONS} if the file system doesn't have them.
+     *
+     * @param file file to read
+     * @return the permission bits
+     * @throws IOException if the attributes can't be read
+     */
+    public static int permissionsOf(Path file) throws IOException {
+        final PosixFileAttributeView view = Files.getFileAttributeView(
+            file,
+            PosixFileAttributeView.class
+        );
+
+        if (view == null) {
+            return NO_PERMISSIONS;
+        }
+        int bits = 0;
+
+        // Enum order goes from owner read (0400) to others execute (0001)
+        for (PosixFilePermission permission : view.readAttributes().permissions()) {
+            bits |= 1 << (8 - permission.ordinal());
+        }
+        return bits;
+    }
+
+    /**
+     * Sets the given POSIX permission bits on the file, unless they're
+     * {@link #NO_PERMISSIONS} or the file system doesn't have them.
+     *
+     * @param file        file to change
+     * @param permissions permission bits, like 0644
+     * @throws IOException if the permissions can't be set
+     */
+    public static void setPermissions(Path file, int permissions) throws IOException {
+        final PosixFileAttributeView view = Files.getFileAttributeView(
+            file,
+            PosixFileAttributeView.class
+        );
+
+        if (view == null || permissions == NO_PERMISSIONS) {
+            return;
+        }
+        final Set<PosixFilePermission> set = EnumSet.noneOf(PosixFilePermission.class);
+
+        for (PosixFilePermission permission : PosixFilePermission.values()) {
+            if ((permissions & 1 << (8 - permission.ordinal())) != 0) {
+                set.add(permission);
+            }
+        }
+        view.setPermissions(set);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.snapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a manifest one entry at a time, so it never has to be held in
+ * memory. Every snapshot an entry can refer to must be known upfront.
+ *
+ * @author Tobias Briones
+ */
+public final class ManifestWriter implements Closeable {
+    private final DataOutputStream out;
+    private final Map<String, Integer> snapshotIndices;
+    private boolean isClosed;
+
+    public ManifestWriter(
+        Path file,
+        String task,
+        String snapshot,
+        long createdAt,
+        List<String> snapshots
+    ) throws IOException {
+        this.out = new DataOutputStream(
+            new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(file), Manifest.BUFFER_SIZE),
+                Manifest.BUFFER_SIZE
+            )
+        );
+        this.snapshotIndices = new HashMap<>();
+        this.isClosed = false;
+
+        out.writeInt(Manifest.MAGIC);
+        out.writeInt(Manifest.VERSION);
+        out.writeUTF(task);
+        out.writeUTF(snapshot);
+        out.writeLong(createdAt);
+        out.writeInt(snapshots.size());
+        for (String name : snapshots) {
+            snapshotIndices.put(name, snapshotIndices.size());
+            out.writeUTF(name);
+        }
+    }
+
+    public void write(ManifestEntry entry) throws IOException {
+        final Integer index = snapshotIndices.get(entry.getSnapshot());
+
+        if (index == null) {
+            throw new IllegalArgumentException("Unknown snapshot " + entry.getSnapshot());
+        }
+        out.writeByte(Manifest.TAG_ENTRY);
+        out.writeUTF(entry.getPath());
+        out.writeLong(entry.getSize());
+        out.writeLong(entry.getModifiedTime());
+        out.writeInt(entry.getPermissions());
+        out.writeInt(index);
+    }
+
+    public void writeDeleted(String path) throws IOException {
+        out.writeByte(Manifest.TAG_DELETED);
+        out.writeUTF(path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        try {
+            out.writeByte(Manifest.TAG_END);
+        }
+        finally {
+            out.close();
+        }
+    }
+}
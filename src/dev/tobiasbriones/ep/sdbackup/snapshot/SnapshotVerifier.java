@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.snapshot;
+
+import dev.tobiasbriones.ep.sdbackup.io.Checksums;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks the files of a snapshot against the digests written to its checksum
+ * file when it was taken. The files of its manifest are checked too, so a
+ * file with no digest is reported as unverified instead of passing
+ * unnoticed.
+ *
+ * <p>Files are hashed on several threads, largest first, so a big file found
+ * late doesn't leave a single thread hashing after the rest are done.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class SnapshotVerifier {
+    /**
+     * Verifies the given snapshot.
+     *
+     * @param snapshot snapshot folder
+     * @param threads  number of hashing threads
+     * @return the files that don't match their digest, are missing or have
+     *         no digest
+     * @throws IOException if the snapshot has no checksum file or a file
+     *                     can't be read
+     */
+    public static Result verify(Path snapshot, int threads) throws IOException {
+        final Path checksumFile = Snapshots.checksumsOf(snapshot);
+
+        if (!Files.isRegularFile(checksumFile)) {
+            throw new IOException("The snapshot has no checksums: " + snapshot);
+        }
+        final long start = System.nanoTime();
+        final Map<String, String> digests = ChecksumFile.read(checksumFile);
+        final List<Entry> entries = new ArrayList<>(digests.size());
+        final List<String> missing = Collections.synchronizedList(new ArrayList<>());
+
+        for (Map.Entry<String, String> digest : digests.entrySet()) {
+            final Path file = snapshot.resolve(digest.getKey());
+
+            if (Files.isRegularFile(file)) {
+                entries.add(new Entry(digest.getKey(), file, Files.size(file), digest.getValue()));
+            }
+            else {
+                missing.add(digest.getKey());
+            }
+        }
+        final List<String> unverified = unverifiedOf(snapshot, digests, missing);
+
+        entries.sort(Comparator.comparingLong((Entry entry) -> entry.size).reversed());
+        final List<String> mismatched = Collections.synchronizedList(new ArrayList<>());
+        final LongAdder bytes = new LongAdder();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final int workerCount = Math.max(1, Math.min(threads, entries.size()));
+        final ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+        final List<Future<?>> workers = new ArrayList<>(workerCount);
+
+        try {
+            for (int i = 0; i < workerCount; i++) {
+                workers.add(executor.submit(() -> {
+                    int index;
+
+                    while (failure.get() == null && (index = next.getAndIncrement()) < entries.size()) {
+                        final Entry entry = entries.get(index);
+
+                        try {
+                            if (!Checksums.toHex(Checksums.hash(entry.file)).equals(entry.hex)) {
+                                mismatched.add(entry.path);
+                            }
+                            bytes.add(entry.size);
+                        }
+                        catch (NoSuchFileException e) {
+                            // Deleted while verifying
+                            missing.add(entry.path);
+                        }
+                        catch (IOException e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Verification interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        Collections.sort(mismatched);
+        Collections.sort(missing);
+        Collections.sort(unverified);
+        return new Result(
+            digests.size(),
+            bytes.sum(),
+            System.nanoTime() - start,
+            new ArrayList<>(mismatched),
+            new ArrayList<>(missing),
+            unverified
+        );
+    }
+
+    /**
+     * Returns the files of the manifest of the given snapshot that have no
+     * digest, and adds to the missing ones those held by the snapshot that no
+     * longer exist. Files held by an older snapshot without hard links aren't
+     * in the folder, so they're left to the verification of that snapshot.
+     */
+    private static List<String> unverifiedOf(
+        Path snapshot,
+        Map<String, String> digests,
+        List<String> missing
+    ) throws IOException {
+        final Path manifest = Snapshots.manifestOf(snapshot);
+        final String name = snapshot.getFileName().toString();
+        final List<String> unverified = new ArrayList<>();
+
+        if (!Files.isRegularFile(manifest)) {
+            return unverified;
+        }
+        Manifest.readEntries(manifest, entry -> {
+            if (digests.containsKey(entry.getPath())) {
+                return;
+            }
+            if (Files.isRegularFile(snapshot.resolve(entry.getPath()))) {
+                unverified.add(entry.getPath());
+            }
+            else if (entry.getSnapshot().equals(name)) {
+                missing.add(entry.getPath());
+            }
+        });
+        return unverified;
+    }
+
+    private SnapshotVerifier() {}
+
+    /**
+     * Outcome of the verification of a snapshot.
+     */
+    public static final class Result {
+        private final int files;
+        private final long bytes;
+        private final long nanos;
+        private final List<String> mismatched;
+        private final List<String> missing;
+        private final List<String> unverified;
+
+        private Result(
+            int files,
+            long bytes,
+            long nanos,
+            List<String> mismatched,
+            List<String> missing,
+            List<String> unverified
+        ) {
+            this.files = files;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.mismatched = Collections.unmodifiableList(mismatched);
+            this.missing = Collections.unmodifiableList(missing);
+            this.unverified = Collections.unmodifiableList(unverified);
+        }
+
+        /**
+         * Returns the number of files listed in the checksum file.
+         */
+        public int getFiles() {
+            return files;
+        }
+
+        /**
+         * Returns the bytes hashed.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Returns the paths, relative to the snapshot, of the files whose
+         * content doesn't match their digest.
+         */
+        public List<String> getMismatched() {
+            return mismatched;
+        }
+
+        /**
+         * Returns the paths, relative to the snapshot, of the listed files
+         * that no longer exist.
+         */
+        public List<String> getMissing() {
+            return missing;
+        }
+
+        /**
+         * Returns the paths, relative to the snapshot, of the files of the
+         * manifest that have no digest, so their content wasn't checked.
+         */
+        public List<String> getUnverified() {
+            return unverified;
+        }
+
+        public boolean isValid() {
+            return mismatched.isEmpty() && missing.isEmpty();
+        }
+    }
+
+    private static final class Entry {
+        private final String path;
+        private final Path file;
+        private final long size;
+        private final String hex;
+
+        Entry(String path, Path file, long size, String hex) {
+            this.path = path;
+            this.file = file;
+            this.size = size;
+            this.hex = hex;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.snapshot;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Locates the metadata of the snapshots stored in a snapshot root, that is,
+ * the folder holding the timestamped snapshot folders of a task. The metadata
+ * lives in a hidden folder next to them.
+ *
+ * @author Tobias Briones
+ */
+public final class Snapshots {
+    public static final String METADATA_DIR_NAME = ".sdbackup";
+    private static final String MANIFEST_EXTENSION = ".manifest";
+    private static final String CHECKSUMS_EXTENSION = ".sha256";
+    private static final String TRASH_DIR_NAME = "trash";
+    private static final String CATALOG_DIR_NAME = "catalog";
+    private static final String STAGING_DIR_NAME = "staging";
+
+    /**
+     * Returns a file name standing for the given name, such as the name of a
+     * task. Letters, digits, spaces and {@code .@-} are kept, and any other
+     * character, the {@code _} included, is written as {@code _} and its four
+     * hex digits, as is a leading dot, so that two names never share a file
+     * name and none is hidden, {@code .} or {@code ..}.
+     *
+     * @param name name to write as a file name
+     * @return the file name of the given name
+     */
+    public static String fileNameOf(String name) {
+        final StringBuilder builder = new StringBuilder(name.length());
+
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+
+            if (isFileNameChar(c) && (c != '.' || i > 0)) {
+                builder.append(c);
+            }
+            else {
+                builder.append(String.format("_%04x", (int) c));
+            }
+        }
+        return builder.length() == 0 ? "_" : builder.toString();
+    }
+
+    public static Path metadataDir(Path snapshotRoot) {
+        return snapshotRoot.resolve(METADATA_DIR_NAME);
+    }
+
+    public static Path manifestOf(Path snapshot) {
+        final String name = snapshot.getFileName().toString();
+        return metadataDir(snapshot.getParent()).resolve(name + MANIFEST_EXTENSION);
+    }
+
+    /**
+     * Returns the file with the digests of the files copied to the given
+     * snapshot, which only exists if it was taken with checksums.
+     */
+    public static Path checksumsOf(Path snapshot) {
+        final String name = snapshot.getFileName().toString();
+        return metadataDir(snapshot.getParent()).resolve(name + CHECKSUMS_EXTENSION);
+    }
+
+    /**
+     * Returns whether a backup into the given snapshot folder is running, or
+     * was killed before publishing its manifest.
+     */
+    public static boolean isBackupInProgress(Path snapshot) {
+        final Path manifest = manifestOf(snapshot);
+        return Files.exists(manifest.resolveSibling(manifest.getFileName() + IncrementalBackup.TMP_EXTENSION));
+    }
+
+    /**
+     * Returns the folder that snapshots being pruned are moved to, so they
+     * disappear at once and a prune interrupted halfway can be finished
+     * later.
+     */
+    public static Path trashDir(Path snapshotRoot) {
+        return metadataDir(snapshotRoot).resolve(TRASH_DIR_NAME);
+    }
+
+    /**
+     * Returns the folder holding the catalog of the given task, which indexes
+     * the versions of its files across its snapshots.
+     */
+    public static Path catalogDir(Path snapshotRoot, String task) {
+        return metadataDir(snapshotRoot).resolve(CATALOG_DIR_NAME).resolve(fileNameOf(task));
+    }
+
+    /**
+     * Returns the folder the next snapshot of the given task is written to
+     * before it's published, which is left behind by an interrupted backup
+     * for the next one to resume.
+     */
+    public static Path stagingDir(Path snapshotRoot, String task) {
+        return metadataDir(snapshotRoot).resolve(STAGING_DIR_NAME).resolve(fileNameOf(task));
+    }
+
+    /**
+     * Returns the most recent manifest written for the given task in the
+     * snapshot root, or null if the task has no snapshot there yet.
+     *
+     * @param snapshotRoot folder holding the snapshots
+     * @param task         name of the task
+     * @return the latest manifest file of the task or null
+     * @throws IOException if a manifest can't be read
+     */
+    public static Path latestManifest(Path snapshotRoot, String task) throws IOException {
+        final Path dir = metadataDir(snapshotRoot);
+        Path latest = null;
+        long latestCreatedAt = Long.MIN_VALUE;
+
+        if (!Files.isDirectory(dir)) {
+            return null;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + MANIFEST_EXTENSION)) {
+            for (Path file : stream) {
+                final Manifest.Header header = Manifest.readHeader(file);
+
+                if (header.getTask().equals(task) && header.getCreatedAt() > latestCreatedAt) {
+                    latest = file;
+                    latestCreatedAt = header.getCreatedAt();
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Returns the time each snapshot of the given task in the snapshot root
+     * was taken at, by name. Only snapshots with both their folder and
+     * manifest are returned.
+     *
+     * @param snapshotRoot folder holding the snapshots
+     * @param task         name of the task
+     * @return the creation time in epoch milliseconds of each snapshot
+     * @throws IOException if a manifest can't be read
+     */
+    public static Map<String, Long> snapshotsOf(Path snapshotRoot, String task) throws IOException {
+        final Path dir = metadataDir(snapshotRoot);
+        final Map<String, Long> createdAt = new HashMap<>();
+
+        if (!Files.isDirectory(dir)) {
+            return createdAt;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + MANIFEST_EXTENSION)) {
+            for (Path file : stream) {
+                final Manifest.Header header = Manifest.readHeader(file);
+
+                if (header.getTask().equals(task) && Files.isDirectory(snapshotRoot.resolve(header.getSnapshot()))) {
+                    createdAt.put(header.getSnapshot(), header.getCreatedAt());
+                }
+            }
+        }
+        return createdAt;
+    }
+
+    private static boolean isFileNameChar(char c) {
+        return (c >= 'A' && c <= 'Z')
+               || (c >= 'a' && c <= 'z')
+               || (c >= '0' && c <= '9')
+               || c == '.'
+               || c == ' '
+               || c == '@'
+               || c == '-';
+    }
+
+    private Snapshots() {}
+}
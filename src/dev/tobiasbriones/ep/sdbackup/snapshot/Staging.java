@@ -0,0 +1,659 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.snapshot;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Stages a new snapshot of a task in a folder next to the metadata of its
+ * destination, so an interrupted backup never leaves a half-written
+ * timestamped folder behind, and publishes it with an atomic rename once
+ * it's complete.
+ *
+ * <p>The files copied or linked into the staging folder are recorded in a
+ * checkpoint journal every {@link #CHECKPOINT_MILLIS} milliseconds from a
+ * thread of its own, once they were copied at least {@link #SETTLE_MILLIS}
+ * milliseconds before. By then the system has usually written them back on
+ * its own, so forcing them costs little, and a backup shorter than that
+ * forces nothing, like a backup written straight into its snapshot folder.
+ * The files of a checkpoint are forced to the disk as one batch: they're
+ * grouped by folder and split across {@link #SYNC_THREADS} threads, so that
+ * many forces are in flight at once, and each folder is forced once after
+ * its files so their names are durable too. The journal is then forced once
+ * for all of them, so the copy threads never wait for the disk. Each record
+ * has its length and a CRC-32 of its content, like the records of the task
+ * store, so a record torn by a crash is dropped. A backup that fails records
+ * every file copied so far before it stops.</p>
+ *
+ * <p>The next backup of the task into the same destination resumes the
+ * staging folder. Files recorded with the size and modified time their
+ * source still has are kept and not copied again, and anything else left in
+ * the folder is deleted.</p>
+ *
+ * <p>Publishing renames the staging folder to the snapshot and keeps the
+ * checkpoint journal until the manifest of the snapshot is in place, so a
+ * backup killed in between is finished by the next one instead of leaving a
+ * snapshot that looks in progress forever.</p>
+ *
+ * @author Tobias Briones
+ */
+final class Staging {
+    private static final Logger LOGGER = Logger.getLogger(Staging.class.getName());
+    static final long CHECKPOINT_MILLIS = 2000L;
+    static final long SETTLE_MILLIS = 30_000L;
+    static final int SYNC_THREADS = 16;
+    private static final String TREE_DIR_NAME = "tree";
+    private static final String CHECKPOINT_FILE_NAME = "checkpoint";
+    private static final int MAGIC = 0x53444243;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final Path dir;
+    private final Path tree;
+    private final Path checkpointFile;
+    private final Map<String, Record> resumed;
+    private final Map<Path, Record> selected;
+    private final Deque<Copied> copied;
+    private final FileChannel journal;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService syncer;
+    private volatile IOException failure;
+
+    private Staging(Path dir, Map<String, Record> resumed, FileChannel journal) {
+        this.dir = dir;
+        this.tree = dir.resolve(TREE_DIR_NAME);
+        this.checkpointFile = dir.resolve(CHECKPOINT_FILE_NAME);
+        this.resumed = resumed;
+        this.selected = new ConcurrentHashMap<>();
+        this.copied = new ArrayDeque<>();
+        this.journal = journal;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "Checkpoint " + dir));
+        this.syncer = Executors.newFixedThreadPool(SYNC_THREADS, r -> daemon(r, "Checkpoint sync " + dir));
+        this.failure = null;
+
+        scheduler.scheduleWithFixedDelay(
+            this::scheduledCheckpoint,
+            CHECKPOINT_MILLIS,
+            CHECKPOINT_MILLIS,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Opens the staging folder of the given task in the snapshot root,
+     * resuming the one left by an interrupted backup if there's any.
+     *
+     * @param snapshotRoot folder holding the snapshots
+     * @param task         name of the task
+     * @param snapshot     name of the new snapshot
+     * @return the staging folder
+     * @throws IOException if the staging folder can't be read or written
+     */
+    static Staging open(Path snapshotRoot, String task, String snapshot) throws IOException {
+        final Path dir = Snapshots.stagingDir(snapshotRoot, task);
+        final Path tree = dir.resolve(TREE_DIR_NAME);
+        final Path checkpointFile = dir.resolve(CHECKPOINT_FILE_NAME);
+        final Map<String, Record> resumed = new HashMap<>();
+
+        final String interrupted = readCheckpoint(checkpointFile, resumed);
+
+        if (!Files.isDirectory(tree)) {
+            // The interrupted backup published its folder but not its manifest
+            resumed.clear();
+            if (interrupted != null) {
+                finishPublished(snapshotRoot, interrupted);
+            }
+            Files.createDirectories(tree);
+        }
+        else {
+            // The manifest of the interrupted backup was never published
+            if (interrupted != null && !interrupted.equals(snapshot)) {
+                final Path manifest = Snapshots.manifestOf(snapshotRoot.resolve(interrupted));
+                final Path checksums = Snapshots.checksumsOf(snapshotRoot.resolve(interrupted));
+
+                Files.deleteIfExists(tmpOf(manifest));
+                Files.deleteIfExists(tmpOf(checksums));
+            }
+            keepRecorded(tree, resumed);
+            LOGGER.log(Level.FINE, "Resuming {0} staged files in {1}", new Object[] { resumed.size(), dir });
+        }
+        writeCheckpoint(checkpointFile, snapshot, resumed.values());
+        return new Staging(dir, resumed, FileChannel.open(checkpointFile, StandardOpenOption.APPEND));
+    }
+
+    /**
+     * Returns the folder the files of the new snapshot are written to.
+     */
+    Path getTree() {
+        return tree;
+    }
+
+    /**
+     * Returns the record of the given file if the interrupted backup already
+     * staged it with the given size and modified time, and with a digest if
+     * one is needed, or else deletes what it left of the file and returns
+     * {@code null}. It must be called from the walking thread.
+     */
+    Record resume(
+        String path,
+        Path relativePath,
+        long size,
+        long modifiedTime,
+        boolean needsDigest
+    ) throws IOException {
+        final Record record = resumed.remove(path);
+
+        if (record == null) {
+            return null;
+        }
+        if (record.size == size && record.modifiedTime == modifiedTime && (!needsDigest || record.digest != null)) {
+            return record;
+        }
+        Files.deleteIfExists(tree.resolve(relativePath));
+        return null;
+    }
+
+    /**
+     * Tells that the given file is going to be copied or linked into the
+     * staging folder.
+     */
+    void selected(Path relativePath, String path, long size, long modifiedTime) {
+        selected.put(relativePath, new Record(path, size, modifiedTime, null));
+    }
+
+    /**
+     * Tells that the given file was copied or linked whole, so it's recorded
+     * at the next checkpoint.
+     *
+     * @param relativePath path of the file relative to the source
+     * @param digest       digest of the file, or {@code null} if it has none
+     */
+    void copied(Path relativePath, byte[] digest) {
+        final Record record = selected.remove(relativePath);
+
+        if (record != null) {
+            final Record whole = digest == null
+                                 ? record
+                                 : new Record(record.path, record.size, record.modifiedTime, digest);
+
+            synchronized (copied) {
+                copied.add(new Copied(whole, System.nanoTime()));
+            }
+        }
+    }
+
+    /**
+     * Forces the files copied since the last checkpoint to the disk and then
+     * records them in the journal.
+     *
+     * @param settled whether to only take the files copied at least {@link
+     *                #SETTLE_MILLIS} milliseconds ago
+     * @throws IOException if a file or the journal can't be forced
+     */
+    void checkpoint(boolean settled) throws IOException {
+        final long copiedBefore = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(SETTLE_MILLIS);
+        final List<Record> records = new ArrayList<>();
+
+        synchronized (copied) {
+            // Files are added in the order they're copied
+            while (!copied.isEmpty() && (!settled || copied.peekFirst().nanos - copiedBefore <= 0L)) {
+                records.add(copied.pollFirst().record);
+            }
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+        synchronized (journal) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * records.size());
+            final DataOutputStream out = new DataOutputStream(bytes);
+
+            force(records);
+            for (Record record : records) {
+                out.write(record.toFrame());
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+
+            while (buffer.hasRemaining()) {
+                journal.write(buffer);
+            }
+            journal.force(false);
+        }
+    }
+
+    /**
+     * Deletes the files left by the interrupted backup that are no longer in
+     * the source, and renames the staging folder to the given snapshot. The
+     * files copied since the last checkpoint aren't forced, since a snapshot
+     * published is never resumed. The checkpoint journal is kept until
+     * {@link #finish()} is called, once the manifest is in place.
+     *
+     * @param snapshot snapshot folder, which must not exist
+     * @param source   source folder the snapshot was taken from
+     * @throws IOException if a checkpoint failed or the folder can't be
+     *                     renamed
+     */
+    void publish(Path snapshot, Path source) throws IOException {
+        stopScheduler();
+        syncer.shutdown();
+        journal.close();
+        if (failure != null) {
+            throw failure;
+        }
+        for (String path : resumed.keySet()) {
+            Path file = tree.resolve(path);
+
+            Files.deleteIfExists(file);
+
+            // Folders the source still has were walked, even if now empty
+            while (!(file = file.getParent()).equals(tree)
+                   && !Files.isDirectory(source.resolve(tree.relativize(file)))
+                   && isEmptyDirectory(file)) {
+                Files.delete(file);
+            }
+        }
+        Files.move(tree, snapshot, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the checkpoint journal and the staging folder once the
+     * published snapshot has its manifest. The staging folder of the
+     * destination is deleted too once no task is staging in it.
+     *
+     * @throws IOException if the staging folder can't be deleted
+     */
+    void finish() throws IOException {
+        Files.delete(checkpointFile);
+        Files.delete(dir);
+        try {
+            Files.deleteIfExists(dir.getParent());
+        }
+        catch (DirectoryNotEmptyException ignore) {
+            // Another task is staging a snapshot
+        }
+    }
+
+    /**
+     * Records the files copied so far and stops, leaving the staging folder
+     * for the next backup to resume.
+     */
+    void close() {
+        stopScheduler();
+        try {
+            checkpoint(false);
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Couldn't write the last checkpoint of " + dir, e);
+        }
+        finally {
+            syncer.shutdown();
+            try {
+                journal.close();
+            }
+            catch (IOException ignore) {}
+        }
+    }
+
+    private void scheduledCheckpoint() {
+        try {
+            checkpoint(true);
+        }
+        catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Waits for a scheduled checkpoint that is running, and cancels the next
+     * ones.
+     */
+    private void stopScheduler() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Forces the given files to the disk as one batch. The files are grouped
+     * by folder, and the folders dealt out to the sync threads so each
+     * thread gets about the same number of files, with the files of a folder
+     * forced together in name order and then the folder itself.
+     */
+    private void force(List<Record> records) throws IOException {
+        final Map<Path, List<Path>> byFolder = new TreeMap<>();
+        final List<Map<Path, List<Path>>> slices = new ArrayList<>(SYNC_THREADS);
+        final int slice = (records.size() + SYNC_THREADS - 1) / SYNC_THREADS;
+        Map<Path, List<Path>> part = new LinkedHashMap<>();
+        int files = 0;
+
+        for (Record record : records) {
+            final Path file = tree.resolve(record.path);
+
+            byFolder.computeIfAbsent(file.getParent(), key -> new ArrayList<>()).add(file);
+        }
+        for (Map.Entry<Path, List<Path>> folder : byFolder.entrySet()) {
+            Collections.sort(folder.getValue());
+            part.put(folder.getKey(), folder.getValue());
+            files += folder.getValue().size();
+            if (files >= slice) {
+                slices.add(part);
+                part = new LinkedHashMap<>();
+                files = 0;
+            }
+        }
+        if (!part.isEmpty()) {
+            slices.add(part);
+        }
+        final List<Callable<Void>> tasks = new ArrayList<>(slices.size());
+
+        for (Map<Path, List<Path>> folders : slices) {
+            tasks.add(() -> {
+                force(folders);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : syncer.invokeAll(tasks)) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Checkpoint interrupted");
+        }
+        catch (RejectedExecutionException e) {
+            // Stopped, so the files are forced from the calling thread
+            force(byFolder);
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Forces the files of each of the given folders, and then the folder.
+     */
+    private static void force(Map<Path, List<Path>> folders) throws IOException {
+        for (Map.Entry<Path, List<Path>> folder : folders.entrySet()) {
+            for (Path file : folder.getValue()) {
+                force(file);
+            }
+            forceDirectory(folder.getKey());
+        }
+    }
+
+    private static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.force(false);
+        }
+        catch (IOException e) {
+            // Some systems only flush files open for writing
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.force(false);
+            }
+        }
+    }
+
+    private static void forceDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException ignore) {
+            // Some systems can't open folders, and write their entries through
+        }
+    }
+
+    /**
+     * Reads the records of the given checkpoint journal up to the first torn
+     * one, and returns the snapshot it was written for, or {@code null} if
+     * the journal is missing or not a journal.
+     */
+    private static String readCheckpoint(Path file, Map<String, Record> records) throws IOException {
+        final ByteBuffer buffer;
+
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+        if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+        final String snapshot = readString(buffer);
+        final CRC32 crc = new CRC32();
+
+        while (buffer.remaining() >= 4) {
+            final int length = buffer.getInt();
+
+            if (length < 0 || length > buffer.remaining() - 4) {
+                break;
+            }
+            final int offset = buffer.position();
+
+            crc.reset();
+            crc.update(buffer.array(), offset, length);
+            buffer.position(offset + length);
+            if (buffer.getInt() != (int) crc.getValue()) {
+                break;
+            }
+            final Record record = Record.read(ByteBuffer.wrap(buffer.array(), offset, length));
+
+            records.put(record.path, record);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Moves the manifest and the checksum file of the given snapshot into
+     * place if the backup that published its folder was killed before doing
+     * it.
+     */
+    private static void finishPublished(Path snapshotRoot, String snapshot) throws IOException {
+        final Path folder = snapshotRoot.resolve(snapshot);
+        final Path manifest = Snapshots.manifestOf(folder);
+        final Path checksums = Snapshots.checksumsOf(folder);
+
+        if (!Files.isDirectory(folder) || !Files.exists(tmpOf(manifest))) {
+            return;
+        }
+        if (Files.exists(tmpOf(checksums))) {
+            Files.move(tmpOf(checksums), checksums, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(tmpOf(manifest), manifest, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.log(Level.FINE, "Finished publishing {0}", folder);
+    }
+
+    /**
+     * Deletes the files of the staging tree that aren't recorded whole, and
+     * drops the records of the files that are missing.
+     */
+    private static void keepRecorded(Path tree, Map<String, Record> records) throws IOException {
+        final Set<String> found = new HashSet<>();
+
+        Files.walkFileTree(tree, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                final String path = ManifestEntry.toManifestPath(tree.relativize(file));
+                final Record record = records.get(path);
+
+                if (record != null && attrs.isRegularFile() && attrs.size() == record.size) {
+                    found.add(path);
+                }
+                else {
+                    Files.delete(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        records.keySet().retainAll(found);
+    }
+
+    /**
+     * Writes a new checkpoint journal for the given snapshot with the given
+     * records, replacing the given file atomically.
+     */
+    private static void writeCheckpoint(Path file, String snapshot, Collection<Record> records) throws IOException {
+        final Path tmp = tmpOf(file);
+
+        try (
+            FileChannel out = FileChannel.open(
+                tmp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+            );
+            DataOutputStream data = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(out), BUFFER_SIZE)
+            )
+        ) {
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            writeString(data, snapshot);
+            for (Record record : records) {
+                data.write(record.toFrame());
+            }
+            data.flush();
+            out.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        final Thread thread = new Thread(runnable, name);
+
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static Path tmpOf(Path file) {
+        return file.resolveSibling(file.getFileName() + IncrementalBackup.TMP_EXTENSION);
+    }
+
+    private static boolean isEmptyDirectory(Path dir) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            return !stream.iterator().hasNext();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        final int length = in.getInt();
+        final String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+
+        in.position(in.position() + length);
+        return value;
+    }
+
+    /**
+     * A file copied since the last checkpoint, and when it was.
+     */
+    private static final class Copied {
+        private final Record record;
+        private final long nanos;
+
+        Copied(Record record, long nanos) {
+            this.record = record;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * A file staged whole, with the size and modified time its source had.
+     */
+    static final class Record {
+        private final String path;
+        private final long size;
+        private final long modifiedTime;
+        private final byte[] digest;
+
+        Record(String path, long size, long modifiedTime, byte[] digest) {
+            this.path = path;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.digest = digest;
+        }
+
+        /**
+         * Returns the digest of the file, or {@code null} if it was staged
+         * without checksums.
+         */
+        byte[] getDigest() {
+            return digest;
+        }
+
+        static Record read(ByteBuffer in) {
+            final String path = readString(in);
+            final long size = in.getLong();
+            final long modifiedTime = in.getLong();
+            final int digestLength = in.getInt();
+            byte[] digest = null;
+
+            if (digestLength > 0) {
+                digest = new byte[digestLength];
+                in.get(digest);
+            }
+            return new Record(path, size, modifiedTime, digest);
+        }
+
+        /**
+         * Returns this record prefixed with its length and followed by its
+         * CRC-32.
+         */
+        byte[] toFrame() throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            final CRC32 crc = new CRC32();
+
+            writeString(out, path);
+            out.writeLong(size);
+            out.writeLong(modifiedTime);
+            out.writeInt(digest == null ? 0 : digest.length);
+            if (digest != null) {
+                out.write(digest);
+            }
+            final byte[] content = bytes.toByteArray();
+
+            crc.update(content, 0, content.length);
+            return ByteBuffer.allocate(content.length + 8)
+                             .putInt(content.length)
+                             .put(content)
+                             .putInt((int) crc.getValue())
+                             .array();
+        }
+    }
+}
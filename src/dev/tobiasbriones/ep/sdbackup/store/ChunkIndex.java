@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.store;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Maps chunk hashes to their location in the pack files. It's an open
+ * addressing hash table keyed by the first 128 bits of the chunk SHA-256,
+ * so there is no object per chunk.
+ *
+ * <p>The table lives off the heap, in a scratch file mapped into memory and
+ * deleted right away, so it takes no heap at all and the system can page it
+ * out. The file is in the temporary folder rather than the repository, which
+ * may be on a slow drive or a network share. Each slot takes 32 bytes and the number of
+ * slots is a power of two kept at most 70% full, so 30 million chunks take
+ * 64 Mi slots, that is 2 GiB of mapped memory and no heap. The table is sized
+ * from the number of chunks stored when the repository is opened, so it only
+ * doubles when a backup adds more chunks than it has room for, and the old
+ * table stays mapped until it's collected. It's not thread safe.</p>
+ *
+ * @author Tobias Briones
+ */
+final class ChunkIndex {
+    static final int NOT_FOUND = -1;
+    private static final String TABLE_PREFIX = "sdbackup-index-";
+    private static final String TABLE_EXTENSION = ".table";
+    private static final int MIN_CAPACITY = 1 << 10;
+    private static final double MAX_LOAD = 0.7;
+    private static final int SLOT_SIZE = 32;
+    private static final int SLOT_SHIFT = 5;
+
+    // A mapping can't exceed 2 GiB, so large tables are mapped in 1 GiB parts
+    private static final int PART_SLOTS_SHIFT = 25;
+    private static final int HIGH_OFFSET = 0;
+    private static final int LOW_OFFSET = 8;
+    private static final int LOCATION_OFFSET = 16;
+    private static final int LENGTH_OFFSET = 24;
+    private MappedByteBuffer[] parts;
+    private int capacity;
+    private int size;
+
+    /**
+     * Creates an empty index with room for the given number of chunks.
+     *
+     * @param expectedSize number of chunks to make room for
+     * @throws IOException if the table can't be mapped
+     */
+    ChunkIndex(int expectedSize) throws IOException {
+        int capacity = MIN_CAPACITY;
+
+        while (capacity * MAX_LOAD < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+        this.size = 0;
+    }
+
+    /**
+     * Deletes the scratch files left by processes that couldn't delete them
+     * while they were mapped. The ones still mapped can't be deleted either.
+     */
+    static void deleteScratchFiles() {
+        final Path dir = Paths.get(System.getProperty("java.io.tmpdir"));
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, TABLE_PREFIX + "*" + TABLE_EXTENSION)) {
+            for (Path file : stream) {
+                try {
+                    Files.deleteIfExists(file);
+                }
+                catch (IOException ignore) {}
+            }
+        }
+        catch (IOException ignore) {}
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the slot of the given key or {@link #NOT_FOUND}.
+     */
+    int find(long high, long low) {
+        final int mask = capacity - 1;
+
+        for (int slot = (int) high & mask; !isEmptyAt(slot); slot = (slot + 1) & mask) {
+            if (highAt(slot) == high && lowAt(slot) == low) {
+                return slot;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Returns the number of slots, each of which may be empty.
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    boolean isEmptyAt(int slot) {
+        return lengthAt(slot) == 0;
+    }
+
+    long highAt(int slot) {
+        return partOf(slot).getLong(offsetOf(slot) + HIGH_OFFSET);
+    }
+
+    long lowAt(int slot) {
+        return partOf(slot).getLong(offsetOf(slot) + LOW_OFFSET);
+    }
+
+    long locationAt(int slot) {
+        return partOf(slot).getLong(offsetOf(slot) + LOCATION_OFFSET);
+    }
+
+    int lengthAt(int slot) {
+        return partOf(slot).getInt(offsetOf(slot) + LENGTH_OFFSET);
+    }
+
+    /**
+     * Adds a chunk that is not in the index yet. Chunks are never empty.
+     */
+    void add(long high, long low, long location, int length) throws IOException {
+        if (size + 1 > capacity * MAX_LOAD) {
+            grow();
+        }
+        insert(high, low, location, length);
+        size++;
+    }
+
+    private void insert(long high, long low, long location, int length) {
+        final int mask = capacity - 1;
+        int slot = (int) high & mask;
+
+        while (!isEmptyAt(slot)) {
+            slot = (slot + 1) & mask;
+        }
+        final MappedByteBuffer part = partOf(slot);
+        final int offset = offsetOf(slot);
+
+        part.putLong(offset + HIGH_OFFSET, high);
+        part.putLong(offset + LOW_OFFSET, low);
+        part.putLong(offset + LOCATION_OFFSET, location);
+        part.putInt(offset + LENGTH_OFFSET, length);
+    }
+
+    private void grow() throws IOException {
+        final MappedByteBuffer[] oldParts = parts;
+        final int oldCapacity = capacity;
+
+        allocate(oldCapacity << 1);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            final MappedByteBuffer part = oldParts[slot >>> PART_SLOTS_SHIFT];
+            final int offset = offsetOf(slot);
+            final int length = part.getInt(offset + LENGTH_OFFSET);
+
+            if (length != 0) {
+                insert(
+                    part.getLong(offset + HIGH_OFFSET),
+                    part.getLong(offset + LOW_OFFSET),
+                    part.getLong(offset + LOCATION_OFFSET),
+                    length
+                );
+            }
+        }
+    }
+
+    /**
+     * Maps a new zeroed table of the given number of slots.
+     */
+    private void allocate(int capacity) throws IOException {
+        final Path file = Files.createTempFile(TABLE_PREFIX, TABLE_EXTENSION);
+        final long bytes = (long) capacity << SLOT_SHIFT;
+        final long partBytes = Math.min(bytes, (long) SLOT_SIZE << PART_SLOTS_SHIFT);
+        final MappedByteBuffer[] mapped = new MappedByteBuffer[(int) ((bytes + partBytes - 1) / partBytes)];
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Mapping past the end grows the file with zeros, which are empty slots
+            for (int i = 0; i < mapped.length; i++) {
+                mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * partBytes, partBytes);
+                mapped[i].order(ByteOrder.nativeOrder());
+            }
+        }
+        finally {
+            try {
+                Files.delete(file);
+            }
+            catch (IOException ignore) {
+                // Some platforms can't delete a mapped file, a later open does
+            }
+        }
+        this.parts = mapped;
+        this.capacity = capacity;
+    }
+
+    private MappedByteBuffer partOf(int slot) {
+        return parts[slot >>> PART_SLOTS_SHIFT];
+    }
+
+    private static int offsetOf(int slot) {
+        return (slot & ((1 << PART_SLOTS_SHIFT) - 1)) << SLOT_SHIFT;
+    }
+}
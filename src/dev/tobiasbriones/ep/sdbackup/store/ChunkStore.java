@@ -0,0 +1,828 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.store;
+
+import dev.tobiasbriones.ep.sdbackup.io.CopyProgress;
+import dev.tobiasbriones.ep.sdbackup.io.Throttle;
+import dev.tobiasbriones.ep.sdbackup.io.TreeFilter;
+import dev.tobiasbriones.ep.sdbackup.snapshot.ManifestEntry;
+import dev.tobiasbriones.ep.sdbackup.snapshot.Snapshots;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Defines a content-addressed backup repository. Files are split into
+ * content-defined chunks and each chunk is stored only once by its SHA-256,
+ * no matter how many files, snapshots or tasks share it. Each snapshot is a
+ * {@link SnapshotTree} referencing its chunks.
+ *
+ * <p>A folder is a repository if it contains a file named {@link
+ * #MARKER_FILE_NAME}. Chunks are appended to pack files, and their locations
+ * to an append-only index that is loaded into a {@link ChunkIndex} on open,
+ * which keeps it in a memory mapped scratch file rather than on the heap.
+ * Pack data is forced to disk before the index records and the snapshot tree
+ * pointing to it are written, so an interrupted backup only leaves unused
+ * bytes behind. Only one process can open a repository at a time.</p>
+ *
+ * <p>Deleting snapshots only reclaims the pack files none of the remaining
+ * snapshots use. Packs are never rewritten, so a pack with a single chunk
+ * still in use is kept whole.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class ChunkStore implements Closeable {
+    public static final String MARKER_FILE_NAME = "sdbackup-repository";
+    private static final String INDEX_FILE_NAME = "index";
+    private static final String PACKS_DIR_NAME = "packs";
+    private static final String SNAPSHOTS_DIR_NAME = "snapshots";
+    private static final String PACK_EXTENSION = ".pack";
+    private static final String TREE_EXTENSION = ".tree";
+    private static final long MAX_PACK_SIZE = 1024L * 1024L * 1024L;
+    private static final int PACK_ID_SHIFT = 40;
+    private static final int INDEX_RECORD_SIZE = 28;
+    private static final int IN_FLIGHT_FILES_PER_THREAD = 4;
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(ChunkStore::newDigest);
+    private static final ThreadLocal<Chunker> CHUNKER = ThreadLocal.withInitial(Chunker::new);
+    private final Path root;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private ChunkIndex index;
+    private final ByteArrayOutputStream pendingIndex;
+    private final Map<Integer, FileChannel> readChannels;
+    private int packId;
+    private FileChannel pack;
+    private long packSize;
+
+    private ChunkStore(Path root, FileChannel lockChannel, FileLock lock) throws IOException {
+        this.root = root;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+        ChunkIndex.deleteScratchFiles();
+        this.index = loadIndex(root.resolve(INDEX_FILE_NAME));
+        this.pendingIndex = new ByteArrayOutputStream();
+        this.readChannels = new HashMap<>();
+        this.packId = lastPackId(root.resolve(PACKS_DIR_NAME));
+        this.pack = null;
+        this.packSize = 0L;
+    }
+
+    public static boolean isRepository(Path dir) {
+        return Files.isRegularFile(dir.resolve(MARKER_FILE_NAME));
+    }
+
+    /**
+     * Turns the given folder into an empty repository.
+     *
+     * @param dir folder to create the repository in
+     * @throws IOException if the folder is already a repository or can't be
+     *                     written
+     */
+    public static void create(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Files.createFile(dir.resolve(MARKER_FILE_NAME));
+    }
+
+    public static ChunkStore open(Path dir) throws IOException {
+        if (!isRepository(dir)) {
+            throw new IOException("Not a repository: " + dir);
+        }
+        Files.createDirectories(dir.resolve(PACKS_DIR_NAME));
+        Files.createDirectories(dir.resolve(SNAPSHOTS_DIR_NAME));
+        final FileChannel channel = FileChannel.open(
+            dir.resolve(MARKER_FILE_NAME),
+            StandardOpenOption.WRITE
+        );
+        FileLock lock = null;
+
+        try {
+            lock = channel.tryLock();
+        }
+        catch (OverlappingFileLockException ignore) {
+            // Open in this process already
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Repository in use: " + dir);
+        }
+        try {
+            return new ChunkStore(dir, channel, lock);
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of distinct chunks stored.
+     *
+     * @return the number of chunks
+     */
+    public synchronized int getChunkCount() {
+        return index.size();
+    }
+
+    /**
+     * Returns the snapshot tree files of this repository, oldest first.
+     *
+     * @return the snapshot tree files
+     * @throws IOException if the snapshots can't be listed
+     */
+    public List<Path> listSnapshots() throws IOException {
+        final List<Path> trees = new ArrayList<>();
+        final Map<Path, Long> createdAt = new HashMap<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+            root.resolve(SNAPSHOTS_DIR_NAME),
+            "*" + TREE_EXTENSION
+        )) {
+            for (Path tree : stream) {
+                trees.add(tree);
+                createdAt.put(tree, SnapshotTree.readHeader(tree).getCreatedAt());
+            }
+        }
+        trees.sort(Comparator.comparing(createdAt::get));
+        return trees;
+    }
+
+    /**
+     * Stores a new snapshot of the source folder. Files whose size, modified
+     * time and permissions didn't change since the latest snapshot of the
+     * same task reuse its chunks without being read.
+     *
+     * @param task     name of the task
+     * @param snapshot name of the new snapshot
+     * @param src      source folder
+     * @param threads  number of threads reading and hashing files
+     * @throws IOException if the snapshot already exists or the backup fails
+     */
+    public void backup(String task, String snapshot, Path src, int threads) throws IOException {
+        backup(task, snapshot, src, threads, new CopyProgress());
+    }
+
+    /**
+     * Stores a new snapshot of the source folder, counting the files that
+     * are read into the repository in the given progress.
+     *
+     * @see #backup(String, String, Path, int)
+     */
+    public void backup(
+        String task,
+        String snapshot,
+        Path src,
+        int threads,
+        CopyProgress progress
+    ) throws IOException {
+        backup(task, snapshot, src, threads, progress, TreeFilter.ALL);
+    }
+
+    /**
+     * Stores a new snapshot of the files of the source folder accepted by the
+     * given filter. Rejected directories are not walked.
+     *
+     * @see #backup(String, String, Path, int, CopyProgress)
+     */
+    public void backup(
+        String task,
+        String snapshot,
+        Path src,
+        int threads,
+        CopyProgress progress,
+        TreeFilter filter
+    ) throws IOException {
+        backup(task, snapshot, src, threads, progress, filter, Throttle.NONE);
+    }
+
+    /**
+     * Stores a new snapshot of the files of the source folder accepted by the
+     * given filter, reading them no faster than the given throttle allows.
+     *
+     * @see #backup(String, String, Path, int, CopyProgress, TreeFilter)
+     */
+    public void backup(
+        String task,
+        String snapshot,
+        Path src,
+        int threads,
+        CopyProgress progress,
+        TreeFilter filter,
+        Throttle throttle
+    ) throws IOException {
+        final Path tree = root.resolve(SNAPSHOTS_DIR_NAME).resolve(treeFileName(task, snapshot));
+        final Path tmpTree = tree.resolveSibling(tree.getFileName() + ".tmp");
+        final SnapshotTree.Header header = new SnapshotTree.Header(
+            task,
+            snapshot,
+            System.currentTimeMillis()
+        );
+
+        if (Files.exists(tree)) {
+            throw new IOException("Already exists: " + tree);
+        }
+        final Map<String, StoredFile> previous = loadLatest(task);
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final Semaphore inFlight = new Semaphore(threads * IN_FLIGHT_FILES_PER_THREAD);
+        final CopyProgress.Destination counter = progress.addDestination(root);
+
+        try (SnapshotTree.Writer writer = new SnapshotTree.Writer(tmpTree, header)) {
+            try {
+                Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                        final Path relativeDir = src.relativize(dir);
+
+                        if (!dir.equals(src) && !filter.accept(relativeDir, true)) {
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        filter.enter(dir, relativeDir);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                        filter.leave(src.relativize(dir));
+                        return super.postVisitDirectory(dir, exc);
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        if (failure.get() != null) {
+                            throw failure.get();
+                        }
+                        // Links are never followed, like in folder snapshots
+                        if (!attrs.isRegularFile() || !filter.accept(src.relativize(file), attrs.isDirectory())) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        final String path = ManifestEntry.toManifestPath(src.relativize(file));
+                        final long modifiedTime = attrs.lastModifiedTime().toMillis();
+                        final int permissions = ManifestEntry.permissionsOf(file);
+                        final StoredFile old = previous.get(path);
+
+                        if (old != null && old.isUnchanged(attrs.size(), modifiedTime, permissions)) {
+                            writer.write(old);
+                            return FileVisitResult.CONTINUE;
+                        }
+                        counter.fileFound(attrs.size());
+                        throttle.acquire(attrs.size(), 1);
+                        acquire(inFlight);
+                        executor.execute(() -> {
+                            final long start = System.nanoTime();
+
+                            try {
+                                writer.write(store(file, path, modifiedTime, permissions));
+                                throttle.completed(attrs.size(), System.nanoTime() - start);
+                                counter.bytesCopied(attrs.size());
+                                counter.fileCopied();
+                            }
+                            catch (IOException e) {
+                                failure.compareAndSet(null, e);
+                            }
+                            finally {
+                                inFlight.release();
+                            }
+                        });
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+            finally {
+                counter.walkDone();
+                executor.shutdown();
+                awaitTermination(executor);
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(tmpTree);
+            throw e;
+        }
+        commitChunks();
+        Files.move(tmpTree, tree, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the given snapshots and then the pack files that no remaining
+     * snapshot uses. The snapshots go first and the index stops pointing to
+     * a pack before it's deleted, so an interrupted deletion never leaves a
+     * snapshot with missing chunks.
+     *
+     * @param trees snapshot tree files of this repository to delete
+     * @return the bytes of the pack files deleted
+     * @throws IOException if a snapshot or pack can't be deleted
+     */
+    public synchronized long deleteSnapshots(Collection<Path> trees) throws IOException {
+        for (Path tree : trees) {
+            Files.deleteIfExists(tree);
+        }
+        final BitSet livePacks = new BitSet();
+
+        if (pack != null) {
+            livePacks.set(packId);
+        }
+        for (Path tree : listSnapshots()) {
+            for (StoredFile file : SnapshotTree.read(tree).getFiles()) {
+                final ByteBuffer hashes = ByteBuffer.wrap(file.getChunkHashes());
+
+                for (int i = 0; i < file.getChunkCount(); i++) {
+                    final int offset = i * StoredFile.HASH_LENGTH;
+                    final int slot = index.find(hashes.getLong(offset), hashes.getLong(offset + 8));
+
+                    if (slot != ChunkIndex.NOT_FOUND) {
+                        livePacks.set((int) (index.locationAt(slot) >>> PACK_ID_SHIFT));
+                    }
+                }
+            }
+        }
+        final List<Path> deadPacks = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+            root.resolve(PACKS_DIR_NAME),
+            "*" + PACK_EXTENSION
+        )) {
+            for (Path file : stream) {
+                final int id = packIdOf(file);
+
+                if (id != -1 && !livePacks.get(id)) {
+                    deadPacks.add(file);
+                }
+            }
+        }
+        if (deadPacks.isEmpty()) {
+            return 0L;
+        }
+        rewriteIndex(livePacks);
+        long freed = 0L;
+
+        for (Path file : deadPacks) {
+            final FileChannel channel = readChannels.remove(packIdOf(file));
+
+            if (channel != null) {
+                channel.close();
+            }
+            freed += Files.size(file);
+            Files.delete(file);
+        }
+        return freed;
+    }
+
+    /**
+     * Rebuilds the files of a snapshot into the given target folder.
+     *
+     * @param tree   snapshot tree file of this repository
+     * @param target folder to write the files to
+     * @throws IOException if a file can't be written or a chunk is missing
+     * @see #restore(Path, String, Path, int, CopyProgress.Destination)
+     */
+    public void restore(Path tree, Path target) throws IOException {
+        restore(tree, "", target, 1, new CopyProgress().addDestination(target));
+    }
+
+    /**
+     * Rebuilds the file or the files under the folder at the given path of a
+     * snapshot into the given target folder, on several threads. Files are
+     * given the modified time they had, and files already at the target with
+     * the same size and modified time are skipped, so an interrupted restore
+     * carries on where it stopped. Other files at the target are replaced.
+     *
+     * @param tree    snapshot tree file of this repository
+     * @param path    path of a file or folder relative to the snapshot root,
+     *                separated by '/', or empty for the whole snapshot
+     * @param target  folder to write the files to
+     * @param threads number of threads writing files
+     * @param counter counter of the files and bytes restored
+     * @return the number of files skipped
+     * @throws IOException if nothing is at the path, a file can't be written
+     *                     or a chunk is missing
+     */
+    public long restore(
+        Path tree,
+        String path,
+        Path target,
+        int threads,
+        CopyProgress.Destination counter
+    ) throws IOException {
+        final String prefix = path.isEmpty() ? "" : path + "/";
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final Semaphore inFlight = new Semaphore(threads * IN_FLIGHT_FILES_PER_THREAD);
+        boolean found = false;
+        long skipped = 0L;
+
+        try {
+            for (StoredFile file : SnapshotTree.read(tree).getFiles()) {
+                final Path out;
+
+                if (file.getPath().equals(path)) {
+                    out = target.resolve(file.getPath().substring(file.getPath().lastIndexOf('/') + 1));
+                }
+                else if (file.getPath().startsWith(prefix)) {
+                    out = target.resolve(file.getPath().substring(prefix.length()));
+                }
+                else {
+                    continue;
+                }
+                found = true;
+                if (failure.get() != null) {
+                    throw failure.get();
+                }
+                if (isRestored(out, file)) {
+                    skipped++;
+                    continue;
+                }
+                counter.fileFound(file.getSize());
+                acquire(inFlight);
+                executor.execute(() -> {
+                    try {
+                        restoreFile(file, out);
+                        counter.bytesCopied(file.getSize());
+                        counter.fileCopied();
+                    }
+                    catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                    finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+        finally {
+            counter.walkDone();
+            executor.shutdown();
+            awaitTermination(executor);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        if (!found && !path.isEmpty()) {
+            throw new IOException("Nothing at " + path + " in " + tree);
+        }
+        return skipped;
+    }
+
+    /**
+     * Returns the content of the chunk with the given SHA-256.
+     *
+     * @param hash SHA-256 of the chunk
+     * @return the chunk content
+     * @throws IOException if the chunk isn't in this repository
+     */
+    public ByteBuffer readChunk(byte[] hash) throws IOException {
+        final long location;
+        final int length;
+        final FileChannel channel;
+
+        synchronized (this) {
+            final int slot = index.find(keyHigh(hash), keyLow(hash));
+
+            if (slot == ChunkIndex.NOT_FOUND) {
+                throw new IOException("Missing chunk in " + root);
+            }
+            location = index.locationAt(slot);
+            length = index.lengthAt(slot);
+            channel = readChannel((int) (location >>> PACK_ID_SHIFT));
+        }
+        final ByteBuffer chunk = ByteBuffer.allocate(length);
+        long position = location & ((1L << PACK_ID_SHIFT) - 1L);
+
+        while (chunk.hasRemaining()) {
+            final int n = channel.read(chunk, position);
+
+            if (n == -1) {
+                throw new IOException("Truncated pack in " + root);
+            }
+            position += n;
+        }
+        chunk.flip();
+        return chunk;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (pack != null) {
+                pack.close();
+            }
+            for (FileChannel channel : readChannels.values()) {
+                channel.close();
+            }
+        }
+        finally {
+            lock.release();
+            lockChannel.close();
+        }
+    }
+
+    private StoredFile store(Path file, String path, long modifiedTime, int permissions) throws IOException {
+        final MessageDigest digest = DIGEST.get();
+        final ByteArrayOutputStream hashes = new ByteArrayOutputStream();
+        final long[] size = { 0L };
+
+        try (InputStream in = Files.newInputStream(file)) {
+            CHUNKER.get().split(in, (buffer, offset, length) -> {
+                digest.update(buffer, offset, length);
+                final byte[] hash = digest.digest();
+
+                put(hash, buffer, offset, length);
+                hashes.write(hash);
+                size[0] += length;
+            });
+        }
+        return new StoredFile(path, size[0], modifiedTime, permissions, hashes.toByteArray());
+    }
+
+    private synchronized void put(byte[] hash, byte[] buffer, int offset, int length) throws IOException {
+        final long high = keyHigh(hash);
+        final long low = keyLow(hash);
+
+        if (index.find(high, low) != ChunkIndex.NOT_FOUND) {
+            return;
+        }
+        if (pack == null || packSize + length > MAX_PACK_SIZE) {
+            nextPack();
+        }
+        final long location = ((long) packId << PACK_ID_SHIFT) | packSize;
+        final ByteBuffer chunk = ByteBuffer.wrap(buffer, offset, length);
+
+        while (chunk.hasRemaining()) {
+            packSize += pack.write(chunk);
+        }
+        index.add(high, low, location, length);
+        writeIndexRecord(new DataOutputStream(pendingIndex), high, low, location, length);
+    }
+
+    private synchronized void commitChunks() throws IOException {
+        if (pack != null) {
+            pack.force(false);
+        }
+        if (pendingIndex.size() == 0) {
+            return;
+        }
+        try (FileChannel out = FileChannel.open(
+            root.resolve(INDEX_FILE_NAME),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND
+        )) {
+            final ByteBuffer records = ByteBuffer.wrap(pendingIndex.toByteArray());
+
+            while (records.hasRemaining()) {
+                out.write(records);
+            }
+            out.force(false);
+        }
+        pendingIndex.reset();
+    }
+
+    /**
+     * Replaces the index with one holding only the chunks of the given
+     * packs, atomically.
+     */
+    private void rewriteIndex(BitSet packs) throws IOException {
+        final Path file = root.resolve(INDEX_FILE_NAME);
+        final Path tmp = file.resolveSibling(INDEX_FILE_NAME + ".tmp");
+        final ChunkIndex kept = new ChunkIndex(index.size());
+
+        try (
+            FileChannel out = FileChannel.open(
+                tmp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+            );
+            DataOutputStream data = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(out), 1024 * 1024)
+            )
+        ) {
+            for (int slot = 0; slot < index.capacity(); slot++) {
+                if (index.isEmptyAt(slot) || !packs.get((int) (index.locationAt(slot) >>> PACK_ID_SHIFT))) {
+                    continue;
+                }
+                kept.add(index.highAt(slot), index.lowAt(slot), index.locationAt(slot), index.lengthAt(slot));
+                writeIndexRecord(
+                    data,
+                    index.highAt(slot),
+                    index.lowAt(slot),
+                    index.locationAt(slot),
+                    index.lengthAt(slot)
+                );
+            }
+            data.flush();
+            out.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index = kept;
+    }
+
+    private void nextPack() throws IOException {
+        if (pack != null) {
+            pack.close();
+        }
+        packId++;
+        pack = FileChannel.open(
+            packFile(packId),
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE
+        );
+        packSize = 0L;
+    }
+
+    private FileChannel readChannel(int id) throws IOException {
+        FileChannel channel = readChannels.get(id);
+
+        if (channel == null) {
+            channel = FileChannel.open(packFile(id), StandardOpenOption.READ);
+            readChannels.put(id, channel);
+        }
+        return channel;
+    }
+
+    private Path packFile(int id) {
+        return root.resolve(PACKS_DIR_NAME).resolve(String.format("%08d%s", id, PACK_EXTENSION));
+    }
+
+    private Map<String, StoredFile> loadLatest(String task) throws IOException {
+        final Map<String, StoredFile> files = new HashMap<>();
+        Path latest = null;
+
+        for (Path tree : listSnapshots()) {
+            if (SnapshotTree.readHeader(tree).getTask().equals(task)) {
+                latest = tree;
+            }
+        }
+        if (latest != null) {
+            for (StoredFile file : SnapshotTree.read(latest).getFiles()) {
+                files.put(file.getPath(), file);
+            }
+        }
+        return files;
+    }
+
+    private static ChunkIndex loadIndex(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return new ChunkIndex(0);
+        }
+        final long records = Files.size(file) / INDEX_RECORD_SIZE;
+        final ChunkIndex index = new ChunkIndex((int) Math.min(Integer.MAX_VALUE, records));
+
+        // A torn record at the end is from an interrupted commit, ignore it
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(Files.newInputStream(file), 1024 * 1024)
+        )) {
+            for (long i = 0; i < records; i++) {
+                index.add(in.readLong(), in.readLong(), in.readLong(), in.readInt());
+            }
+        }
+        return index;
+    }
+
+    private static void writeIndexRecord(
+        DataOutputStream out,
+        long high,
+        long low,
+        long location,
+        int length
+    ) throws IOException {
+        out.writeLong(high);
+        out.writeLong(low);
+        out.writeLong(location);
+        out.writeInt(length);
+    }
+
+    private static int lastPackId(Path packsDir) throws IOException {
+        int last = 0;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(packsDir, "*" + PACK_EXTENSION)) {
+            for (Path pack : stream) {
+                last = Math.max(last, packIdOf(pack));
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Returns the id of the given pack file, or -1 if it's not named like
+     * one.
+     */
+    private static int packIdOf(Path pack) {
+        final String name = pack.getFileName().toString();
+
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - PACK_EXTENSION.length()));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String treeFileName(String task, String snapshot) {
+        return Snapshots.fileNameOf(task + "@" + snapshot) + TREE_EXTENSION;
+    }
+
+    private static long keyHigh(byte[] hash) {
+        return ByteBuffer.wrap(hash, 0, 8).getLong();
+    }
+
+    private static long keyLow(byte[] hash) {
+        return ByteBuffer.wrap(hash, 8, 8).getLong();
+    }
+
+    private void restoreFile(StoredFile file, Path out) throws IOException {
+        Files.createDirectories(out.getParent());
+        Files.deleteIfExists(out);
+        try (FileChannel channel = FileChannel.open(
+            out,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE
+        )) {
+            for (int i = 0; i < file.getChunkCount(); i++) {
+                final ByteBuffer chunk = readChunk(file.getChunkHash(i));
+
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+            }
+        }
+
+        // Set last, so a file cut short is never taken as restored
+        ManifestEntry.setPermissions(out, file.getPermissions());
+        Files.setLastModifiedTime(out, FileTime.fromMillis(file.getModifiedTime()));
+    }
+
+    private static boolean isRestored(Path out, StoredFile file) throws IOException {
+        try {
+            final BasicFileAttributes attrs = Files.readAttributes(out, BasicFileAttributes.class);
+
+            return attrs.isRegularFile()
+                   && attrs.size() == file.getSize()
+                   && attrs.lastModifiedTime().toMillis() == file.getModifiedTime();
+        }
+        catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private static void acquire(Semaphore semaphore) throws IOException {
+        try {
+            semaphore.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Backup interrupted", e);
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executor) throws IOException {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Backup interrupted", e);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
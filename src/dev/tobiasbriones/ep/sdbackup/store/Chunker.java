@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream into content-defined chunks using a gear rolling hash, so
+ * an insertion only changes the chunks around it. Chunks are between {@link
+ * #MIN_SIZE} and {@link #MAX_SIZE} bytes, and about 320 KiB on average. The
+ * gear table is fixed, so the same content always gives the same chunks.
+ *
+ * @author Tobias Briones
+ */
+final class Chunker {
+    static final int MIN_SIZE = 64 * 1024;
+    static final int MAX_SIZE = 1024 * 1024;
+    private static final long CUT_MASK = (1L << 18) - 1L;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // SplitMix64 with a fixed seed
+        long seed = 0x5344_4261_636B_7570L;
+
+        for (int i = 0; i < GEAR.length; i++) {
+            long z = (seed += 0x9E37_79B9_7F4A_7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58_476D_1CE4_E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D0_49BB_1331_11EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    interface Consumer {
+        void accept(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    private final byte[] buffer;
+    private int start;
+    private int end;
+
+    Chunker() {
+        this.buffer = new byte[MAX_SIZE * 2];
+        this.start = 0;
+        this.end = 0;
+    }
+
+    /**
+     * Reads the whole stream and passes each chunk to the consumer. The array
+     * passed is reused, so the chunk must be consumed right away.
+     */
+    void split(InputStream in, Consumer consumer) throws IOException {
+        boolean isEof = false;
+
+        start = 0;
+        end = 0;
+        while (!isEof || start < end) {
+            if (!isEof && end - start < MAX_SIZE) {
+                isEof = fill(in);
+            }
+            final int length = nextCut(isEof);
+
+            if (length == 0) {
+                break;
+            }
+            consumer.accept(buffer, start, length);
+            start += length;
+        }
+    }
+
+    private boolean fill(InputStream in) throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        while (end < buffer.length) {
+            final int n = in.read(buffer, end, buffer.length - end);
+
+            if (n == -1) {
+                return true;
+            }
+            end += n;
+        }
+        return false;
+    }
+
+    private int nextCut(boolean isEof) {
+        final int available = end - start;
+
+        if (available <= MIN_SIZE) {
+            return isEof ? available : Math.min(available, MIN_SIZE);
+        }
+        final int limit = start + Math.min(available, MAX_SIZE);
+        long hash = 0L;
+
+        for (int i = start + MIN_SIZE; i < limit; i++) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+
+            if ((hash & CUT_MASK) == 0L) {
+                return i + 1 - start;
+            }
+        }
+        return limit - start;
+    }
+}
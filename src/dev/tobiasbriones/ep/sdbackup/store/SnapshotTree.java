@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.store;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Defines a snapshot stored in a {@link ChunkStore}. It's a small gzipped
+ * file listing every file of the snapshot and the chunks it's made of.
+ *
+ * @author Tobias Briones
+ */
+public final class SnapshotTree {
+    private static final int MAGIC = 0x53444254;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final Header header;
+    private final List<StoredFile> files;
+
+    private SnapshotTree(Header header, List<StoredFile> files) {
+        this.header = header;
+        this.files = files;
+    }
+
+    public Header getHeader() {
+        return header;
+    }
+
+    public List<StoredFile> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    public static Header readHeader(Path file) throws IOException {
+        try (DataInputStream in = open(file)) {
+            return readHeader(in, file);
+        }
+    }
+
+    public static SnapshotTree read(Path file) throws IOException {
+        try (DataInputStream in = open(file)) {
+            final Header header = readHeader(in, file);
+            final List<StoredFile> files = new ArrayList<>();
+
+            while (in.readBoolean()) {
+                final String path = in.readUTF();
+                final long size = in.readLong();
+                final long modifiedTime = in.readLong();
+                final int permissions = in.readInt();
+                final byte[] hashes = new byte[in.readInt() * StoredFile.HASH_LENGTH];
+
+                in.readFully(hashes);
+                files.add(new StoredFile(path, size, modifiedTime, permissions, hashes));
+            }
+            return new SnapshotTree(header, files);
+        }
+    }
+
+    private static DataInputStream open(Path file) throws IOException {
+        return new DataInputStream(
+            new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(file), BUFFER_SIZE),
+                BUFFER_SIZE
+            )
+        );
+    }
+
+    private static Header readHeader(DataInputStream in, Path file) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a snapshot tree " + file);
+        }
+        final int version = in.readInt();
+
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot tree version " + version + ": " + file);
+        }
+        return new Header(in.readUTF(), in.readUTF(), in.readLong());
+    }
+
+    /**
+     * Identifies the task and snapshot a tree belongs to.
+     */
+    public static final class Header {
+        private final String task;
+        private final String snapshot;
+        private final long createdAt;
+
+        Header(String task, String snapshot, long createdAt) {
+            this.task = task;
+            this.snapshot = snapshot;
+            this.createdAt = createdAt;
+        }
+
+        public String getTask() {
+            return task;
+        }
+
+        public String getSnapshot() {
+            return snapshot;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+    }
+
+    /**
+     * Writes a tree one file at a time from any thread.
+     */
+    static final class Writer implements Closeable {
+        private final DataOutputStream out;
+
+        Writer(Path file, Header header) throws IOException {
+            this.out = new DataOutputStream(
+                new BufferedOutputStream(
+                    new GZIPOutputStream(Files.newOutputStream(file), BUFFER_SIZE),
+                    BUFFER_SIZE
+                )
+            );
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(header.task);
+            out.writeUTF(header.snapshot);
+            out.writeLong(header.createdAt);
+        }
+
+        synchronized void write(StoredFile file) throws IOException {
+            out.writeBoolean(true);
+            out.writeUTF(file.getPath());
+            out.writeLong(file.getSize());
+            out.writeLong(file.getModifiedTime());
+            out.writeInt(file.getPermissions());
+            out.writeInt(file.getChunkCount());
+            out.write(file.getChunkHashes());
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                out.writeBoolean(false);
+            }
+            finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.store;
+
+import java.util.Arrays;
+
+/**
+ * Defines a file of a snapshot stored in a {@link ChunkStore}, that is, its
+ * metadata and the hashes of the chunks holding its content, in order.
+ *
+ * @author Tobias Briones
+ */
+public final class StoredFile {
+    static final int HASH_LENGTH = 32;
+    private final String path;
+    private final long size;
+    private final long modifiedTime;
+    private final int permissions;
+    private final byte[] chunkHashes;
+
+    StoredFile(String path, long size, long modifiedTime, int permissions, byte[] chunkHashes) {
+        this.path = path;
+        this.size = size;
+        this.modifiedTime = modifiedTime;
+        this.permissions = permissions;
+        this.chunkHashes = chunkHashes;
+    }
+
+    /**
+     * Returns the path relative to the snapshot root, always separated by
+     * '/'.
+     *
+     * @return the relative path of the file
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModifiedTime() {
+        return modifiedTime;
+    }
+
+    public int getPermissions() {
+        return permissions;
+    }
+
+    public int getChunkCount() {
+        return chunkHashes.length / HASH_LENGTH;
+    }
+
+    /**
+     * Returns the SHA-256 of the chunk at the given index.
+     *
+     * @param index index of the chunk
+     * @return a copy of the chunk hash
+     */
+    public byte[] getChunkHash(int index) {
+        final int from = index * HASH_LENGTH;
+        return Arrays.copyOfRange(chunkHashes, from, from + HASH_LENGTH);
+    }
+
+    /**
+     * Returns true if both files are made of the same chunks, so they have
+     * the same content.
+     *
+     * @param other file to compare to
+     * @return true if the chunk hashes are equal
+     */
+    public boolean hasSameContent(StoredFile other) {
+        return Arrays.equals(chunkHashes, other.chunkHashes);
+    }
+
+    byte[] getChunkHashes() {
+        return chunkHashes;
+    }
+
+    boolean isUnchanged(long otherSize, long otherModifiedTime, int otherPermissions) {
+        return size == otherSize &&
+               modifiedTime == otherModifiedTime &&
+               permissions == otherPermissions;
+    }
+}
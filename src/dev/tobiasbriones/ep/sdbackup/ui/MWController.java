@@ -12,26 +12,28 @@
 
 package dev.tobiasbriones.ep.sdbackup.ui;
 
+import dev.tobiasbriones.ep.sdbackup.Backups;
 import dev.tobiasbriones.ep.sdbackup.FileUtils;
+import dev.tobiasbriones.ep.sdbackup.io.CopyProgress;
 import dev.tobiasbriones.ep.sdbackup.model.BackupTask;
+import dev.tobiasbriones.ep.sdbackup.model.TaskStore;
+import dev.tobiasbriones.ep.sdbackup.restore.RestorePoint;
+import dev.tobiasbriones.ep.sdbackup.restore.SnapshotRestorer;
 
 import javax.swing.*;
-import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 public final class MWController implements MainWindow.Controller {
-    private static final String TASKS_FOLDER = "tasks";
     private final List<BackupTask> backupTasks;
+    private TaskStore taskStore;
 
     public MWController() {
         this.backupTasks = new ArrayList<>(5);
+        this.taskStore = null;
 
         init();
     }
@@ -48,49 +50,42 @@ public final class MWController implements MainWindow.Controller {
                 throw new IOException("Task name already in use!");
             }
         }
+        requireTaskStore().put(backupTask);
         backupTasks.add(backupTask);
-        saveTasks();
     }
 
     @Override
     public void updateTask(String oldName, BackupTask update) throws IOException {
-        final File file = new File(getFolder(TASKS_FOLDER), update.getName());
-
-        try (final ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
-            oos.writeObject(update);
-        }
-        if (!(oldName.equals(update.getName()) || new File(getFolder(TASKS_FOLDER), oldName).delete())) {
-            throw new IOException("It couldn't delete old backup task");
-        }
+        requireTaskStore().replace(oldName, update);
     }
 
     @Override
     public void deleteTask(BackupTask delete) throws IOException {
-        if (!new File(getFolder(TASKS_FOLDER), delete.getName()).delete()) {
-            throw new IOException("Fail to delete");
-        }
+        requireTaskStore().remove(delete.getName());
         backupTasks.remove(delete);
     }
 
     @Override
-    public void backup(BackupTask backupTask) throws IOException {
-        final File originFolder = backupTask.getTarget();
-        final String pattern = "YYYY.MM.dd HH_mm";
-        final String date = LocalDateTime.now()
-                                         .format(DateTimeFormatter.ofPattern(pattern))
-                                         .replace(':', '_')
-                                         .replace('/', '.');
-        final String sdPath = backupTask.isSdBackup() ? backupTask.getSdPath() : "";
-
-        if (!(originFolder.exists() && originFolder.isDirectory())) {
-            throw new IOException("Target doesn't exist or is not a directory");
-        }
-        for (File destination : backupTask) {
-            final File finalDestination = Paths.get(destination.getAbsolutePath(), sdPath, date).toFile();
+    public void backup(BackupTask backupTask, CopyProgress progress) throws IOException {
+        Backups.backup(backupTask, progress, FileUtils.ADAPTIVE_COPY_THREADS);
+    }
 
-            requireNotExists(finalDestination.toPath());
-            FileUtils.copyDirectory(originFolder, finalDestination);
+    @Override
+    public SnapshotRestorer.Result restore(
+        BackupTask backupTask,
+        String when,
+        File target,
+        CopyProgress progress
+    ) throws IOException {
+        final RestorePoint point;
+
+        try {
+            point = RestorePoint.parse(when);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
         }
+        return Backups.restore(backupTask, point, "", target.toPath(), progress, FileUtils.ADAPTIVE_COPY_THREADS);
     }
 
     private void init() {
@@ -102,50 +97,15 @@ public final class MWController implements MainWindow.Controller {
         }
     }
 
-    private void saveTasks() throws IOException {
-        final File folder = getFolder(TASKS_FOLDER);
-        File currentFile;
-
-        for (final BackupTask task : backupTasks) {
-            currentFile = new File(folder, task.getName());
-
-            try (final ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(currentFile))) {
-                oos.writeObject(task);
-            }
-        }
-    }
-
     private void loadTasks() throws IOException {
-        final File[] files = getFolder(TASKS_FOLDER).listFiles();
-
-        if (files == null) {
-            throw new IOException("Fail to read data");
-        }
-        for (File file : files) {
-            try (final ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-                backupTasks.add((BackupTask) ois.readObject());
-            }
-            catch (ClassNotFoundException e) {
-                throw new IOException("Class not found. " + e.getMessage());
-            }
-        }
-    }
-
-    private static void requireNotExists(Path path) throws IOException {
-        if (Files.isDirectory(path)) {
-            final String msg = "Already exists: " + path;
-            throw new IOException(msg);
-        }
+        taskStore = Backups.openTaskStore();
+        backupTasks.addAll(taskStore.getTasks());
     }
 
-    private static File getFolder(String path) throws IOException {
-        final File file = new File(path);
-
-        if ((file.exists() && !file.isDirectory()) || !file.exists()) {
-            if (!file.mkdirs()) {
-                throw new IOException("Couldn't create folder " + path);
-            }
+    private TaskStore requireTaskStore() throws IOException {
+        if (taskStore == null) {
+            throw new IOException("Tasks couldn't be loaded");
         }
-        return file;
+        return taskStore;
     }
 }
@@ -12,7 +12,11 @@
 
 package dev.tobiasbriones.ep.sdbackup.ui;
 
+import dev.tobiasbriones.ep.sdbackup.io.CopyProgress;
 import dev.tobiasbriones.ep.sdbackup.model.BackupTask;
+import dev.tobiasbriones.ep.sdbackup.model.RetentionPolicy;
+import dev.tobiasbriones.ep.sdbackup.restore.RestorePoint;
+import dev.tobiasbriones.ep.sdbackup.restore.SnapshotRestorer;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -21,12 +25,17 @@ import java.awt.event.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public final class MainWindow extends JFrame implements ActionListener {
     private static final String APP_TITLE = "SD Backup";
     private static final int WIDTH = 800;
     private static final int HEIGHT = 500;
     private static final String ABOUT_DIALOG_STR;
+    private static final long PROGRESS_INTERVAL_MILLIS = 250L;
+    private static final long BYTES_PER_MB = 1024L * 1024L;
 
     interface Controller {
         List<BackupTask> readBackupTasks();
@@ -37,7 +46,22 @@ public final class MainWindow extends JFrame implements ActionListener {
 
         void deleteTask(BackupTask delete) throws IOException;
 
-        void backup(BackupTask backupTask) throws IOException;
+        void backup(BackupTask backupTask, CopyProgress progress) throws IOException;
+
+        SnapshotRestorer.Result restore(
+            BackupTask backupTask,
+            String when,
+            File target,
+            CopyProgress progress
+        ) throws IOException;
+    }
+
+    /**
+     * Work run with its progress shown, returning the message to show when
+     * it's done.
+     */
+    private interface Operation {
+        String run(CopyProgress progress) throws IOException;
     }
 
     private final Controller controller;
@@ -138,23 +162,160 @@ public final class MainWindow extends JFrame implements ActionListener {
     }
 
     private void runBackup() {
-        if (list.getSelectedValue() != null) {
-            final WorkingDialog dialog = new WorkingDialog();
+        final BackupTask task = list.getSelectedValue();
+
+        if (task != null) {
+            final WorkingDialog dialog = new WorkingDialog("Backing up " + task.getName() + "...");
+
+            dialog.execute(progress -> {
+                controller.backup(task, progress);
+                return "Backup completed.";
+            });
+        }
+    }
+
+    private void runRestore(BackupTask task) {
+        final JFileChooser chooser = new JFileChooser();
+        final String when;
+
+        chooser.setDialogTitle("Restore " + task.getName() + " into");
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        when = (String) JOptionPane.showInputDialog(
+            this,
+            "Snapshot to restore: latest, its name or a date like 2018-06-30",
+            "Restore",
+            JOptionPane.QUESTION_MESSAGE,
+            null,
+            null,
+            RestorePoint.LATEST
+        );
+        if (when == null) {
+            return;
+        }
+        final File target = chooser.getSelectedFile();
+        final WorkingDialog dialog = new WorkingDialog("Restoring " + task.getName() + "...");
+
+        dialog.execute(progress -> {
+            final SnapshotRestorer.Result result = controller.restore(task, when.trim(), target, progress);
+
+            return "Restored " + result.getSnapshot() + ": "
+                   + String.format("%,d", result.getFilesRestored()) + " files copied, "
+                   + String.format("%,d", result.getFilesSkipped()) + " already there.";
+        });
+    }
+
+    private static String formatBytes(long bytes) {
+        final String[] units = { "B", "KB", "MB", "GB", "TB" };
+        double value = bytes;
+        int unit = 0;
+
+        while (value >= 1024.0 && unit < units.length - 1) {
+            value /= 1024.0;
+            unit++;
+        }
+        return unit == 0 ? bytes + " B" : String.format("%.1f %s", value, units[unit]);
+    }
+
+    private static String formatSeconds(long seconds) {
+        if (seconds < 0L) {
+            return "--:--:--";
+        }
+        return String.format("%02d:%02d:%02d", seconds / 3600L, seconds / 60L % 60L, seconds % 60L);
+    }
+
+    private static void addExclusions(BackupTask backupTask, String text) {
+        for (String exclusion : text.split(";")) {
+            if (!exclusion.trim().isEmpty()) {
+                backupTask.addExclusion(exclusion.trim());
+            }
+        }
+    }
+
+    /**
+     * Returns the given limit, or -1 if it's not a number of at least 0.
+     */
+    private static long parseLimit(String text) {
+        try {
+            return Math.max(-1L, Long.parseLong(text.trim()));
+        }
+        catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private static void initLimitsPanel(
+        JPanel panel,
+        JTextField maxRateTF,
+        JTextField maxFilesTF,
+        JCheckBox idleCB
+    ) {
+        panel.setLayout(new FlowLayout(FlowLayout.LEADING, 5, 0));
+        panel.setBackground(Color.WHITE);
+        idleCB.setBackground(Color.WHITE);
+        idleCB.setToolTipText("Slows down while other programs use the same disks");
+        panel.add(maxRateTF);
+        panel.add(maxFilesTF);
+        panel.add(idleCB);
+    }
+
+    private static void initRetentionPanel(JPanel panel, JTextField[] keepTFs) {
+        panel.setLayout(new FlowLayout(FlowLayout.LEADING, 5, 0));
+        panel.setBackground(Color.WHITE);
+        for (JTextField keepTF : keepTFs) {
+            panel.add(keepTF);
+        }
+    }
+
+    /**
+     * Returns the policy given by the keep fields, or null if one of them is
+     * not a count.
+     */
+    private static RetentionPolicy parseRetention(JTextField[] keepTFs) {
+        final int[] counts = new int[keepTFs.length];
+
+        for (int i = 0; i < keepTFs.length; i++) {
+            final long count = parseLimit(keepTFs[i].getText());
 
-            dialog.execute();
+            if (count < 0L || count > Integer.MAX_VALUE) {
+                return null;
+            }
+            counts[i] = (int) count;
         }
+        return new RetentionPolicy(counts[0], counts[1], counts[2], counts[3], counts[4]);
+    }
+
+    private static JTextField[] newKeepFields(RetentionPolicy retention) {
+        return new JTextField[] {
+            new JTextField(String.valueOf(retention.getLast()), 3),
+            new JTextField(String.valueOf(retention.getHourly()), 3),
+            new JTextField(String.valueOf(retention.getDaily()), 3),
+            new JTextField(String.valueOf(retention.getWeekly()), 3),
+            new JTextField(String.valueOf(retention.getMonthly()), 3)
+        };
+    }
+
+    private static File keyFileOf(String text) {
+        return text.trim().isEmpty() ? null : new File(text.trim());
     }
 
     private final class WorkingDialog extends JDialog {
-        private final BackupTask task;
+        private final JLabel progressLabel;
+        private int destinationCount;
 
-        WorkingDialog() {
+        WorkingDialog(String message) {
             super(MainWindow.this, "Working");
-            this.task = list.getSelectedValue();
+            this.progressLabel = new JLabel();
+            this.destinationCount = 0;
             final JPanel panel = new JPanel();
 
+            panel.setLayout(new BorderLayout(0, 10));
+            panel.setBorder(new EmptyBorder(10, 10, 10, 10));
             panel.setBackground(Color.WHITE);
-            panel.add(new JLabel("Backing up " + task.getName() + "..."));
+            panel.add(new JLabel(message), BorderLayout.PAGE_START);
+            panel.add(progressLabel, BorderLayout.CENTER);
             getContentPane().add(panel);
 
             pack();
@@ -163,47 +324,107 @@ public final class MainWindow extends JFrame implements ActionListener {
             setLocationRelativeTo(null);
         }
 
-        void execute() {
-            final BackupTaskWorker worker = new BackupTaskWorker(task, this);
+        void execute(Operation operation) {
+            final TaskWorker worker = new TaskWorker(operation, this);
 
             worker.execute();
             setVisible(true);
         }
+
+        void showProgress(List<CopyProgress.Status> statuses) {
+            final StringBuilder builder = new StringBuilder("<html><body>");
+
+            for (CopyProgress.Status status : statuses) {
+                builder.append("<strong>")
+                       .append(status.getRoot())
+                       .append("</strong><br>")
+                       .append(String.format("%,d", status.getFilesDone()))
+                       .append(" / ")
+                       .append(String.format("%,d", status.getFilesTotal()))
+                       .append(status.isWalked() ? "" : "+")
+                       .append(" files, ")
+                       .append(formatBytes(status.getBytesDone()))
+                       .append(" / ")
+                       .append(formatBytes(status.getBytesTotal()))
+                       .append(status.isWalked() ? "" : "+")
+                       .append(", ")
+                       .append(formatBytes(status.getBytesPerSecond()))
+                       .append("/s, ")
+                       .append(formatSeconds(status.getSecondsLeft()))
+                       .append(" left<br>");
+            }
+            builder.append("</body></html>");
+            progressLabel.setText(builder.toString());
+
+            if (statuses.size() != destinationCount) {
+                destinationCount = statuses.size();
+                pack();
+                setLocationRelativeTo(null);
+            }
+        }
     }
 
-    private final class BackupTaskWorker extends SwingWorker<Void, Void> {
-        private final BackupTask task;
-        private final Dialog dialog;
+    /**
+     * Runs a backup or restore and publishes a sample of its progress every
+     * {@link #PROGRESS_INTERVAL_MILLIS}, so the copy threads never wait for
+     * the dialog.
+     */
+    private final class TaskWorker extends SwingWorker<Void, List<CopyProgress.Status>> {
+        private final Operation operation;
+        private final WorkingDialog dialog;
+        private String message;
         private Exception e;
 
-        BackupTaskWorker(BackupTask task, Dialog dialog) {
+        TaskWorker(Operation operation, WorkingDialog dialog) {
             super();
-            this.task = task;
+            this.operation = operation;
             this.dialog = dialog;
+            message = null;
             e = null;
         }
 
         @Override
         protected Void doInBackground() {
+            final CopyProgress progress = new CopyProgress();
+            final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "Task progress");
+
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            reporter.scheduleAtFixedRate(
+                () -> publish(progress.sample()),
+                PROGRESS_INTERVAL_MILLIS,
+                PROGRESS_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS
+            );
             try {
-                controller.backup(task);
+                message = operation.run(progress);
             }
             catch (Exception e) {
                 this.e = e;
             }
+            finally {
+                reporter.shutdownNow();
+            }
             return null;
         }
 
+        @Override
+        protected void process(List<List<CopyProgress.Status>> samples) {
+            // Only the latest sample matters if the EDT fell behind
+            dialog.showProgress(samples.get(samples.size() - 1));
+        }
+
         @Override
         protected void done() {
             dialog.dispose();
 
             if (e == null) {
-                final String msg = "Backup completed.";
-
                 JOptionPane.showMessageDialog(
                     MainWindow.this,
-                    msg,
+                    message,
                     "Success",
                     JOptionPane.INFORMATION_MESSAGE
                 );
@@ -240,8 +461,10 @@ public final class MainWindow extends JFrame implements ActionListener {
             }
             else if (SwingUtilities.isRightMouseButton(e)) {
                 final JPopupMenu popup = new JPopupMenu();
+                final JMenuItem restoreItem = new JMenuItem("Restore...");
                 final JMenuItem deleteItem = new JMenuItem("Delete");
 
+                popup.add(restoreItem);
                 popup.add(deleteItem);
                 list.setSelectedIndex(list.locationToIndex(e.getPoint()));
                 popup.show(list, e.getX(), e.getY());
@@ -250,6 +473,7 @@ public final class MainWindow extends JFrame implements ActionListener {
                 if (delete == null) {
                     return;
                 }
+                restoreItem.addActionListener(e1 -> runRestore(delete));
                 deleteItem.addActionListener(e1 -> {
                     try {
                         controller.deleteTask(delete);
@@ -427,6 +651,17 @@ public final class MainWindow extends JFrame implements ActionListener {
             final JTextField nameTF = new JTextField();
             final JTextField targetTF = new JTextField();
             final JTextField destinationsTF = new JTextField(60);
+            final JTextField exclusionsTF = new JTextField(60);
+            final JCheckBox gitignoreCB = new JCheckBox("Honor .gitignore files");
+            final JCheckBox checksumsCB = new JCheckBox("Keep checksums to verify snapshots");
+            final JCheckBox encryptCB = new JCheckBox("Encrypt archives");
+            final JTextField keyFileTF = new JTextField(60);
+            final JPanel retentionPanel = new JPanel();
+            final JTextField[] keepTFs = newKeepFields(RetentionPolicy.KEEP_ALL);
+            final JPanel limitsPanel = new JPanel();
+            final JTextField maxRateTF = new JTextField("0", 6);
+            final JTextField maxFilesTF = new JTextField("0", 6);
+            final JCheckBox idleCB = new JCheckBox("Idle priority");
             final JButton cancelButton = new JButton("Cancel");
             final JButton saveButton = new JButton("Save");
             final ActionListener l = (e) -> {
@@ -443,6 +678,19 @@ public final class MainWindow extends JFrame implements ActionListener {
                         JOptionPane.showMessageDialog(mw, "Empty destinations!");
                         return;
                     }
+                    final long maxRate = parseLimit(maxRateTF.getText());
+                    final long maxFiles = parseLimit(maxFilesTF.getText());
+
+                    if (maxRate < 0L || maxFiles < 0L) {
+                        JOptionPane.showMessageDialog(mw, "Invalid limits!");
+                        return;
+                    }
+                    final RetentionPolicy retention = parseRetention(keepTFs);
+
+                    if (retention == null) {
+                        JOptionPane.showMessageDialog(mw, "Invalid snapshots to keep!");
+                        return;
+                    }
                     final BackupTask backupTask = new BackupTask();
 
                     backupTask.setName(name);
@@ -450,15 +698,29 @@ public final class MainWindow extends JFrame implements ActionListener {
                     for (String destination : destinations) {
                         backupTask.addDestination(new File(destination));
                     }
+                    addExclusions(backupTask, exclusionsTF.getText());
+                    backupTask.setHonorGitignore(gitignoreCB.isSelected());
+                    backupTask.setMaxBytesPerSecond(maxRate * BYTES_PER_MB);
+                    backupTask.setMaxFilesPerSecond(maxFiles);
+                    backupTask.setIdlePriority(idleCB.isSelected());
+                    backupTask.setChecksums(checksumsCB.isSelected());
+                    backupTask.setRetention(retention);
+                    backupTask.setEncrypted(encryptCB.isSelected());
+                    backupTask.setKeyFile(keyFileOf(keyFileTF.getText()));
                     callback.save(backupTask);
                 }
                 dispose();
             };
 
+            gitignoreCB.setBackground(Color.WHITE);
+            checksumsCB.setBackground(Color.WHITE);
+            encryptCB.setBackground(Color.WHITE);
+            initLimitsPanel(limitsPanel, maxRateTF, maxFilesTF, idleCB);
+            initRetentionPanel(retentionPanel, keepTFs);
             cancelButton.addActionListener(l);
             saveButton.addActionListener(l);
 
-            formPanel.setLayout(new GridLayout(6, 1));
+            formPanel.setLayout(new GridLayout(17, 1));
             formPanel.setBackground(Color.WHITE);
             formPanel.add(new JLabel("Name"));
             formPanel.add(nameTF);
@@ -466,6 +728,17 @@ public final class MainWindow extends JFrame implements ActionListener {
             formPanel.add(targetTF);
             formPanel.add(new JLabel("Backup destinations"));
             formPanel.add(destinationsTF);
+            formPanel.add(new JLabel("Exclusions (; separated, like .gitignore)"));
+            formPanel.add(exclusionsTF);
+            formPanel.add(gitignoreCB);
+            formPanel.add(new JLabel("Limits (MB/s, files/s, 0 for no limit)"));
+            formPanel.add(limitsPanel);
+            formPanel.add(checksumsCB);
+            formPanel.add(new JLabel("Snapshots to keep (last, hourly, daily, weekly, monthly, 0 for all)"));
+            formPanel.add(retentionPanel);
+            formPanel.add(encryptCB);
+            formPanel.add(new JLabel("Key file (empty for the SDBACKUP_PASSPHRASE variable)"));
+            formPanel.add(keyFileTF);
 
             actionsPanel.setLayout(new FlowLayout(FlowLayout.TRAILING, 5, 5));
             actionsPanel.setBackground(Color.WHITE);
@@ -504,6 +777,17 @@ public final class MainWindow extends JFrame implements ActionListener {
             final JTextField nameTF = new JTextField();
             final JTextField targetTF = new JTextField();
             final JTextField destinationsTF = new JTextField(60);
+            final JTextField exclusionsTF = new JTextField(60);
+            final JCheckBox gitignoreCB = new JCheckBox("Honor .gitignore files");
+            final JCheckBox checksumsCB = new JCheckBox("Keep checksums to verify snapshots");
+            final JCheckBox encryptCB = new JCheckBox("Encrypt archives");
+            final JTextField keyFileTF = new JTextField(60);
+            final JPanel retentionPanel = new JPanel();
+            final JTextField[] keepTFs = newKeepFields(edit.getRetention());
+            final JPanel limitsPanel = new JPanel();
+            final JTextField maxRateTF = new JTextField("0", 6);
+            final JTextField maxFilesTF = new JTextField("0", 6);
+            final JCheckBox idleCB = new JCheckBox("Idle priority");
             final JButton cancelButton = new JButton("Cancel");
             final JButton saveButton = new JButton("Save");
             final ActionListener l = (e) -> {
@@ -520,6 +804,19 @@ public final class MainWindow extends JFrame implements ActionListener {
                         JOptionPane.showMessageDialog(mw, "Empty destinations!");
                         return;
                     }
+                    final long maxRate = parseLimit(maxRateTF.getText());
+                    final long maxFiles = parseLimit(maxFilesTF.getText());
+
+                    if (maxRate < 0L || maxFiles < 0L) {
+                        JOptionPane.showMessageDialog(mw, "Invalid limits!");
+                        return;
+                    }
+                    final RetentionPolicy retention = parseRetention(keepTFs);
+
+                    if (retention == null) {
+                        JOptionPane.showMessageDialog(mw, "Invalid snapshots to keep!");
+                        return;
+                    }
 
                     edit.clear();
                     edit.setName(name);
@@ -527,6 +824,15 @@ public final class MainWindow extends JFrame implements ActionListener {
                     for (String destination : destinations) {
                         edit.addDestination(new File(destination));
                     }
+                    addExclusions(edit, exclusionsTF.getText());
+                    edit.setHonorGitignore(gitignoreCB.isSelected());
+                    edit.setMaxBytesPerSecond(maxRate * BYTES_PER_MB);
+                    edit.setMaxFilesPerSecond(maxFiles);
+                    edit.setIdlePriority(idleCB.isSelected());
+                    edit.setChecksums(checksumsCB.isSelected());
+                    edit.setRetention(retention);
+                    edit.setEncrypted(encryptCB.isSelected());
+                    edit.setKeyFile(keyFileOf(keyFileTF.getText()));
                     try {
                         callback.update(oldName, edit);
                     }
@@ -553,10 +859,23 @@ public final class MainWindow extends JFrame implements ActionListener {
             ) {
                 destinationsTF.setText(destinationsTF.getText().substring(1));
             }
+            exclusionsTF.setText(String.join(";", edit.getExclusions()));
+            gitignoreCB.setSelected(edit.isHonorGitignore());
+            maxRateTF.setText(String.valueOf(edit.getMaxBytesPerSecond() / BYTES_PER_MB));
+            maxFilesTF.setText(String.valueOf(edit.getMaxFilesPerSecond()));
+            idleCB.setSelected(edit.isIdlePriority());
+            checksumsCB.setSelected(edit.isChecksums());
+            encryptCB.setSelected(edit.isEncrypted());
+            keyFileTF.setText(edit.getKeyFile() == null ? "" : edit.getKeyFile().toString());
+            gitignoreCB.setBackground(Color.WHITE);
+            checksumsCB.setBackground(Color.WHITE);
+            encryptCB.setBackground(Color.WHITE);
+            initLimitsPanel(limitsPanel, maxRateTF, maxFilesTF, idleCB);
+            initRetentionPanel(retentionPanel, keepTFs);
             cancelButton.addActionListener(l);
             saveButton.addActionListener(l);
 
-            editPanel.setLayout(new GridLayout(6, 1));
+            editPanel.setLayout(new GridLayout(17, 1));
             editPanel.setBackground(Color.WHITE);
             editPanel.add(new JLabel("Name"));
             editPanel.add(nameTF);
@@ -564,6 +883,17 @@ public final class MainWindow extends JFrame implements ActionListener {
             editPanel.add(targetTF);
             editPanel.add(new JLabel("Backup destinations"));
             editPanel.add(destinationsTF);
+            editPanel.add(new JLabel("Exclusions (; separated, like .gitignore)"));
+            editPanel.add(exclusionsTF);
+            editPanel.add(gitignoreCB);
+            editPanel.add(new JLabel("Limits (MB/s, files/s, 0 for no limit)"));
+            editPanel.add(limitsPanel);
+            editPanel.add(checksumsCB);
+            editPanel.add(new JLabel("Snapshots to keep (last, hourly, daily, weekly, monthly, 0 for all)"));
+            editPanel.add(retentionPanel);
+            editPanel.add(encryptCB);
+            editPanel.add(new JLabel("Key file (empty for the SDBACKUP_PASSPHRASE variable)"));
+            editPanel.add(keyFileTF);
 
             actionsPanel.setLayout(new FlowLayout(FlowLayout.TRAILING, 5, 5));
             actionsPanel.setBackground(Color.WHITE);
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.watch;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persists the directories of a source tree that changed while it was
+ * watched, so a backup only has to read those again.
+ *
+ * <p>The file starts with the time watching started and the time of the
+ * last sync, which is updated in place. Every change before the sync time is
+ * already recorded. Each record is a directory whose entries changed, or a
+ * new directory whose whole tree is unknown, with the time it was recorded.
+ * </p>
+ *
+ * <p>A directory changing again is recorded at most once every {@link
+ * #DEDUP_MILLIS}, and records older than that window are taken into account
+ * when reading, so no change is lost. The file is rewritten with only the
+ * latest record of each directory once it grows too much. A lock file is
+ * held while the journal is open, which keeps a second watcher away and tells
+ * readers whether a watcher is still running. The journal is deleted when
+ * it's closed.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class ChangeJournal implements Closeable {
+    static final long DEDUP_MILLIS = 1000L;
+    private static final int MAGIC = 0x53444A4C;
+    private static final int VERSION = 1;
+    private static final int SYNCED_AT_OFFSET = 16;
+    private static final int HEADER_SIZE = 24;
+    private static final byte TAG_DIRECTORY = 1;
+    private static final byte TAG_TREE = 2;
+    private static final int MIN_COMPACTION_RECORDS = 100_000;
+    private static final long SYNC_WAIT_MILLIS = 50L;
+    private static final String LOCK_EXTENSION = ".lock";
+    private static final String TMP_EXTENSION = ".tmp";
+    private final Path file;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final Map<String, Long> recordedDirectories;
+    private final Map<String, Long> recordedTrees;
+    private final ByteArrayOutputStream pending;
+    private final DataOutputStream pendingOut;
+    private FileChannel channel;
+    private long startedAt;
+    private int records;
+
+    private ChangeJournal(Path file, FileChannel lockChannel, FileLock lock) {
+        this.file = file;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+        this.recordedDirectories = new HashMap<>();
+        this.recordedTrees = new HashMap<>();
+        this.pending = new ByteArrayOutputStream(4096);
+        this.pendingOut = new DataOutputStream(pending);
+        this.channel = null;
+        this.startedAt = 0L;
+        this.records = 0;
+    }
+
+    /**
+     * Starts a new journal in the given file, replacing any previous one.
+     *
+     * @param file      journal file
+     * @param startedAt time since every change is being watched
+     * @return the open journal
+     * @throws IOException if another watcher holds the journal or it can't
+     *                     be written
+     */
+    public static ChangeJournal create(Path file, long startedAt) throws IOException {
+        final FileChannel lockChannel = FileChannel.open(
+            file.resolveSibling(file.getFileName() + LOCK_EXTENSION),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE
+        );
+        FileLock lock = null;
+
+        try {
+            lock = lockChannel.tryLock();
+        }
+        catch (OverlappingFileLockException ignore) {}
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Already watched: " + file);
+        }
+        final ChangeJournal journal = new ChangeJournal(file, lockChannel, lock);
+
+        try {
+            journal.reset(startedAt);
+        }
+        catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    /**
+     * Reads the journal in the given file once it has been synced at or
+     * after the given time.
+     *
+     * @param file         journal file
+     * @param syncedAt     time every change before which must be recorded
+     * @param timeoutMillis maximum time to wait for the watcher to sync
+     * @return the changes, or null if there's no journal or it wasn't synced
+     * in time, so it can't be trusted
+     * @throws IOException if the journal can't be read
+     */
+    public static Changes read(Path file, long syncedAt, long timeoutMillis) throws IOException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        if (!isWatched(file)) {
+            return null;
+        }
+        while (true) {
+            final byte[] bytes;
+
+            try {
+                bytes = Files.readAllBytes(file);
+            }
+            catch (NoSuchFileException e) {
+                return null;
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+            if (bytes.length < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            final long startedAt = buffer.getLong();
+
+            if (buffer.getLong() >= syncedAt) {
+                return readRecords(buffer, startedAt);
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                return null;
+            }
+            try {
+                Thread.sleep(SYNC_WAIT_MILLIS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+    }
+
+    /**
+     * Returns whether a watcher holds the lock of the given journal.
+     */
+    private static boolean isWatched(Path file) throws IOException {
+        final Path lockFile = file.resolveSibling(file.getFileName() + LOCK_EXTENSION);
+
+        if (!Files.exists(lockFile)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.READ)) {
+            final FileLock lock = channel.tryLock(0L, Long.MAX_VALUE, true);
+
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        }
+        catch (OverlappingFileLockException e) {
+            // Held by a watcher in this process
+            return true;
+        }
+        catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * Discards every record and starts over from the given time, after
+     * changes may have been missed.
+     */
+    public void reset(long value) throws IOException {
+        startedAt = value;
+        recordedDirectories.clear();
+        recordedTrees.clear();
+        pending.reset();
+        rewrite();
+    }
+
+    /**
+     * Records that the entries of the given directory changed.
+     *
+     * @param directory relative directory separated by '/'
+     * @param time      time of the change
+     */
+    public void recordDirectory(String directory, long time) throws IOException {
+        record(TAG_DIRECTORY, recordedDirectories, directory, time);
+    }
+
+    /**
+     * Records that the given directory and everything below it is new.
+     *
+     * @param directory relative directory separated by '/'
+     * @param time      time of the change
+     */
+    public void recordTree(String directory, long time) throws IOException {
+        record(TAG_TREE, recordedTrees, directory, time);
+    }
+
+    /**
+     * Writes the pending records and marks every change before the given
+     * time as recorded.
+     */
+    public void sync(long time) throws IOException {
+        if (pending.size() > 0) {
+            writeFully(channel, ByteBuffer.wrap(pending.toByteArray()), channel.size());
+            pending.reset();
+        }
+        if (records >= MIN_COMPACTION_RECORDS && records > 4 * (recordedDirectories.size() + recordedTrees.size())) {
+            rewrite();
+        }
+        final ByteBuffer syncedAt = ByteBuffer.allocate(8);
+
+        syncedAt.putLong(0, time);
+        writeFully(channel, syncedAt, SYNCED_AT_OFFSET);
+    }
+
+    /**
+     * Stops the journal and deletes it, since changes are no longer recorded.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            Files.deleteIfExists(file);
+        }
+        finally {
+            lock.release();
+            lockChannel.close();
+        }
+    }
+
+    private void record(byte tag, Map<String, Long> recorded, String directory, long time) throws IOException {
+        final Long last = recorded.get(directory);
+
+        if (last != null && time - last < DEDUP_MILLIS) {
+            return;
+        }
+        recorded.put(directory, time);
+        writeRecord(pendingOut, tag, directory, time);
+        records++;
+    }
+
+    private static void writeRecord(DataOutputStream out, byte tag, String directory, long time) throws IOException {
+        out.writeByte(tag);
+        out.writeLong(time);
+        out.writeUTF(directory);
+    }
+
+    /**
+     * Writes a new file with the latest record of each directory and
+     * atomically replaces the journal with it.
+     */
+    private void rewrite() throws IOException {
+        final Path tmp = file.resolveSibling(file.getFileName() + TMP_EXTENSION);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(startedAt);
+            out.writeLong(0L);
+            for (Map.Entry<String, Long> entry : recordedDirectories.entrySet()) {
+                writeRecord(out, TAG_DIRECTORY, entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String, Long> entry : recordedTrees.entrySet()) {
+                writeRecord(out, TAG_TREE, entry.getKey(), entry.getValue());
+            }
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        records = recordedDirectories.size() + recordedTrees.size();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long offset = position;
+
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+
+    private static Changes readRecords(ByteBuffer buffer, long startedAt) throws IOException {
+        final DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(buffer.array(), buffer.position(), buffer.remaining())
+        );
+        final Map<String, Long> directories = new HashMap<>();
+        final Map<String, Long> trees = new HashMap<>();
+
+        try {
+            while (in.available() > 0) {
+                final byte tag = in.readByte();
+                final long time = in.readLong();
+                final String directory = in.readUTF();
+
+                (tag == TAG_TREE ? trees : directories).merge(directory, time, Math::max);
+            }
+        }
+        catch (EOFException ignore) {
+            // A record was being appended, and it's after the sync time
+        }
+        return new Changes(startedAt, directories, trees);
+    }
+
+    /**
+     * The changes read from a journal.
+     */
+    public static final class Changes {
+        private final long startedAt;
+        private final Map<String, Long> directories;
+        private final Map<String, Long> trees;
+
+        private Changes(long startedAt, Map<String, Long> directories, Map<String, Long> trees) {
+            this.startedAt = startedAt;
+            this.directories = directories;
+            this.trees = trees;
+        }
+
+        /**
+         * Returns whether every change since the given time was watched.
+         */
+        public boolean covers(long since) {
+            return startedAt <= since;
+        }
+
+        /**
+         * Returns whether neither the entries of the given directory nor any
+         * tree holding it changed since the given time.
+         *
+         * @param directory relative directory separated by '/'
+         * @param since     time of the previous backup
+         */
+        public boolean isUnchanged(String directory, long since) {
+            final long after = since - 2L * DEDUP_MILLIS;
+
+            if (directories.getOrDefault(directory, Long.MIN_VALUE) >= after) {
+                return false;
+            }
+            String tree = directory;
+
+            while (true) {
+                if (trees.getOrDefault(tree, Long.MIN_VALUE) >= after) {
+                    return false;
+                }
+                if (tree.isEmpty()) {
+                    return true;
+                }
+                final int slash = tree.lastIndexOf('/');
+
+                tree = slash == -1 ? "" : tree.substring(0, slash);
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2018 Tobias Briones. All rights reserved.
+ *
+ * SPDX-License-Identifier: MIT
+ *
+ * This file is part of Example Project: SD Backup.
+ *
+ * This source code is licensed under the MIT License found in the
+ * LICENSE file in the root directory of this source tree or at
+ * https://opensource.org/licenses/MIT.
+ */
+
+package dev.tobiasbriones.ep.sdbackup.watch;
+
+import dev.tobiasbriones.ep.sdbackup.io.TreeFilter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches every directory of a source tree on a background thread and
+ * records the ones that change in a {@link ChangeJournal}.
+ *
+ * <p>The journal is synced every {@link #SYNC_INTERVAL_MILLIS}. If events
+ * are lost because the watch service overflowed, the journal starts over, so
+ * the next backup reads the whole tree. The journal is deleted once the
+ * watcher is closed or fails for the same reason.</p>
+ *
+ * <p>Directories rejected by the filter are not watched, which keeps large
+ * excluded trees from using up the watches of the system.</p>
+ *
+ * @author Tobias Briones
+ */
+public final class TreeWatcher implements Closeable {
+    public static final long SYNC_INTERVAL_MILLIS = 500L;
+
+    // Events may still be on their way from the kernel when the journal is
+    // synced
+    private static final long DELIVERY_MARGIN_MILLIS = 100L;
+    private final Path root;
+    private final WatchService service;
+    private final Map<WatchKey, Path> directories;
+    private final TreeFilter filter;
+    private final ChangeJournal journal;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    private TreeWatcher(
+        Path root,
+        WatchService service,
+        Map<WatchKey, Path> directories,
+        TreeFilter filter,
+        ChangeJournal journal
+    ) {
+        this.root = root;
+        this.service = service;
+        this.directories = directories;
+        this.filter = filter;
+        this.journal = journal;
+        this.thread = new Thread(this::run, "Watcher " + root);
+        this.closed = false;
+
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Registers every directory of the given tree and starts recording its
+     * changes into a new journal in the given file.
+     */
+    public static TreeWatcher start(Path root, Path journalFile) throws IOException {
+        return start(root, journalFile, TreeFilter.ALL);
+    }
+
+    /**
+     * Registers the directories of the given tree accepted by the given
+     * filter and starts recording their changes into a new journal in the
+     * given file. The filter is only used by the watcher thread from then on.
+     */
+    public static TreeWatcher start(Path root, Path journalFile, TreeFilter filter) throws IOException {
+        final WatchService service = root.getFileSystem().newWatchService();
+        final Map<WatchKey, Path> directories = new HashMap<>();
+        final ChangeJournal journal;
+
+        try {
+            register(service, directories, filter, root, root);
+            journal = ChangeJournal.create(journalFile, System.currentTimeMillis());
+        }
+        catch (IOException e) {
+            service.close();
+            throw e;
+        }
+        final TreeWatcher watcher = new TreeWatcher(root, service, directories, filter, journal);
+
+        watcher.thread.start();
+        return watcher;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Stops watching and deletes the journal.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        service.close();
+        try {
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                final long syncedAt = System.currentTimeMillis() - DELIVERY_MARGIN_MILLIS;
+                WatchKey key = service.poll(SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+                while (key != null) {
+                    handle(key);
+                    key = service.poll();
+                }
+                journal.sync(syncedAt);
+            }
+        }
+        catch (ClosedWatchServiceException | InterruptedException ignore) {
+            // Closed
+        }
+        catch (IOException ignore) {
+            // The journal is deleted, so backups read the whole tree
+        }
+        finally {
+            try {
+                journal.close();
+            }
+            catch (IOException ignore) {}
+        }
+    }
+
+    private void handle(WatchKey key) throws IOException {
+        final Path dir = directories.get(key);
+        final long time = System.currentTimeMillis();
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                journal.reset(time);
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            final Path child = dir.resolve((Path) event.context());
+
+            journal.recordDirectory(relative(dir), time);
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)
+                && filter.accept(root.relativize(child), true)) {
+                // Whatever it holds was never seen
+                register(service, directories, filter, root, child);
+                journal.recordTree(relative(child), time);
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    private String relative(Path dir) {
+        final String path = root.relativize(dir).toString();
+        return File.separatorChar == '/' ? path : path.replace(File.separatorChar, '/');
+    }
+
+    private static void register(
+        WatchService service,
+        Map<WatchKey, Path> directories,
+        TreeFilter filter,
+        Path root,
+        Path tree
+    ) throws IOException {
+        Files.walkFileTree(tree, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                final Path relativeDir = root.relativize(dir);
+
+                if (!dir.equals(tree) && !filter.accept(relativeDir, true)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                filter.enter(dir, relativeDir);
+                final WatchKey key = dir.register(
+                    service,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY
+                );
+
+                directories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                filter.leave(root.relativize(dir));
+                return super.postVisitDirectory(dir, exc);
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                // Gone before it could be registered, its parent has an event
+                if (exc instanceof NoSuchFileException) {
+                    return FileVisitResult.CONTINUE;
+                }
+                throw exc;
+            }
+        });
+    }
+}